@@ -0,0 +1,51 @@
+package com.example.chat.configuration;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.CacheRegionStatistics;
+import org.hibernate.stat.Statistics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Hit ratio metrics of the Hibernate second level and query cache regions (see <code>ehcache.xml</code>).
+ * <p>
+ * The hit and miss counters of every region are published by the Hibernate metrics of Spring Boot
+ * (<code>hibernate.second.level.cache.requests</code> and <code>hibernate.cache.query.requests</code>), this adds the
+ * ratio of hits over the total requests of the chat regions, <code>chat.cache.hit.ratio</code> tagged by region.
+ */
+@Configuration
+public class CacheMetricsConfig {
+
+    private static final String[] REGIONS = {"chat.users", "chat.rooms", "chat.lookups"};
+
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+
+    @PostConstruct
+    void registerMetrics() {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+
+        for (String region : REGIONS) {
+            Gauge.builder("chat.cache.hit.ratio", statistics, s -> hitRatio(s.getCacheRegionStatistics(region)))
+                    .description("Ratio of hits over the requests of the second level cache region")
+                    .tag("region", region)
+                    .register(meterRegistry);
+        }
+    }
+
+    private static double hitRatio(CacheRegionStatistics region) {
+        if (region == null) {
+            return 0;
+        }
+        long requests = region.getHitCount() + region.getMissCount();
+        return requests > 0 ? (double) region.getHitCount() / requests : 0;
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.chat.configuration;
+
+import com.example.chat.messaging.ClusterBus;
+import com.example.chat.messaging.ClusterRelay;
+import com.example.chat.messaging.TcpClusterBus;
+import com.example.chat.service.MessageHistoryService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.config.MessageBrokerRegistry;
+import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Configuration of the cluster, enabled with <code>chat.cluster.enabled=true</code>. The room broadcasts of every node
+ * are relayed to the other nodes by the <code>ClusterRelay</code>, over a <code>TcpClusterBus</code> between the nodes
+ * listed in <code>chat.cluster.peers</code>.
+ * <p>
+ * The relay intercepts the broker channel, in addition to the configuration of the broker of the
+ * <code>WebSocketConfig</code>.
+ */
+@Configuration
+@ConditionalOnProperty(name = "chat.cluster.enabled", havingValue = "true")
+public class ClusterConfig implements WebSocketMessageBrokerConfigurer {
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    MessageHistoryService messageHistoryService;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    /**
+     * Port of the cluster bus of this node, local address to listen on (all if empty), and address of this node as
+     * listed in the peers of the other nodes, <code>host:port</code>.
+     */
+    @Value("${chat.cluster.port:7701}")
+    int port;
+
+    @Value("${chat.cluster.bind-address:}")
+    String bindAddress;
+
+    @Value("${chat.cluster.address:localhost:${chat.cluster.port:7701}}")
+    String address;
+
+    /**
+     * Addresses of the nodes of the cluster, <code>host:port</code>, the same list for all the nodes.
+     */
+    @Value("${chat.cluster.peers:}")
+    List<String> peers;
+
+    /**
+     * Secret shared by the nodes of the cluster, required. The nodes authenticate each other with it.
+     */
+    @Value("${chat.cluster.secret:}")
+    String secret;
+
+    /**
+     * Maximum messages waiting to be sent to a peer and in a batch frame.
+     */
+    @Value("${chat.cluster.queue-capacity:10000}")
+    int queueCapacity;
+
+    @Value("${chat.cluster.max-batch:256}")
+    int maxBatch;
+
+    @Value("${chat.cluster.reconnect-delay:2s}")
+    Duration reconnectDelay;
+
+    /**
+     * Time and maximum messages remembered to discard the duplicates.
+     */
+    @Value("${chat.cluster.deduplication.time:1m}")
+    Duration deduplicationTime;
+
+    @Value("${chat.cluster.deduplication.maximum-size:100000}")
+    long deduplicationSize;
+
+    /**
+     * Relays the broadcasts of the broker channel to the other nodes.
+     *
+     * @param registry registry for configuring message broker options.
+     */
+    @Override
+    public void configureMessageBroker(MessageBrokerRegistry registry) {
+        registry.configureBrokerChannel().interceptors(clusterRelay());
+    }
+
+    @Bean
+    ClusterBus clusterBus() {
+        // Without a secret any process that reaches the cluster port could inject broadcasts and history
+        if (secret == null || secret.isBlank()) {
+            throw new IllegalStateException("chat.cluster.secret must be set when chat.cluster.enabled=true");
+        }
+        return new TcpClusterBus(address, bindAddress, port, peers, secret, queueCapacity, maxBatch, reconnectDelay,
+                meterRegistry);
+    }
+
+    @Bean
+    ClusterRelay clusterRelay() {
+        return new ClusterRelay(clusterBus(), messageHistoryService, objectMapper, deduplicationSize,
+                deduplicationTime, meterRegistry);
+    }
+
+    /**
+     * Starts the relay once the broker channel has been created.
+     *
+     * @param brokerChannel channel of the messages to the broker.
+     * @return the initializer that starts the relay.
+     */
+    @Bean
+    SmartInitializingSingleton clusterRelayInitializer(@Qualifier("brokerChannel") MessageChannel brokerChannel) {
+        return () -> clusterRelay().start(brokerChannel);
+    }
+}
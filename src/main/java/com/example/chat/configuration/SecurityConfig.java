@@ -1,35 +1,49 @@
 package com.example.chat.configuration;
 
-import com.nimbusds.jose.jwk.JWK;
+import com.example.chat.model.User;
+import com.example.chat.repository.UserRepository;
+import com.example.chat.security.AccountUserDetailsService;
+import com.example.chat.security.CachingAuthenticationProvider;
+import com.example.chat.security.CachingJwtDecoder;
+import com.example.chat.security.JwkSourceJwtDecoders;
+import com.example.chat.security.JwsAlgorithms;
+import com.example.chat.security.RotatingJwkSource;
+import com.example.chat.security.RotatingJwtEncoder;
+import com.example.chat.service.UserService;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
 import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.KeyUse;
 import com.nimbusds.jose.jwk.RSAKey;
-import com.nimbusds.jose.jwk.source.ImmutableJWKSet;
-import com.nimbusds.jose.jwk.source.JWKSource;
-import com.nimbusds.jose.proc.SecurityContext;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationRunner;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
 import org.springframework.security.config.Customizer;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configurers.AbstractHttpConfigurer;
 import org.springframework.security.config.annotation.web.configurers.oauth2.server.resource.OAuth2ResourceServerConfigurer;
 import org.springframework.security.config.http.SessionCreationPolicy;
-import org.springframework.security.core.userdetails.User;
 import org.springframework.security.core.userdetails.UserDetailsService;
-import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.security.crypto.factory.PasswordEncoderFactories;
+import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.oauth2.jwt.JwtEncoder;
-import org.springframework.security.oauth2.jwt.NimbusJwtDecoder;
-import org.springframework.security.oauth2.jwt.NimbusJwtEncoder;
 import org.springframework.security.oauth2.server.resource.web.BearerTokenAuthenticationEntryPoint;
 import org.springframework.security.oauth2.server.resource.web.access.BearerTokenAccessDeniedHandler;
-import org.springframework.security.provisioning.InMemoryUserDetailsManager;
 import org.springframework.security.web.SecurityFilterChain;
 import org.springframework.security.web.servlet.util.matcher.MvcRequestMatcher;
+import org.springframework.util.StringUtils;
 import org.springframework.web.servlet.handler.HandlerMappingIntrospector;
 
+import java.nio.file.Path;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
+import java.time.Duration;
 
 /**
  * Security configuration for the chat using JWT
@@ -37,22 +51,100 @@ import java.security.interfaces.RSAPublicKey;
 @Configuration
 public class SecurityConfig {
 
+    private static final Logger logger = LoggerFactory.getLogger(SecurityConfig.class);
 
-    @Value("${chat.security.jwt.private-key}")
+    private static final int MIN_ADMINISTRATOR_PASSWORD_LENGTH = 12;
+
+    /**
+     * RSA key pair that signs the RS256 tokens when there is no directory of keys.
+     */
+    @Value("${chat.security.jwt.private-key:#{null}}")
     RSAPrivateKey privateKey;
 
-    @Value("${chat.security.jwt.public-key}")
+    @Value("${chat.security.jwt.public-key:#{null}}")
     RSAPublicKey publicKey;
 
+    /**
+     * Signing algorithm of the tokens: RS256, ES256, EdDSA or HS256.
+     */
+    @Value("${chat.security.jwt.algorithm:RS256}")
+    String jwtAlgorithm;
+
+    /**
+     * Directory of the JWK files, empty to sign with the RSA key pair.
+     */
+    @Value("${chat.security.jwt.keys-directory:}")
+    String jwtKeysDirectory;
+
+    /**
+     * Time between the checks of the changes of the JWK files.
+     */
+    @Value("${chat.security.jwt.keys-refresh-interval:30s}")
+    Duration jwtKeysRefreshInterval;
+
+    /**
+     * Maximum verified tokens kept in the cache.
+     */
+    @Value("${chat.security.jwt.cache.maximum-size:100000}")
+    long jwtCacheMaximumSize;
+
+    /**
+     * Maximum time a verified token is kept in the cache, when it expires later.
+     */
+    @Value("${chat.security.jwt.cache.max-time-to-live:1h}")
+    Duration jwtCacheMaxTimeToLive;
+
+    /**
+     * Maximum revoked tokens kept until they expire, the logouts are refused beyond.
+     */
+    @Value("${chat.security.jwt.revoked.maximum-size:100000}")
+    long jwtRevokedMaximumSize;
+
+    /**
+     * Maximum successful authentications kept in the cache.
+     */
+    @Value("${chat.security.authentication.cache.maximum-size:10000}")
+    long authenticationCacheMaximumSize;
+
+    /**
+     * Time a successful authentication is kept in the cache.
+     */
+    @Value("${chat.security.authentication.cache.time-to-live:5m}")
+    Duration authenticationCacheTimeToLive;
+
+    /**
+     * Administrator account created at startup if it does not exist, none if empty. Its password must not be a
+     * default one, see {@link #isDefaultPassword(String, String)}.
+     */
+    @Value("${chat.security.administrator.nickname:}")
+    String administratorNickname;
+
+    @Value("${chat.security.administrator.password:}")
+    String administratorPassword;
+
+    /**
+     * Regular user account created at startup if it does not exist, none if empty, like the development account.
+     */
+    @Value("${chat.security.seed-user.nickname:}")
+    String seedUserNickname;
+
+    @Value("${chat.security.seed-user.password:}")
+    String seedUserPassword;
+
     @Bean
-    public SecurityFilterChain securityFilterChain(HttpSecurity http, MvcRequestMatcher.Builder mvc) throws Exception {
+    public SecurityFilterChain securityFilterChain(HttpSecurity http, MvcRequestMatcher.Builder mvc,
+                                                   CachingAuthenticationProvider authenticationProvider)
+            throws Exception {
         http
                 .authorizeHttpRequests((authorize) -> authorize
                         //.requestMatchers(mvc.pattern("/api/v1/dummy"),
                         //                 mvc.pattern("/api/v1/dummy2")).permitAll()
+                        // The STOMP sessions are authenticated on their CONNECT frame
+                        .requestMatchers(mvc.pattern("/chat-websocket-service")).permitAll()
                         .anyRequest().authenticated()
                 )
                 .csrf((csrf) -> csrf.ignoringRequestMatchers(mvc.pattern("/api/v1/login")))
+                .authenticationProvider(authenticationProvider)
                 .httpBasic(Customizer.withDefaults())
                 .oauth2ResourceServer(OAuth2ResourceServerConfigurer::jwt)
                 .sessionManagement((session) -> session.sessionCreationPolicy(SessionCreationPolicy.STATELESS))
@@ -82,26 +174,120 @@ public class SecurityConfig {
         return new MvcRequestMatcher.Builder(introspector);
     }
 
+    /**
+     * Users of the accounts table, signing in by email or nickname.
+     *
+     * @see com.example.chat.security.AccountUserDetailsService
+     */
+    @Bean
+    UserDetailsService users(UserRepository userRepository) {
+        return new AccountUserDetailsService(userRepository);
+    }
+
+    /**
+     * Encoder of the passwords, bcrypt by default, the hashes of other algorithms are identified by their prefix.
+     */
+    @Bean
+    PasswordEncoder passwordEncoder() {
+        return PasswordEncoderFactories.createDelegatingPasswordEncoder();
+    }
+
+    /**
+     * Authentication of the users by username and password, the successful authentications are cached for a short
+     * time so the password hashes are not checked on every request.
+     *
+     * @see com.example.chat.security.CachingAuthenticationProvider
+     */
+    @Bean
+    CachingAuthenticationProvider authenticationProvider(UserDetailsService users, PasswordEncoder passwordEncoder,
+                                                         MeterRegistry meterRegistry) {
+        DaoAuthenticationProvider provider = new DaoAuthenticationProvider(passwordEncoder);
+        provider.setUserDetailsService(users);
+        return new CachingAuthenticationProvider(provider, authenticationCacheMaximumSize,
+                authenticationCacheTimeToLive, meterRegistry);
+    }
+
+    /**
+     * Creates the seed user and the administrator accounts at startup when they are configured and do not exist yet.
+     * The administrator is not created with a default password.
+     */
+    @Bean
+    ApplicationRunner accounts(UserService userService) {
+        return (args) -> {
+            createAccount(userService, User.Role.USER, seedUserNickname, seedUserPassword);
+            if (StringUtils.hasText(administratorNickname)
+                    && isDefaultPassword(administratorNickname, administratorPassword)) {
+                logger.warn("Administrator account {} not created, its password is too short or the nickname",
+                        administratorNickname);
+            } else {
+                createAccount(userService, User.Role.ADMIN, administratorNickname, administratorPassword);
+            }
+        };
+    }
+
+    private static void createAccount(UserService userService, User.Role role, String nickname, String password) {
+        if (StringUtils.hasText(nickname) && StringUtils.hasText(password) && !userService.existsByNickname(nickname)) {
+            User account = new User(role, nickname, null, nickname, null);
+            account.setPassword(password);
+            account.setActive(true);
+            userService.create(account);
+        }
+    }
+
+    /**
+     * @return true if the password is shorter than {@value #MIN_ADMINISTRATOR_PASSWORD_LENGTH} characters, like the
+     * well-known defaults, or it is the nickname.
+     */
+    private static boolean isDefaultPassword(String nickname, String password) {
+        return password == null || password.length() < MIN_ADMINISTRATOR_PASSWORD_LENGTH
+                || password.equalsIgnoreCase(nickname);
+    }
+
+    /**
+     * Keys that sign and verify the tokens, from the keys directory when it is configured, reloaded when the key files
+     * change. Otherwise the RSA key pair signs RS256 tokens.
+     *
+     * @see com.example.chat.security.RotatingJwkSource
+     */
     @Bean
-    UserDetailsService users() {
-        return new InMemoryUserDetailsManager(
-                User.withUsername("user")
-                        .password("{noop}password")
-                        .authorities("app")
-                        .build()
-        );
+    RotatingJwkSource jwkSource() throws JOSEException {
+        JWSAlgorithm algorithm = JwsAlgorithms.parse(jwtAlgorithm);
+        if (StringUtils.hasText(jwtKeysDirectory)) {
+            return new RotatingJwkSource(Path.of(jwtKeysDirectory), jwtKeysRefreshInterval, algorithm);
+        }
+
+        if (!JWSAlgorithm.RS256.equals(algorithm) || this.publicKey == null || this.privateKey == null) {
+            throw new IllegalStateException("chat.security.jwt.keys-directory is required for " + algorithm
+                    + " tokens or without chat.security.jwt.private-key and public-key");
+        }
+        RSAKey jwk = new RSAKey.Builder(this.publicKey).privateKey(this.privateKey)
+                .keyUse(KeyUse.SIGNATURE)
+                .algorithm(algorithm)
+                .keyIDFromThumbprint()
+                .build();
+        return new RotatingJwkSource(new JWKSet(jwk), algorithm);
     }
 
+    /**
+     * Decoder of the bearer tokens, the verified tokens are cached until they expire. The cache is cleared when the
+     * keys change, so the tokens of removed keys are rejected.
+     *
+     * @see com.example.chat.security.CachingJwtDecoder
+     */
     @Bean
-    JwtDecoder jwtDecoder() {
-        return NimbusJwtDecoder.withPublicKey(this.publicKey).build();
+    CachingJwtDecoder jwtDecoder(RotatingJwkSource jwkSource, MeterRegistry meterRegistry) {
+        CachingJwtDecoder decoder = new CachingJwtDecoder(JwkSourceJwtDecoders.create(jwkSource),
+                jwtCacheMaximumSize, jwtCacheMaxTimeToLive, jwtRevokedMaximumSize, meterRegistry);
+        jwkSource.addListener(decoder::invalidateAll);
+        return decoder;
     }
 
+    /**
+     * Encoder of the login tokens, signed by the current signing key.
+     */
     @Bean
-    JwtEncoder jwtEncoder() {
-        JWK jwk = new RSAKey.Builder(this.publicKey).privateKey(this.privateKey).build();
-        JWKSource<SecurityContext> jwks = new ImmutableJWKSet<>(new JWKSet(jwk));
-        return new NimbusJwtEncoder(jwks);
+    JwtEncoder jwtEncoder(RotatingJwkSource jwkSource) {
+        return new RotatingJwtEncoder(jwkSource);
     }
 
 }
@@ -0,0 +1,46 @@
+package com.example.chat.configuration;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Configuration of Spring MVC.
+ * <p>
+ * Configures the executor of the asynchronous responses, like the <code>StreamingResponseBody</code> of the NDJSON
+ * exports. The executors of the WebSocket message broker prevent Spring Boot from creating its default task executor,
+ * so without this the asynchronous responses would create a new thread each.
+ */
+@Configuration
+public class WebMvcConfig implements WebMvcConfigurer {
+
+    /**
+     * Maximum asynchronous responses written at the same time.
+     */
+    @Value("${chat.web.async.pool-size:4}")
+    int asyncPoolSize;
+
+    /**
+     * Maximum asynchronous responses waiting for a thread. When exceeded the request is rejected.
+     */
+    @Value("${chat.web.async.queue-capacity:100}")
+    int asyncQueueCapacity;
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(mvcAsyncTaskExecutor());
+    }
+
+    @Bean
+    public ThreadPoolTaskExecutor mvcAsyncTaskExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(asyncPoolSize);
+        executor.setMaxPoolSize(asyncPoolSize);
+        executor.setQueueCapacity(asyncQueueCapacity);
+        executor.setThreadNamePrefix("mvc-async-");
+        return executor;
+    }
+}
@@ -1,10 +1,47 @@
 package com.example.chat.configuration;
 
+import com.example.chat.messaging.CborWireFormat;
+import com.example.chat.messaging.HandshakeAdmission;
+import com.example.chat.messaging.InboundRateLimiter;
+import com.example.chat.messaging.OutboundBufferPolicy;
+import com.example.chat.messaging.ParallelFanOut;
+import com.example.chat.messaging.RoomBatcher;
+import com.example.chat.messaging.RoomLaneTaskExecutor;
+import com.example.chat.messaging.SharedFrameStompEncoder;
+import com.example.chat.messaging.TokenBucket;
+import com.example.chat.model.User;
+import com.example.chat.repository.UserRepository;
+import com.example.chat.security.StompAuthenticationInterceptor;
+import com.example.chat.service.IdleReaper;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.simp.broker.AbstractBrokerMessageHandler;
+import org.springframework.messaging.simp.broker.SimpleBrokerMessageHandler;
+import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.WebSocketHandler;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.messaging.StompSubProtocolHandler;
+import org.springframework.web.socket.messaging.SubProtocolWebSocketHandler;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Configuration class that prepares Spring to enable WebSocket and STOMP messaging. The message handling are backed by
@@ -17,6 +54,140 @@ import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerCo
 @EnableWebSocketMessageBroker
 public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
 
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    JwtDecoder jwtDecoder;
+
+    @Autowired
+    UserRepository userRepository;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Autowired
+    IdleReaper idleReaper;
+
+    /**
+     * Messages per second and burst of a session of a guest, a registered user and an admin. The system is not
+     * limited.
+     */
+    @Value("${chat.websocket.inbound.rate-limit.guest.rate:2}")
+    int guestRate;
+
+    @Value("${chat.websocket.inbound.rate-limit.guest.burst:5}")
+    int guestBurst;
+
+    @Value("${chat.websocket.inbound.rate-limit.user.rate:10}")
+    int userRate;
+
+    @Value("${chat.websocket.inbound.rate-limit.user.burst:20}")
+    int userBurst;
+
+    @Value("${chat.websocket.inbound.rate-limit.admin.rate:20}")
+    int adminRate;
+
+    @Value("${chat.websocket.inbound.rate-limit.admin.burst:40}")
+    int adminBurst;
+
+    /**
+     * Sessions of a user at full rate, the limit of all the sessions of a user is the limit of a session multiplied by
+     * this factor.
+     */
+    @Value("${chat.websocket.inbound.rate-limit.user-sessions:3}")
+    int rateLimitUserSessions;
+
+    /**
+     * Origins allowed to open a WebSocket from a browser, as patterns like <code>https://*.example.com</code>.
+     */
+    @Value("${chat.websocket.allowed-origin-patterns:http://localhost:*}")
+    String[] allowedOriginPatterns;
+
+    /**
+     * Maximum WebSocket sessions of the node and of a client IP address.
+     */
+    @Value("${chat.websocket.admission.max-sessions:10000}")
+    int admissionMaxSessions;
+
+    @Value("${chat.websocket.admission.max-sessions-per-address:20}")
+    int admissionMaxSessionsPerAddress;
+
+    /**
+     * Maximum handshakes per second and burst.
+     */
+    @Value("${chat.websocket.admission.handshake-rate:200}")
+    int admissionHandshakeRate;
+
+    @Value("${chat.websocket.admission.handshake-burst:400}")
+    int admissionHandshakeBurst;
+
+    /**
+     * Minimum time the rejected clients wait before retrying, randomized up to twice this time.
+     */
+    @Value("${chat.websocket.admission.retry-after:5s}")
+    Duration admissionRetryAfter;
+
+    /**
+     * Maximum time to write a frame to a session and maximum bytes buffered for a session, and what to do when the
+     * buffer exceeds the limit: DROP_OLDEST, COALESCE or DISCONNECT.
+     */
+    @Value("${chat.websocket.outbound.send-time-limit:10s}")
+    Duration outboundSendTimeLimit;
+
+    @Value("${chat.websocket.outbound.buffer-size-limit:512KB}")
+    DataSize outboundBufferSizeLimit;
+
+    @Value("${chat.websocket.outbound.overflow:DROP_OLDEST}")
+    OutboundBufferPolicy.Overflow outboundOverflow;
+
+    /**
+     * Maximum rooms tagged in the metrics of the outbound buffers, 0 disables the metrics by room.
+     */
+    @Value("${chat.websocket.outbound.room-metrics.maximum-rooms:0}")
+    int outboundRoomMetricsMaximumRooms;
+
+    /**
+     * Micro-batching of the room broadcasts for the clients subscribed to <code>/topic/batch/{room}</code>, and the
+     * minimum and maximum window and the size that flush a batch.
+     */
+    @Value("${chat.websocket.outbound.batch.enabled:false}")
+    boolean batchEnabled;
+
+    @Value("${chat.websocket.outbound.batch.min-window:5ms}")
+    Duration batchMinWindow;
+
+    @Value("${chat.websocket.outbound.batch.max-window:20ms}")
+    Duration batchMaxWindow;
+
+    @Value("${chat.websocket.outbound.batch.max-size:16KB}")
+    DataSize batchMaxSize;
+
+    /**
+     * Minimum subscribed sessions of a destination to deliver its messages in parallel, sessions delivered by a task,
+     * and threads of the fan-out pool, zero to use one per available processor.
+     */
+    @Value("${chat.websocket.broker.fan-out.parallel-threshold:2000}")
+    int fanOutParallelThreshold;
+
+    @Value("${chat.websocket.broker.fan-out.partition-size:1000}")
+    int fanOutPartitionSize;
+
+    @Value("${chat.websocket.broker.fan-out.parallelism:0}")
+    int fanOutParallelism;
+
+    /**
+     * Number of ordered lanes to process inbound messages, zero to use one lane per available processor.
+     */
+    @Value("${chat.websocket.inbound.lanes:0}")
+    int inboundLanes;
+
+    /**
+     * Maximum inbound messages waiting in a lane.
+     */
+    @Value("${chat.websocket.inbound.lane-queue-capacity:10000}")
+    int inboundLaneQueueCapacity;
+
     /**
      * Configures the message Broker
      * <p>
@@ -34,12 +205,76 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
      * To a client send messages to the server, configures the destination endpoint prefix. For example: Send message
      * <pre>{@code /app/chat/{room} }</pre>
      *
+     * <p>
+     * The messages published to a client session are sent in the same order they were published, the inbound lanes
+     * order them per room and the broker keeps that order towards every session.
+     * <p>
+     * When batching is enabled, the <code>RoomBatcher</code> also broadcasts the messages of a room in batches to
+     * <pre>{@code /topic/batch/{room} }</pre>
+     * one frame with a JSON array of the messages of the window.
+     * <p>
+     * The <code>PresenceService</code> broadcasts the users that join and leave a room to
+     * <pre>{@code /topic/presence/{room} }</pre>
+     *
      * @param config registry for configuring message broker options.
      */
     @Override
     public void configureMessageBroker(MessageBrokerRegistry config) {
         config.enableSimpleBroker("/topic", "/queue");
         config.setApplicationDestinationPrefixes("/app");
+        config.setPreservePublishOrder(true);
+        if (batchEnabled) {
+            config.configureBrokerChannel().interceptors(roomBatcher());
+        }
+    }
+
+    /**
+     * Micro-batching of the room broadcasts, registered on the broker channel. Only created when enabled, so the
+     * scheduler of the batches and the subscription listener are not started otherwise.
+     *
+     * @see RoomBatcher
+     */
+    @Bean
+    @ConditionalOnProperty(name = "chat.websocket.outbound.batch.enabled", havingValue = "true")
+    RoomBatcher roomBatcher() {
+        return new RoomBatcher(batchMinWindow, batchMaxWindow, batchMaxSize, meterRegistry);
+    }
+
+    /**
+     * Configures the channel of the messages received from the clients.
+     * <p>
+     * The messages are processed by a <code>RoomLaneTaskExecutor</code>: the messages of a chat room are processed in
+     * order on the same single threaded lane, so two messages sent to <code>/app/chat/{room}</code> can not be
+     * broadcast out of order, while different rooms are processed in parallel. The other frames of a session, like
+     * SUBSCRIBE and DISCONNECT, are processed in order on the lane of the session.
+     * <p>
+     * The sessions are authenticated on their CONNECT frame by the <code>StompAuthenticationInterceptor</code>, the
+     * later messages of a session carry the <code>ChatPrincipal</code> resolved then. The chat messages over the rate
+     * limits of the role of the user are rejected by the <code>InboundRateLimiter</code> before they reach the lanes.
+     * The <code>IdleReaper</code> records the sessions of the guests and the activity of the guests and the temporary
+     * rooms. The <code>CborWireFormat</code> follows the wire format negotiated by the CONNECT and SUBSCRIBE frames.
+     *
+     * @param registration registration for the inbound channel options.
+     */
+    @Override
+    public void configureClientInboundChannel(ChannelRegistration registration) {
+        registration.interceptors(new StompAuthenticationInterceptor(jwtDecoder, userRepository),
+                inboundRateLimiter(), idleReaper, cborWireFormat());
+        registration.taskExecutor(new RoomLaneTaskExecutor(inboundLanes, inboundLaneQueueCapacity, meterRegistry));
+    }
+
+    /**
+     * Rate limits of the chat messages by session and by user, per role of the user.
+     *
+     * @see InboundRateLimiter
+     */
+    @Bean
+    InboundRateLimiter inboundRateLimiter() {
+        Map<User.Role, TokenBucket.Limit> sessionLimits = new EnumMap<>(User.Role.class);
+        sessionLimits.put(User.Role.GUEST, new TokenBucket.Limit(guestRate, guestBurst));
+        sessionLimits.put(User.Role.USER, new TokenBucket.Limit(userRate, userBurst));
+        sessionLimits.put(User.Role.ADMIN, new TokenBucket.Limit(adminRate, adminBurst));
+        return new InboundRateLimiter(sessionLimits, rateLimitUserSessions, meterRegistry);
     }
 
     /**
@@ -53,13 +288,143 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
      * <pre>{@code ws://exampledomain.com/chat-websocket-service }</pre>
      * <pre>{@code ws://localhost:8080/chat-websocket-service }</pre>
      * (*) For the handshake the ws protocol is used to request the WebSocket connection.
+     * <p>
+     * Browsers can only open the WebSocket from the allowed origins. The handshake does not require authentication,
+     * the client authenticates with a bearer token in the STOMP CONNECT frame. The handshakes are admitted by the
+     * <code>HandshakeAdmission</code>, which limits the sessions and the handshake rate.
      *
      * @param registry used for registering STOMP over WebSocket endpoints by providing the methods to make the
      *                 configuration.
      */
     @Override
     public void registerStompEndpoints(StompEndpointRegistry registry) {
-        registry.addEndpoint("/chat-websocket-service").setAllowedOriginPatterns("*");
+        registry.addEndpoint("/chat-websocket-service")
+                .addInterceptors(handshakeAdmission())
+                .setAllowedOriginPatterns(allowedOriginPatterns);
+    }
+
+    /**
+     * Configures the channel of the messages sent to the clients.
+     * <p>
+     * The interceptor of the <code>OutboundBufferPolicy</code> tells the sessions the destination of the frame being
+     * sent, so the buffers can drop or coalesce the frames by destination and account them per room. The messages of
+     * the subscriptions in CBOR are transcoded by the <code>CborWireFormat</code>.
+     *
+     * @param registration registration for the outbound channel options.
+     */
+    @Override
+    public void configureClientOutboundChannel(ChannelRegistration registration) {
+        registration.interceptors(cborWireFormat().outboundInterceptor(), outboundBufferPolicy().interceptor());
+    }
+
+    /**
+     * Adds the converter of the messages sent in CBOR to the default converters, JSON stays the default format.
+     *
+     * @param messageConverters the converters, empty unless another configurer added some.
+     * @return true to keep the default converters.
+     */
+    @Override
+    public boolean configureMessageConverters(List<MessageConverter> messageConverters) {
+        messageConverters.add(cborWireFormat().messageConverter());
+        return true;
+    }
+
+    /**
+     * CBOR wire format negotiated by the clients.
+     *
+     * @see CborWireFormat
+     */
+    @Bean
+    CborWireFormat cborWireFormat() {
+        return new CborWireFormat(objectMapper, meterRegistry);
+    }
+
+    /**
+     * Tracks the sessions admitted by the <code>HandshakeAdmission</code>, to release them when they are closed, and
+     * decorates the sessions with the outbound buffer of the <code>OutboundBufferPolicy</code>. The innermost decorator,
+     * the first one, sends the frames in CBOR as binary messages.
+     * <p>
+     * The limits of the default session decorator of Spring are the same as the ones of the policy. That decorator wraps
+     * the buffered sessions, which never block, so it does not buffer by itself.
+     *
+     * @param registration registration for the WebSocket transport options.
+     */
+    @Override
+    public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
+        registration.setSendTimeLimit((int) outboundSendTimeLimit.toMillis());
+        registration.setSendBufferSizeLimit((int) outboundBufferSizeLimit.toBytes());
+        registration.addDecoratorFactory(cborWireFormat()::decorate);
+        registration.addDecoratorFactory(outboundBufferPolicy()::decorate);
+        registration.addDecoratorFactory(handshakeAdmission()::decorate);
+    }
+
+    /**
+     * Limits of the outbound buffer of the sessions.
+     *
+     * @see OutboundBufferPolicy
+     */
+    @Bean
+    OutboundBufferPolicy outboundBufferPolicy() {
+        return new OutboundBufferPolicy(outboundSendTimeLimit, outboundBufferSizeLimit, outboundOverflow,
+                outboundRoomMetricsMaximumRooms, meterRegistry);
+    }
+
+    /**
+     * Admission control of the WebSocket handshakes.
+     *
+     * @see HandshakeAdmission
+     */
+    @Bean
+    HandshakeAdmission handshakeAdmission() {
+        return new HandshakeAdmission(admissionMaxSessions, admissionMaxSessionsPerAddress,
+                new TokenBucket.Limit(admissionHandshakeRate, admissionHandshakeBurst), admissionRetryAfter,
+                meterRegistry);
+    }
+
+    /**
+     * Delivers the messages of the destinations with many subscribers in parallel, decorating the subscription registry
+     * of the simple broker with a <code>ParallelFanOut</code>. The registry is set once all the singletons have been
+     * created, before the broker is started.
+     *
+     * @param brokerHandler the simple broker.
+     * @return the initializer that sets the subscription registry.
+     * @see ParallelFanOut
+     */
+    @Bean
+    SmartInitializingSingleton parallelFanOutInitializer(
+            @Qualifier("simpleBrokerMessageHandler") AbstractBrokerMessageHandler brokerHandler) {
+        return () -> {
+            if (brokerHandler instanceof SimpleBrokerMessageHandler simpleBroker) {
+                simpleBroker.setSubscriptionRegistry(new ParallelFanOut(simpleBroker.getSubscriptionRegistry(),
+                        fanOutParallelThreshold, fanOutPartitionSize, fanOutParallelism, meterRegistry));
+            }
+        };
+    }
+
+    /**
+     * Replaces the encoder of the STOMP sub-protocol handler by the <code>SharedFrameStompEncoder</code>, so the
+     * MESSAGE frame of a broadcast is encoded once for all the subscribers instead of once per subscriber.
+     * <p>
+     * The STOMP handler is registered when the endpoints are registered, so the encoder is set once all the
+     * singletons have been created, before the WebSocket sessions are accepted.
+     *
+     * @param webSocketHandler the WebSocket handler that delegates to the sub-protocol handlers.
+     * @return the initializer that sets the encoder.
+     */
+    @Bean
+    SmartInitializingSingleton sharedFrameStompEncoderInitializer(
+            @Qualifier("subProtocolWebSocketHandler") WebSocketHandler webSocketHandler) {
+        return () -> {
+            WebSocketHandler handler = (webSocketHandler instanceof WebSocketHandlerDecorator decorator)
+                    ? decorator.getLastHandler()
+                    : webSocketHandler;
+            if (handler instanceof SubProtocolWebSocketHandler subProtocolHandler) {
+                SharedFrameStompEncoder encoder = new SharedFrameStompEncoder();
+                subProtocolHandler.getProtocolHandlers().stream()
+                        .filter(StompSubProtocolHandler.class::isInstance)
+                        .forEach(protocolHandler -> ((StompSubProtocolHandler) protocolHandler).setEncoder(encoder));
+            }
+        };
     }
 
 }
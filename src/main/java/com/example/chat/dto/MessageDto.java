@@ -0,0 +1,29 @@
+package com.example.chat.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Read only representation of a chat message, with the room and the sender flattened to their references instead of
+ * the whole <code>Room</code> and <code>User</code> entities.
+ * <p>
+ * It is built directly by the queries (constructor expression), so reading messages does not load any entity graph.
+ *
+ * @param id        internal id of the message, only used for the pagination cursor. It is not serialized, the
+ *                  <code>uuid</code> identifies the message outside the application.
+ * @param uuid      Universally Unique Identifier of the message.
+ * @param room      title of the chat room where the message belongs.
+ * @param sender    nickname of the user that sent the message.
+ * @param content   content body of the message.
+ * @param createdAt timestamp in UTC when the message was created.
+ * @see com.example.chat.model.Message
+ */
+public record MessageDto(@JsonIgnore Long id,
+                         UUID uuid,
+                         String room,
+                         String sender,
+                         String content,
+                         Instant createdAt) {
+}
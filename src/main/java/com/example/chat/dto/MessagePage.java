@@ -0,0 +1,13 @@
+package com.example.chat.dto;
+
+import java.util.List;
+
+/**
+ * A page of the message history of a chat room, from the newest to the oldest message.
+ *
+ * @param messages messages of the page.
+ * @param next     opaque cursor to request the following (older) page with the <code>before</code> parameter. It is
+ *                 null when there are no more messages.
+ */
+public record MessagePage(List<MessageDto> messages, String next) {
+}
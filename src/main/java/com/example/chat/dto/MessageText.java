@@ -0,0 +1,14 @@
+package com.example.chat.dto;
+
+import java.time.Instant;
+
+/**
+ * Text of a chat message, read to rebuild the search index without loading the <code>Message</code> entities.
+ *
+ * @param id        id of the message.
+ * @param content   content of the message, HTML escaped.
+ * @param createdAt timestamp in UTC when the message was created.
+ * @see com.example.chat.service.MessageSearchService
+ */
+public record MessageText(Long id, String content, Instant createdAt) {
+}
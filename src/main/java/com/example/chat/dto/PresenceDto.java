@@ -0,0 +1,22 @@
+package com.example.chat.dto;
+
+import java.util.List;
+
+/**
+ * Changes of the members online in a chat room, broadcast to <code>/topic/presence/{room}</code>. The changes of a
+ * window are coalesced: a user that joins and leaves the room in the same window is not reported.
+ *
+ * @param room      title of the chat room.
+ * @param online    users online in the room after the changes.
+ * @param joined    nicknames of the users that joined the room.
+ * @param left      nicknames of the users that left the room.
+ * @param truncated true when there were too many changes to list them, <code>joined</code> and <code>left</code> are
+ *                  empty and the members must be read again from <code>api/v1/rooms/{id}/members</code>.
+ * @see com.example.chat.service.PresenceService
+ */
+public record PresenceDto(String room,
+                          int online,
+                          List<String> joined,
+                          List<String> left,
+                          boolean truncated) {
+}
@@ -0,0 +1,63 @@
+package com.example.chat.dto;
+
+import com.example.chat.model.Room;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.example.chat.model.User;
+
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Read only representation of a chat room, with the owner flattened to its nickname instead of the whole
+ * <code>User</code> entity, and without the messages of the room.
+ * <p>
+ * It is built directly by the queries (constructor expression), so reading rooms does not load any entity graph, or
+ * from a loaded <code>Room</code>, which only initializes its owner. The users online are added from the
+ * <code>PresenceService</code> by the endpoints that report them, they are not serialized otherwise.
+ *
+ * @param id          id of the chat room.
+ * @param uuid        Universally Unique Identifier of the chat room.
+ * @param title       name of the chat room.
+ * @param description summary about what is discussed in the chat room.
+ * @param owner       nickname of the user to which the chat room belongs.
+ * @param createdAt   timestamp in UTC when the chat room was created.
+ * @param updatedAt   timestamp in UTC of the last update of the chat room.
+ * @param online      users online in the chat room, null when not reported.
+ * @see com.example.chat.model.Room
+ */
+public record RoomDto(Long id,
+                      UUID uuid,
+                      String title,
+                      String description,
+                      String owner,
+                      Instant createdAt,
+                      Instant updatedAt,
+                      @JsonInclude(JsonInclude.Include.NON_NULL) Integer online) {
+
+    // Constructor expression of the queries, without the users online
+    public RoomDto(Long id, UUID uuid, String title, String description, String owner, Instant createdAt,
+                   Instant updatedAt) {
+        this(id, uuid, title, description, owner, createdAt, updatedAt, null);
+    }
+
+    /**
+     * @param online users online in the chat room.
+     * @return a copy of the representation with the users online.
+     */
+    public RoomDto withOnline(int online) {
+        return new RoomDto(id, uuid, title, description, owner, createdAt, updatedAt, online);
+    }
+
+    /**
+     * @param room chat room, its owner is initialized if it was not.
+     * @return the representation of the chat room, null if the room is null.
+     */
+    public static RoomDto of(Room room) {
+        if (room == null) {
+            return null;
+        }
+        User owner = room.getOwner();
+        return new RoomDto(room.getId(), room.getUuid(), room.getTitle(), room.getDescription(),
+                owner != null ? owner.getNickname() : null, room.getCreatedAt(), room.getUpdatedAt());
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.chat.dto;
+
+import com.example.chat.model.User;
+
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Read only representation of a user, without the rooms it owns and the messages it sent.
+ * <p>
+ * It is built directly by the queries (constructor expression), so reading users does not load any entity graph, or
+ * from a loaded <code>User</code> without initializing any of its associations.
+ *
+ * @param id        id of the user.
+ * @param uuid      Universally Unique Identifier of the user.
+ * @param role      role of the user.
+ * @param name      name of the user.
+ * @param surname   surname of the user.
+ * @param nickname  nickname of the user.
+ * @param email     email of the user.
+ * @param active    whether the user is operational or not.
+ * @param createdAt timestamp in UTC when the user was created.
+ * @param updatedAt timestamp in UTC of the last update of the user.
+ * @see com.example.chat.model.User
+ */
+public record UserDto(Long id,
+                      UUID uuid,
+                      User.Role role,
+                      String name,
+                      String surname,
+                      String nickname,
+                      String email,
+                      boolean active,
+                      Instant createdAt,
+                      Instant updatedAt) {
+
+    /**
+     * @param user user, its associations are not initialized.
+     * @return the representation of the user, null if the user is null.
+     */
+    public static UserDto of(User user) {
+        if (user == null) {
+            return null;
+        }
+        return new UserDto(user.getId(), user.getUuid(), user.getRole(), user.getName(), user.getSurname(),
+                user.getNickname(), user.getEmail(), user.isActive(), user.getCreatedAt(), user.getUpdatedAt());
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.chat.messaging;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Batch of the JSON payloads broadcast to a destination, flushed as one JSON array when its window elapses or when it
+ * exceeds a size threshold.
+ * <p>
+ * The window adapts to the traffic. A payload that arrives when the previous flush is older than the window is flushed
+ * at once, so at low traffic there is no added latency. A flush of several payloads doubles the window, up to the
+ * maximum, and a flush of a single payload halves it, down to the minimum.
+ * <p>
+ * Not thread safe, the caller synchronizes the access to a batch.
+ */
+public final class AdaptiveBatch {
+
+    /**
+     * What the caller has to do after offering a payload.
+     */
+    public enum Decision {
+        /** Flush the batch now. */
+        FLUSH,
+        /** Schedule the flush of the batch at the {@link #deadline()}. */
+        SCHEDULE,
+        /** Nothing, the flush of the batch is already scheduled. */
+        WAIT
+    }
+
+    private static final byte[] EMPTY = {'[', ']'};
+
+    private final long minWindowNanos;
+
+    private final long maxWindowNanos;
+
+    private final int maxBytes;
+
+    private final List<byte[]> payloads = new ArrayList<>();
+
+    private int bytes;
+
+    private long windowNanos;
+
+    private long lastFlushNanos;
+
+    private long deadline;
+
+
+    /**
+     * @param minWindowNanos minimum time the payloads wait for the next ones.
+     * @param maxWindowNanos maximum time the payloads wait for the next ones.
+     * @param maxBytes       bytes of the payloads that flush the batch before its window elapses.
+     * @param nowNanos       current time, in nanoseconds of an arbitrary origin.
+     */
+    public AdaptiveBatch(long minWindowNanos, long maxWindowNanos, int maxBytes, long nowNanos) {
+        if (minWindowNanos <= 0 || maxWindowNanos < minWindowNanos) {
+            throw new IllegalArgumentException("Invalid batch window: " + minWindowNanos + " to " + maxWindowNanos);
+        }
+        this.minWindowNanos = minWindowNanos;
+        this.maxWindowNanos = maxWindowNanos;
+        this.maxBytes = maxBytes;
+        this.windowNanos = minWindowNanos;
+        this.lastFlushNanos = nowNanos - maxWindowNanos;
+    }
+
+    /**
+     * @param payload  JSON payload to add to the batch.
+     * @param nowNanos current time.
+     * @return what to do with the batch.
+     */
+    public Decision offer(byte[] payload, long nowNanos) {
+        payloads.add(payload);
+        bytes += payload.length;
+
+        if (payloads.size() == 1) {
+            if (nowNanos - lastFlushNanos >= windowNanos || bytes >= maxBytes) {
+                return Decision.FLUSH;
+            }
+            deadline = lastFlushNanos + windowNanos;
+            return Decision.SCHEDULE;
+        }
+        return bytes >= maxBytes ? Decision.FLUSH : Decision.WAIT;
+    }
+
+    /**
+     * @return the time the batch has to be flushed, after a {@link Decision#SCHEDULE}.
+     */
+    public long deadline() {
+        return deadline;
+    }
+
+    public boolean isEmpty() {
+        return payloads.isEmpty();
+    }
+
+    public int size() {
+        return payloads.size();
+    }
+
+    public long getWindowNanos() {
+        return windowNanos;
+    }
+
+    /**
+     * Empties the batch and adapts the window to the number of payloads it had.
+     *
+     * @param nowNanos current time.
+     * @return the payloads of the batch as a JSON array.
+     */
+    public byte[] flush(long nowNanos) {
+        int count = payloads.size();
+        lastFlushNanos = nowNanos;
+        if (count == 0) {
+            return EMPTY;
+        }
+
+        byte[] array = new byte[bytes + count + 1];
+        int position = 0;
+        for (byte[] payload : payloads) {
+            array[position] = (byte) (position == 0 ? '[' : ',');
+            System.arraycopy(payload, 0, array, position + 1, payload.length);
+            position += payload.length + 1;
+        }
+        array[position] = ']';
+
+        windowNanos = count > 1 ? Math.min(maxWindowNanos, windowNanos * 2) : Math.max(minWindowNanos, windowNanos / 2);
+        payloads.clear();
+        bytes = 0;
+        return array;
+    }
+}
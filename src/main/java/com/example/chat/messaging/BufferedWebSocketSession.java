@@ -0,0 +1,331 @@
+package com.example.chat.messaging;
+
+import jakarta.websocket.RemoteEndpoint;
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.SendResult;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * WebSocket session with a bounded outbound buffer, see {@link OutboundBufferPolicy}.
+ * <p>
+ * One frame is written at a time with the asynchronous send of the container, the frames sent meanwhile wait in the
+ * buffer. The completion of a write starts the write of the next buffered frame. A write that completes immediately
+ * returns to the loop of the thread that started it, so a long buffer is not written by recursion.
+ * <p>
+ * The buffered bytes include the frame being written, the overflow policy only drops frames that are still waiting.
+ * A close waits until the buffer has been written, so the ERROR frame before a close reaches the client.
+ */
+final class BufferedWebSocketSession extends WebSocketSessionDecorator {
+
+    private static final Log logger = LogFactory.getLog(BufferedWebSocketSession.class);
+
+    private final RemoteEndpoint.Async remote;
+
+    private final OutboundBufferPolicy policy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // The fields below are guarded by the lock
+
+    private final ArrayDeque<Frame> buffer = new ArrayDeque<>();
+
+    private Frame writing;
+
+    private long bufferedBytes;
+
+    private long dropped;
+
+    private CloseStatus pendingClose;
+
+    private boolean closed;
+
+
+    BufferedWebSocketSession(WebSocketSession delegate, RemoteEndpoint.Async remote, OutboundBufferPolicy policy) {
+        super(delegate);
+        this.remote = remote;
+        this.policy = policy;
+        remote.setSendTimeout(policy.getSendTimeLimit().toMillis());
+    }
+
+    @Override
+    public void sendMessage(WebSocketMessage<?> message) throws IOException {
+        String destination = policy.currentDestination();
+        Frame frame = new Frame(message, destination,
+                destination != null ? policy.room(destination) : null, message.getPayloadLength());
+
+        Frame next = null;
+        boolean overflow = false;
+        long sessionBytes;
+        lock.lock();
+        try {
+            if (closed || pendingClose != null) {
+                return;
+            }
+            buffer.addLast(frame);
+            account(frame, 1);
+            if (bufferedBytes > policy.getBufferSizeLimit()) {
+                overflow = !shrink(frame);
+            }
+            if (!overflow && writing == null) {
+                next = buffer.pollFirst();
+                writing = next;
+            }
+            sessionBytes = bufferedBytes;
+        } finally {
+            lock.unlock();
+        }
+
+        policy.sessionBuffered(sessionBytes);
+        if (overflow) {
+            policy.disconnected("buffer");
+            abort();
+        } else if (next != null) {
+            write(next);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        close(CloseStatus.NORMAL);
+    }
+
+    @Override
+    public void close(CloseStatus status) throws IOException {
+        lock.lock();
+        try {
+            if (closed || pendingClose != null) {
+                return;
+            }
+            if (writing != null) {
+                pendingClose = status;
+                return;
+            }
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+        getDelegate().close(status);
+    }
+
+    /**
+     * Releases the buffer once the session is closed.
+     */
+    void release() {
+        long sessionDropped;
+        lock.lock();
+        try {
+            closed = true;
+            discard();
+            sessionDropped = dropped;
+        } finally {
+            lock.unlock();
+        }
+        policy.sessionClosed(sessionDropped);
+    }
+
+    /**
+     * Applies the overflow policy after the frame has been buffered.
+     *
+     * @return false if the session has to be disconnected.
+     */
+    private boolean shrink(Frame frame) {
+        switch (policy.getOverflow()) {
+            case DISCONNECT:
+                return false;
+            case COALESCE:
+                if (frame.destination() != null) {
+                    drop(buffered -> buffered != frame && frame.destination().equals(buffered.destination()));
+                }
+                // Falls through to drop the oldest if it is still over the limit
+            case DROP_OLDEST:
+                drop(buffered -> buffered.destination() != null);
+                return true;
+            default:
+                throw new IllegalStateException("Unknown overflow policy " + policy.getOverflow());
+        }
+    }
+
+    /**
+     * Drops the matching frames, oldest first, until the buffer is under the limit.
+     */
+    private void drop(Predicate<Frame> droppable) {
+        Iterator<Frame> frames = buffer.iterator();
+        while (bufferedBytes > policy.getBufferSizeLimit() && frames.hasNext()) {
+            Frame buffered = frames.next();
+            if (droppable.test(buffered)) {
+                frames.remove();
+                account(buffered, -1);
+                dropped++;
+                policy.dropped(buffered.room());
+            }
+        }
+    }
+
+    private void write(Frame first) {
+        Frame frame = first;
+        while (frame != null) {
+            Completion completion = new Completion(frame);
+            try {
+                send(frame.message(), completion);
+            } catch (RuntimeException | IOException e) {
+                completion.onResult(new SendResult(e));
+            }
+            frame = completion.continueInline();
+        }
+    }
+
+    private void send(WebSocketMessage<?> message, SendHandler handler) throws IOException {
+        if (message instanceof TextMessage textMessage) {
+            remote.sendText(textMessage.getPayload(), handler);
+        } else if (message instanceof BinaryMessage binaryMessage) {
+            remote.sendBinary(binaryMessage.getPayload(), handler);
+        } else {
+            // Ping and pong frames are written directly
+            getDelegate().sendMessage(message);
+            handler.onResult(new SendResult());
+        }
+    }
+
+    /**
+     * Completes the write of a frame.
+     *
+     * @return the next frame to write, null if none.
+     */
+    private Frame completed(Frame frame, SendResult result) {
+        Frame next = null;
+        CloseStatus close = null;
+        boolean failed = false;
+        lock.lock();
+        try {
+            if (writing == frame) {
+                account(frame, -1);
+                writing = null;
+            }
+            if (closed) {
+                return null;
+            }
+            if (!result.isOK()) {
+                failed = true;
+                closed = true;
+                discard();
+            } else {
+                next = buffer.pollFirst();
+                writing = next;
+                if (next == null && pendingClose != null) {
+                    close = pendingClose;
+                    closed = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (failed) {
+            boolean timeout = result.getException() instanceof SocketTimeoutException
+                    || result.getException().getCause() instanceof SocketTimeoutException;
+            policy.disconnected(timeout ? "timeout" : "error");
+            if (logger.isDebugEnabled()) {
+                logger.debug("Failed to send to WebSocket session " + getId(), result.getException());
+            }
+            closeQuietly(CloseStatus.SESSION_NOT_RELIABLE);
+        } else if (close != null) {
+            closeQuietly(close);
+        }
+        return next;
+    }
+
+    /**
+     * Closes the session because it can not keep up, the buffered frames are discarded.
+     */
+    private void abort() {
+        lock.lock();
+        try {
+            closed = true;
+            discard();
+        } finally {
+            lock.unlock();
+        }
+        closeQuietly(CloseStatus.SESSION_NOT_RELIABLE);
+    }
+
+    private void discard() {
+        for (Frame frame : buffer) {
+            account(frame, -1);
+        }
+        buffer.clear();
+        if (writing != null) {
+            account(writing, -1);
+            writing = null;
+        }
+    }
+
+    private void account(Frame frame, int sign) {
+        long bytes = (long) sign * frame.size();
+        bufferedBytes += bytes;
+        policy.buffered(frame.room(), bytes);
+    }
+
+    private void closeQuietly(CloseStatus status) {
+        try {
+            getDelegate().close(status);
+        } catch (IOException e) {
+            logger.debug("Failed to close WebSocket session " + getId(), e);
+        }
+    }
+
+    private record Frame(WebSocketMessage<?> message, String destination, String room, int size) {}
+
+    /**
+     * Completion of the write of a frame. Whoever finishes last, the container calling back or the thread that started
+     * the write returning, continues with the next frame.
+     */
+    private final class Completion implements SendHandler {
+
+        private static final int PENDING = 0;
+
+        private static final int RETURNED = 1;
+
+        private static final int COMPLETED = 2;
+
+        private final Frame frame;
+
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        private Frame next;
+
+        Completion(Frame frame) {
+            this.frame = frame;
+        }
+
+        @Override
+        public void onResult(SendResult result) {
+            next = completed(frame, result);
+            if (!state.compareAndSet(PENDING, COMPLETED)) {
+                // The thread that started the write already returned
+                write(next);
+            }
+        }
+
+        /**
+         * @return the next frame to write if the write completed before returning, null otherwise.
+         */
+        Frame continueInline() {
+            return state.compareAndSet(PENDING, RETURNED) ? null : next;
+        }
+    }
+}
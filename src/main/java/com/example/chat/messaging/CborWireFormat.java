@@ -0,0 +1,392 @@
+package com.example.chat.messaging;
+
+import com.example.chat.dto.MessageDto;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.exc.MismatchedInputException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Compact binary wire format of the chat messages, CBOR, negotiated per STOMP session with the
+ * <code>content-type</code> header. JSON stays the default.
+ * <p>
+ * A client asks for CBOR with <code>content-type:application/cbor</code> on its CONNECT frame, for all its
+ * subscriptions and the messages it sends, or on a SUBSCRIBE frame, for that subscription only. A SUBSCRIBE frame with
+ * another content type keeps that subscription in JSON.
+ * <p>
+ * The messages sent to <code>/app/chat/{room}</code> with the CBOR content type, or without content type by a session
+ * that asked for CBOR on CONNECT, are read by the CBOR message converter, see {@link #messageConverter()}.
+ * <p>
+ * The broadcasts are still converted once to JSON, which the JSON subscribers, the batcher and the other nodes of the
+ * cluster receive. For a subscription in CBOR the JSON payload is transcoded, see {@link #outboundInterceptor()}: the
+ * broker sends the same payload instance to every subscriber, so the transcoded payloads of the last broadcasts are
+ * kept in a small lock-free cache indexed by the identity of the JSON payload, and a broadcast is transcoded once for
+ * all its CBOR subscribers, which then share the same encoded frame. The uuid of a message is written as 16 bytes and
+ * its timestamp as epoch milliseconds. The frames with a CBOR body are sent as binary WebSocket messages.
+ * <p>
+ * Metrics:
+ * <li><code>chat.websocket.cbor.sessions</code>: sessions with a subscription or the messages in CBOR.
+ * <li><code>chat.websocket.cbor.transcoded</code>: payloads transcoded from JSON to CBOR.
+ * <li><code>chat.websocket.cbor.messages</code>: messages sent to the subscribers in CBOR.
+ */
+public class CborWireFormat implements ChannelInterceptor {
+
+    public static final MimeType APPLICATION_CBOR = new MimeType("application", "cbor");
+
+    private static final Log logger = LogFactory.getLog(CborWireFormat.class);
+
+    private static final byte[] CONTENT_TYPE_CBOR = ("content-type:" + APPLICATION_CBOR)
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final ObjectMapper jsonMapper;
+
+    private final ObjectMapper cborMapper;
+
+    private final ObjectReader messageReader;
+
+    private final ObjectReader messagesReader;
+
+    // Format of the sessions that asked for CBOR, by session id
+    private final Map<String, SessionFormat> sessions = new ConcurrentHashMap<>();
+
+    private final AtomicReferenceArray<Transcoded> transcodedPayloads;
+
+    private final int mask;
+
+    private final Counter transcoded;
+
+    private final Counter messages;
+
+
+    public CborWireFormat(ObjectMapper jsonMapper, MeterRegistry meterRegistry) {
+        this(jsonMapper, 64, meterRegistry);
+    }
+
+    /**
+     * @param jsonMapper    mapper of the JSON payloads of the broadcasts.
+     * @param cacheSize     number of broadcasts whose transcoded payload is kept at the same time. Rounded up to a
+     *                      power of two.
+     * @param meterRegistry registry for the metrics of the wire format.
+     */
+    public CborWireFormat(ObjectMapper jsonMapper, int cacheSize, MeterRegistry meterRegistry) {
+        this.jsonMapper = jsonMapper;
+        this.cborMapper = Jackson2ObjectMapperBuilder.cbor()
+                .featuresToEnable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+                .featuresToDisable(SerializationFeature.WRITE_DATE_TIMESTAMPS_AS_NANOSECONDS,
+                        DeserializationFeature.READ_DATE_TIMESTAMPS_AS_NANOSECONDS)
+                .build();
+        // Only the payloads that are exactly messages are transcoded as messages
+        this.messageReader = jsonMapper.readerFor(MessageDto.class)
+                .with(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        this.messagesReader = jsonMapper.readerFor(MessageDto[].class)
+                .with(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+        int size = Integer.highestOneBit(Math.max(1, cacheSize - 1)) << 1;
+        this.transcodedPayloads = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+
+        Gauge.builder("chat.websocket.cbor.sessions", sessions, Map::size)
+                .description("Sessions with subscriptions or messages in CBOR")
+                .register(meterRegistry);
+        this.transcoded = Counter.builder("chat.websocket.cbor.transcoded")
+                .description("Payloads transcoded from JSON to CBOR")
+                .register(meterRegistry);
+        this.messages = Counter.builder("chat.websocket.cbor.messages")
+                .description("Messages sent to the subscribers in CBOR")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return the mapper of the CBOR payloads.
+     */
+    public ObjectMapper getObjectMapper() {
+        return cborMapper;
+    }
+
+    /**
+     * @return the converter of the payloads with the CBOR content type. It only converts the messages with that content
+     * type, the messages without content type are left to the JSON converter.
+     */
+    public MessageConverter messageConverter() {
+        MappingJackson2MessageConverter converter = new MappingJackson2MessageConverter(APPLICATION_CBOR);
+        converter.setObjectMapper(cborMapper);
+        converter.setStrictContentTypeMatch(true);
+        return converter;
+    }
+
+    /**
+     * Follows the formats negotiated by the CONNECT and SUBSCRIBE frames of the sessions, and sets the CBOR content type
+     * of the messages sent without content type by the sessions that asked for CBOR on CONNECT.
+     */
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        MessageHeaders headers = message.getHeaders();
+        SimpMessageType messageType = SimpMessageHeaderAccessor.getMessageType(headers);
+        String sessionId = SimpMessageHeaderAccessor.getSessionId(headers);
+        if (messageType == null || sessionId == null) {
+            return message;
+        }
+
+        MimeType contentType = contentType(headers);
+        SessionFormat format = sessions.get(sessionId);
+        switch (messageType) {
+            case CONNECT -> {
+                if (isCbor(contentType)) {
+                    sessions.put(sessionId, new SessionFormat(true));
+                }
+            }
+            case SUBSCRIBE -> {
+                String subscriptionId = SimpMessageHeaderAccessor.getSubscriptionId(headers);
+                boolean cbor = contentType != null ? isCbor(contentType) : format != null && format.byDefault;
+                if (subscriptionId == null) {
+                    break;
+                }
+                if (cbor) {
+                    sessions.computeIfAbsent(sessionId, key -> new SessionFormat(false))
+                            .subscriptions.add(subscriptionId);
+                } else if (format != null) {
+                    format.subscriptions.remove(subscriptionId);
+                }
+            }
+            case UNSUBSCRIBE -> {
+                String subscriptionId = SimpMessageHeaderAccessor.getSubscriptionId(headers);
+                if (format != null && subscriptionId != null) {
+                    format.subscriptions.remove(subscriptionId);
+                }
+            }
+            case MESSAGE -> {
+                if (contentType == null && format != null && format.byDefault) {
+                    return withContentType(message, message.getPayload(), APPLICATION_CBOR);
+                }
+            }
+            default -> {
+            }
+        }
+        return message;
+    }
+
+    /**
+     * @return the interceptor of the outbound channel that transcodes the JSON messages of the subscriptions in CBOR.
+     * Other payloads, like the plain text errors, are sent as they are.
+     */
+    public ChannelInterceptor outboundInterceptor() {
+        return new ChannelInterceptor() {
+            @Override
+            public Message<?> preSend(Message<?> message, MessageChannel channel) {
+                MessageHeaders headers = message.getHeaders();
+                if (SimpMessageHeaderAccessor.getMessageType(headers) != SimpMessageType.MESSAGE
+                        || !(message.getPayload() instanceof byte[] json)) {
+                    return message;
+                }
+                SessionFormat format = sessions.get(SimpMessageHeaderAccessor.getSessionId(headers));
+                String subscriptionId = SimpMessageHeaderAccessor.getSubscriptionId(headers);
+                MimeType contentType = contentType(headers);
+                if (format == null || subscriptionId == null || !format.subscriptions.contains(subscriptionId)
+                        || contentType == null || !MimeTypeUtils.APPLICATION_JSON.isCompatibleWith(contentType)) {
+                    return message;
+                }
+
+                try {
+                    byte[] cbor = transcode(json);
+                    messages.increment();
+                    return withContentType(message, cbor, APPLICATION_CBOR);
+                } catch (IOException e) {
+                    logger.warn("Failed to transcode a message to CBOR, sent as JSON", e);
+                    return message;
+                }
+            }
+        };
+    }
+
+    /**
+     * @param handler the handler of the WebSocket sessions.
+     * @return the handler that sends the frames with a CBOR body as binary WebSocket messages, and forgets the format
+     * of the sessions when they are closed.
+     */
+    public WebSocketHandler decorate(WebSocketHandler handler) {
+        return new WebSocketHandlerDecorator(handler) {
+            @Override
+            public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+                super.afterConnectionEstablished(new CborWebSocketSession(session));
+            }
+
+            @Override
+            public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+                sessions.remove(session.getId());
+                super.afterConnectionClosed(session, closeStatus);
+            }
+        };
+    }
+
+    /**
+     * Transcodes a JSON payload to CBOR. The messages and the arrays of messages are written as messages, with their
+     * uuid as bytes and their timestamp as epoch milliseconds, any other JSON is copied as it is.
+     *
+     * @param json JSON payload.
+     * @return the CBOR payload.
+     * @throws IOException if the payload is not valid JSON.
+     */
+    public byte[] toCbor(byte[] json) throws IOException {
+        try {
+            int first = 0;
+            while (first < json.length && Character.isWhitespace(json[first])) {
+                first++;
+            }
+            if (first < json.length && json[first] == '{') {
+                return cborMapper.writeValueAsBytes(messageReader.<MessageDto>readValue(json));
+            } else if (first < json.length && json[first] == '[') {
+                return cborMapper.writeValueAsBytes(messagesReader.<MessageDto[]>readValue(json));
+            }
+        } catch (MismatchedInputException e) {
+            // Not a message, copied as it is
+        }
+
+        ByteArrayOutputStream cbor = new ByteArrayOutputStream(json.length);
+        try (JsonParser parser = jsonMapper.createParser(json);
+             JsonGenerator generator = cborMapper.createGenerator(cbor)) {
+            parser.nextToken();
+            generator.copyCurrentStructure(parser);
+        }
+        return cbor.toByteArray();
+    }
+
+    /**
+     * @return the CBOR payload of a JSON payload, from the cache if it is one of the last broadcasts.
+     */
+    private byte[] transcode(byte[] json) throws IOException {
+        int slot = System.identityHashCode(json) & mask;
+        Transcoded cached = transcodedPayloads.get(slot);
+        if (cached != null && cached.json == json) {
+            return cached.cbor;
+        }
+        byte[] cbor = toCbor(json);
+        transcodedPayloads.set(slot, new Transcoded(json, cbor));
+        transcoded.increment();
+        return cbor;
+    }
+
+    private static Message<?> withContentType(Message<?> message, Object payload, MimeType contentType) {
+        MessageHeaderAccessor accessor = MessageHeaderAccessor.getMutableAccessor(message);
+        accessor.setContentType(contentType);
+        return MessageBuilder.createMessage(payload, accessor.getMessageHeaders());
+    }
+
+    private static MimeType contentType(MessageHeaders headers) {
+        Object contentType = headers.get(MessageHeaders.CONTENT_TYPE);
+        return contentType instanceof String value ? MimeTypeUtils.parseMimeType(value) : (MimeType) contentType;
+    }
+
+    private static boolean isCbor(MimeType contentType) {
+        return contentType != null && APPLICATION_CBOR.equalsTypeAndSubtype(contentType);
+    }
+
+    /**
+     * @return true if the content type header of the STOMP frame is CBOR.
+     */
+    private static boolean isCborFrame(byte[] frame) {
+        // Headers start after the command line and end with an empty line
+        int line = 0;
+        while (line < frame.length && frame[line] != '\n') {
+            line++;
+        }
+        line++;
+        while (line < frame.length && frame[line] != '\n' && frame[line] != '\r') {
+            if (startsWith(frame, line, CONTENT_TYPE_CBOR)) {
+                return true;
+            }
+            while (line < frame.length && frame[line] != '\n') {
+                line++;
+            }
+            line++;
+        }
+        return false;
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, byte[] prefix) {
+        if (bytes.length - offset < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Format of a session: CBOR for all the subscriptions and messages if asked on CONNECT, and the subscriptions in
+     * CBOR by id.
+     */
+    private static class SessionFormat {
+
+        final boolean byDefault;
+
+        final Set<String> subscriptions = ConcurrentHashMap.newKeySet();
+
+        SessionFormat(boolean byDefault) {
+            this.byDefault = byDefault;
+        }
+    }
+
+    private record Transcoded(byte[] json, byte[] cbor) {
+    }
+
+    /**
+     * Session that sends the STOMP frames with a CBOR body as binary messages, the STOMP handler only sends binary
+     * messages for <code>application/octet-stream</code>.
+     */
+    private class CborWebSocketSession extends WebSocketSessionDecorator {
+
+        CborWebSocketSession(WebSocketSession session) {
+            super(session);
+        }
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) throws IOException {
+            if (message instanceof TextMessage text && sessions.containsKey(getId())
+                    && isCborFrame(text.asBytes())) {
+                super.sendMessage(new BinaryMessage(text.asBytes(), text.isLast()));
+            } else {
+                super.sendMessage(message);
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.chat.messaging;
+
+import java.util.UUID;
+
+/**
+ * Bus between the nodes of the cluster to relay the room broadcasts, so the subscribers connected to any node receive
+ * the messages published on the others.
+ * <p>
+ * The bus is interest based: a node declares the rooms that have local subscribers with {@link #subscribe(String)}
+ * and {@link #unsubscribe(String)}, and the messages published to a room are only relayed to the nodes interested in
+ * it. The delivery is at most once and in order per publishing node, the receiver deduplicates the messages by uuid in
+ * case an implementation relays a message more than once.
+ */
+public interface ClusterBus extends AutoCloseable {
+
+    /**
+     * Receiver of the messages published by the other nodes.
+     */
+    @FunctionalInterface
+    interface Receiver {
+
+        /**
+         * @param room    title of the chat room.
+         * @param uuid    uuid of the message.
+         * @param payload JSON of the message, as broadcast to the room.
+         */
+        void receive(String room, UUID uuid, byte[] payload);
+    }
+
+    /**
+     * Starts relaying, the messages of the other nodes are handed to the receiver.
+     *
+     * @param receiver receiver of the messages of the other nodes.
+     */
+    void start(Receiver receiver);
+
+    /**
+     * Declares that this node has local subscribers of the room.
+     *
+     * @param room title of the chat room.
+     */
+    void subscribe(String room);
+
+    /**
+     * Declares that this node has no longer local subscribers of the room.
+     *
+     * @param room title of the chat room.
+     */
+    void unsubscribe(String room);
+
+    /**
+     * Relays a message broadcast on this node to the other nodes interested in the room.
+     *
+     * @param room    title of the chat room.
+     * @param uuid    uuid of the message.
+     * @param payload JSON of the message, as broadcast to the room.
+     */
+    void publish(String room, UUID uuid, byte[] payload);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,247 @@
+package com.example.chat.messaging;
+
+import com.example.chat.dto.MessageDto;
+import com.example.chat.service.MessageHistoryService;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.ApplicationListener;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.socket.messaging.AbstractSubProtocolEvent;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+import org.springframework.web.socket.messaging.SessionUnsubscribeEvent;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Relays the room broadcasts between the nodes of the cluster through a {@link ClusterBus}, so the subscribers of a
+ * room receive its messages whatever node they are connected to.
+ * <p>
+ * As an interceptor of the broker channel, the messages broadcast to <code>/topic/{room}</code> on this node are
+ * published to the bus. The messages of the other nodes are sent to the broker channel of this node, marked as
+ * remote so they are not published again, and added to the recent history of the room. They are persisted by the node
+ * where they were sent.
+ * <p>
+ * The relay follows the subscriptions of the sessions of this node to the rooms, including the batch destinations,
+ * and subscribes the bus to the rooms with local subscribers only. The messages are deduplicated by uuid.
+ * <p>
+ * Metrics:
+ * <li><code>chat.cluster.rooms</code>: rooms with local subscribers.
+ * <li><code>chat.cluster.duplicates</code>: messages received more than once.
+ */
+public class ClusterRelay implements ChannelInterceptor, ApplicationListener<AbstractSubProtocolEvent>,
+        AutoCloseable {
+
+    /**
+     * Header of the messages received from the other nodes.
+     */
+    public static final String REMOTE_HEADER = ClusterRelay.class.getName() + ".remote";
+
+    private static final Log logger = LogFactory.getLog(ClusterRelay.class);
+
+    private static final String TOPIC_PREFIX = "/topic/";
+
+    private final ClusterBus bus;
+
+    private final MessageHistoryService messageHistoryService;
+
+    private final ObjectMapper objectMapper;
+
+    // Uuids of the messages seen recently
+    private final Cache<UUID, Boolean> seen;
+
+    // Local subscriptions by room
+    private final Map<String, Integer> roomSubscriptions = new ConcurrentHashMap<>();
+
+    // Room of every local subscription, by session and subscription id
+    private final Map<String, Map<String, String>> sessionSubscriptions = new ConcurrentHashMap<>();
+
+    private final Counter duplicates;
+
+    private volatile MessageChannel brokerChannel;
+
+
+    /**
+     * @param bus                   bus between the nodes of the cluster.
+     * @param messageHistoryService recent history of the rooms.
+     * @param objectMapper          mapper of the JSON of the messages.
+     * @param deduplicationSize     maximum uuids kept to deduplicate the messages.
+     * @param deduplicationTime     time the uuid of a message is kept to deduplicate it.
+     * @param meterRegistry         registry for the metrics of the relay.
+     */
+    public ClusterRelay(ClusterBus bus, MessageHistoryService messageHistoryService, ObjectMapper objectMapper,
+                        long deduplicationSize, Duration deduplicationTime, MeterRegistry meterRegistry) {
+        this.bus = bus;
+        this.messageHistoryService = messageHistoryService;
+        this.objectMapper = objectMapper;
+        this.seen = Caffeine.newBuilder()
+                .maximumSize(deduplicationSize)
+                .expireAfterWrite(deduplicationTime)
+                .build();
+
+        Gauge.builder("chat.cluster.rooms", roomSubscriptions, Map::size)
+                .description("Rooms with subscribers on this node")
+                .register(meterRegistry);
+        this.duplicates = Counter.builder("chat.cluster.duplicates")
+                .description("Messages relayed more than once, discarded")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Starts the bus, the messages of the other nodes are sent to the broker channel.
+     *
+     * @param brokerChannel channel of the messages to the broker of this node.
+     */
+    public void start(MessageChannel brokerChannel) {
+        this.brokerChannel = brokerChannel;
+        bus.start(this::receive);
+    }
+
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        if (SimpMessageHeaderAccessor.getMessageType(message.getHeaders()) != SimpMessageType.MESSAGE
+                || message.getHeaders().containsKey(REMOTE_HEADER)
+                || !(message.getPayload() instanceof byte[] payload)) {
+            return message;
+        }
+        String room = room(SimpMessageHeaderAccessor.getDestination(message.getHeaders()));
+        if (room == null || room.contains("/")) {
+            return message;
+        }
+
+        UUID uuid = uuid(payload);
+        if (uuid != null) {
+            seen.put(uuid, Boolean.TRUE);
+            bus.publish(room, uuid, payload);
+        }
+        return message;
+    }
+
+    @Override
+    public void onApplicationEvent(AbstractSubProtocolEvent event) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(event.getMessage());
+        String sessionId = accessor.getSessionId();
+        if (sessionId == null) {
+            return;
+        }
+
+        if (event instanceof SessionSubscribeEvent) {
+            String room = room(accessor.getDestination());
+            if (room != null && accessor.getSubscriptionId() != null) {
+                room = room.substring(room.lastIndexOf('/') + 1);
+                String previous = sessionSubscriptions.computeIfAbsent(sessionId, key -> new ConcurrentHashMap<>())
+                        .put(accessor.getSubscriptionId(), room);
+                if (previous != null) {
+                    removeSubscription(previous);
+                }
+                addSubscription(room);
+            }
+        } else if (event instanceof SessionUnsubscribeEvent) {
+            Map<String, String> subscriptions = sessionSubscriptions.get(sessionId);
+            String room = subscriptions != null && accessor.getSubscriptionId() != null
+                    ? subscriptions.remove(accessor.getSubscriptionId())
+                    : null;
+            if (room != null) {
+                removeSubscription(room);
+            }
+        } else if (event instanceof SessionDisconnectEvent) {
+            Map<String, String> subscriptions = sessionSubscriptions.remove(sessionId);
+            if (subscriptions != null) {
+                subscriptions.values().forEach(this::removeSubscription);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        bus.close();
+    }
+
+    private void receive(String room, UUID uuid, byte[] payload) {
+        if (seen.asMap().putIfAbsent(uuid, Boolean.TRUE) != null) {
+            duplicates.increment();
+            return;
+        }
+
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setDestination(TOPIC_PREFIX + room);
+        accessor.setContentType(MimeTypeUtils.APPLICATION_JSON);
+        accessor.setHeader(REMOTE_HEADER, Boolean.TRUE);
+        brokerChannel.send(MessageBuilder.createMessage(payload, accessor.getMessageHeaders()));
+
+        try {
+            messageHistoryService.add(room, objectMapper.readValue(payload, MessageDto.class));
+        } catch (IOException e) {
+            logger.warn("Failed to add the message " + uuid + " of the cluster to the history of " + room, e);
+        }
+    }
+
+    private void addSubscription(String room) {
+        roomSubscriptions.compute(room, (key, count) -> {
+            if (count == null) {
+                bus.subscribe(room);
+                return 1;
+            }
+            return count + 1;
+        });
+    }
+
+    private void removeSubscription(String room) {
+        roomSubscriptions.computeIfPresent(room, (key, count) -> {
+            if (count > 1) {
+                return count - 1;
+            }
+            bus.unsubscribe(room);
+            return null;
+        });
+    }
+
+    /**
+     * @return the part of a topic destination after the prefix, null if it is not a topic.
+     */
+    private static String room(String destination) {
+        return destination != null && destination.startsWith(TOPIC_PREFIX)
+                ? destination.substring(TOPIC_PREFIX.length())
+                : null;
+    }
+
+    /**
+     * @return the uuid of the JSON message, read up to its uuid field, null if it has none.
+     */
+    private UUID uuid(byte[] payload) {
+        try (JsonParser parser = objectMapper.getFactory().createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("uuid".equals(field) && value == JsonToken.VALUE_STRING) {
+                    return UUID.fromString(parser.getText());
+                }
+                parser.skipChildren();
+            }
+            return null;
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
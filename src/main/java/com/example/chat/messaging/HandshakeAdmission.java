@@ -0,0 +1,215 @@
+package com.example.chat.messaging;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpResponse;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control of the WebSocket handshakes, so a storm of reconnections, after a deploy for instance, does not
+ * starve the established sessions.
+ * <p>
+ * A handshake is admitted if:
+ * <li>The handshake rate is under the limit, a {@link TokenBucket} smooths the bursts of handshakes.
+ * <li>The sessions are under the maximum of the node.
+ * <li>The sessions of the client IP address are under the maximum per address.
+ * <p>
+ * Otherwise it is rejected before the upgrade, with status 503 (429 for the limit per address) and a
+ * <code>Retry-After</code> header. The retry time is randomized between one and two times the configured time, so the
+ * rejected clients do not come back all at once.
+ * <p>
+ * An admitted handshake takes a session slot, it is released when the handshake fails or when the session is closed.
+ * The sessions are tracked by decorating the WebSocket handler with {@link #decorate(WebSocketHandler)}.
+ * <p>
+ * The client IP address is the remote address of the request. Behind a reverse proxy or a load balancer it is the
+ * address of the proxy, unless the server resolves the client address from the forwarded headers
+ * (<code>server.forward-headers-strategy</code> and the trusted <code>server.tomcat.remoteip.internal-proxies</code>),
+ * otherwise all the clients of a proxy share its sessions per address.
+ * <p>
+ * Metrics:
+ * <li><code>chat.websocket.admission.sessions</code>: admitted sessions.
+ * <li><code>chat.websocket.admission.addresses</code>: client IP addresses with sessions.
+ * <li><code>chat.websocket.admission.rejected</code>: rejected handshakes, tagged by reason: rate, sessions or address.
+ */
+public class HandshakeAdmission implements HandshakeInterceptor {
+
+    private static final String ADMITTED_ADDRESS = HandshakeAdmission.class.getName() + ".address";
+
+    private final int maxSessions;
+
+    private final int maxSessionsPerAddress;
+
+    private final TokenBucket.Limit handshakeLimit;
+
+    private final TokenBucket handshakeBucket;
+
+    private final long retryAfterSeconds;
+
+    private final AtomicInteger sessions = new AtomicInteger();
+
+    private final Map<String, Integer> sessionsByAddress = new ConcurrentHashMap<>();
+
+    private final Counter rateRejections;
+
+    private final Counter sessionsRejections;
+
+    private final Counter addressRejections;
+
+    private final long start = System.nanoTime();
+
+
+    /**
+     * @param maxSessions           maximum sessions of the node.
+     * @param maxSessionsPerAddress maximum sessions of a client IP address.
+     * @param handshakeLimit        maximum handshakes per second and burst.
+     * @param retryAfter            minimum time the rejected clients are told to wait before retrying.
+     * @param meterRegistry         registry for the metrics of the admission.
+     */
+    public HandshakeAdmission(int maxSessions, int maxSessionsPerAddress, TokenBucket.Limit handshakeLimit,
+                              Duration retryAfter, MeterRegistry meterRegistry) {
+        this.maxSessions = maxSessions;
+        this.maxSessionsPerAddress = maxSessionsPerAddress;
+        this.handshakeLimit = handshakeLimit;
+        this.handshakeBucket = new TokenBucket(nowMillis(), handshakeLimit);
+        this.retryAfterSeconds = Math.max(1, retryAfter.toSeconds());
+
+        Gauge.builder("chat.websocket.admission.sessions", sessions, AtomicInteger::get)
+                .description("WebSocket sessions admitted")
+                .register(meterRegistry);
+        Gauge.builder("chat.websocket.admission.addresses", sessionsByAddress, Map::size)
+                .description("Client IP addresses with WebSocket sessions")
+                .register(meterRegistry);
+        this.rateRejections = rejections(meterRegistry, "rate");
+        this.sessionsRejections = rejections(meterRegistry, "sessions");
+        this.addressRejections = rejections(meterRegistry, "address");
+    }
+
+    @Override
+    public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler,
+                                   Map<String, Object> attributes) {
+        if (!handshakeBucket.tryConsume(nowMillis(), handshakeLimit)) {
+            rateRejections.increment();
+            return reject(response, HttpStatus.SERVICE_UNAVAILABLE);
+        }
+
+        if (!tryAcquireSession()) {
+            sessionsRejections.increment();
+            return reject(response, HttpStatus.SERVICE_UNAVAILABLE);
+        }
+
+        String address = address(request);
+        if (!tryAcquireAddress(address)) {
+            sessions.decrementAndGet();
+            addressRejections.increment();
+            return reject(response, HttpStatus.TOO_MANY_REQUESTS);
+        }
+
+        attributes.put(ADMITTED_ADDRESS, address);
+        return true;
+    }
+
+    @Override
+    public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler,
+                               Exception exception) {
+        // The handshake can also be rejected by the next interceptors, the origin check for instance, then the
+        // response is not switching protocols
+        boolean upgraded = !(response instanceof ServletServerHttpResponse servletResponse)
+                || servletResponse.getServletResponse().getStatus() == HttpStatus.SWITCHING_PROTOCOLS.value();
+        if (exception != null || !upgraded) {
+            release(address(request));
+        }
+    }
+
+    /**
+     * @param handler WebSocket handler of the sessions.
+     * @return the handler that releases the slot of the admitted sessions when they are closed.
+     */
+    public WebSocketHandler decorate(WebSocketHandler handler) {
+        return new WebSocketHandlerDecorator(handler) {
+            @Override
+            public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+                Object address = session.getAttributes().remove(ADMITTED_ADDRESS);
+                if (address != null) {
+                    release((String) address);
+                }
+                super.afterConnectionClosed(session, closeStatus);
+            }
+        };
+    }
+
+    public int getSessions() {
+        return sessions.get();
+    }
+
+    private boolean tryAcquireSession() {
+        while (true) {
+            int current = sessions.get();
+            if (current >= maxSessions) {
+                return false;
+            }
+            if (sessions.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean tryAcquireAddress(String address) {
+        boolean[] acquired = {false};
+        sessionsByAddress.compute(address, (key, count) -> {
+            int current = count != null ? count : 0;
+            if (current >= maxSessionsPerAddress) {
+                return count;
+            }
+            acquired[0] = true;
+            return current + 1;
+        });
+        return acquired[0];
+    }
+
+    private void release(String address) {
+        sessions.decrementAndGet();
+        sessionsByAddress.computeIfPresent(address, (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private boolean reject(ServerHttpResponse response, HttpStatus status) {
+        long retryAfter = retryAfterSeconds + ThreadLocalRandom.current().nextLong(retryAfterSeconds + 1);
+        response.setStatusCode(status);
+        response.getHeaders().set(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfter));
+        return false;
+    }
+
+    private static String address(ServerHttpRequest request) {
+        InetSocketAddress remoteAddress = request.getRemoteAddress();
+        return remoteAddress != null && remoteAddress.getAddress() != null
+                ? remoteAddress.getAddress().getHostAddress()
+                : "unknown";
+    }
+
+    private long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static Counter rejections(MeterRegistry meterRegistry, String reason) {
+        return Counter.builder("chat.websocket.admission.rejected")
+                .description("WebSocket handshakes rejected by the admission control")
+                .tag("reason", reason)
+                .register(meterRegistry);
+    }
+}
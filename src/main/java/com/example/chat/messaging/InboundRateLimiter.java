@@ -0,0 +1,161 @@
+package com.example.chat.messaging;
+
+import com.example.chat.model.User;
+import com.example.chat.security.ChatPrincipal;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageDeliveryException;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.ChannelInterceptor;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of the chat messages sent by the clients to <code>/app/chat/{room}</code>, with a
+ * {@link TokenBucket} per session and another per user, shared by all the sessions of the user.
+ * <p>
+ * The limits depend on the role of the user of the session, the SYSTEM role is not limited. A message over the limit
+ * of the session or of the user is rejected before it reaches the inbound lanes, the client receives an ERROR frame
+ * and, as STOMP requires after an ERROR frame, its connection is closed. The burst of the limits absorbs the normal
+ * peaks of a client, only the clients that keep sending over the rate are disconnected.
+ * <p>
+ * The bucket of a session is kept in the session attributes, it is released with the session. The buckets of the users
+ * are kept in a map, the full buckets of idle users are removed periodically. The memory per session and per user is
+ * under 100 bytes, about 100 MB for a million sessions.
+ * <p>
+ * Metrics:
+ * <li><code>chat.websocket.inbound.rate.limited</code>: rejected messages, tagged by role and by the scope of the
+ * exceeded limit, session or user.
+ * <li><code>chat.websocket.inbound.rate.users</code>: users with a bucket.
+ */
+public class InboundRateLimiter implements ChannelInterceptor, AutoCloseable {
+
+    private static final String DESTINATION_PREFIX = "/app/chat/";
+
+    private static final String SESSION_BUCKET = InboundRateLimiter.class.getName() + ".bucket";
+
+    private final Map<User.Role, TokenBucket.Limit> sessionLimits;
+
+    private final Map<User.Role, TokenBucket.Limit> userLimits;
+
+    private final Map<Long, TokenBucket> userBuckets = new ConcurrentHashMap<>();
+
+    // Idle time after which any user bucket is full
+    private final long userRefillMillis;
+
+    private final Map<User.Role, Counter> sessionRejections = new EnumMap<>(User.Role.class);
+
+    private final Map<User.Role, Counter> userRejections = new EnumMap<>(User.Role.class);
+
+    private final ScheduledExecutorService cleaner;
+
+    private final long start = System.nanoTime();
+
+
+    /**
+     * @param sessionLimits limits of a session by role, the roles without limit are not limited.
+     * @param userSessions  sessions of a user at full rate, the limit of a user is the limit of a session multiplied by
+     *                      this factor.
+     * @param meterRegistry registry for the metrics of the limiter.
+     */
+    public InboundRateLimiter(Map<User.Role, TokenBucket.Limit> sessionLimits, int userSessions,
+                              MeterRegistry meterRegistry) {
+        this.sessionLimits = new EnumMap<>(sessionLimits);
+        this.userLimits = new EnumMap<>(User.Role.class);
+        sessionLimits.forEach((role, limit) -> userLimits.put(role, limit.times(userSessions)));
+        this.userRefillMillis = userLimits.values().stream().mapToLong(TokenBucket.Limit::refillMillis).max().orElse(0);
+
+        for (User.Role role : User.Role.values()) {
+            sessionRejections.put(role, rejections(meterRegistry, role, "session"));
+            userRejections.put(role, rejections(meterRegistry, role, "user"));
+        }
+        Gauge.builder("chat.websocket.inbound.rate.users", userBuckets, Map::size)
+                .description("Users with a rate limit bucket")
+                .register(meterRegistry);
+
+        this.cleaner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "inbound-rate-limiter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.cleaner.scheduleWithFixedDelay(this::removeFullBuckets, 1, 1, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        if (SimpMessageHeaderAccessor.getMessageType(message.getHeaders()) != SimpMessageType.MESSAGE) {
+            return message;
+        }
+        String destination = SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+        if (destination == null || !destination.startsWith(DESTINATION_PREFIX)) {
+            return message;
+        }
+
+        // The principal is set on CONNECT, a session without it is limited as a guest
+        ChatPrincipal principal = SimpMessageHeaderAccessor.getUser(message.getHeaders()) instanceof ChatPrincipal p
+                ? p
+                : null;
+        User.Role role = principal != null ? principal.role() : User.Role.GUEST;
+        TokenBucket.Limit sessionLimit = sessionLimits.get(role);
+        if (sessionLimit == null) {
+            return message;
+        }
+        long now = nowMillis();
+
+        Map<String, Object> attributes = SimpMessageHeaderAccessor.getSessionAttributes(message.getHeaders());
+        if (attributes != null) {
+            TokenBucket sessionBucket = (TokenBucket) attributes.computeIfAbsent(SESSION_BUCKET,
+                    key -> new TokenBucket(now, sessionLimit));
+            if (!sessionBucket.tryConsume(now, sessionLimit)) {
+                sessionRejections.get(role).increment();
+                throw new MessageDeliveryException(message, "Rate limit exceeded, maximum "
+                        + sessionLimit.ratePerSecond() + " messages per second");
+            }
+        }
+
+        if (principal != null && principal.id() != null) {
+            TokenBucket.Limit userLimit = userLimits.get(role);
+            TokenBucket userBucket = userBuckets.computeIfAbsent(principal.id(), id -> new TokenBucket(now, userLimit));
+            if (!userBucket.tryConsume(now, userLimit)) {
+                userRejections.get(role).increment();
+                throw new MessageDeliveryException(message, "Rate limit exceeded, maximum "
+                        + userLimit.ratePerSecond() + " messages per second for all the sessions of the user");
+            }
+        }
+
+        return message;
+    }
+
+    // A full bucket is the same as a new one. A message racing with the removal may use the removed bucket, the next
+    // message of the user gets a new full bucket.
+    private void removeFullBuckets() {
+        long now = nowMillis();
+        userBuckets.values().removeIf(bucket -> bucket.idleMillis(now) >= userRefillMillis);
+    }
+
+    private long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static Counter rejections(MeterRegistry meterRegistry, User.Role role, String scope) {
+        return Counter.builder("chat.websocket.inbound.rate.limited")
+                .description("Inbound chat messages rejected by the rate limits")
+                .tag("role", role.name())
+                .tag("scope", scope)
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void close() {
+        cleaner.shutdownNow();
+    }
+}
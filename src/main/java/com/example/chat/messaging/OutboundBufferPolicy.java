@@ -0,0 +1,305 @@
+package com.example.chat.messaging;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.websocket.Session;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.support.ExecutorChannelInterceptor;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outbound buffer policy of the WebSocket sessions, so a subscriber on a slow link can not make the node buffer frames
+ * for it without limit.
+ * <p>
+ * Every session is decorated by a {@link BufferedWebSocketSession}, which writes the frames with the asynchronous
+ * sends of the container: the outbound threads never block on a slow socket, the frames wait in the buffer of the
+ * session while the previous frame is written. When the buffered bytes of a session exceed the buffer size limit, the
+ * overflow policy is applied:
+ * <li>{@link Overflow#DROP_OLDEST}: the oldest MESSAGE frames are dropped until the buffer is under the limit.
+ * <li>{@link Overflow#COALESCE}: the older MESSAGE frames to the destination of the new frame are dropped, only the
+ * latest is kept. If the buffer is still over the limit, the oldest frames are dropped.
+ * <li>{@link Overflow#DISCONNECT}: the session is closed.
+ * <p>
+ * Frames other than MESSAGE (CONNECTED, RECEIPT, ERROR, heart-beats) are never dropped. A frame that can not be
+ * written within the send time limit closes the session, whatever the policy: a stuck socket does not recover by
+ * dropping frames.
+ * <p>
+ * The destination of a frame is not in the encoded frame, it is taken from the message being handled by the outbound
+ * channel, see {@link #interceptor()}.
+ * <p>
+ * Metrics:
+ * <li><code>chat.websocket.outbound.buffered</code>: bytes buffered for all the sessions.
+ * <li><code>chat.websocket.outbound.dropped</code>: frames dropped for all the sessions.
+ * <li><code>chat.websocket.outbound.session.buffered</code>: distribution of the bytes buffered for a session, sampled
+ * when a frame is buffered.
+ * <li><code>chat.websocket.outbound.session.dropped</code>: distribution of the frames dropped per session, recorded
+ * when the session is closed.
+ * <li><code>chat.websocket.outbound.disconnected</code>: sessions closed by the policy, tagged by reason: buffer,
+ * timeout or error.
+ * <li><code>chat.websocket.outbound.room.buffered</code>: bytes buffered for the subscribers of a room, tagged by
+ * room. Only when the room metrics are enabled.
+ * <li><code>chat.websocket.outbound.room.dropped</code>: frames of a room dropped, tagged by room. Only when the room
+ * metrics are enabled.
+ * <p>
+ * The per-session metrics are distributions rather than one time series per session, the sessions come and go too
+ * often for the latter. The titles of the rooms are chosen by the users, so the room metrics are opt-in and bounded:
+ * the first rooms up to the maximum get their own tag, kept while the node runs, the frames of the other rooms are
+ * tagged with room {@value #OTHER_ROOMS}. The frames to destinations that are not a room, the user queues, are tagged
+ * with room {@value #NO_ROOM}.
+ */
+public class OutboundBufferPolicy {
+
+    /**
+     * What to do when the buffer of a session exceeds the limit.
+     */
+    public enum Overflow {DROP_OLDEST, COALESCE, DISCONNECT}
+
+    static final String NO_ROOM = "none";
+
+    static final String OTHER_ROOMS = "other";
+
+    private static final String TOPIC_PREFIX = "/topic/";
+
+    private static final String SESSION = OutboundBufferPolicy.class.getName() + ".session";
+
+    private final Duration sendTimeLimit;
+
+    private final long bufferSizeLimit;
+
+    private final Overflow overflow;
+
+    private final MeterRegistry meterRegistry;
+
+    // Destination of the message being handled by the current outbound thread
+    private final ThreadLocal<String> destination = new ThreadLocal<>();
+
+    private final AtomicLong buffered = new AtomicLong();
+
+    private final Counter dropped;
+
+    private final DistributionSummary sessionBuffered;
+
+    private final DistributionSummary sessionDropped;
+
+    private final Map<String, Counter> disconnections = new ConcurrentHashMap<>();
+
+    private final int maximumRooms;
+
+    private final Map<String, RoomMeters> rooms = new ConcurrentHashMap<>();
+
+
+    /**
+     * @param sendTimeLimit   maximum time to write a frame to a session.
+     * @param bufferSizeLimit maximum bytes buffered for a session.
+     * @param overflow        what to do when the buffer of a session exceeds the limit.
+     * @param meterRegistry   registry for the metrics of the buffers.
+     */
+    public OutboundBufferPolicy(Duration sendTimeLimit, DataSize bufferSizeLimit, Overflow overflow,
+                                MeterRegistry meterRegistry) {
+        this(sendTimeLimit, bufferSizeLimit, overflow, 0, meterRegistry);
+    }
+
+    /**
+     * @param sendTimeLimit   maximum time to write a frame to a session.
+     * @param bufferSizeLimit maximum bytes buffered for a session.
+     * @param overflow        what to do when the buffer of a session exceeds the limit.
+     * @param maximumRooms    maximum rooms tagged in the room metrics, 0 disables the room metrics.
+     * @param meterRegistry   registry for the metrics of the buffers.
+     */
+    public OutboundBufferPolicy(Duration sendTimeLimit, DataSize bufferSizeLimit, Overflow overflow, int maximumRooms,
+                                MeterRegistry meterRegistry) {
+        if (maximumRooms < 0) {
+            throw new IllegalArgumentException("Invalid maximum rooms of the metrics: " + maximumRooms);
+        }
+        this.maximumRooms = maximumRooms;
+        this.sendTimeLimit = sendTimeLimit;
+        this.bufferSizeLimit = bufferSizeLimit.toBytes();
+        this.overflow = overflow;
+        this.meterRegistry = meterRegistry;
+
+        Gauge.builder("chat.websocket.outbound.buffered", buffered, AtomicLong::get)
+                .description("Bytes buffered for the WebSocket sessions")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.dropped = Counter.builder("chat.websocket.outbound.dropped")
+                .description("Frames dropped by the outbound buffer policy")
+                .register(meterRegistry);
+        this.sessionBuffered = DistributionSummary.builder("chat.websocket.outbound.session.buffered")
+                .description("Bytes buffered for a WebSocket session")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.sessionDropped = DistributionSummary.builder("chat.websocket.outbound.session.dropped")
+                .description("Frames dropped for a WebSocket session")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return the interceptor of the outbound channel that makes the destination of the message being handled
+     * available to the sessions, while the message is encoded and sent to the session.
+     */
+    public ExecutorChannelInterceptor interceptor() {
+        return new ExecutorChannelInterceptor() {
+            @Override
+            public Message<?> beforeHandle(Message<?> message, MessageChannel channel, MessageHandler handler) {
+                destination.set(SimpMessageHeaderAccessor.getDestination(message.getHeaders()));
+                return message;
+            }
+
+            @Override
+            public void afterMessageHandled(Message<?> message, MessageChannel channel, MessageHandler handler,
+                                            Exception ex) {
+                destination.remove();
+            }
+        };
+    }
+
+    /**
+     * @param handler WebSocket handler of the sessions.
+     * @return the handler that decorates the sessions with their outbound buffer. Sessions that are not standard
+     * WebSocket sessions are not decorated.
+     */
+    public WebSocketHandler decorate(WebSocketHandler handler) {
+        return new WebSocketHandlerDecorator(handler) {
+            @Override
+            public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+                if (session instanceof NativeWebSocketSession nativeSession
+                        && nativeSession.getNativeSession(Session.class) != null) {
+                    BufferedWebSocketSession buffered = new BufferedWebSocketSession(session,
+                            nativeSession.getNativeSession(Session.class).getAsyncRemote(),
+                            OutboundBufferPolicy.this);
+                    session.getAttributes().put(SESSION, buffered);
+                    super.afterConnectionEstablished(buffered);
+                } else {
+                    super.afterConnectionEstablished(session);
+                }
+            }
+
+            @Override
+            public void handleMessage(WebSocketSession session, WebSocketMessage<?> message) throws Exception {
+                super.handleMessage(buffered(session), message);
+            }
+
+            @Override
+            public void handleTransportError(WebSocketSession session, Throwable exception) throws Exception {
+                super.handleTransportError(buffered(session), exception);
+            }
+
+            @Override
+            public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+                WebSocketSession buffered = buffered(session);
+                if (buffered instanceof BufferedWebSocketSession bufferedSession) {
+                    bufferedSession.release();
+                }
+                super.afterConnectionClosed(buffered, closeStatus);
+            }
+        };
+    }
+
+    Duration getSendTimeLimit() {
+        return sendTimeLimit;
+    }
+
+    long getBufferSizeLimit() {
+        return bufferSizeLimit;
+    }
+
+    Overflow getOverflow() {
+        return overflow;
+    }
+
+    /**
+     * @return the destination of the message being handled by the current thread, null if none.
+     */
+    String currentDestination() {
+        return destination.get();
+    }
+
+    /**
+     * @param destination destination of a MESSAGE frame.
+     * @return the room of the destination, also of its batch destination, {@link #NO_ROOM} if it is not a room, null
+     * if the room metrics are disabled.
+     */
+    String room(String destination) {
+        if (maximumRooms == 0) {
+            return null;
+        }
+        return destination.startsWith(TOPIC_PREFIX)
+                ? destination.substring(destination.lastIndexOf('/') + 1)
+                : NO_ROOM;
+    }
+
+    void buffered(String room, long bytes) {
+        buffered.addAndGet(bytes);
+        if (room != null) {
+            roomMeters(room).buffered.addAndGet(bytes);
+        }
+    }
+
+    void sessionBuffered(long bytes) {
+        sessionBuffered.record(bytes);
+    }
+
+    void dropped(String room) {
+        dropped.increment();
+        if (room != null) {
+            roomMeters(room).dropped.increment();
+        }
+    }
+
+    void sessionClosed(long dropped) {
+        sessionDropped.record(dropped);
+    }
+
+    void disconnected(String reason) {
+        disconnections.computeIfAbsent(reason, key -> Counter.builder("chat.websocket.outbound.disconnected")
+                        .description("WebSocket sessions closed by the outbound buffer policy")
+                        .tag("reason", key)
+                        .register(meterRegistry))
+                .increment();
+    }
+
+    private static WebSocketSession buffered(WebSocketSession session) {
+        Object buffered = session.getAttributes().get(SESSION);
+        return buffered != null ? (WebSocketSession) buffered : session;
+    }
+
+    private RoomMeters roomMeters(String room) {
+        RoomMeters meters = rooms.get(room);
+        if (meters != null) {
+            return meters;
+        }
+        // Up to the maximum of tags, with "none" and "other". Concurrent new rooms may go slightly over it.
+        String tag = room.equals(NO_ROOM) || rooms.size() < maximumRooms ? room : OTHER_ROOMS;
+        return rooms.computeIfAbsent(tag, key -> {
+            AtomicLong bytes = new AtomicLong();
+            Gauge.builder("chat.websocket.outbound.room.buffered", bytes, AtomicLong::get)
+                    .description("Bytes buffered for the subscribers of a room")
+                    .baseUnit("bytes")
+                    .tag("room", key)
+                    .register(meterRegistry);
+            Counter dropped = Counter.builder("chat.websocket.outbound.room.dropped")
+                    .description("Frames of a room dropped by the outbound buffer policy")
+                    .tag("room", key)
+                    .register(meterRegistry);
+            return new RoomMeters(bytes, dropped);
+        });
+    }
+
+    private record RoomMeters(AtomicLong buffered, Counter dropped) {}
+}
@@ -0,0 +1,165 @@
+package com.example.chat.messaging;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.broker.SubscriptionRegistry;
+import org.springframework.util.MultiValueMap;
+import org.springframework.util.MultiValueMapAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Fan-out engine of the simple broker, that delivers a message to the subscribers of a large room in parallel.
+ * <p>
+ * The simple broker delivers a message iterating the subscriptions found by its <code>SubscriptionRegistry</code>, one
+ * session after another on the thread that publishes the message. This registry decorates the registry of the broker:
+ * when a destination has at least the parallel threshold of subscribed sessions, the subscriptions are split in
+ * partitions, which are delivered in parallel on a bounded <code>ForkJoinPool</code>. The publishing thread delivers
+ * one partition and waits for the rest, so a message has been handed to every session before the next message of the
+ * room is published, and the order of the messages per session is kept. The destinations with fewer sessions keep the
+ * single thread delivery.
+ * <p>
+ * The delivery of a session builds its MESSAGE and sends it to the ordered outbound channel of the session, which is
+ * safe from any thread, and a session is delivered by only one partition.
+ * <p>
+ * Metrics:
+ * <li><code>chat.websocket.broker.fanout</code>: time to deliver a message to all the subscribers, as a histogram
+ * tagged by path: single or parallel.
+ */
+public class ParallelFanOut implements SubscriptionRegistry, AutoCloseable {
+
+    private final SubscriptionRegistry delegate;
+
+    private final int parallelThreshold;
+
+    private final int partitionSize;
+
+    private final ForkJoinPool pool;
+
+    private final Timer singleFanOut;
+
+    private final Timer parallelFanOut;
+
+
+    /**
+     * @param delegate          registry of the subscriptions of the broker.
+     * @param parallelThreshold minimum subscribed sessions of a destination to deliver its messages in parallel.
+     * @param partitionSize     sessions delivered by a task.
+     * @param parallelism       threads of the pool, zero or less to use one per available processor.
+     * @param meterRegistry     registry for the metrics of the fan-out.
+     */
+    public ParallelFanOut(SubscriptionRegistry delegate, int parallelThreshold, int partitionSize, int parallelism,
+                          MeterRegistry meterRegistry) {
+        if (partitionSize <= 0) {
+            throw new IllegalArgumentException("Invalid partition size: " + partitionSize);
+        }
+        this.delegate = delegate;
+        this.parallelThreshold = parallelThreshold;
+        this.partitionSize = partitionSize;
+        this.pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors(),
+                pool -> {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("broker-fan-out-" + thread.getPoolIndex());
+                    thread.setDaemon(true);
+                    return thread;
+                }, null, false);
+
+        this.singleFanOut = fanOutTimer(meterRegistry, "single");
+        this.parallelFanOut = fanOutTimer(meterRegistry, "parallel");
+    }
+
+    @Override
+    public void registerSubscription(Message<?> subscribeMessage) {
+        delegate.registerSubscription(subscribeMessage);
+    }
+
+    @Override
+    public void unregisterSubscription(Message<?> unsubscribeMessage) {
+        delegate.unregisterSubscription(unsubscribeMessage);
+    }
+
+    @Override
+    public void unregisterAllSubscriptions(String sessionId) {
+        delegate.unregisterAllSubscriptions(sessionId);
+    }
+
+    @Override
+    public MultiValueMap<String, String> findSubscriptions(Message<?> message) {
+        MultiValueMap<String, String> subscriptions = delegate.findSubscriptions(message);
+        if (subscriptions.isEmpty()) {
+            return subscriptions;
+        }
+        return new FanOutSubscriptions(subscriptions, subscriptions.size() >= parallelThreshold);
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    private void deliver(List<Map.Entry<String, List<String>>> sessions, int from, int to,
+                         BiConsumer<? super String, ? super List<String>> delivery) {
+        for (int i = from; i < to; i++) {
+            Map.Entry<String, List<String>> session = sessions.get(i);
+            delivery.accept(session.getKey(), session.getValue());
+        }
+    }
+
+    private static Timer fanOutTimer(MeterRegistry meterRegistry, String path) {
+        return Timer.builder("chat.websocket.broker.fanout")
+                .description("Time to deliver a message to all the subscribers of a destination")
+                .tag("path", path)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    /**
+     * Subscriptions of a message, by session, delivered by the broker with {@link #forEach(BiConsumer)}.
+     */
+    private class FanOutSubscriptions extends MultiValueMapAdapter<String, String> {
+
+        private final boolean parallel;
+
+        FanOutSubscriptions(MultiValueMap<String, String> subscriptions, boolean parallel) {
+            super(subscriptions);
+            this.parallel = parallel;
+        }
+
+        @Override
+        public void forEach(BiConsumer<? super String, ? super List<String>> delivery) {
+            long start = System.nanoTime();
+            if (parallel) {
+                forEachParallel(delivery);
+                parallelFanOut.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            } else {
+                super.forEach(delivery);
+                singleFanOut.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void forEachParallel(BiConsumer<? super String, ? super List<String>> delivery) {
+            List<Map.Entry<String, List<String>>> sessions = new ArrayList<>(entrySet());
+            int partitions = (sessions.size() + partitionSize - 1) / partitionSize;
+
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(partitions - 1);
+            for (int partition = 1; partition < partitions; partition++) {
+                int from = partition * partitionSize;
+                int to = Math.min(from + partitionSize, sessions.size());
+                tasks.add(pool.submit(() -> deliver(sessions, from, to, delivery)));
+            }
+
+            deliver(sessions, 0, Math.min(partitionSize, sessions.size()), delivery);
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.example.chat.messaging;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.ApplicationListener;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.messaging.AbstractSubProtocolEvent;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+import org.springframework.web.socket.messaging.SessionUnsubscribeEvent;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Interceptor of the broker channel that micro-batches the broadcasts of the busy chat rooms, for the clients that opt
+ * in.
+ * <p>
+ * Every message broadcast to <code>/topic/{room}</code> is delivered as usual, one frame per message, and when the room
+ * has batch subscribers it is also added to the {@link AdaptiveBatch} of the room. The batch is broadcast to <code>/topic/batch/{room}</code> as one
+ * frame with a JSON array of the messages, with the number of messages in the <code>batch-size</code> header. A client
+ * opts in subscribing to the batch destination instead of the room destination, then it receives one frame per window
+ * instead of one frame per message.
+ * <p>
+ * The batches are formed per room, not per session, so all the batch subscribers of a room receive the same payload
+ * and the frame is encoded once for all of them by the <code>SharedFrameStompEncoder</code>. The batches of a room are
+ * broadcast in order, and the messages in a batch in the order they were broadcast.
+ * <p>
+ * The batcher follows the <code>SessionSubscribeEvent</code>, <code>SessionUnsubscribeEvent</code> and
+ * <code>SessionDisconnectEvent</code> of the sessions, and keeps the state of a room only while it has batch
+ * subscribers: the rooms without them are not batched, and the state of a room is dropped, with its pending messages,
+ * when its last batch subscriber leaves, deleted rooms included.
+ * <p>
+ * Metrics:
+ * <li><code>chat.websocket.outbound.batch.rooms</code>: rooms with batch subscribers.
+ * <li><code>chat.websocket.outbound.batch.messages</code>: messages per batch.
+ * <li><code>chat.websocket.outbound.batch.bytes</code>: bytes of the payload of a batch.
+ */
+public class RoomBatcher implements ChannelInterceptor, ApplicationListener<AbstractSubProtocolEvent>, AutoCloseable {
+
+    public static final String BATCH_PREFIX = "/topic/batch/";
+
+    public static final String BATCH_SIZE_HEADER = "batch-size";
+
+    private static final Log logger = LogFactory.getLog(RoomBatcher.class);
+
+    private static final String TOPIC_PREFIX = "/topic/";
+
+    private final long minWindowNanos;
+
+    private final long maxWindowNanos;
+
+    private final int maxBytes;
+
+    // Rooms with batch subscribers
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+
+    // Batch subscriptions of every session, room by subscription id
+    private final Map<String, Map<String, String>> sessions = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler;
+
+    private final DistributionSummary batchMessages;
+
+    private final DistributionSummary batchBytes;
+
+
+    /**
+     * @param minWindow     minimum time a message waits for the next messages of the room.
+     * @param maxWindow     maximum time a message waits for the next messages of the room.
+     * @param maxSize       size of the messages of a batch that flushes it before its window elapses.
+     * @param meterRegistry registry for the metrics of the batches.
+     */
+    public RoomBatcher(Duration minWindow, Duration maxWindow, DataSize maxSize, MeterRegistry meterRegistry) {
+        if (minWindow.isNegative() || minWindow.isZero() || maxWindow.compareTo(minWindow) < 0) {
+            throw new IllegalArgumentException("Invalid batch window: " + minWindow + " to " + maxWindow);
+        }
+        this.minWindowNanos = minWindow.toNanos();
+        this.maxWindowNanos = maxWindow.toNanos();
+        this.maxBytes = (int) maxSize.toBytes();
+
+        Gauge.builder("chat.websocket.outbound.batch.rooms", rooms, Map::size)
+                .description("Rooms with batch subscribers")
+                .register(meterRegistry);
+        this.batchMessages = DistributionSummary.builder("chat.websocket.outbound.batch.messages")
+                .description("Messages per batch of a room")
+                .register(meterRegistry);
+        this.batchBytes = DistributionSummary.builder("chat.websocket.outbound.batch.bytes")
+                .description("Bytes of the payload of a batch of a room")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "room-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        if (SimpMessageHeaderAccessor.getMessageType(message.getHeaders()) != SimpMessageType.MESSAGE
+                || !(message.getPayload() instanceof byte[] payload)) {
+            return message;
+        }
+        String destination = SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+        if (destination == null || !destination.startsWith(TOPIC_PREFIX) || destination.startsWith(BATCH_PREFIX)
+                || destination.indexOf('/', TOPIC_PREFIX.length()) >= 0) {
+            return message;
+        }
+
+        Room room = rooms.get(destination.substring(TOPIC_PREFIX.length()));
+        if (room == null) {
+            return message;
+        }
+        synchronized (room) {
+            if (room.discarded) {
+                return message;
+            }
+            room.channel = channel;
+            long now = System.nanoTime();
+            switch (room.batch.offer(payload, now)) {
+                case FLUSH -> room.flush(now);
+                case SCHEDULE -> scheduler.schedule(room::flushIfPending, room.batch.deadline() - now,
+                        TimeUnit.NANOSECONDS);
+                case WAIT -> {
+                }
+            }
+        }
+        return message;
+    }
+
+    @Override
+    public void onApplicationEvent(AbstractSubProtocolEvent event) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(event.getMessage());
+        String sessionId = accessor.getSessionId();
+        if (sessionId == null) {
+            return;
+        }
+
+        if (event instanceof SessionSubscribeEvent) {
+            String destination = accessor.getDestination();
+            if (accessor.getSubscriptionId() != null && destination != null && destination.startsWith(BATCH_PREFIX)
+                    && destination.indexOf('/', BATCH_PREFIX.length()) < 0) {
+                String title = destination.substring(BATCH_PREFIX.length());
+                String previous = sessions.computeIfAbsent(sessionId, key -> new ConcurrentHashMap<>())
+                        .put(accessor.getSubscriptionId(), title);
+                subscribe(title);
+                if (previous != null) {
+                    unsubscribe(previous);
+                }
+            }
+        } else if (event instanceof SessionUnsubscribeEvent) {
+            Map<String, String> subscriptions = sessions.get(sessionId);
+            String title = subscriptions != null && accessor.getSubscriptionId() != null
+                    ? subscriptions.remove(accessor.getSubscriptionId())
+                    : null;
+            if (title != null) {
+                unsubscribe(title);
+            }
+        } else if (event instanceof SessionDisconnectEvent) {
+            Map<String, String> subscriptions = sessions.remove(sessionId);
+            if (subscriptions != null) {
+                subscriptions.values().forEach(this::unsubscribe);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private void subscribe(String title) {
+        while (true) {
+            Room room = rooms.computeIfAbsent(title, Room::new);
+            synchronized (room) {
+                // Retries when the room has just been discarded by its last subscriber
+                if (!room.discarded) {
+                    room.subscribers++;
+                    return;
+                }
+            }
+        }
+    }
+
+    private void unsubscribe(String title) {
+        Room room = rooms.get(title);
+        if (room == null) {
+            return;
+        }
+        synchronized (room) {
+            if (--room.subscribers == 0) {
+                room.discarded = true;
+                rooms.remove(title, room);
+            }
+        }
+    }
+
+    /**
+     * Batch of a room with batch subscribers, guarded by the lock of the room.
+     */
+    private class Room {
+
+        final String destination;
+
+        final AdaptiveBatch batch;
+
+        // Broker channel, set by the messages of the room
+        MessageChannel channel;
+
+        int subscribers;
+
+        boolean discarded;
+
+        Room(String title) {
+            this.destination = BATCH_PREFIX + title;
+            this.batch = new AdaptiveBatch(minWindowNanos, maxWindowNanos, maxBytes, System.nanoTime());
+        }
+
+        synchronized void flushIfPending() {
+            // The pending messages of a discarded room have no subscribers left
+            if (!batch.isEmpty() && !discarded) {
+                flush(System.nanoTime());
+            }
+        }
+
+        /**
+         * Broadcasts the batch, holding the lock of the room so the batches are broadcast in order.
+         */
+        void flush(long now) {
+            int size = batch.size();
+            byte[] payload = batch.flush(now);
+            batchMessages.record(size);
+            batchBytes.record(payload.length);
+
+            SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+            accessor.setDestination(destination);
+            accessor.setContentType(MimeTypeUtils.APPLICATION_JSON);
+            accessor.setNativeHeader(BATCH_SIZE_HEADER, String.valueOf(size));
+            try {
+                channel.send(MessageBuilder.createMessage(payload, accessor.getMessageHeaders()));
+            } catch (RuntimeException e) {
+                logger.warn("Failed to broadcast the batch of " + destination, e);
+            }
+        }
+    }
+}
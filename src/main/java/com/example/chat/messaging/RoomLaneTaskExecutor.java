@@ -0,0 +1,196 @@
+package com.example.chat.messaging;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.MessageHandlingRunnable;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor for the inbound channel that processes the messages of a chat room in order, on a fixed set of single
+ * threaded lanes.
+ * <p>
+ * The SEND frames are hashed onto a lane by their room, the last segment of their destination, so the chat messages of
+ * a room sent to <code>/app/chat/{room}</code> are processed one after another, in arrival order, while different rooms
+ * are processed in parallel on the other lanes. The other frames of a session (CONNECT, SUBSCRIBE, UNSUBSCRIBE,
+ * DISCONNECT...) are hashed by session, so they are processed in the order the session sent them: a subscription is
+ * never registered in the broker after the DISCONNECT of its session.
+ * <p>
+ * When a lane is full, a SEND frame is dropped and counted, the chat message is lost as when it is over the rate
+ * limits. The other frames of the session are not dropped, the thread that receives them waits until the lane has room,
+ * which applies backpressure to the WebSocket session.
+ * <p>
+ * Tasks that are not messages are run by the regular pool of the <code>ThreadPoolTaskExecutor</code>.
+ * <p>
+ * Metrics, tagged by lane:
+ * <li><code>chat.websocket.inbound.lane.queue</code>: messages waiting in the lane.
+ * <li><code>chat.websocket.inbound.lane.latency</code>: time from the message arrival until it has been handled.
+ * <li><code>chat.websocket.inbound.lane.dropped</code>: SEND frames dropped because the lane was full.
+ */
+public class RoomLaneTaskExecutor extends ThreadPoolTaskExecutor {
+
+    private final int laneCount;
+
+    private final int laneQueueCapacity;
+
+    private final MeterRegistry meterRegistry;
+
+    private Lane[] lanes;
+
+
+    /**
+     * @param laneCount         number of lanes, zero or less to use one lane per available processor.
+     * @param laneQueueCapacity maximum messages waiting in a lane. When exceeded a SEND frame is dropped and the other
+     *                          frames wait.
+     * @param meterRegistry     registry for the metrics of the lanes.
+     */
+    public RoomLaneTaskExecutor(int laneCount, int laneQueueCapacity, MeterRegistry meterRegistry) {
+        this.laneCount = laneCount > 0 ? laneCount : Runtime.getRuntime().availableProcessors();
+        this.laneQueueCapacity = laneQueueCapacity;
+        this.meterRegistry = meterRegistry;
+        setCorePoolSize(1);
+        setThreadNamePrefix("clientInboundChannel-");
+    }
+
+    @Override
+    public void initialize() {
+        super.initialize();
+
+        lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(i);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+
+        if (lanes != null) {
+            for (Lane lane : lanes) {
+                lane.executor.shutdown();
+            }
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (lanes != null && task instanceof MessageHandlingRunnable messageTask) {
+            Message<?> message = messageTask.getMessage();
+            boolean send = SimpMessageHeaderAccessor.getMessageType(message.getHeaders()) == SimpMessageType.MESSAGE;
+            Lane lane = lanes[Math.floorMod(laneKey(message, send).hashCode(), lanes.length)];
+            lane.execute(task, send);
+        } else {
+            super.execute(task);
+        }
+    }
+
+    public int getLaneCount() {
+        return laneCount;
+    }
+
+    /**
+     * Room of a SEND frame, session of the other frames.
+     */
+    private static String laneKey(Message<?> message, boolean send) {
+        String destination = SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+        if (send && destination != null) {
+            return destination.substring(destination.lastIndexOf('/') + 1);
+        }
+        String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+        return sessionId != null ? sessionId : "";
+    }
+
+    private class Lane {
+
+        final ThreadPoolExecutor executor;
+
+        final Timer latency;
+
+        final Counter dropped;
+
+        Lane(int index) {
+            CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("clientInboundChannel-lane-" + index + "-");
+            threadFactory.setDaemon(true);
+            executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(laneQueueCapacity), threadFactory, new FullLanePolicy());
+
+            String lane = String.valueOf(index);
+            Gauge.builder("chat.websocket.inbound.lane.queue", executor, e -> e.getQueue().size())
+                    .description("Inbound messages waiting in the lane")
+                    .tag("lane", lane)
+                    .register(meterRegistry);
+            latency = Timer.builder("chat.websocket.inbound.lane.latency")
+                    .description("Time from the inbound message arrival until it has been handled")
+                    .tag("lane", lane)
+                    .register(meterRegistry);
+            dropped = Counter.builder("chat.websocket.inbound.lane.dropped")
+                    .description("Inbound SEND frames dropped because the lane was full")
+                    .tag("lane", lane)
+                    .register(meterRegistry);
+        }
+
+        void execute(Runnable task, boolean droppable) {
+            executor.execute(new LaneTask(task, droppable, System.nanoTime()));
+        }
+
+        private class LaneTask implements Runnable {
+
+            final Runnable task;
+
+            final boolean droppable;
+
+            final long arrival;
+
+            LaneTask(Runnable task, boolean droppable, long arrival) {
+                this.task = task;
+                this.droppable = droppable;
+                this.arrival = arrival;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    latency.record(System.nanoTime() - arrival, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+
+        /**
+         * Drops the SEND frames and waits for room in the lane for the other frames. Once the lane is shut down the
+         * frames are rejected.
+         */
+        private class FullLanePolicy implements RejectedExecutionHandler {
+
+            @Override
+            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                if (executor.isShutdown()) {
+                    throw new RejectedExecutionException("Inbound lane is shut down");
+                }
+                if (((LaneTask) runnable).droppable) {
+                    dropped.increment();
+                    return;
+                }
+                try {
+                    executor.getQueue().put(runnable);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("Interrupted waiting for room in the inbound lane", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.chat.messaging;
+
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompEncoder;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.NativeMessageHeaderAccessor;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * STOMP encoder that encodes the MESSAGE frame of a broadcast only once for all its subscribers.
+ * <p>
+ * The broker sends the same payload instance to every subscriber of a destination, only the <code>subscription</code>
+ * and <code>message-id</code> headers change per subscriber. The first time a payload is encoded, the shared part of
+ * the frame (the rest of the headers, the body and the trailing null) is encoded and kept in a small lock-free cache,
+ * indexed by the payload identity. For the rest of the subscribers only the per-subscription headers are encoded and
+ * the shared bytes are copied after them.
+ * <p>
+ * Frames other than MESSAGE, and MESSAGE frames without body, are encoded by the default <code>StompEncoder</code>.
+ */
+public class SharedFrameStompEncoder extends StompEncoder {
+
+    private static final byte[] MESSAGE_COMMAND = (StompCommand.MESSAGE.name() + "\n").getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] SUBSCRIPTION_HEADER =
+            (StompHeaderAccessor.STOMP_SUBSCRIPTION_HEADER + ":").getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] MESSAGE_ID_HEADER =
+            (StompHeaderAccessor.STOMP_MESSAGE_ID_HEADER + ":").getBytes(StandardCharsets.UTF_8);
+
+    private static final byte LINE_FEED = '\n';
+
+    private final AtomicReferenceArray<SharedFrame> sharedFrames;
+
+    private final int mask;
+
+
+    public SharedFrameStompEncoder() {
+        this(64);
+    }
+
+    /**
+     * @param cacheSize number of broadcasts whose shared frame is kept at the same time. Rounded up to a power of two.
+     */
+    public SharedFrameStompEncoder(int cacheSize) {
+        int size = Integer.highestOneBit(Math.max(1, cacheSize - 1)) << 1;
+        this.sharedFrames = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public byte[] encode(Map<String, Object> headers, byte[] payload) {
+        Map<String, List<String>> nativeHeaders =
+                (Map<String, List<String>>) headers.get(NativeMessageHeaderAccessor.NATIVE_HEADERS);
+
+        if (StompHeaderAccessor.getCommand(headers) != StompCommand.MESSAGE || payload.length == 0
+                || nativeHeaders == null) {
+            return super.encode(headers, payload);
+        }
+
+        int slot = System.identityHashCode(payload) & mask;
+        SharedFrame shared = sharedFrames.get(slot);
+        if (shared == null || !shared.matches(payload, nativeHeaders)) {
+            shared = new SharedFrame(payload, nativeHeaders);
+            sharedFrames.set(slot, shared);
+        }
+
+        // Only the per-subscription headers are encoded for each subscriber
+        byte[] subscription = encodeHeaders(SUBSCRIPTION_HEADER,
+                nativeHeaders.get(StompHeaderAccessor.STOMP_SUBSCRIPTION_HEADER));
+        byte[] messageId = encodeHeaders(MESSAGE_ID_HEADER,
+                nativeHeaders.get(StompHeaderAccessor.STOMP_MESSAGE_ID_HEADER));
+
+        byte[] frame = new byte[MESSAGE_COMMAND.length + subscription.length + messageId.length + shared.bytes.length];
+        int position = 0;
+        System.arraycopy(MESSAGE_COMMAND, 0, frame, position, MESSAGE_COMMAND.length);
+        position += MESSAGE_COMMAND.length;
+        System.arraycopy(subscription, 0, frame, position, subscription.length);
+        position += subscription.length;
+        System.arraycopy(messageId, 0, frame, position, messageId.length);
+        position += messageId.length;
+        System.arraycopy(shared.bytes, 0, frame, position, shared.bytes.length);
+
+        return frame;
+    }
+
+    private static byte[] encodeHeaders(byte[] key, List<String> values) {
+        if (values == null || values.isEmpty()) {
+            return new byte[0];
+        }
+        if (values.size() == 1) {
+            byte[] value = escape(values.get(0)).getBytes(StandardCharsets.UTF_8);
+            byte[] header = new byte[key.length + value.length + 1];
+            System.arraycopy(key, 0, header, 0, key.length);
+            System.arraycopy(value, 0, header, key.length, value.length);
+            header[header.length - 1] = LINE_FEED;
+            return header;
+        }
+        ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        writeHeader(headers, key, values);
+        return headers.toByteArray();
+    }
+
+    private static void writeHeader(ByteArrayOutputStream frame, byte[] key, List<String> values) {
+        if (values != null) {
+            for (String value : values) {
+                frame.writeBytes(key);
+                frame.writeBytes(escape(value).getBytes(StandardCharsets.UTF_8));
+                frame.write(LINE_FEED);
+            }
+        }
+    }
+
+    private static boolean isPerSubscription(String header) {
+        return StompHeaderAccessor.STOMP_SUBSCRIPTION_HEADER.equals(header)
+                || StompHeaderAccessor.STOMP_MESSAGE_ID_HEADER.equals(header)
+                || StompHeaderAccessor.STOMP_CONTENT_LENGTH_HEADER.equals(header);
+    }
+
+    /**
+     * Escapes a header value as required by the STOMP 1.2 specification.
+     */
+    private static String escape(String value) {
+        StringBuilder builder = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String escaped = switch (c) {
+                case '\\' -> "\\\\";
+                case ':' -> "\\c";
+                case '\n' -> "\\n";
+                case '\r' -> "\\r";
+                default -> null;
+            };
+            if (escaped != null && builder == null) {
+                builder = new StringBuilder(value.length() + 8).append(value, 0, i);
+            }
+            if (builder != null) {
+                if (escaped != null) {
+                    builder.append(escaped);
+                } else {
+                    builder.append(c);
+                }
+            }
+        }
+        return builder != null ? builder.toString() : value;
+    }
+
+    /**
+     * The part of a MESSAGE frame shared by all the subscribers: the headers that are not per subscription, the
+     * content length, the body and the trailing null.
+     */
+    private static class SharedFrame {
+
+        final byte[] payload;
+
+        final Map<String, List<String>> headers = new LinkedHashMap<>();
+
+        final byte[] bytes;
+
+        SharedFrame(byte[] payload, Map<String, List<String>> nativeHeaders) {
+            this.payload = payload;
+
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 256);
+            for (Map.Entry<String, List<String>> entry : nativeHeaders.entrySet()) {
+                if (isPerSubscription(entry.getKey()) || entry.getValue() == null) {
+                    continue;
+                }
+                headers.put(entry.getKey(), entry.getValue());
+                writeHeader(frame, (escape(entry.getKey()) + ":").getBytes(StandardCharsets.UTF_8), entry.getValue());
+            }
+            frame.writeBytes((StompHeaderAccessor.STOMP_CONTENT_LENGTH_HEADER + ":" + payload.length + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            frame.write(LINE_FEED);
+            frame.writeBytes(payload);
+            frame.write(0);
+
+            this.bytes = frame.toByteArray();
+        }
+
+        /**
+         * @return true if the frame is for the same payload instance with the same shared headers.
+         */
+        boolean matches(byte[] payload, Map<String, List<String>> nativeHeaders) {
+            if (this.payload != payload) {
+                return false;
+            }
+            int count = 0;
+            for (Map.Entry<String, List<String>> entry : nativeHeaders.entrySet()) {
+                if (isPerSubscription(entry.getKey()) || entry.getValue() == null) {
+                    continue;
+                }
+                if (!Objects.equals(headers.get(entry.getKey()), entry.getValue())) {
+                    return false;
+                }
+                count++;
+            }
+            return count == headers.size();
+        }
+    }
+}
@@ -0,0 +1,544 @@
+package com.example.chat.messaging;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Peer to peer {@link ClusterBus} over TCP, for a small static cluster.
+ * <p>
+ * Every node listens on its cluster port and knows the addresses of the nodes of the cluster, the same list can be
+ * configured on all of them. There is one connection between two nodes: the node with the lower address, compared as
+ * strings, connects to the higher one, and reconnects when the connection is lost. Both nodes send and receive over
+ * the connection.
+ * <p>
+ * The nodes authenticate each other with the secret shared by the cluster, which is never sent. Both nodes greet with
+ * their address and a random challenge. The connecting node answers first with the HMAC-SHA256 of both challenges and
+ * its address, keyed by the secret; the accepting node verifies it before it answers with its own HMAC, so a process
+ * without the secret gets nothing signed from the node it connects to. The role of the node is part of the HMAC, the
+ * answer of a node can not be replayed to it as the answer of its peer. After the authentication, each node sends the
+ * rooms it has subscribers of, and then the changes. The messages of a room are only relayed to the peers subscribed
+ * to it.
+ * <p>
+ * Every peer has a bounded outbound queue, drained by a writer thread. The writer sends the consecutive messages of
+ * the queue in a single batch frame and flushes once per batch, so under load the messages are batched without adding
+ * latency when the traffic is low. When the queue of a slow peer is full its messages are dropped. A lost interest
+ * change closes the connection, the subscriptions are sent again when it reconnects.
+ * <p>
+ * The bus is authenticated but not encrypted, the nodes must be connected by a private network.
+ * <p>
+ * Metrics:
+ * <li><code>chat.cluster.peers</code>: connected peers.
+ * <li><code>chat.cluster.relayed</code>: messages relayed, tagged by direction: out or in.
+ * <li><code>chat.cluster.dropped</code>: messages dropped because the queue of a peer was full.
+ * <li><code>chat.cluster.batch.messages</code>: messages per batch frame sent.
+ */
+public class TcpClusterBus implements ClusterBus {
+
+    private static final Log logger = LogFactory.getLog(TcpClusterBus.class);
+
+    private static final byte HELLO = 1;
+
+    private static final byte SUBSCRIBE = 2;
+
+    private static final byte UNSUBSCRIBE = 3;
+
+    private static final byte MESSAGES = 4;
+
+    private static final int MAX_PAYLOAD_BYTES = 16 * 1024 * 1024;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+
+    // Time to complete the authentication of a connection
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+
+    private static final int CHALLENGE_BYTES = 32;
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    // Roles of the nodes in the HMAC of the authentication
+    private static final byte CONNECTOR = 'C';
+
+    private static final byte ACCEPTOR = 'A';
+
+    private final String address;
+
+    private final String bindAddress;
+
+    private final int port;
+
+    private final List<String> peerAddresses;
+
+    private final SecretKeySpec secret;
+
+    private final SecureRandom random = new SecureRandom();
+
+    private final int queueCapacity;
+
+    private final int maxBatch;
+
+    private final Duration reconnectDelay;
+
+    // Rooms with local subscribers
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+
+    private final Object interestLock = new Object();
+
+    // Connected peers by address
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+
+    private final Counter relayedOut;
+
+    private final Counter relayedIn;
+
+    private final Counter dropped;
+
+    private final DistributionSummary batchMessages;
+
+    private volatile Receiver receiver;
+
+    private volatile ServerSocket serverSocket;
+
+    private volatile boolean closed;
+
+
+    /**
+     * @param address        address of this node as known by the others, <code>host:port</code>.
+     * @param bindAddress    local address to listen on, null or empty for all.
+     * @param port           port to listen on.
+     * @param peerAddresses  addresses of the nodes of the cluster, this node included or not.
+     * @param secret         secret shared by the nodes of the cluster, required. A connection with another secret is
+     *                       closed.
+     * @param queueCapacity  maximum messages waiting to be sent to a peer.
+     * @param maxBatch       maximum messages in a batch frame.
+     * @param reconnectDelay time to wait before connecting again to a peer.
+     * @param meterRegistry  registry for the metrics of the bus.
+     */
+    public TcpClusterBus(String address, String bindAddress, int port, List<String> peerAddresses, String secret,
+                         int queueCapacity, int maxBatch, Duration reconnectDelay, MeterRegistry meterRegistry) {
+        this.address = address;
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.peerAddresses = peerAddresses.stream()
+                .map(String::trim)
+                .filter(peer -> !peer.isEmpty() && !peer.equals(address))
+                .toList();
+        if (secret == null || secret.isBlank()) {
+            throw new IllegalArgumentException("The cluster secret is required");
+        }
+        this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM);
+        this.queueCapacity = queueCapacity;
+        this.maxBatch = maxBatch;
+        this.reconnectDelay = reconnectDelay;
+
+        Gauge.builder("chat.cluster.peers", peers, Map::size)
+                .description("Cluster peers connected")
+                .register(meterRegistry);
+        this.relayedOut = relayed(meterRegistry, "out");
+        this.relayedIn = relayed(meterRegistry, "in");
+        this.dropped = Counter.builder("chat.cluster.dropped")
+                .description("Messages not relayed because the queue of the peer was full")
+                .register(meterRegistry);
+        this.batchMessages = DistributionSummary.builder("chat.cluster.batch.messages")
+                .description("Messages per batch frame relayed to a peer")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void start(Receiver receiver) {
+        this.receiver = receiver;
+        try {
+            InetAddress bindInetAddress = bindAddress == null || bindAddress.isEmpty()
+                    ? null
+                    : InetAddress.getByName(bindAddress);
+            serverSocket = new ServerSocket(port, 50, bindInetAddress);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can not listen on the cluster port " + port, e);
+        }
+        daemon("cluster-acceptor", this::accept).start();
+
+        for (String peerAddress : peerAddresses) {
+            if (address.compareTo(peerAddress) < 0) {
+                daemon("cluster-connector-" + peerAddress, () -> connect(peerAddress)).start();
+            }
+        }
+        logger.info("Cluster bus of " + address + " listening on port " + port + ", peers " + peerAddresses);
+    }
+
+    @Override
+    public void subscribe(String room) {
+        synchronized (interestLock) {
+            if (rooms.add(room)) {
+                peers.values().forEach(peer -> peer.control(SUBSCRIBE, room));
+            }
+        }
+    }
+
+    @Override
+    public void unsubscribe(String room) {
+        synchronized (interestLock) {
+            if (rooms.remove(room)) {
+                peers.values().forEach(peer -> peer.control(UNSUBSCRIBE, room));
+            }
+        }
+    }
+
+    @Override
+    public void publish(String room, UUID uuid, byte[] payload) {
+        for (Peer peer : peers.values()) {
+            if (peer.rooms.contains(room)) {
+                if (peer.queue.offer(new Outbound(MESSAGES, room, uuid, payload))) {
+                    relayedOut.increment();
+                } else {
+                    dropped.increment();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            logger.debug("Failed to close the cluster port", e);
+        }
+        peers.values().forEach(Peer::close);
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                daemon("cluster-peer-" + socket.getRemoteSocketAddress(), () -> session(socket, false)).start();
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.warn("Failed to accept a cluster connection", e);
+                }
+            }
+        }
+    }
+
+    private void connect(String peerAddress) {
+        int separator = peerAddress.lastIndexOf(':');
+        InetSocketAddress socketAddress = new InetSocketAddress(peerAddress.substring(0, separator),
+                Integer.parseInt(peerAddress.substring(separator + 1)));
+        while (!closed) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(socketAddress, CONNECT_TIMEOUT_MILLIS);
+                session(socket, true);
+            } catch (IOException e) {
+                closeQuietly(socket);
+                logger.debug("Failed to connect to cluster peer " + peerAddress, e);
+            }
+            sleep(reconnectDelay);
+        }
+    }
+
+    /**
+     * Authenticates the peer, sends it the subscriptions and reads from it until the connection is lost.
+     *
+     * @param connector true if this node opened the connection.
+     */
+    private void session(Socket socket, boolean connector) {
+        Peer peer = null;
+        try {
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            String peerAddress = authenticate(in, out, connector);
+            socket.setSoTimeout(0);
+
+            peer = new Peer(peerAddress, socket, out);
+            Peer previous = peers.put(peerAddress, peer);
+            if (previous != null) {
+                previous.close();
+            }
+            synchronized (interestLock) {
+                for (String room : rooms) {
+                    peer.control(SUBSCRIBE, room);
+                }
+            }
+            daemon("cluster-writer-" + peerAddress, peer::write).start();
+            logger.info("Cluster peer " + peerAddress + " connected");
+
+            read(peer, in);
+        } catch (IOException e) {
+            if (!closed) {
+                logger.info("Cluster connection " + socket.getRemoteSocketAddress() + " lost: " + e);
+            }
+        } finally {
+            if (peer != null) {
+                peers.remove(peer.address, peer);
+                peer.close();
+            } else {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    /**
+     * Exchanges the challenges with the peer and verifies its answer. The connector answers first.
+     *
+     * @return the address of the peer, once authenticated.
+     */
+    private String authenticate(DataInputStream in, DataOutputStream out, boolean connector) throws IOException {
+        byte[] challenge = new byte[CHALLENGE_BYTES];
+        random.nextBytes(challenge);
+        out.writeByte(HELLO);
+        out.writeUTF(address);
+        out.write(challenge);
+        out.flush();
+
+        if (in.readByte() != HELLO) {
+            throw new IOException("Cluster peer did not greet");
+        }
+        String peerAddress = in.readUTF();
+        byte[] peerChallenge = new byte[CHALLENGE_BYTES];
+        in.readFully(peerChallenge);
+        if (peerAddress.equals(address)) {
+            throw new IOException("Cluster peer has the address of this node");
+        }
+
+        // The challenges of the acceptor and the connector, in this order, for both answers
+        byte[] acceptorChallenge = connector ? peerChallenge : challenge;
+        byte[] connectorChallenge = connector ? challenge : peerChallenge;
+        byte[] expected = hmac(connector ? ACCEPTOR : CONNECTOR, peerAddress, acceptorChallenge, connectorChallenge);
+        byte[] answer = hmac(connector ? CONNECTOR : ACCEPTOR, address, acceptorChallenge, connectorChallenge);
+        if (connector) {
+            writeAnswer(out, answer);
+            verifyAnswer(in, expected, peerAddress);
+        } else {
+            verifyAnswer(in, expected, peerAddress);
+            writeAnswer(out, answer);
+        }
+        return peerAddress;
+    }
+
+    private static void writeAnswer(DataOutputStream out, byte[] answer) throws IOException {
+        out.writeInt(answer.length);
+        out.write(answer);
+        out.flush();
+    }
+
+    private static void verifyAnswer(DataInputStream in, byte[] expected, String peerAddress) throws IOException {
+        int length = in.readInt();
+        if (length != expected.length) {
+            throw new IOException("Invalid answer of cluster peer " + peerAddress);
+        }
+        byte[] answer = new byte[length];
+        in.readFully(answer);
+        if (!MessageDigest.isEqual(expected, answer)) {
+            throw new IOException("Cluster peer " + peerAddress + " has another secret");
+        }
+    }
+
+    private byte[] hmac(byte role, String nodeAddress, byte[] acceptorChallenge, byte[] connectorChallenge) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(secret);
+            mac.update(role);
+            mac.update(nodeAddress.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            mac.update(acceptorChallenge);
+            mac.update(connectorChallenge);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Can not compute the " + HMAC_ALGORITHM + " of the cluster", e);
+        }
+    }
+
+    private void read(Peer peer, DataInputStream in) throws IOException {
+        while (!closed) {
+            byte type = in.readByte();
+            switch (type) {
+                case SUBSCRIBE -> peer.rooms.add(in.readUTF());
+                case UNSUBSCRIBE -> peer.rooms.remove(in.readUTF());
+                case MESSAGES -> {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        String room = in.readUTF();
+                        UUID uuid = new UUID(in.readLong(), in.readLong());
+                        byte[] payload = readBytes(in);
+                        relayedIn.increment();
+                        try {
+                            receiver.receive(room, uuid, payload);
+                        } catch (RuntimeException e) {
+                            logger.warn("Failed to receive the message " + uuid + " from cluster peer " + peer.address,
+                                    e);
+                        }
+                    }
+                }
+                default -> throw new IOException("Unknown cluster frame type " + type);
+            }
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PAYLOAD_BYTES) {
+            throw new IOException("Invalid cluster payload length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static Thread daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static void sleep(Duration duration) {
+        try {
+            Thread.sleep(duration.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.debug("Failed to close a cluster connection", e);
+        }
+    }
+
+    private static Counter relayed(MeterRegistry meterRegistry, String direction) {
+        return Counter.builder("chat.cluster.relayed")
+                .description("Messages relayed between the nodes of the cluster")
+                .tag("direction", direction)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Frame to send to a peer: a change of subscription or a message.
+     */
+    private record Outbound(byte type, String room, UUID uuid, byte[] payload) {}
+
+    private class Peer {
+
+        final String address;
+
+        final Socket socket;
+
+        final DataOutputStream out;
+
+        // Rooms the peer has subscribers of
+        final Set<String> rooms = ConcurrentHashMap.newKeySet();
+
+        final BlockingQueue<Outbound> queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        volatile boolean closed;
+
+        Peer(String address, Socket socket, DataOutputStream out) {
+            this.address = address;
+            this.socket = socket;
+            this.out = out;
+        }
+
+        void control(byte type, String room) {
+            if (!queue.offer(new Outbound(type, room, null, null))) {
+                logger.warn("Cluster peer " + address + " is too slow, closing the connection");
+                close();
+            }
+        }
+
+        /**
+         * Writes the queued frames until the connection is closed.
+         */
+        void write() {
+            List<Outbound> frames = new ArrayList<>(maxBatch);
+            try {
+                while (true) {
+                    frames.add(queue.take());
+                    if (closed) {
+                        return;
+                    }
+                    queue.drainTo(frames, maxBatch - 1);
+                    writeFrames(frames);
+                    out.flush();
+                    frames.clear();
+                }
+            } catch (IOException e) {
+                logger.debug("Failed to write to cluster peer " + address, e);
+                close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void writeFrames(List<Outbound> frames) throws IOException {
+            int i = 0;
+            while (i < frames.size()) {
+                Outbound frame = frames.get(i);
+                if (frame.type() != MESSAGES) {
+                    out.writeByte(frame.type());
+                    out.writeUTF(frame.room());
+                    i++;
+                    continue;
+                }
+
+                int end = i;
+                while (end < frames.size() && frames.get(end).type() == MESSAGES) {
+                    end++;
+                }
+                int count = end - i;
+                out.writeByte(MESSAGES);
+                out.writeInt(count);
+                batchMessages.record(count);
+                for (; i < end; i++) {
+                    Outbound message = frames.get(i);
+                    out.writeUTF(message.room());
+                    out.writeLong(message.uuid().getMostSignificantBits());
+                    out.writeLong(message.uuid().getLeastSignificantBits());
+                    out.writeInt(message.payload().length);
+                    out.write(message.payload());
+                }
+            }
+        }
+
+        void close() {
+            closed = true;
+            // Wakes up the writer
+            queue.offer(new Outbound(UNSUBSCRIBE, "", null, null));
+            closeQuietly(socket);
+        }
+    }
+}
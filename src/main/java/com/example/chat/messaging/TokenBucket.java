@@ -0,0 +1,118 @@
+package com.example.chat.messaging;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Lock-free token bucket, its whole state is a single <code>long</code> updated by compare and set.
+ * <p>
+ * The state packs the time of the last refill, in milliseconds, in the upper 40 bits and the available tokens, in
+ * thousandths of a token, in the lower 24 bits. A bucket is 24 bytes, the limits are shared by all the buckets and
+ * passed on every call. A bucket is refilled at the rate of its limit, up to the burst of the limit, and every message
+ * takes one token.
+ * <p>
+ * A bucket that has been idle long enough to be full is equivalent to a new bucket, so it can be discarded.
+ */
+public final class TokenBucket {
+
+    private static final int TOKEN_BITS = 24;
+
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+
+    private static final long ONE_TOKEN = 1000;
+
+    private static final VarHandle STATE;
+
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(TokenBucket.class, "state", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @SuppressWarnings("unused") // Updated through STATE
+    private volatile long state;
+
+
+    /**
+     * @param nowMillis current time in milliseconds, of a monotonic clock.
+     * @param limit     limit of the bucket, the bucket starts full.
+     */
+    public TokenBucket(long nowMillis, Limit limit) {
+        this.state = (nowMillis << TOKEN_BITS) | limit.capacity();
+    }
+
+    /**
+     * Takes a token from the bucket if there is any.
+     *
+     * @param nowMillis current time in milliseconds, of a monotonic clock.
+     * @param limit     limit of the bucket.
+     * @return true if a token has been taken, false if the bucket is empty.
+     */
+    public boolean tryConsume(long nowMillis, Limit limit) {
+        while (true) {
+            long current = state;
+            long last = current >>> TOKEN_BITS;
+            long now = Math.max(nowMillis, last);
+            long tokens = refill(current, now, limit);
+            if (tokens < ONE_TOKEN) {
+                return false;
+            }
+            if (STATE.compareAndSet(this, current, (now << TOKEN_BITS) | (tokens - ONE_TOKEN))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param nowMillis current time in milliseconds, of a monotonic clock.
+     * @return the time since a token was last taken. A bucket idle for its refill time is full.
+     */
+    public long idleMillis(long nowMillis) {
+        return Math.max(0, nowMillis - (state >>> TOKEN_BITS));
+    }
+
+    // Tokens in thousandths after the refill since the last update. One token per second is one thousandth per ms.
+    private static long refill(long current, long now, Limit limit) {
+        long elapsed = now - (current >>> TOKEN_BITS);
+        long tokens = current & TOKEN_MASK;
+        return elapsed >= limit.capacity() ? limit.capacity()
+                : Math.min(limit.capacity(), tokens + elapsed * limit.ratePerSecond());
+    }
+
+    /**
+     * Limit of a token bucket.
+     *
+     * @param ratePerSecond tokens added per second, the sustained messages per second.
+     * @param burst         maximum tokens, the messages that can be sent at once after an idle time.
+     */
+    public record Limit(int ratePerSecond, int burst) {
+
+        public Limit {
+            if (ratePerSecond < 1 || burst < 1 || burst * ONE_TOKEN > TOKEN_MASK) {
+                throw new IllegalArgumentException("Invalid token bucket limit: rate " + ratePerSecond + ", burst "
+                        + burst);
+            }
+        }
+
+        long capacity() {
+            return burst * ONE_TOKEN;
+        }
+
+        /**
+         * @return the time to refill an empty bucket.
+         */
+        public long refillMillis() {
+            return (capacity() + ratePerSecond - 1) / ratePerSecond;
+        }
+
+        /**
+         * @param factor multiplier of the rate and the burst.
+         * @return the limit multiplied by the factor.
+         */
+        public Limit times(int factor) {
+            return new Limit(ratePerSecond * factor, burst * factor);
+        }
+    }
+}
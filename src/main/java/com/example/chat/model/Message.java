@@ -1,16 +1,19 @@
 package com.example.chat.model;
 
+import com.example.chat.util.TimeOrderedUuid;
 import jakarta.persistence.*;
 
 import java.time.Instant;
+import java.util.UUID;
 
 /**
  * Entity class that holds the chat message state.
  * <p>>
  * Under the WebSocket communications, it is used to map message from client side to server side and vice versa.
  * <p>
- * And it is a persistence entity that maps to the records of the message table in the DB [NOTE: Pending
- * implementation]
+ * And it is a persistence entity that maps to the records of the message table in the DB. Messages are not saved in
+ * the WebSocket broadcast path, they are persisted asynchronously in batches by the <code>MessageService</code>
+ * write-behind.
  * <p>
  * A message belongs to a <code>User</code> and a chat <code>Room</code>
  *
@@ -23,7 +26,9 @@ import java.time.Instant;
 // @NoArgsConstructor // generates a no-args constructor
 // @AllArgsConstructor // generates a constructor with all arguments
 @Entity
-@Table(name = "MESSAGE") // With @Table can custom the table name
+@Table(name = "MESSAGE", // With @Table can custom the table name
+       indexes = {@Index(name = "IDX_MESSAGE_ROOM_CREATED_AT_ID", columnList = "ROOM_ID, CREATED_AT, ID"),
+               @Index(name = "IDX_MESSAGE_ACCOUNT_ID", columnList = "ACCOUNT_ID")})
 public class Message {
 
 
@@ -38,10 +43,17 @@ public class Message {
      * application operations, but be aware that uniqueness is only guaranteed within the scope of this application and
      * in relation with the single DB source. If the object is exchanged with external systems use the <code>uuid</code>
      * for identification.
+     * <p>
+     * Ids are allocated from a pooled sequence, every round trip to the DB reserves a block of
+     * <code>allocationSize</code> ids, so the batched inserts of the write-behind persistence do not pay a sequence
+     * call per message.
+     *
+     * @see com.example.chat.service.MessageService
      */
     @Id
     @Column(name = "ID")
-    @GeneratedValue(strategy = GenerationType.SEQUENCE)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "MESSAGE_ID_GENERATOR")
+    @SequenceGenerator(name = "MESSAGE_ID_GENERATOR", sequenceName = "MESSAGE_SEQ", allocationSize = 50)
     private Long id;
 
     /**
@@ -52,15 +64,15 @@ public class Message {
      * <p>
      * It is read only. Assigned when message created by the constructor.
      */
-    @Column(name = "UUID")
-    private String uuid;
+    @Column(name = "UUID", nullable = false, updatable = false)
+    private UUID uuid;
 
     /**
      * <code>User</code> to which the message belongs.
      *
      * @see com.example.chat.model.User
      */
-    @ManyToOne(fetch = FetchType.EAGER)
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "ACCOUNT_ID")
     private User user;
 
@@ -69,7 +81,7 @@ public class Message {
      *
      * @see com.example.chat.model.Room
      */
-    @ManyToOne(fetch = FetchType.EAGER)
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "ROOM_ID")
     private Room room;
 
@@ -98,7 +110,7 @@ public class Message {
 //        this.id = id;
 //    }
 
-    public String getUuid() {
+    public UUID getUuid() {
         return uuid;
     }
 
@@ -143,17 +155,18 @@ public class Message {
     public Message() {}
 
     public Message(String content, User user) {
-        this.content = content;
-        this.user = user;
+        this(content, user, null);
     }
 
     public Message(String content, User user, Room room) {
+        this.uuid = TimeOrderedUuid.generate();
         this.content = content;
         this.user = user;
         this.room = room;
+        this.createdAt = Instant.now();
     }
 
-    public Message(Long id, String uuid, User user, Room room, String content, Instant createdAt) {
+    public Message(Long id, UUID uuid, User user, Room room, String content, Instant createdAt) {
         this.id = id;
         this.uuid = uuid;
         this.user = user;
@@ -1,10 +1,15 @@
 package com.example.chat.model;
 
+import com.example.chat.util.TimeOrderedUuid;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import jakarta.persistence.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
 
 /**
  * Entity class that holds the chat room state.
@@ -15,10 +20,13 @@ import java.util.List;
  * <li>Temporary chat rooms, created by guest users.
  * System predefined and user registered chat rooms are persisted on DB until the owner decides to eliminate them. And
  * Temporary chat rooms are ephemeral ones that are destroyed when the guest user closes the application or connection
- * or when a chat idle policy reached.
+ * or when a chat idle policy reached. Temporary chat rooms are destroyed by the
+ * <code>com.example.chat.service.IdleReaper</code>.
  * <p>
  * The system predefined chat rooms are owned by the "System" special role user. The registered user chat rooms are
  * owned by the user that created it. And the temporary chat room are owned by the user "guest" special role.
+ * <p>
+ * Rooms are kept in the Hibernate second level cache, region "chat.rooms" sized in <code>ehcache.xml</code>.
  *
  * @see com.example.chat.model.User
  */
@@ -29,7 +37,10 @@ import java.util.List;
 // @NoArgsConstructor // generates a no-args constructor
 // @AllArgsConstructor // generates a constructor with all arguments
 @Entity
-@Table(name = "ROOM") // With @Table can custom the table name
+@Table(name = "ROOM", // With @Table can custom the table name
+       indexes = @Index(name = "IDX_ROOM_ACCOUNT_ID", columnList = "ACCOUNT_ID"))
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "chat.rooms")
 public class Room {
 
     // Fields
@@ -57,8 +68,8 @@ public class Room {
      * <p>
      * It is read only. Assigned when the chat room is going to be created in the DB.
      */
-    @Column(name = "UUID")
-    private String uuid;
+    @Column(name = "UUID", nullable = false, updatable = false)
+    private UUID uuid;
 
     /**
      * Holds the name of the chat room. It is the reference used for the WebSocket subscription endpoint.
@@ -80,7 +91,7 @@ public class Room {
      *
      * @see com.example.chat.model.User
      */
-    @ManyToOne(fetch = FetchType.EAGER)
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "ACCOUNT_ID")
     private User owner;
 
@@ -90,6 +101,7 @@ public class Room {
      * @see com.example.chat.model.Room
      */
 
+    @JsonIgnore
     @OneToMany(mappedBy = "room", cascade = CascadeType.ALL)
     private List<Message> messages = new ArrayList<Message>();
 
@@ -121,7 +133,7 @@ public class Room {
 //        this.id = id;
 //    }
 
-    public String getUuid() {
+    public UUID getUuid() {
         return uuid;
     }
 
@@ -185,7 +197,7 @@ public class Room {
         this.owner = owner;
     }
 
-    public Room(Long id, String uuid, String title, String description, User owner, Instant createdAt, Instant updatedAt) {
+    public Room(Long id, UUID uuid, String title, String description, User owner, Instant createdAt, Instant updatedAt) {
         this.id = id;
         this.uuid = uuid;
         this.title = title;
@@ -194,4 +206,17 @@ public class Room {
         this.createdAt = createdAt;
         this.updatedAt = updatedAt;
     }
+
+
+    // Callbacks
+
+    /**
+     * Assigns a time ordered uuid to the chat room when it is going to be created in the DB, if it has none.
+     */
+    @PrePersist
+    void assignUuid() {
+        if (uuid == null) {
+            uuid = TimeOrderedUuid.generate();
+        }
+    }
 }
@@ -1,10 +1,16 @@
 package com.example.chat.model;
 
+import com.example.chat.util.TimeOrderedUuid;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import jakarta.persistence.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
 
 /**
  * Entity class that holds the User state.
@@ -23,7 +29,9 @@ import java.util.List;
  * user closes the application or connection or when a chat inactivity policy is reached. Guest users do not have any
  * reserved nicknames and cannot create persistent chat rooms, but temporary ones that are available tied to the guest's
  * existence, that is, until the guest user closes the application or connection or when a chat inactivity policy is
- * reached.
+ * reached. Guest users are destroyed by the <code>com.example.chat.service.IdleReaper</code>.
+ * <p>
+ * Users are kept in the Hibernate second level cache, region "chat.users" sized in <code>ehcache.xml</code>.
  *
  * @see Role
  * @see com.example.chat.model.Room
@@ -35,7 +43,9 @@ import java.util.List;
 // @NoArgsConstructor // generates a no-args constructor
 // @AllArgsConstructor // generates a constructor with all arguments
 @Entity
-@Table(name = "ACCOUNT")
+@Table(name = "ACCOUNT", indexes = @Index(name = "IDX_ACCOUNT_ROLE", columnList = "ROLE"))
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "chat.users")
 public class User {
 
 // Constants & Enums
@@ -88,8 +98,8 @@ public class User {
      * <p>
      * It is read only. Assigned when the user is going to be created in the DB.
      */
-    @Column(name = "UUID")
-    private String uuid;
+    @Column(name = "UUID", nullable = false, updatable = false)
+    private UUID uuid;
 
     /**
      * Specifies the role of the user. There are four roles: SYSTEM, ADMIN, USER and GUEST
@@ -120,11 +130,20 @@ public class User {
 
     /**
      * The email of the user, is used in the sign-in process.
-     * TODO: authentication & authorization are pending to implement
      */
     @Column(name = "EMAIL")
     private String email;
 
+    /**
+     * The password hash of the user, used with the nickname or the email in the sign-in process. It is encoded by the
+     * <code>PasswordEncoder</code> with the id of its algorithm, like "{bcrypt}...". Guest users have no password.
+     * <p>
+     * It is write only, it can be provided in the JSON of the user but is never written.
+     */
+    @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
+    @Column(name = "PASSWORD")
+    private String password;
+
     /**
      * Allows to establish whether a user is operational or not. Allows to activate or deactivate the account without
      * deleting it, for example to ban sign-in a conflicting user or forbid an administrator from accessing the Admin
@@ -152,12 +171,14 @@ public class User {
     /**
      *  relation of rooms that owns this user
      */
+    @JsonIgnore
     @OneToMany(mappedBy = "owner", cascade = CascadeType.ALL)
     private List<Room> rooms = new ArrayList<Room>();
 
     /**
      *  relation of messages of this user
      */
+    @JsonIgnore
     @OneToMany(mappedBy = "user", cascade = CascadeType.ALL)
     private List<Message> messages = new ArrayList<Message>();
 
@@ -172,7 +193,7 @@ public class User {
 //        this.id = id;
 //    }
 
-    public String getUuid() {
+    public UUID getUuid() {
         return uuid;
     }
 
@@ -221,6 +242,14 @@ public class User {
         this.email = email;
     }
 
+    public String getPassword() {
+        return password;
+    }
+
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
     public boolean isActive() {
         return active;
     }
@@ -284,7 +313,7 @@ public class User {
         this.email = email;
     }
 
-    public User(Long id, String uuid, Role role, String name, String surname, String nickname, String email, boolean active, Instant createdAt, Instant updatedAt) {
+    public User(Long id, UUID uuid, Role role, String name, String surname, String nickname, String email, boolean active, Instant createdAt, Instant updatedAt) {
         this.id = id;
         this.uuid = uuid;
         this.role = role;
@@ -297,4 +326,16 @@ public class User {
         this.updatedAt = updatedAt;
     }
 
+
+    // Callbacks
+
+    /**
+     * Assigns a time ordered uuid to the user when it is going to be created in the DB, if it has none.
+     */
+    @PrePersist
+    void assignUuid() {
+        if (uuid == null) {
+            uuid = TimeOrderedUuid.generate();
+        }
+    }
 }
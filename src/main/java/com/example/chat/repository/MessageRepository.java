@@ -1,8 +1,61 @@
 package com.example.chat.repository;
 
+import com.example.chat.dto.MessageDto;
+import com.example.chat.dto.MessageText;
 import com.example.chat.model.Message;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Stream;
+
 public interface MessageRepository extends CrudRepository<Message, Long> {
 
+    // Keyset pagination of the room history on the index (ROOM_ID, CREATED_AT, ID). The pageable only carries the
+    // limit, always use the first page: the position is given by the seek predicate, never by an OFFSET. The seek
+    // predicate is expanded rather than a row value comparison, which not every database or dialect supports.
+
+    @Query("select new com.example.chat.dto.MessageDto(m.id, m.uuid, r.title, u.nickname, m.content, m.createdAt) " +
+           "from Message m join m.room r join m.user u " +
+           "where r.id = :roomId " +
+           "order by m.createdAt desc, m.id desc")
+    List<MessageDto> findLatestByRoom(Long roomId, Pageable pageable);
+
+    @Query("select new com.example.chat.dto.MessageDto(m.id, m.uuid, r.title, u.nickname, m.content, m.createdAt) " +
+           "from Message m join m.room r join m.user u " +
+           "where r.id = :roomId " +
+           "and (m.createdAt < :createdAt or (m.createdAt = :createdAt and m.id < :id)) " +
+           "order by m.createdAt desc, m.id desc")
+    List<MessageDto> findByRoomBefore(Long roomId, Instant createdAt, Long id, Pageable pageable);
+
+    // Messages found by the search index, in any order
+    @Query("select new com.example.chat.dto.MessageDto(m.id, m.uuid, r.title, u.nickname, m.content, m.createdAt) " +
+           "from Message m join m.room r join m.user u " +
+           "where m.id in :ids")
+    List<MessageDto> findByIds(List<Long> ids);
+
+    // Texts of a room in the order of the index (ROOM_ID, CREATED_AT, ID), read from a DB cursor to rebuild the search
+    // index. Must be consumed and closed inside a transaction.
+    @Query("select new com.example.chat.dto.MessageText(m.id, m.content, m.createdAt) " +
+           "from Message m " +
+           "where m.room.id = :roomId " +
+           "order by m.createdAt, m.id")
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "1000"))
+    Stream<MessageText> streamTextsByRoom(Long roomId);
+
+    // Bulk deletes of the messages of the expired guests and temporary rooms, on the indexes of ROOM_ID and ACCOUNT_ID
+    @Modifying
+    @Query("delete from Message m where m.room.id in :roomIds")
+    int deleteByRoomIds(List<Long> roomIds);
+
+    @Modifying
+    @Query("delete from Message m where m.user.id in :userIds")
+    int deleteByUserIds(List<Long> userIds);
+
 }
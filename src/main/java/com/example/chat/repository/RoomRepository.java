@@ -1,14 +1,64 @@
 package com.example.chat.repository;
 
+import com.example.chat.dto.RoomDto;
 import com.example.chat.model.Room;
+import com.example.chat.model.User;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.PagingAndSortingRepository;
 
+import java.util.List;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Stream;
 
-public interface RoomRepository extends CrudRepository<Room, Long> {
+public interface RoomRepository extends CrudRepository<Room, Long>, PagingAndSortingRepository<Room, Long> {
 
-    Optional<Room> findByUuid(String uuid);
+    // Lookups by uuid and title are kept in the query cache, region "chat.lookups"
+    @QueryHints({@QueryHint(name = HibernateHints.HINT_CACHEABLE, value = "true"),
+            @QueryHint(name = HibernateHints.HINT_CACHE_REGION, value = "chat.lookups")})
+    Optional<Room> findByUuid(UUID uuid);
 
+    @QueryHints({@QueryHint(name = HibernateHints.HINT_CACHEABLE, value = "true"),
+            @QueryHint(name = HibernateHints.HINT_CACHE_REGION, value = "chat.lookups")})
     Optional<Room> findByTitle(String title);
 
+    @Query(value = "select new com.example.chat.dto.RoomDto(r.id, r.uuid, r.title, r.description, o.nickname, r.createdAt, r.updatedAt) " +
+            "from Room r left join r.owner o",
+            countQuery = "select count(r) from Room r")
+    Page<RoomDto> findPage(Pageable pageable);
+
+    // All the rooms with their owner in a single query
+    @Query("select r from Room r")
+    @EntityGraph(attributePaths = "owner")
+    List<Room> findAllWithOwner();
+
+    // All the rooms read from a DB cursor, must be consumed and closed inside a transaction
+    @Query("select new com.example.chat.dto.RoomDto(r.id, r.uuid, r.title, r.description, o.nickname, r.createdAt, r.updatedAt) " +
+            "from Room r left join r.owner o order by r.id")
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "500"))
+    Stream<RoomDto> streamAll();
+
+    // Ids of all the rooms, to rebuild the search index
+    @Query("select r.id from Room r")
+    List<Long> findAllIds();
+
+    // Temporary rooms, owned by guests, tracked and deleted by the idle reaper
+    @Query("select r from Room r join fetch r.owner o where o.role = :role")
+    List<Room> findByOwnerRole(User.Role role);
+
+    @Query("select r from Room r where r.owner.id in :ownerIds")
+    List<Room> findByOwnerIdIn(List<Long> ownerIds);
+
+    @Modifying
+    @Query("delete from Room r where r.id in :ids")
+    int deleteByIds(List<Long> ids);
+
 }
@@ -1,14 +1,62 @@
 package com.example.chat.repository;
 
+import com.example.chat.dto.UserDto;
 import com.example.chat.model.Room;
 import com.example.chat.model.User;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.PagingAndSortingRepository;
 
+import java.util.List;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Stream;
 
-public interface UserRepository extends CrudRepository<User, Long> {
+public interface UserRepository extends CrudRepository<User, Long>, PagingAndSortingRepository<User, Long> {
 
-    Optional<User> findByUuid(String uuid);
+    // Lookups by uuid and nickname are kept in the query cache, region "chat.lookups"
+    @QueryHints({@QueryHint(name = HibernateHints.HINT_CACHEABLE, value = "true"),
+            @QueryHint(name = HibernateHints.HINT_CACHE_REGION, value = "chat.lookups")})
+    Optional<User> findByUuid(UUID uuid);
 
+    @QueryHints({@QueryHint(name = HibernateHints.HINT_CACHEABLE, value = "true"),
+            @QueryHint(name = HibernateHints.HINT_CACHE_REGION, value = "chat.lookups")})
+    Optional<User> findByNickname(String nickname);
+
+    Optional<User> findByEmail(String email);
+
+    // Not cached, for the checks that must see the DB
+    boolean existsByNickname(String nickname);
+
+    // The users sign in with the email, when the username has an "@", or with the nickname
+    default Optional<User> findByUsername(String username) {
+        return username.indexOf('@') >= 0
+                ? findByEmail(username)
+                : findByNickname(username);
+    }
+
+    @Query(value = "select new com.example.chat.dto.UserDto(u.id, u.uuid, u.role, u.name, u.surname, u.nickname, " +
+            "u.email, u.active, u.createdAt, u.updatedAt) from User u",
+            countQuery = "select count(u) from User u")
+    Page<UserDto> findPage(Pageable pageable);
+
+    // All the users read from a DB cursor, must be consumed and closed inside a transaction
+    @Query("select new com.example.chat.dto.UserDto(u.id, u.uuid, u.role, u.name, u.surname, u.nickname, u.email, " +
+            "u.active, u.createdAt, u.updatedAt) from User u order by u.id")
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "500"))
+    Stream<UserDto> streamAll();
+
+    // Guests tracked and deleted by the idle reaper, never the users of other roles
+    List<User> findByRole(User.Role role);
+
+    @Modifying
+    @Query("delete from User u where u.id in :ids and u.role = :role")
+    int deleteByIdsAndRole(List<Long> ids, User.Role role);
 
 }
@@ -1,15 +1,159 @@
 package com.example.chat.restController;
 
+import com.example.chat.dto.MessageDto;
+import com.example.chat.dto.MessagePage;
+import com.example.chat.model.Room;
+import com.example.chat.service.MessageHistoryService;
+import com.example.chat.service.MessageSearchService;
 import com.example.chat.service.MessageService;
+import com.example.chat.service.RoomService;
+import com.example.chat.util.Common;
+import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
 
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Handles incoming requests to the Chat Message REST API. Messages are always read in the context of the chat room
+ * where they belong, so the endpoints are nested in the room path.
+ */
 @RestController
-@RequestMapping("api/v1/messages") //TODO get version for path mapping from configuration)
+@RequestMapping("api/v1") //TODO get version for path mapping from configuration)
 public class MessageRestController {
 
     @Autowired
     MessageService messageService;
 
+    @Autowired
+    MessageHistoryService messageHistoryService;
+
+    @Autowired
+    MessageSearchService messageSearchService;
+
+    @Autowired
+    RoomService roomService;
+
+    @Value("${chat.message.page.max-limit:100}")
+    int maxLimit;
+
+
+    // GET /rooms/{id}/messages?before={cursor}&limit={limit}
+    @GetMapping("/rooms/{id}/messages")
+    public ResponseEntity<MessagePage> index(HttpServletRequest request,
+                                             @PathVariable String id,
+                                             @RequestParam(required = false) String before,
+                                             @RequestParam(defaultValue = "50") int limit) {
+
+        // Accepts id and uuid as room identification:
+        //   Checks for Long id identification. If it is not a Long then assumes
+        //   that looking for by String uuid identification
+        Long idValue = Common.tryParseLong(id);
+        Optional<Room> room = (idValue != null)
+                ? roomService.findById(idValue)
+                : roomService.findByUuid(id);
+
+        HttpHeaders headers = Common.infoHeaders("GET", "api/v1/rooms/" + id + "/messages");
+
+        ResponseEntity<MessagePage> response;
+        if (room.isEmpty()) {
+            headers.add("status", "fail");
+            response = ResponseEntity.status(HttpStatus.NOT_FOUND).headers(headers).body(null);
+        } else if (limit < 1) {
+            headers.add("status", "fail");
+            response = ResponseEntity.status(HttpStatus.BAD_REQUEST).headers(headers).body(null);
+        } else {
+            try {
+                MessagePage page = messageService.findPage(room.get().getId(), before, Math.min(limit, maxLimit));
+                headers.add("status", "success");
+                response = ResponseEntity.accepted().headers(headers).body(page);
+            } catch (IllegalArgumentException e) {
+                // Invalid cursor
+                headers.add("status", "fail");
+                response = ResponseEntity.status(HttpStatus.BAD_REQUEST).headers(headers).body(null);
+            }
+        }
+
+        return response;
+    }
+
+    // GET /rooms/{id}/messages/search?q={query}&before={cursor}&limit={limit}
+    //   Messages with all the words of the query, a word ending with "*" is a prefix, from the newest to the oldest
+    @GetMapping("/rooms/{id}/messages/search")
+    public ResponseEntity<MessagePage> search(HttpServletRequest request,
+                                              @PathVariable String id,
+                                              @RequestParam String q,
+                                              @RequestParam(required = false) String before,
+                                              @RequestParam(defaultValue = "50") int limit) {
+
+        // Accepts id and uuid as room identification:
+        //   Checks for Long id identification. If it is not a Long then assumes
+        //   that looking for by String uuid identification
+        Long idValue = Common.tryParseLong(id);
+        Optional<Room> room = (idValue != null)
+                ? roomService.findById(idValue)
+                : roomService.findByUuid(id);
+
+        HttpHeaders headers = Common.infoHeaders("GET", "api/v1/rooms/" + id + "/messages/search");
+
+        ResponseEntity<MessagePage> response;
+        if (room.isEmpty()) {
+            headers.add("status", "fail");
+            response = ResponseEntity.status(HttpStatus.NOT_FOUND).headers(headers).body(null);
+        } else if (limit < 1) {
+            headers.add("status", "fail");
+            response = ResponseEntity.status(HttpStatus.BAD_REQUEST).headers(headers).body(null);
+        } else {
+            try {
+                MessagePage page = messageSearchService.search(room.get().getId(), q, before,
+                        Math.min(limit, maxLimit));
+                headers.add("status", "success");
+                response = ResponseEntity.accepted().headers(headers).body(page);
+            } catch (IllegalArgumentException e) {
+                // Invalid query or cursor
+                headers.add("status", "fail");
+                response = ResponseEntity.status(HttpStatus.BAD_REQUEST).headers(headers).body(null);
+            } catch (IllegalStateException e) {
+                // The index of the room is being rebuilt
+                headers.add("status", "fail");
+                response = ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).headers(headers).body(null);
+            }
+        }
+
+        return response;
+    }
+
+    // GET /rooms/{id}/messages/recent
+    @GetMapping("/rooms/{id}/messages/recent")
+    public ResponseEntity<List<MessageDto>> recent(HttpServletRequest request, @PathVariable String id) {
+
+        // Accepts id and uuid as room identification:
+        //   Checks for Long id identification. If it is not a Long then assumes
+        //   that looking for by String uuid identification
+        Long idValue = Common.tryParseLong(id);
+        Optional<Room> room = (idValue != null)
+                ? roomService.findById(idValue)
+                : roomService.findByUuid(id);
+
+        HttpHeaders headers = Common.infoHeaders("GET", "api/v1/rooms/" + id + "/messages/recent");
+
+        ResponseEntity<List<MessageDto>> response;
+        if (room.isEmpty()) {
+            headers.add("status", "fail");
+            response = ResponseEntity.status(HttpStatus.NOT_FOUND).headers(headers).body(null);
+        } else {
+            // Served from the in memory recent history of the room, by its title, the messages are not queried
+            List<MessageDto> messages = messageHistoryService.findRecent(room.get().getTitle());
+            headers.add("status", "success");
+            response = ResponseEntity.accepted().headers(headers).body(messages);
+        }
+
+        return response;
+    }
+
 }
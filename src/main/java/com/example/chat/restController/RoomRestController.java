@@ -1,18 +1,24 @@
 package com.example.chat.restController;
 
 
+import com.example.chat.dto.RoomDto;
 import com.example.chat.model.Room;
+import com.example.chat.service.PresenceService;
 import com.example.chat.service.RoomService;
 import com.example.chat.util.Common;
+import com.example.chat.util.NdjsonWriter;
 
 import jakarta.servlet.http.HttpServletRequest;
 
-import org.apache.coyote.Response;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.web.PageableDefault;
 import org.springframework.http.*;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
 
@@ -41,23 +47,32 @@ public class RoomRestController {
     @Autowired
     RoomService roomService;
 
+    @Autowired
+    PresenceService presenceService;
+
+    @Value("${chat.presence.members.max-limit:1000}")
+    int maxMembersLimit;
 
-    // CRUD: GET /rooms
+
+    // CRUD: GET /rooms?page=0&size=50&sort=id,asc
+    //   With the users online in every room, from memory
     @GetMapping({"", "/"})
-    public ResponseEntity<Iterable<Room>> index(HttpServletRequest request) {
+    public ResponseEntity<List<RoomDto>> index(HttpServletRequest request,
+                                         @PageableDefault(size = 50, sort = "id") Pageable pageable) {
 
-        Iterable<Room> rooms = roomService.findAll();
+        Page<RoomDto> rooms = roomService.findAll(pageable);
 
-        // TODO automate this and add more info headers
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("verb", "GET");
-        headers.add("endpoint", "api/v1/rooms");
-        headers.add("timestamp", Instant.now().toString());
+        HttpHeaders headers = Common.infoHeaders("GET", "api/v1/rooms");
 
-        ResponseEntity<Iterable<Room>> response;
+        ResponseEntity<List<RoomDto>> response;
         if (rooms != null) {
             headers.add("status", "success");
-            response = ResponseEntity.accepted().headers(headers).body(rooms);
+            headers.add("page", String.valueOf(rooms.getNumber()));
+            headers.add("size", String.valueOf(rooms.getSize()));
+            headers.add("total-elements", String.valueOf(rooms.getTotalElements()));
+            headers.add("total-pages", String.valueOf(rooms.getTotalPages()));
+            response = ResponseEntity.accepted().headers(headers)
+                    .body(rooms.map(room -> room.withOnline(presenceService.countOnline(room.title()))).getContent());
         } else {
             headers.add("status", "fail");
             response = ResponseEntity.status(HttpStatus.NOT_FOUND).headers(headers).body(null);
@@ -67,9 +82,25 @@ public class RoomRestController {
 
     }
 
+    // GET /rooms/export
+    //   All the rooms as NDJSON, one room per line, streamed from a DB cursor
+    @GetMapping("/export")
+    public ResponseEntity<StreamingResponseBody> export(HttpServletRequest request) {
+
+        StreamingResponseBody body = roomService::export;
+
+        HttpHeaders headers = Common.infoHeaders("GET", "api/v1/rooms/export");
+        headers.add("status", "success");
+
+        return ResponseEntity.accepted()
+                .headers(headers)
+                .contentType(MediaType.parseMediaType(NdjsonWriter.MEDIA_TYPE))
+                .body(body);
+    }
+
     //CRUD: GET /rooms/{id}
     @GetMapping("/{id}")
-    public ResponseEntity<Room> show(HttpServletRequest request, @PathVariable String id) {
+    public ResponseEntity<RoomDto> show(HttpServletRequest request, @PathVariable String id) {
 
         // Accepts id and uuid as room identification:
         //   Checks for Long id identification. If it is not a Long then assumes
@@ -79,16 +110,14 @@ public class RoomRestController {
                             ? roomService.findById(idValue)
                             : roomService.findByUuid(id);
 
-        // TODO automate this and add more info headers
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("verb", "GET");
-        headers.add("endpoint", "api/v1/rooms/show/" + id);
-        headers.add("timestamp", Instant.now().toString());
+        HttpHeaders headers = Common.infoHeaders("GET", "api/v1/rooms/show/" + id);
 
-        ResponseEntity<Room> response;
+        ResponseEntity<RoomDto> response;
         if (room.isPresent()) {
             headers.add("status", "success");
-            response = ResponseEntity.accepted().headers(headers).body(room.get());
+            RoomDto roomDto = RoomDto.of(room.get());
+            response = ResponseEntity.accepted().headers(headers)
+                    .body(roomDto.withOnline(presenceService.countOnline(roomDto.title())));
         } else {
             headers.add("status", "fail");
             response =ResponseEntity.status(HttpStatus.NOT_FOUND).headers(headers).body(null);
@@ -97,24 +126,55 @@ public class RoomRestController {
         return response;
     }
 
+    // GET /rooms/{id}/members?limit={limit}
+    //   Nicknames of the users online in the room, from memory
+    @GetMapping("/{id}/members")
+    public ResponseEntity<List<String>> members(HttpServletRequest request, @PathVariable String id,
+                                                @RequestParam(defaultValue = "100") int limit) {
+
+        // Accepts id and uuid as room identification:
+        //   Checks for Long id identification. If it is not a Long then assumes
+        //   that looking for by String uuid identification
+        Long idValue = Common.tryParseLong(id);
+        Optional<Room> room = (idValue != null)
+                            ? roomService.findById(idValue)
+                            : roomService.findByUuid(id);
+
+        HttpHeaders headers = Common.infoHeaders("GET", "api/v1/rooms/" + id + "/members");
+
+        ResponseEntity<List<String>> response;
+        if (room.isEmpty()) {
+            headers.add("status", "fail");
+            response = ResponseEntity.status(HttpStatus.NOT_FOUND).headers(headers).body(null);
+        } else if (limit < 1) {
+            headers.add("status", "fail");
+            response = ResponseEntity.status(HttpStatus.BAD_REQUEST).headers(headers).body(null);
+        } else {
+            // The presence is tracked by the title of the room, the destination of its topic
+            String title = room.get().getTitle();
+            headers.add("status", "success");
+            headers.add("total-elements", String.valueOf(presenceService.countOnline(title)));
+            response = ResponseEntity.accepted().headers(headers)
+                    .body(presenceService.findMembers(title, Math.min(limit, maxMembersLimit)));
+        }
+
+        return response;
+    }
+
     //CRUD: POST /rooms
     @PostMapping(value = {"", "/"}, consumes = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<Room> create(HttpServletRequest request,  @RequestBody Room room) {
+    public ResponseEntity<RoomDto> create(HttpServletRequest request,  @RequestBody Room room) {
 
         Room roomCreated = roomService.create(room);
 
-        // TODO automate this and add more info headers
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("verb", "POST");
-        headers.add("endpoint", "api/v1/rooms");
-        headers.add("timestamp", Instant.now().toString());
+        HttpHeaders headers = Common.infoHeaders("POST", "api/v1/rooms");
 
-        ResponseEntity<Room> response;
+        ResponseEntity<RoomDto> response;
         if (roomCreated != null) {
             // TODO: response with create(URI location) code 201, investigate accepted(), investigate how Spring Boot
             //       can autogenerate this URI Resource
             headers.add("status", "success");
-            response = ResponseEntity.accepted().headers(headers).body(roomCreated);
+            response = ResponseEntity.accepted().headers(headers).body(RoomDto.of(roomCreated));
         } else {
             // Todo: manage failure codes 404 for “Not Found”, or a 409 conflict error if the item already exists.
             headers.add("status", "fail");
@@ -126,7 +186,7 @@ public class RoomRestController {
 
     //CRUD: PATCH /rooms/{id}
     @PatchMapping("/{id}")
-    public ResponseEntity<Room> update(HttpServletRequest request, @PathVariable String id, @RequestBody Room room) {
+    public ResponseEntity<RoomDto> update(HttpServletRequest request, @PathVariable String id, @RequestBody Room room) {
 
         // Accepts id and uuid as room identification:
         //   Checks for Long id identification. If it is not a Long then assumes
@@ -136,19 +196,15 @@ public class RoomRestController {
                          ? roomService.update(idValue, room)
                          : roomService.update(id, room);
 
-        // TODO automate this and add more info headers
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("verb", "PATCH");
-        headers.add("endpoint", "api/v1/rooms/" + id);
-        headers.add("timestamp", Instant.now().toString());
+        HttpHeaders headers = Common.infoHeaders("PATCH", "api/v1/rooms/" + id);
 
-        ResponseEntity<Room> response;
+        ResponseEntity<RoomDto> response;
         if (roomUpdated != null) {
             headers.add("status", "success");
-            response = ResponseEntity.accepted().headers(headers).body(roomUpdated);
+            response = ResponseEntity.accepted().headers(headers).body(RoomDto.of(roomUpdated));
         } else {
             headers.add("status", "fail");
-            response =ResponseEntity.status(HttpStatus.NOT_FOUND).headers(headers).body(roomUpdated);
+            response =ResponseEntity.status(HttpStatus.NOT_FOUND).headers(headers).body(RoomDto.of(roomUpdated));
         }
 
         return response;
@@ -156,7 +212,7 @@ public class RoomRestController {
 
     //CRUD: DELETE /rooms/{id}
     @DeleteMapping("/{id}")
-    public ResponseEntity<Room> destroy(HttpServletRequest request, @PathVariable String id) {
+    public ResponseEntity<RoomDto> destroy(HttpServletRequest request, @PathVariable String id) {
 
         // Accepts id and uuid as room identification:
         //   Checks for Long id identification. If it is not a Long then assumes
@@ -166,19 +222,15 @@ public class RoomRestController {
                 ? roomService.delete(idValue)
                 : roomService.delete(id);
 
-        // TODO automate this and add more info headers
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("verb", "DELETE");
-        headers.add("endpoint", "api/v1/rooms/" + id);
-        headers.add("timestamp", Instant.now().toString());
+        HttpHeaders headers = Common.infoHeaders("DELETE", "api/v1/rooms/" + id);
 
-        ResponseEntity<Room> response;
+        ResponseEntity<RoomDto> response;
         if (room != null) {
             headers.add("status", "success");
-            response = ResponseEntity.accepted().headers(headers).body(room);
+            response = ResponseEntity.accepted().headers(headers).body(RoomDto.of(room));
         } else {
             headers.add("status", "fail");
-            response =ResponseEntity.status(HttpStatus.NOT_FOUND).headers(headers).body(room);
+            response =ResponseEntity.status(HttpStatus.NOT_FOUND).headers(headers).body(RoomDto.of(room));
         }
 
         return response;
@@ -1,11 +1,15 @@
 package com.example.chat.restController;
 
+import com.example.chat.security.CachingJwtDecoder;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.oauth2.jwt.JwtClaimsSet;
 import org.springframework.security.oauth2.jwt.JwtEncoder;
 import org.springframework.security.oauth2.jwt.JwtEncoderParameters;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -26,6 +30,9 @@ public class SecurityRestController {
     @Autowired
     JwtEncoder encoder;
 
+    @Autowired
+    CachingJwtDecoder decoder;
+
     //@PostMapping({"login", "signin"})
     @PostMapping("login")
     public String login(Authentication authentication) {
@@ -49,5 +56,17 @@ public class SecurityRestController {
 
     }
 
+    // Revokes the bearer token of the request, it is rejected from now on until it expires. When too many tokens are
+    // revoked the logout is refused, the token is still valid
+    @PostMapping("logout")
+    public ResponseEntity<Void> logout(Authentication authentication) {
+        if (authentication instanceof JwtAuthenticationToken jwtAuthentication
+                && !this.decoder.revoke(jwtAuthentication.getToken().getTokenValue())) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+
+        return ResponseEntity.accepted().build();
+    }
+
 
 }
@@ -1,17 +1,23 @@
 package com.example.chat.restController;
 
+import com.example.chat.dto.UserDto;
 import com.example.chat.model.User;
 import com.example.chat.service.UserService;
 import com.example.chat.util.Common;
+import com.example.chat.util.NdjsonWriter;
 import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.web.PageableDefault;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import java.time.Instant;
+import java.util.List;
 import java.util.Optional;
 
 /**
@@ -39,22 +45,23 @@ public class UserRestController {
     @Autowired
     UserService userService;
 
-    // CRUD: GET /users
+    // CRUD: GET /users?page=0&size=50&sort=id,asc
     @GetMapping({"", "/"})
-    public ResponseEntity<Iterable<User>> index(HttpServletRequest request) {
+    public ResponseEntity<List<UserDto>> index(HttpServletRequest request,
+                                         @PageableDefault(size = 50, sort = "id") Pageable pageable) {
 
-        Iterable<User> users = userService.findAll();
+        Page<UserDto> users = userService.findAll(pageable);
 
-        // TODO automate this and add more info headers
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("verb", "GET");
-        headers.add("endpoint", "api/v1/users");
-        headers.add("timestamp", Instant.now().toString());
+        HttpHeaders headers = Common.infoHeaders("GET", "api/v1/users");
 
-        ResponseEntity<Iterable<User>> response;
+        ResponseEntity<List<UserDto>> response;
         if (users != null) {
             headers.add("status", "success");
-            response = ResponseEntity.accepted().headers(headers).body(users);
+            headers.add("page", String.valueOf(users.getNumber()));
+            headers.add("size", String.valueOf(users.getSize()));
+            headers.add("total-elements", String.valueOf(users.getTotalElements()));
+            headers.add("total-pages", String.valueOf(users.getTotalPages()));
+            response = ResponseEntity.accepted().headers(headers).body(users.getContent());
         } else {
             headers.add("status", "fail");
             response = ResponseEntity.status(HttpStatus.NOT_FOUND).headers(headers).body(null);
@@ -64,9 +71,25 @@ public class UserRestController {
 
     }
 
+    // GET /users/export
+    //   All the users as NDJSON, one user per line, streamed from a DB cursor
+    @GetMapping("/export")
+    public ResponseEntity<StreamingResponseBody> export(HttpServletRequest request) {
+
+        StreamingResponseBody body = userService::export;
+
+        HttpHeaders headers = Common.infoHeaders("GET", "api/v1/users/export");
+        headers.add("status", "success");
+
+        return ResponseEntity.accepted()
+                .headers(headers)
+                .contentType(MediaType.parseMediaType(NdjsonWriter.MEDIA_TYPE))
+                .body(body);
+    }
+
     //CRUD: GET /users/{id}
     @GetMapping("/{id}")
-    public ResponseEntity<User> show(HttpServletRequest request, @PathVariable String id) {
+    public ResponseEntity<UserDto> show(HttpServletRequest request, @PathVariable String id) {
 
         // Accepts id and uuid as user identification:
         //   Checks for Long id identification. If it is not a Long then assumes
@@ -76,16 +99,12 @@ public class UserRestController {
                 ? userService.findById(idValue)
                 : userService.findByUuid(id);
 
-        // TODO automate this and add more info headers
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("verb", "GET");
-        headers.add("endpoint", "api/v1/users/show/" + id);
-        headers.add("timestamp", Instant.now().toString());
+        HttpHeaders headers = Common.infoHeaders("GET", "api/v1/users/show/" + id);
 
-        ResponseEntity<User> response;
+        ResponseEntity<UserDto> response;
         if (user.isPresent()) {
             headers.add("status", "success");
-            response = ResponseEntity.accepted().headers(headers).body(user.get());
+            response = ResponseEntity.accepted().headers(headers).body(UserDto.of(user.get()));
         } else {
             headers.add("status", "fail");
             response =ResponseEntity.status(HttpStatus.NOT_FOUND).headers(headers).body(null);
@@ -96,22 +115,18 @@ public class UserRestController {
 
     //CRUD: POST /users
     @PostMapping(value = {"", "/"}, consumes = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<User> create(HttpServletRequest request,  @RequestBody User user) {
+    public ResponseEntity<UserDto> create(HttpServletRequest request,  @RequestBody User user) {
 
         User userCreated = userService.create(user);
 
-        // TODO automate this and add more info headers
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("verb", "POST");
-        headers.add("endpoint", "api/v1/users");
-        headers.add("timestamp", Instant.now().toString());
+        HttpHeaders headers = Common.infoHeaders("POST", "api/v1/users");
 
-        ResponseEntity<User> response;
+        ResponseEntity<UserDto> response;
         if (userCreated != null) {
             // TODO: response with create(URI location) code 201, investigate accepted(), investigate how Spring Boot
             //       can autogenerate this URI Resource
             headers.add("status", "success");
-            response = ResponseEntity.accepted().headers(headers).body(userCreated);
+            response = ResponseEntity.accepted().headers(headers).body(UserDto.of(userCreated));
         } else {
             // Todo: manage failure codes 404 for “Not Found”, or a 409 conflict error if the item already exists.
             headers.add("status", "fail");
@@ -123,7 +138,7 @@ public class UserRestController {
 
     //CRUD: PATCH /users/{id}
     @PatchMapping("/{id}")
-    public ResponseEntity<User> update(HttpServletRequest request, @PathVariable String id, @RequestBody User user) {
+    public ResponseEntity<UserDto> update(HttpServletRequest request, @PathVariable String id, @RequestBody User user) {
 
         // Accepts id and uuid as user identification:
         //   Checks for Long id identification. If it is not a Long then assumes
@@ -133,19 +148,15 @@ public class UserRestController {
                 ? userService.update(idValue, user)
                 : userService.update(id, user);
 
-        // TODO automate this and add more info headers
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("verb", "PATCH");
-        headers.add("endpoint", "api/v1/users/" + id);
-        headers.add("timestamp", Instant.now().toString());
+        HttpHeaders headers = Common.infoHeaders("PATCH", "api/v1/users/" + id);
 
-        ResponseEntity<User> response;
+        ResponseEntity<UserDto> response;
         if (userUpdated != null) {
             headers.add("status", "success");
-            response = ResponseEntity.accepted().headers(headers).body(userUpdated);
+            response = ResponseEntity.accepted().headers(headers).body(UserDto.of(userUpdated));
         } else {
             headers.add("status", "fail");
-            response =ResponseEntity.status(HttpStatus.NOT_FOUND).headers(headers).body(userUpdated);
+            response =ResponseEntity.status(HttpStatus.NOT_FOUND).headers(headers).body(UserDto.of(userUpdated));
         }
 
         return response;
@@ -153,7 +164,7 @@ public class UserRestController {
 
     //CRUD: DELETE /users/{id}
     @DeleteMapping("/{id}")
-    public ResponseEntity<User> destroy(HttpServletRequest request, @PathVariable String id) {
+    public ResponseEntity<UserDto> destroy(HttpServletRequest request, @PathVariable String id) {
 
         // Accepts id and uuid as user identification:
         //   Checks for Long id identification. If it is not a Long then assumes
@@ -163,19 +174,15 @@ public class UserRestController {
                 ? userService.delete(idValue)
                 : userService.delete(id);
 
-        // TODO automate this and add more info headers
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("verb", "DELETE");
-        headers.add("endpoint", "api/v1/users/" + id);
-        headers.add("timestamp", Instant.now().toString());
+        HttpHeaders headers = Common.infoHeaders("DELETE", "api/v1/users/" + id);
 
-        ResponseEntity<User> response;
+        ResponseEntity<UserDto> response;
         if (user != null) {
             headers.add("status", "success");
-            response = ResponseEntity.accepted().headers(headers).body(user);
+            response = ResponseEntity.accepted().headers(headers).body(UserDto.of(user));
         } else {
             headers.add("status", "fail");
-            response =ResponseEntity.status(HttpStatus.NOT_FOUND).headers(headers).body(user);
+            response =ResponseEntity.status(HttpStatus.NOT_FOUND).headers(headers).body(UserDto.of(user));
         }
 
         return response;
@@ -0,0 +1,36 @@
+package com.example.chat.security;
+
+import com.example.chat.repository.UserRepository;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+
+/**
+ * <code>UserDetailsService</code> of the user accounts, the <code>ACCOUNT</code> table.
+ * <p>
+ * A user signs in with the email, when the username has an "@", or with the nickname. Only the users with a password
+ * can sign in, the inactive users are disabled. The authorities of a user are "app", the scope of the application
+ * tokens, and its role, like "ROLE_USER".
+ */
+public class AccountUserDetailsService implements UserDetailsService {
+
+    private final UserRepository userRepository;
+
+
+    public AccountUserDetailsService(UserRepository userRepository) {
+        this.userRepository = userRepository;
+    }
+
+    @Override
+    public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
+        return userRepository.findByUsername(username)
+                .filter(account -> account.getPassword() != null)
+                .map(account -> User.withUsername(username)
+                        .password(account.getPassword())
+                        .disabled(!account.isActive())
+                        .authorities("app", "ROLE_" + account.getRole())
+                        .build())
+                .orElseThrow(() -> new UsernameNotFoundException("Unknown user: " + username));
+    }
+}
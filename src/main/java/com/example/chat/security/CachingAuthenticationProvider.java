@@ -0,0 +1,144 @@
+package com.example.chat.security;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.security.authentication.AuthenticationProvider;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>AuthenticationProvider</code> that keeps the successful authentications by username and password, so the
+ * password hash of a user (bcrypt, argon2...) is checked only once until the authentication expires from the cache.
+ * <p>
+ * The passwords are not kept, the cache is indexed by the username and an HMAC of the username and the password,
+ * with a random key generated at startup. The authentications expire after a short time to live and the cache is
+ * bounded. Failed authentications are not cached, they are always checked by the delegate provider.
+ * <p>
+ * The authentications of a user must be invalidated with {@link #invalidate(String...)} when the account changes, its
+ * password, role or active state, or is deleted. An authentication that was being checked while the user was
+ * invalidated is not cached.
+ * <p>
+ * Metrics:
+ * <li><code>cache.*</code> tagged with cache "authentication": size, hits, misses and evictions of the cache.
+ * <li><code>chat.security.authentication.cache.hit.ratio</code>: ratio of the authentications from the cache.
+ * <li><code>chat.security.authentication.verification</code>: time of the authentications by the delegate provider.
+ */
+public class CachingAuthenticationProvider implements AuthenticationProvider {
+
+    private final AuthenticationProvider delegate;
+
+    private final SecretKey hmacKey;
+
+    private final Cache<Credentials, Authentication> authentications;
+
+    // Incremented by every invalidation, the authentications that overlap an invalidation are not cached
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final Timer verification;
+
+
+    /**
+     * @param delegate      provider that checks the credentials that are not in the cache.
+     * @param maximumSize   maximum authentications in the cache, the least used are evicted when exceeded.
+     * @param timeToLive    time an authentication is kept in the cache.
+     * @param meterRegistry registry for the metrics of the cache.
+     */
+    public CachingAuthenticationProvider(AuthenticationProvider delegate, long maximumSize, Duration timeToLive,
+                                         MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        try {
+            this.hmacKey = KeyGenerator.getInstance("HmacSHA256").generateKey();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+
+        this.authentications = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(timeToLive)
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, authentications, "authentication");
+        Gauge.builder("chat.security.authentication.cache.hit.ratio", authentications, cache -> cache.stats().hitRate())
+                .description("Ratio of the authentications from the cache")
+                .register(meterRegistry);
+        this.verification = Timer.builder("chat.security.authentication.verification")
+                .description("Time of the credentials verification")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public Authentication authenticate(Authentication authentication) throws AuthenticationException {
+        if (!(authentication.getCredentials() instanceof String password)) {
+            return delegate.authenticate(authentication);
+        }
+        Credentials credentials = new Credentials(authentication.getName(), hmac(authentication.getName(), password));
+
+        Authentication authenticated = authentications.getIfPresent(credentials);
+        if (authenticated != null) {
+            return authenticated;
+        }
+
+        long invalidation = invalidations.get();
+        authenticated = verification.record(() -> delegate.authenticate(authentication));
+        if (authenticated != null && authenticated.isAuthenticated() && invalidation == invalidations.get()) {
+            authentications.put(credentials, authenticated);
+        }
+        return authenticated;
+    }
+
+    @Override
+    public boolean supports(Class<?> authentication) {
+        return UsernamePasswordAuthenticationToken.class.isAssignableFrom(authentication);
+    }
+
+    /**
+     * Removes the authentications of the users from the cache, their credentials are checked again from now on.
+     *
+     * @param usernames the usernames of the users, all the names a user signs in with, the null names are ignored.
+     */
+    public void invalidate(String... usernames) {
+        invalidations.incrementAndGet();
+        for (String username : usernames) {
+            if (username != null) {
+                authentications.asMap().keySet().removeIf(credentials -> credentials.username().equals(username));
+            }
+        }
+    }
+
+    /**
+     * Removes all the authentications from the cache.
+     */
+    public void invalidateAll() {
+        invalidations.incrementAndGet();
+        authentications.invalidateAll();
+    }
+
+    private String hmac(String username, String password) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(hmacKey);
+            mac.update(username.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return Base64.getEncoder().encodeToString(mac.doFinal(password.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    private record Credentials(String username, String hmac) {}
+}
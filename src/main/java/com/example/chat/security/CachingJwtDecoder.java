@@ -0,0 +1,219 @@
+package com.example.chat.security;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.security.oauth2.jwt.BadJwtException;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.security.oauth2.jwt.JwtException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * <code>JwtDecoder</code> that keeps the tokens already decoded, so the signature of a token is verified only once
+ * until it expires.
+ * <p>
+ * The decoded tokens are kept in a bounded cache, indexed by the SHA-256 digest of the token, the raw tokens are not
+ * kept. Every token expires from the cache at its <code>exp</code> claim, or after the maximum time to live if it is
+ * sooner. From then on the token is decoded, and validated, again by the delegate decoder. Tokens that fail decoding
+ * are not cached.
+ * <p>
+ * A token can be revoked with {@link #revoke(String)}: it is removed from the cache and rejected until it expires. The
+ * revocations are never evicted by size, every one is kept until the <code>exp</code> of its token, when the delegate
+ * decoder rejects the token anyway. The tokens without expiration are revoked for good. When the maximum revocations
+ * are kept the new ones are refused, rather than forgetting an older one.
+ * <p>
+ * Metrics:
+ * <li><code>cache.*</code> tagged with cache "jwt": size, hits, misses and evictions of the cache.
+ * <li><code>chat.security.jwt.cache.hit.ratio</code>: ratio of the tokens decoded from the cache.
+ * <li><code>chat.security.jwt.verification</code>: time of the token decoding by the delegate decoder.
+ * <li><code>chat.security.jwt.verification.saved</code>: estimated verification time saved by the cache hits, the
+ * mean verification time for each hit.
+ * <li><code>chat.security.jwt.revoked</code>: revoked tokens not expired yet.
+ */
+public class CachingJwtDecoder implements JwtDecoder {
+
+    private final JwtDecoder delegate;
+
+    private final Duration maxTimeToLive;
+
+    private final Clock clock;
+
+    // Decoded tokens by token digest
+    private final Cache<String, Jwt> tokens;
+
+    // Expiration of the revoked tokens by token digest, never evicted by size, the expired ones are purged when full
+    private final Map<String, Instant> revoked = new ConcurrentHashMap<>();
+
+    private final long maximumRevoked;
+
+    private final Timer verification;
+
+    private final DoubleAdder savedNanos = new DoubleAdder();
+
+
+    /**
+     * @param delegate       decoder that verifies and validates the tokens that are not in the cache.
+     * @param maximumSize    maximum tokens in the cache, the least used are evicted when exceeded.
+     * @param maxTimeToLive  maximum time a token is kept in the cache, also for the tokens without expiration.
+     * @param maximumRevoked maximum revoked tokens kept until they expire, further revocations are refused.
+     * @param meterRegistry  registry for the metrics of the cache.
+     */
+    public CachingJwtDecoder(JwtDecoder delegate, long maximumSize, Duration maxTimeToLive, long maximumRevoked,
+                             MeterRegistry meterRegistry) {
+        this(delegate, maximumSize, maxTimeToLive, maximumRevoked, meterRegistry, Clock.systemUTC());
+    }
+
+    CachingJwtDecoder(JwtDecoder delegate, long maximumSize, Duration maxTimeToLive, long maximumRevoked,
+                      MeterRegistry meterRegistry, Clock clock) {
+        this.delegate = delegate;
+        this.maxTimeToLive = maxTimeToLive;
+        this.maximumRevoked = maximumRevoked;
+        this.clock = clock;
+
+        this.tokens = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfter(new UntilExpiration())
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, tokens, "jwt");
+        Gauge.builder("chat.security.jwt.cache.hit.ratio", tokens, cache -> cache.stats().hitRate())
+                .description("Ratio of the JWT decoded from the cache")
+                .register(meterRegistry);
+        this.verification = Timer.builder("chat.security.jwt.verification")
+                .description("Time of the JWT verification and validation")
+                .register(meterRegistry);
+        FunctionCounter.builder("chat.security.jwt.verification.saved", savedNanos,
+                        saved -> saved.sum() / TimeUnit.SECONDS.toNanos(1))
+                .description("Estimated JWT verification time saved by the cache")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+        Gauge.builder("chat.security.jwt.revoked", revoked, Map::size)
+                .description("Revoked JWT kept until they expire")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public Jwt decode(String token) throws JwtException {
+        String digest = digest(token);
+
+        Instant revokedUntil = revoked.get(digest);
+        if (revokedUntil != null && revokedUntil.isAfter(clock.instant())) {
+            throw new BadJwtException("The token has been revoked");
+        }
+
+        Jwt jwt = tokens.getIfPresent(digest);
+        if (jwt != null && isLive(jwt)) {
+            savedNanos.add(verification.mean(TimeUnit.NANOSECONDS));
+            return jwt;
+        }
+
+        jwt = verification.record(() -> delegate.decode(token));
+        if (isLive(jwt)) {
+            tokens.put(digest, jwt);
+        }
+        return jwt;
+    }
+
+    /**
+     * Revokes a token. It is removed from the cache and rejected by this decoder until it expires.
+     *
+     * @param token the token to revoke.
+     * @return true if the token is revoked, or already rejected, false if the revocation has been refused because the
+     * maximum revoked tokens are kept, the token is still accepted then.
+     */
+    public boolean revoke(String token) {
+        String digest = digest(token);
+        Jwt jwt = tokens.getIfPresent(digest);
+        if (jwt == null) {
+            try {
+                jwt = delegate.decode(token);
+            } catch (JwtException e) {
+                // Invalid tokens are already rejected
+                return true;
+            }
+        }
+
+        Instant expiresAt = jwt.getExpiresAt();
+        synchronized (revoked) {
+            if (!revoked.containsKey(digest) && revoked.size() >= maximumRevoked) {
+                // Purges the expired revocations before refusing, their tokens are rejected by the delegate anyway
+                Instant now = clock.instant();
+                revoked.values().removeIf(until -> !until.isAfter(now));
+                if (revoked.size() >= maximumRevoked) {
+                    return false;
+                }
+            }
+            revoked.put(digest, expiresAt != null ? expiresAt : Instant.MAX);
+        }
+        tokens.invalidate(digest);
+        return true;
+    }
+
+    /**
+     * Removes all the tokens from the cache, they are decoded again by the delegate decoder.
+     */
+    public void invalidateAll() {
+        tokens.invalidateAll();
+    }
+
+    private boolean isLive(Jwt jwt) {
+        Instant expiresAt = jwt.getExpiresAt();
+        return expiresAt == null || expiresAt.isAfter(clock.instant());
+    }
+
+    private static String digest(String token) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Expires the tokens at their expiration, or after the maximum time to live if it is sooner.
+     */
+    private class UntilExpiration implements Expiry<String, Jwt> {
+
+        @Override
+        public long expireAfterCreate(String key, Jwt jwt, long currentTime) {
+            Instant expiresAt = jwt.getExpiresAt();
+            if (expiresAt == null) {
+                return maxTimeToLive.toNanos();
+            }
+            Duration timeToLive = Duration.between(clock.instant(), expiresAt);
+            if (timeToLive.isNegative()) {
+                return 0;
+            }
+            return timeToLive.compareTo(maxTimeToLive) < 0 ? timeToLive.toNanos() : maxTimeToLive.toNanos();
+        }
+
+        @Override
+        public long expireAfterUpdate(String key, Jwt jwt, long currentTime, long currentDuration) {
+            return expireAfterCreate(key, jwt, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(String key, Jwt jwt, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.example.chat.security;
+
+import com.example.chat.model.User;
+
+import java.security.Principal;
+import java.util.UUID;
+
+/**
+ * Identity of the user of a WebSocket session, resolved once when the STOMP session is connected.
+ * <p>
+ * It is immutable and holds the identity of the <code>User</code> entity at connection time, so the messages of the
+ * session are attributed to the user without reading the token or the DB again. The name of the principal is the
+ * nickname of the user.
+ *
+ * @param id       id of the user.
+ * @param uuid     uuid of the user.
+ * @param nickname nickname of the user, the sender of its messages.
+ * @param role     role of the user.
+ * @see StompAuthenticationInterceptor
+ */
+public record ChatPrincipal(Long id, UUID uuid, String nickname, User.Role role) implements Principal {
+
+    public static ChatPrincipal of(User user) {
+        return new ChatPrincipal(user.getId(), user.getUuid(), user.getNickname(), user.getRole());
+    }
+
+    @Override
+    public String getName() {
+        return nickname;
+    }
+}
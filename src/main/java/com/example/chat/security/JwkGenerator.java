@@ -0,0 +1,36 @@
+package com.example.chat.security;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.jwk.JWK;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+
+/**
+ * Generates a signing key of the chat JWT in a directory of keys, see {@link RotatingJwkSource}.
+ * <p>
+ * Usage: <code>JwkGenerator &lt;RS256|ES256|EdDSA|HS256&gt; &lt;directory&gt;</code>. The key is written to the file
+ * <code>&lt;kid&gt;.json</code>, its id is the algorithm and the creation time.
+ */
+public final class JwkGenerator {
+
+    private JwkGenerator() {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("Usage: JwkGenerator <" + String.join("|", "RS256", "ES256", "EdDSA", "HS256")
+                    + "> <directory>");
+            System.exit(1);
+        }
+        JWSAlgorithm algorithm = JwsAlgorithms.parse(args[0]);
+        Path directory = Files.createDirectories(Path.of(args[1]));
+
+        String keyId = algorithm.getName().toLowerCase() + "-" + Instant.now().getEpochSecond();
+        JWK jwk = JwsAlgorithms.generate(algorithm, keyId);
+
+        Path file = directory.resolve(keyId + ".json");
+        Files.writeString(file, jwk.toJSONString());
+        System.out.println(file.toAbsolutePath());
+    }
+}
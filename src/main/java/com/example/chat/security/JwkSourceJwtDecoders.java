@@ -0,0 +1,121 @@
+package com.example.chat.security;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.KeySourceException;
+import com.nimbusds.jose.crypto.Ed25519Verifier;
+import com.nimbusds.jose.crypto.factories.DefaultJWSVerifierFactory;
+import com.nimbusds.jose.jca.JCAContext;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKMatcher;
+import com.nimbusds.jose.jwk.JWKSelector;
+import com.nimbusds.jose.jwk.KeyConverter;
+import com.nimbusds.jose.jwk.OctetKeyPair;
+import com.nimbusds.jose.jwk.source.JWKSource;
+import com.nimbusds.jose.proc.JWSKeySelector;
+import com.nimbusds.jose.proc.JWSVerifierFactory;
+import com.nimbusds.jose.proc.SecurityContext;
+import com.nimbusds.jwt.proc.DefaultJWTProcessor;
+import org.springframework.security.oauth2.jwt.NimbusJwtDecoder;
+
+import javax.crypto.SecretKey;
+import java.security.Key;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decoders of the JWT signed by the keys of a <code>JWKSource</code>, with any of the {@link JwsAlgorithms}.
+ * <p>
+ * The verification keys are selected by the <code>kid</code> and the algorithm of the token header, so the tokens of
+ * all the keys of the source are accepted. Nimbus only verifies EdDSA signatures from the JWK, not from a java
+ * <code>Key</code>, the Ed25519 keys are passed to the verifier wrapped in a key.
+ */
+public final class JwkSourceJwtDecoders {
+
+    private JwkSourceJwtDecoders() {}
+
+    /**
+     * @param jwkSource keys that verify the tokens.
+     * @return a decoder with the default validators of the claims.
+     */
+    public static NimbusJwtDecoder create(JWKSource<SecurityContext> jwkSource) {
+        DefaultJWTProcessor<SecurityContext> processor = new DefaultJWTProcessor<>();
+        processor.setJWSKeySelector(new KeySelector(jwkSource));
+        processor.setJWSVerifierFactory(new VerifierFactory());
+        // The claims are validated by the validators of the decoder
+        processor.setJWTClaimsSetVerifier((claims, context) -> {});
+        return new NimbusJwtDecoder(processor);
+    }
+
+    private record KeySelector(JWKSource<SecurityContext> jwkSource) implements JWSKeySelector<SecurityContext> {
+
+        @Override
+        public List<? extends Key> selectJWSKeys(JWSHeader header, SecurityContext context)
+                throws KeySourceException {
+            JWKMatcher matcher = JwsAlgorithms.matcher(header);
+            if (matcher == null) {
+                return List.of();
+            }
+            List<JWK> jwks = jwkSource.get(new JWKSelector(matcher), context);
+
+            List<Key> keys = new ArrayList<>();
+            for (JWK jwk : jwks) {
+                if (jwk instanceof OctetKeyPair octetKeyPair) {
+                    keys.add(new OctetKeyPairPublicKey(octetKeyPair.toPublicJWK()));
+                } else {
+                    // Only the public parts and the secrets verify, not the private keys
+                    KeyConverter.toJavaKeys(List.of(jwk)).stream()
+                            .filter(key -> key instanceof PublicKey || key instanceof SecretKey)
+                            .forEach(keys::add);
+                }
+            }
+            return keys;
+        }
+    }
+
+    private static class VerifierFactory implements JWSVerifierFactory {
+
+        private final DefaultJWSVerifierFactory delegate = new DefaultJWSVerifierFactory();
+
+        @Override
+        public JWSVerifier createJWSVerifier(JWSHeader header, Key key) throws JOSEException {
+            if (key instanceof OctetKeyPairPublicKey publicKey) {
+                return new Ed25519Verifier(publicKey.jwk());
+            }
+            return delegate.createJWSVerifier(header, key);
+        }
+
+        @Override
+        public Set<JWSAlgorithm> supportedJWSAlgorithms() {
+            return JwsAlgorithms.SUPPORTED;
+        }
+
+        @Override
+        public JCAContext getJCAContext() {
+            return delegate.getJCAContext();
+        }
+    }
+
+    // Ed25519 public key passed from the key selector to the verifier factory
+    private record OctetKeyPairPublicKey(OctetKeyPair jwk) implements PublicKey {
+
+        @Override
+        public String getAlgorithm() {
+            return "Ed25519";
+        }
+
+        @Override
+        public String getFormat() {
+            return null;
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return null;
+        }
+    }
+}
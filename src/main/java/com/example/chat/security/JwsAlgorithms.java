@@ -0,0 +1,107 @@
+package com.example.chat.security;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKMatcher;
+import com.nimbusds.jose.jwk.KeyType;
+import com.nimbusds.jose.jwk.KeyUse;
+import com.nimbusds.jose.jwk.gen.ECKeyGenerator;
+import com.nimbusds.jose.jwk.gen.OctetKeyPairGenerator;
+import com.nimbusds.jose.jwk.gen.OctetSequenceKeyGenerator;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+
+import java.util.Set;
+
+/**
+ * JWS algorithms supported to sign and verify the JWT of the chat:
+ * <li>RS256: RSA 2048 bits signature with SHA-256.
+ * <li>ES256: ECDSA signature on the P-256 curve with SHA-256.
+ * <li>EdDSA: Ed25519 signature.
+ * <li>HS256: HMAC with SHA-256 and a 256 bits shared secret.
+ */
+public final class JwsAlgorithms {
+
+    public static final Set<JWSAlgorithm> SUPPORTED =
+            Set.of(JWSAlgorithm.RS256, JWSAlgorithm.ES256, JWSAlgorithm.EdDSA, JWSAlgorithm.HS256);
+
+    private JwsAlgorithms() {}
+
+    /**
+     * @param name name of the algorithm, like RS256.
+     * @return the supported algorithm with the name.
+     * @throws IllegalArgumentException if the algorithm is not supported.
+     */
+    public static JWSAlgorithm parse(String name) {
+        JWSAlgorithm algorithm = JWSAlgorithm.parse(name);
+        if (!SUPPORTED.contains(algorithm)) {
+            throw new IllegalArgumentException("Unsupported JWS algorithm: " + name + ", supported: " + SUPPORTED);
+        }
+        return algorithm;
+    }
+
+    /**
+     * @param jwk key.
+     * @return the algorithm of the key, from its "alg" parameter or from its type when not set. Null if the key is not
+     * for any supported algorithm.
+     */
+    public static JWSAlgorithm of(JWK jwk) {
+        if (jwk.getAlgorithm() != null) {
+            JWSAlgorithm algorithm = JWSAlgorithm.parse(jwk.getAlgorithm().getName());
+            return SUPPORTED.contains(algorithm) ? algorithm : null;
+        }
+        return switch (jwk.getKeyType().getValue()) {
+            case "RSA" -> JWSAlgorithm.RS256;
+            case "EC" -> Curve.P_256.equals(jwk.toECKey().getCurve()) ? JWSAlgorithm.ES256 : null;
+            case "OKP" -> Curve.Ed25519.equals(jwk.toOctetKeyPair().getCurve()) ? JWSAlgorithm.EdDSA : null;
+            case "oct" -> JWSAlgorithm.HS256;
+            default -> null;
+        };
+    }
+
+    /**
+     * @param header header of a token.
+     * @return the matcher of the keys that can verify the token, by <code>kid</code> when set. Null if the algorithm
+     * is not supported.
+     */
+    public static JWKMatcher matcher(JWSHeader header) {
+        if (!SUPPORTED.contains(header.getAlgorithm())) {
+            return null;
+        }
+        if (!JWSAlgorithm.EdDSA.equals(header.getAlgorithm())) {
+            return JWKMatcher.forJWSHeader(header);
+        }
+        // Nimbus does not match the EdDSA keys
+        return new JWKMatcher.Builder()
+                .keyType(KeyType.OKP)
+                .curve(Curve.Ed25519)
+                .keyID(header.getKeyID())
+                .keyUses(KeyUse.SIGNATURE, null)
+                .algorithms(JWSAlgorithm.EdDSA, null)
+                .build();
+    }
+
+    /**
+     * Generates a new signing key.
+     *
+     * @param algorithm supported algorithm of the key.
+     * @param keyId     id of the key, the "kid" of the tokens it signs.
+     * @return the new key, with its private part or secret.
+     */
+    public static JWK generate(JWSAlgorithm algorithm, String keyId) throws JOSEException {
+        if (JWSAlgorithm.RS256.equals(algorithm)) {
+            return new RSAKeyGenerator(2048).keyUse(KeyUse.SIGNATURE).algorithm(algorithm).keyID(keyId).generate();
+        } else if (JWSAlgorithm.ES256.equals(algorithm)) {
+            return new ECKeyGenerator(Curve.P_256).keyUse(KeyUse.SIGNATURE).algorithm(algorithm).keyID(keyId).generate();
+        } else if (JWSAlgorithm.EdDSA.equals(algorithm)) {
+            return new OctetKeyPairGenerator(Curve.Ed25519).keyUse(KeyUse.SIGNATURE).algorithm(algorithm).keyID(keyId)
+                    .generate();
+        } else if (JWSAlgorithm.HS256.equals(algorithm)) {
+            return new OctetSequenceKeyGenerator(256).keyUse(KeyUse.SIGNATURE).algorithm(algorithm).keyID(keyId)
+                    .generate();
+        }
+        throw new IllegalArgumentException("Unsupported JWS algorithm: " + algorithm);
+    }
+}
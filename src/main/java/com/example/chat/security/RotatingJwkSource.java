@@ -0,0 +1,248 @@
+package com.example.chat.security;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.crypto.factories.DefaultJWSSignerFactory;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSelector;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.KeyUse;
+import com.nimbusds.jose.jwk.source.JWKSource;
+import com.nimbusds.jose.proc.SecurityContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Set of the JSON Web Keys that sign and verify the JWT of the chat, selected by their key id (<code>kid</code>).
+ * <p>
+ * The keys are loaded from the <code>*.json</code> files of a directory, one JWK per file, and reloaded when the files
+ * change without restarting the application. All the keys of the directory verify tokens, the newest key file with
+ * the signing algorithm and a private part (or a secret) signs the new tokens. To rotate the keys:
+ * <li>Add the file of the new key, it signs the new tokens from the next refresh.
+ * <li>Remove the file of the old key once the tokens it signed have expired, they are rejected from then on.
+ * <p>
+ * Files that cannot be parsed, keys without <code>kid</code> and keys of unsupported algorithms are ignored. A reload
+ * without any signing key keeps the previous keys. The listeners are notified after the keys change, for instance to
+ * clear the tokens verified by removed keys from a cache.
+ * <p>
+ * A source can also be created with a fixed set of keys, which is never reloaded.
+ *
+ * @see JwsAlgorithms
+ * @see RotatingJwtEncoder
+ */
+public class RotatingJwkSource implements JWKSource<SecurityContext>, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RotatingJwkSource.class);
+
+    private final JWSAlgorithm signingAlgorithm;
+
+    // Null for a fixed set of keys
+    private final Path directory;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile Keys keys;
+
+    // Modification time of the key files of the current keys, only used by the refresh
+    private Map<Path, FileTime> files = Map.of();
+
+
+    /**
+     * Source of a fixed set of keys.
+     *
+     * @param jwkSet           keys of the source.
+     * @param signingAlgorithm algorithm of the tokens, the first key of the algorithm signs the tokens.
+     * @throws IllegalStateException if there is no signing key for the algorithm.
+     */
+    public RotatingJwkSource(JWKSet jwkSet, JWSAlgorithm signingAlgorithm) {
+        this.signingAlgorithm = signingAlgorithm;
+        this.directory = null;
+        this.scheduler = null;
+
+        JWK signingKey = jwkSet.getKeys().stream().filter(this::canSign).findFirst()
+                .orElseThrow(() -> new IllegalStateException("No " + signingAlgorithm + " signing key"));
+        this.keys = new Keys(jwkSet, new SigningKey(signingKey, signingAlgorithm));
+    }
+
+    /**
+     * Source of the keys of a directory, which is polled for changes.
+     *
+     * @param directory        directory of the JWK files.
+     * @param refreshInterval  time between the checks of the directory.
+     * @param signingAlgorithm algorithm of the tokens, the newest key file of the algorithm signs the tokens.
+     * @throws IllegalStateException if there is no signing key for the algorithm in the directory.
+     */
+    public RotatingJwkSource(Path directory, Duration refreshInterval, JWSAlgorithm signingAlgorithm) {
+        this.signingAlgorithm = signingAlgorithm;
+        this.directory = directory;
+
+        if (!refresh()) {
+            throw new IllegalStateException("No " + signingAlgorithm + " signing key in " + directory.toAbsolutePath());
+        }
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "jwk-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = refreshInterval.toMillis();
+        this.scheduler.scheduleWithFixedDelay(this::refresh, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public List<JWK> get(JWKSelector jwkSelector, SecurityContext context) {
+        return jwkSelector.select(keys.jwkSet());
+    }
+
+    /**
+     * @return the algorithm of the new tokens.
+     */
+    public JWSAlgorithm getSigningAlgorithm() {
+        return signingAlgorithm;
+    }
+
+    /**
+     * @return the key that signs the new tokens, with its signer.
+     */
+    public SigningKey getSigningKey() {
+        return keys.signingKey();
+    }
+
+    /**
+     * @return the current keys, with their private parts.
+     */
+    public JWKSet getJwkSet() {
+        return keys.jwkSet();
+    }
+
+    /**
+     * @param listener called after the keys change.
+     */
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Reloads the keys of the directory if the key files have changed.
+     *
+     * @return true if there is a signing key, either the new one or the previous one when the files have not changed.
+     */
+    public synchronized boolean refresh() {
+        if (directory == null) {
+            return true;
+        }
+        try {
+            Map<Path, FileTime> current = new HashMap<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.json")) {
+                for (Path file : stream) {
+                    current.put(file, Files.getLastModifiedTime(file));
+                }
+            }
+            if (current.equals(files)) {
+                return true;
+            }
+
+            Keys loaded = load(current);
+            if (loaded == null) {
+                logger.error("No {} signing key in {}, the previous keys are kept", signingAlgorithm,
+                        directory.toAbsolutePath());
+                return keys != null;
+            }
+            boolean changed = keys != null;
+            keys = loaded;
+            files = current;
+            logger.info("Loaded JWK {} from {}, signing key {}",
+                    loaded.jwkSet().getKeys().stream().map(JWK::getKeyID).toList(), directory.toAbsolutePath(),
+                    loaded.signingKey().jwk().getKeyID());
+
+            if (changed) {
+                listeners.forEach(Runnable::run);
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            logger.error("Error loading the JWK of {}, the previous keys are kept", directory.toAbsolutePath(), e);
+            return keys != null;
+        }
+    }
+
+    // Null if there is no signing key
+    private Keys load(Map<Path, FileTime> current) throws IOException {
+        List<Map.Entry<Path, FileTime>> newestFirst = new ArrayList<>(current.entrySet());
+        newestFirst.sort(Map.Entry.<Path, FileTime>comparingByValue().reversed());
+
+        List<JWK> jwks = new ArrayList<>();
+        Set<String> keyIds = new HashSet<>();
+        JWK signingKey = null;
+        for (Map.Entry<Path, FileTime> entry : newestFirst) {
+            Path file = entry.getKey();
+            JWK jwk;
+            try {
+                jwk = JWK.parse(Files.readString(file));
+            } catch (ParseException e) {
+                logger.warn("Ignored JWK file {}: {}", file, e.getMessage());
+                continue;
+            }
+            if (jwk.getKeyID() == null || !keyIds.add(jwk.getKeyID())) {
+                logger.warn("Ignored JWK file {}: missing or duplicated kid", file);
+                continue;
+            }
+            if (JwsAlgorithms.of(jwk) == null || (jwk.getKeyUse() != null && !KeyUse.SIGNATURE.equals(jwk.getKeyUse()))) {
+                logger.warn("Ignored JWK file {}: not a key of the signature algorithms {}", file,
+                        JwsAlgorithms.SUPPORTED);
+                continue;
+            }
+            jwks.add(jwk);
+            if (signingKey == null && canSign(jwk)) {
+                signingKey = jwk;
+            }
+        }
+        return signingKey != null ? new Keys(new JWKSet(jwks), new SigningKey(signingKey, signingAlgorithm)) : null;
+    }
+
+    private boolean canSign(JWK jwk) {
+        return signingAlgorithm.equals(JwsAlgorithms.of(jwk)) && jwk.isPrivate();
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Signing key and its signer, which is created once per key, not per token.
+     */
+    public record SigningKey(JWK jwk, JWSSigner signer) {
+
+        SigningKey(JWK jwk, JWSAlgorithm algorithm) {
+            this(jwk, createSigner(jwk, algorithm));
+        }
+
+        private static JWSSigner createSigner(JWK jwk, JWSAlgorithm algorithm) {
+            try {
+                return new DefaultJWSSignerFactory().createJWSSigner(jwk, algorithm);
+            } catch (JOSEException e) {
+                throw new IllegalStateException("Invalid signing key " + jwk.getKeyID(), e);
+            }
+        }
+    }
+
+    private record Keys(JWKSet jwkSet, SigningKey signingKey) {}
+}
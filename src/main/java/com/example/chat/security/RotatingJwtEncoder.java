@@ -0,0 +1,73 @@
+package com.example.chat.security;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JOSEObjectType;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtClaimsSet;
+import org.springframework.security.oauth2.jwt.JwtEncoder;
+import org.springframework.security.oauth2.jwt.JwtEncoderParameters;
+import org.springframework.security.oauth2.jwt.JwtEncodingException;
+
+import java.net.URL;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * <code>JwtEncoder</code> that signs the tokens with the current signing key of a {@link RotatingJwkSource}.
+ * <p>
+ * The header of the tokens is the signing algorithm, the <code>kid</code> of the signing key and the type JWT, the
+ * parameters must not have a header. Unlike the <code>NimbusJwtEncoder</code>, the key is not selected from the set
+ * of keys for every token, and the EdDSA tokens are supported.
+ */
+public class RotatingJwtEncoder implements JwtEncoder {
+
+    private final RotatingJwkSource jwkSource;
+
+
+    public RotatingJwtEncoder(RotatingJwkSource jwkSource) {
+        this.jwkSource = jwkSource;
+    }
+
+    @Override
+    public Jwt encode(JwtEncoderParameters parameters) throws JwtEncodingException {
+        if (parameters.getJwsHeader() != null) {
+            throw new JwtEncodingException("The header of the tokens is set by the signing key");
+        }
+        JwtClaimsSet claims = parameters.getClaims();
+
+        // Signing key and signer of the same keys, even if they rotate meanwhile
+        RotatingJwkSource.SigningKey signingKey = jwkSource.getSigningKey();
+        JWSHeader header = new JWSHeader.Builder(jwkSource.getSigningAlgorithm())
+                .type(JOSEObjectType.JWT)
+                .keyID(signingKey.jwk().getKeyID())
+                .build();
+
+        SignedJWT signedJwt = new SignedJWT(header, toJwtClaimsSet(claims));
+        try {
+            signedJwt.sign(signingKey.signer());
+        } catch (JOSEException e) {
+            throw new JwtEncodingException("An error occurred while attempting to sign the JWT: " + e.getMessage(), e);
+        }
+
+        return new Jwt(signedJwt.serialize(), claims.getIssuedAt(), claims.getExpiresAt(), header.toJSONObject(),
+                claims.getClaims());
+    }
+
+    private static JWTClaimsSet toJwtClaimsSet(JwtClaimsSet claims) {
+        JWTClaimsSet.Builder builder = new JWTClaimsSet.Builder();
+        for (Map.Entry<String, Object> claim : claims.getClaims().entrySet()) {
+            Object value = claim.getValue();
+            if (value instanceof Instant instant) {
+                value = Date.from(instant);
+            } else if (value instanceof URL url) {
+                value = url.toExternalForm();
+            }
+            builder.claim(claim.getKey(), value);
+        }
+        return builder.build();
+    }
+}
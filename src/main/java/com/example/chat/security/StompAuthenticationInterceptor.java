@@ -0,0 +1,76 @@
+package com.example.chat.security;
+
+import com.example.chat.model.User;
+import com.example.chat.repository.UserRepository;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageDeliveryException;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.security.oauth2.jwt.JwtException;
+
+import java.security.Principal;
+
+/**
+ * Authenticates the STOMP sessions on their CONNECT frame.
+ * <p>
+ * The user is the subject of the bearer JWT of the <code>Authorization</code> header of the CONNECT frame, or the user
+ * authenticated by the WebSocket handshake request when the frame has no token. The user must be an active account.
+ * Its {@link ChatPrincipal} is set as the user of the session: the STOMP handler keeps it for the session and sets it
+ * on all the later messages of the session, which are not authenticated again.
+ * <p>
+ * A CONNECT frame without a valid token nor an authenticated handshake is rejected, the client receives an ERROR
+ * frame.
+ */
+public class StompAuthenticationInterceptor implements ChannelInterceptor {
+
+    private static final String BEARER = "Bearer ";
+
+    private final JwtDecoder jwtDecoder;
+
+    private final UserRepository userRepository;
+
+
+    public StompAuthenticationInterceptor(JwtDecoder jwtDecoder, UserRepository userRepository) {
+        this.jwtDecoder = jwtDecoder;
+        this.userRepository = userRepository;
+    }
+
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        StompHeaderAccessor accessor = MessageHeaderAccessor.getAccessor(message, StompHeaderAccessor.class);
+        if (accessor == null || !StompCommand.CONNECT.equals(accessor.getCommand())) {
+            return message;
+        }
+
+        String username = username(accessor);
+        User user = userRepository.findByUsername(username)
+                .filter(User::isActive)
+                .orElseThrow(() -> new MessageDeliveryException("Unknown or inactive user: " + username));
+        accessor.setUser(ChatPrincipal.of(user));
+
+        return message;
+    }
+
+    private String username(StompHeaderAccessor accessor) {
+        String authorization = accessor.getFirstNativeHeader("Authorization");
+        if (authorization != null && authorization.regionMatches(true, 0, BEARER, 0, BEARER.length())) {
+            try {
+                Jwt jwt = jwtDecoder.decode(authorization.substring(BEARER.length()).trim());
+                return jwt.getSubject();
+            } catch (JwtException e) {
+                throw new MessageDeliveryException("Invalid bearer token: " + e.getMessage());
+            }
+        }
+
+        Principal handshakeUser = accessor.getUser();
+        if (handshakeUser == null) {
+            throw new MessageDeliveryException("Authentication required, a bearer token is expected");
+        }
+        return handshakeUser.getName();
+    }
+}
@@ -0,0 +1,492 @@
+package com.example.chat.service;
+
+import com.example.chat.model.Room;
+import com.example.chat.model.User;
+import com.example.chat.repository.MessageRepository;
+import com.example.chat.repository.RoomRepository;
+import com.example.chat.repository.UserRepository;
+import com.example.chat.security.ChatPrincipal;
+import com.example.chat.util.TimingWheel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Destroys the guest users and the temporary chat rooms when they are no longer used, as promised by the
+ * <code>User</code> and <code>Room</code> entities.
+ * <p>
+ * A guest expires when it has been idle for <code>chat.expiry.guest.idle-timeout</code>, or when its last session has
+ * been closed for <code>chat.expiry.guest.disconnect-timeout</code>, so a guest that reconnects in the meantime, like
+ * after reloading the page, is kept. A temporary room, a room owned by a guest, expires when it has been idle for
+ * <code>chat.expiry.temporary-room.idle-timeout</code>, or with its owner.
+ * <p>
+ * As an interceptor of the inbound channel, the reaper follows the sessions of the guests and the activity of the
+ * guests and the temporary rooms: the messages sent and the subscriptions. The activity is recorded in O(1), writing
+ * the last activity time of the entry of the guest or the room, without any lock. The guests and rooms that exist at
+ * startup are tracked from then on, the ones created later are tracked by the <code>UserService</code> and the
+ * <code>RoomService</code>.
+ * <p>
+ * The entries are scheduled on a hierarchical {@link TimingWheel}, at the earliest time they can expire. Every tick the
+ * reaper takes the entries due from the wheel: the entries that have had activity since they were scheduled are
+ * scheduled again at their new expiration time, the others are expired. The cost of a tick depends on the entries
+ * due, the tables are never scanned. The expired guests and rooms are deleted in batches, with their messages, in a
+ * transaction per batch, and removed from the <code>RoomRegistry</code>, the recent history and the search index. The
+ * open sessions of an expired guest are closed with an ERROR frame.
+ * <p>
+ * Metrics:
+ * <li><code>chat.expiry.live</code>: guests and temporary rooms tracked, tagged by kind: guest or room.
+ * <li><code>chat.expiry.expired</code>: guests and temporary rooms deleted, tagged by kind.
+ * <li><code>chat.expiry.timers</code>: entries scheduled on the timing wheel.
+ * <li><code>chat.expiry.delete</code>: time to delete a batch.
+ *
+ * @see com.example.chat.model.User
+ * @see com.example.chat.model.Room
+ */
+@Service
+public class IdleReaper implements ChannelInterceptor {
+
+    private static final Logger logger = LoggerFactory.getLogger(IdleReaper.class);
+
+    private static final String CHAT_PREFIX = "/app/chat/";
+
+    private static final String TOPIC_PREFIX = "/topic/";
+
+    @Autowired
+    UserRepository userRepository;
+
+    @Autowired
+    RoomRepository roomRepository;
+
+    @Autowired
+    MessageRepository messageRepository;
+
+    @Autowired
+    RoomRegistry roomRegistry;
+
+    @Autowired
+    MessageHistoryService messageHistoryService;
+
+    @Autowired
+    MessageSearchService messageSearchService;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    // Lazy, the channel is created with the WebSocket configuration that registers this interceptor
+    @Lazy
+    @Autowired
+    @Qualifier("clientOutboundChannel")
+    MessageChannel clientOutboundChannel;
+
+    @Value("${chat.expiry.enabled:true}")
+    boolean enabled;
+
+    /**
+     * Precision of the expiration times.
+     */
+    @Value("${chat.expiry.tick:1s}")
+    Duration tick;
+
+    /**
+     * Maximum time a guest is kept without activity, and after its last session has been closed.
+     */
+    @Value("${chat.expiry.guest.idle-timeout:30m}")
+    Duration guestIdleTimeout;
+
+    @Value("${chat.expiry.guest.disconnect-timeout:2m}")
+    Duration guestDisconnectTimeout;
+
+    /**
+     * Maximum time a temporary room is kept without activity.
+     */
+    @Value("${chat.expiry.temporary-room.idle-timeout:15m}")
+    Duration roomIdleTimeout;
+
+    /**
+     * Maximum guests and rooms deleted in a transaction.
+     */
+    @Value("${chat.expiry.batch-size:100}")
+    int batchSize;
+
+    // Tracked guests by id and temporary rooms by title
+    private final Map<Long, Expiry> guests = new ConcurrentHashMap<>();
+
+    private final Map<String, Expiry> rooms = new ConcurrentHashMap<>();
+
+    private final long start = System.nanoTime();
+
+    private TimingWheel<Expiry> wheel;
+
+    private TransactionTemplate transactionTemplate;
+
+    private ScheduledExecutorService reaper;
+
+    private Counter expiredGuests;
+
+    private Counter expiredRooms;
+
+    private Timer deleteTimer;
+
+
+    @PostConstruct
+    void start() {
+        if (!enabled) {
+            return;
+        }
+        wheel = new TimingWheel<>(tick, 4, nowMillis());
+        transactionTemplate = new TransactionTemplate(transactionManager);
+
+        userRepository.findByRole(User.Role.GUEST).forEach(this::track);
+        roomRepository.findByOwnerRole(User.Role.GUEST).forEach(this::track);
+        logger.info("Idle reaper tracking {} guests and {} temporary rooms", guests.size(), rooms.size());
+
+        Gauge.builder("chat.expiry.live", guests, Map::size)
+                .description("Guests and temporary rooms tracked for expiration")
+                .tag("kind", "guest")
+                .register(meterRegistry);
+        Gauge.builder("chat.expiry.live", rooms, Map::size)
+                .description("Guests and temporary rooms tracked for expiration")
+                .tag("kind", "room")
+                .register(meterRegistry);
+        Gauge.builder("chat.expiry.timers", wheel, TimingWheel::size)
+                .description("Expiration timers scheduled")
+                .register(meterRegistry);
+        expiredGuests = expired("guest");
+        expiredRooms = expired("room");
+        deleteTimer = Timer.builder("chat.expiry.delete")
+                .description("Time to delete a batch of expired guests and temporary rooms")
+                .register(meterRegistry);
+
+        reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idle-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleWithFixedDelay(this::reap, tick.toMillis(), tick.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        if (reaper != null) {
+            reaper.shutdownNow();
+        }
+    }
+
+    /**
+     * Tracks a guest user or a temporary room, a room owned by a guest. Other users and rooms are ignored.
+     *
+     * @param user created user.
+     */
+    public void track(User user) {
+        if (wheel != null && user != null && user.getId() != null && user.getRole() == User.Role.GUEST) {
+            Expiry guest = guests.computeIfAbsent(user.getId(), id -> new Expiry(id, user.getNickname(), true));
+            schedule(guest, guest.deadline());
+        }
+    }
+
+    /**
+     * @param room created room, with its owner, whose role is read from the DB when it is not provided.
+     * @see #track(User)
+     */
+    public void track(Room room) {
+        if (wheel != null && room != null && room.getId() != null && room.getTitle() != null
+                && role(room.getOwner()) == User.Role.GUEST) {
+            Expiry temporary = rooms.computeIfAbsent(room.getTitle(), title -> new Expiry(room.getId(), title, false));
+            schedule(temporary, temporary.deadline());
+        }
+    }
+
+    /**
+     * Stops tracking a deleted user or room.
+     *
+     * @param user deleted user.
+     */
+    public void untrack(User user) {
+        if (user != null && user.getId() != null) {
+            guests.remove(user.getId());
+        }
+    }
+
+    /**
+     * @param room deleted room.
+     */
+    public void untrack(Room room) {
+        if (room != null && room.getTitle() != null) {
+            rooms.remove(room.getTitle());
+        }
+    }
+
+    /**
+     * Records the activity of the guests and the temporary rooms from the frames of the sessions: CONNECT and
+     * DISCONNECT, the subscriptions to the rooms and the messages sent to them.
+     */
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        if (wheel == null) {
+            return message;
+        }
+        MessageHeaders headers = message.getHeaders();
+        SimpMessageType messageType = SimpMessageHeaderAccessor.getMessageType(headers);
+        if (messageType == null) {
+            return message;
+        }
+
+        long now = nowMillis();
+        // Only a CONNECT tracks a guest that is not tracked yet, the other frames find it scheduled
+        Expiry guest = !(SimpMessageHeaderAccessor.getUser(headers) instanceof ChatPrincipal principal)
+                || principal.role() != User.Role.GUEST ? null
+                : messageType == SimpMessageType.CONNECT
+                ? guests.computeIfAbsent(principal.id(), id -> new Expiry(id, principal.nickname(), true))
+                : guests.get(principal.id());
+        String sessionId = SimpMessageHeaderAccessor.getSessionId(headers);
+
+        switch (messageType) {
+            case CONNECT -> {
+                if (guest != null && sessionId != null) {
+                    guest.lastActivity = now;
+                    guest.sessions.add(sessionId);
+                    schedule(guest, guest.deadline());
+                }
+            }
+            case DISCONNECT -> {
+                if (guest != null && sessionId != null && guest.sessions.remove(sessionId)) {
+                    guest.lastActivity = now;
+                    if (guest.sessions.isEmpty()) {
+                        schedule(guest, guest.deadline());
+                    }
+                }
+            }
+            case SUBSCRIBE, MESSAGE -> {
+                if (guest != null) {
+                    guest.lastActivity = now;
+                }
+                Expiry room = rooms.get(room(SimpMessageHeaderAccessor.getDestination(headers)));
+                if (room != null) {
+                    room.lastActivity = now;
+                }
+            }
+            default -> {
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Takes the entries due from the wheel, schedules again the ones with recent activity and deletes the expired
+     * ones in batches.
+     */
+    private void reap() {
+        try {
+            long now = nowMillis();
+            List<Expiry> expired = new ArrayList<>();
+            for (Expiry expiry : wheel.advance(now)) {
+                long deadline = expiry.deadline();
+                if (deadline <= now) {
+                    if ((expiry.guest ? guests.remove(expiry.id, expiry) : rooms.remove(expiry.name, expiry))) {
+                        expired.add(expiry);
+                    }
+                } else if (expiry.isTracked()) {
+                    reschedule(expiry, deadline, now);
+                }
+            }
+
+            for (int from = 0; from < expired.size(); from += batchSize) {
+                delete(expired.subList(from, Math.min(from + batchSize, expired.size())));
+            }
+        } catch (RuntimeException e) {
+            logger.error("Idle reaper failed", e);
+        }
+    }
+
+    /**
+     * Deletes a batch of expired guests and temporary rooms in a transaction, with the rooms of the guests and the
+     * messages of all of them. Then removes the rooms from memory and closes the sessions of the guests.
+     */
+    private void delete(List<Expiry> batch) {
+        List<Long> guestIds = new ArrayList<>();
+        List<Long> roomIds = new ArrayList<>();
+        List<String> roomTitles = new ArrayList<>();
+        for (Expiry expiry : batch) {
+            if (expiry.guest) {
+                guestIds.add(expiry.id);
+            } else {
+                roomIds.add(expiry.id);
+                roomTitles.add(expiry.name);
+            }
+        }
+
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                if (!guestIds.isEmpty()) {
+                    for (Room owned : roomRepository.findByOwnerIdIn(guestIds)) {
+                        if (!roomIds.contains(owned.getId())) {
+                            roomIds.add(owned.getId());
+                            roomTitles.add(owned.getTitle());
+                        }
+                    }
+                    messageRepository.deleteByUserIds(guestIds);
+                }
+                if (!roomIds.isEmpty()) {
+                    messageRepository.deleteByRoomIds(roomIds);
+                    roomRepository.deleteByIds(roomIds);
+                }
+                if (!guestIds.isEmpty()) {
+                    userRepository.deleteByIdsAndRole(guestIds, User.Role.GUEST);
+                }
+            });
+        } catch (RuntimeException e) {
+            logger.error("Idle reaper could not delete {} guests and {} temporary rooms", guestIds.size(),
+                    roomIds.size(), e);
+            return;
+        } finally {
+            sample.stop(deleteTimer);
+        }
+
+        for (String title : roomTitles) {
+            rooms.remove(title);
+            roomRegistry.findByTitle(title).ifPresent(roomRegistry::unregister);
+            messageHistoryService.remove(title);
+        }
+        roomIds.forEach(messageSearchService::remove);
+        for (Expiry expiry : batch) {
+            if (expiry.guest) {
+                expiry.sessions.forEach(this::close);
+            }
+        }
+        expiredGuests.increment(guestIds.size());
+        expiredRooms.increment(roomTitles.size());
+        logger.debug("Idle reaper deleted {} guests and {} temporary rooms", guestIds.size(), roomTitles.size());
+    }
+
+    /**
+     * Closes a session of an expired guest, the STOMP handler closes the session after the ERROR frame.
+     */
+    private void close(String sessionId) {
+        StompHeaderAccessor accessor = StompHeaderAccessor.create(StompCommand.ERROR);
+        accessor.setMessage("Guest expired after inactivity");
+        accessor.setSessionId(sessionId);
+        clientOutboundChannel.send(MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders()));
+    }
+
+    private void schedule(Expiry expiry, long deadline) {
+        synchronized (expiry) {
+            // An earlier deadline replaces the pending timer, which is discarded when it expires
+            if (expiry.timerDeadline == 0 || deadline < expiry.timerDeadline) {
+                expiry.timerDeadline = deadline;
+                wheel.schedule(expiry, deadline);
+            }
+        }
+    }
+
+    private void reschedule(Expiry expiry, long deadline, long now) {
+        synchronized (expiry) {
+            // Only the pending timer reschedules, the replaced ones are discarded
+            if (expiry.timerDeadline <= now) {
+                expiry.timerDeadline = deadline;
+                wheel.schedule(expiry, deadline);
+            }
+        }
+    }
+
+    private User.Role role(User user) {
+        if (user == null || user.getRole() != null || user.getId() == null) {
+            return user != null ? user.getRole() : null;
+        }
+        return userRepository.findById(user.getId()).map(User::getRole).orElse(null);
+    }
+
+    private long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static String room(String destination) {
+        if (destination == null) {
+            return "";
+        } else if (destination.startsWith(CHAT_PREFIX)) {
+            return destination.substring(CHAT_PREFIX.length());
+        } else if (destination.startsWith(TOPIC_PREFIX)) {
+            return destination.substring(destination.lastIndexOf('/') + 1);
+        }
+        return "";
+    }
+
+    private Counter expired(String kind) {
+        return Counter.builder("chat.expiry.expired")
+                .description("Guests and temporary rooms deleted by the idle reaper")
+                .tag("kind", kind)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Expiration entry of a guest or a temporary room.
+     */
+    private class Expiry {
+
+        final Long id;
+
+        // Nickname of the guest or title of the room
+        final String name;
+
+        final boolean guest;
+
+        // Open sessions of the guest
+        final Set<String> sessions = ConcurrentHashMap.newKeySet();
+
+        volatile long lastActivity = nowMillis();
+
+        // Deadline of the pending timer of the wheel, guarded by the entry
+        long timerDeadline;
+
+        Expiry(Long id, String name, boolean guest) {
+            this.id = id;
+            this.name = name;
+            this.guest = guest;
+        }
+
+        long deadline() {
+            Duration timeout = !guest ? roomIdleTimeout
+                    : sessions.isEmpty() ? guestDisconnectTimeout
+                    : guestIdleTimeout;
+            return lastActivity + timeout.toMillis();
+        }
+
+        boolean isTracked() {
+            return (guest ? guests.get(id) : rooms.get(name)) == this;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.example.chat.service;
+
+import com.example.chat.dto.MessageDto;
+import com.example.chat.util.RingBuffer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps in memory the recent history of every chat room, the last broadcast messages, so a client that joins a room
+ * gets the earlier messages without querying the DB.
+ * <p>
+ * Each room has a <code>RingBuffer</code> limited by number of messages and by estimated memory size. The limits are
+ * configured by default for all the rooms and can be overridden per room (by room title):
+ * <pre>{@code
+ * chat.message.history.capacity=50
+ * chat.message.history.max-bytes-per-room=65536
+ * chat.message.history.rooms.{room}.capacity=200
+ * chat.message.history.rooms.{room}.max-bytes=262144
+ * }</pre>
+ * The memory of all the rooms is limited by <code>chat.message.history.max-bytes</code>. When it is exceeded the
+ * histories of the least recently active rooms are evicted, down to 90% of the limit so the rooms are not sorted again
+ * on every add. The room being added to is evicted last, when it exceeds the limit by itself.
+ */
+@Service
+public class MessageHistoryService {
+
+    // Estimated memory of a message without its content: object headers, uuid, room, sender and timestamp
+    private static final int MESSAGE_OVERHEAD_BYTES = 200;
+
+    // Percentage of the memory limit the eviction goes down to
+    private static final int EVICTION_TARGET_PERCENT = 90;
+
+    @Autowired
+    Environment environment;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Value("${chat.message.history.capacity:50}")
+    int defaultCapacity;
+
+    @Value("${chat.message.history.max-bytes-per-room:65536}")
+    long defaultMaxBytesPerRoom;
+
+    @Value("${chat.message.history.max-bytes:67108864}")
+    long maxBytes;
+
+    private final Map<String, RoomHistory> histories = new ConcurrentHashMap<>();
+
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+
+    @PostConstruct
+    void registerMetrics() {
+        Gauge.builder("chat.messages.history.rooms", histories, Map::size)
+                .description("Rooms with recent history in memory")
+                .register(meterRegistry);
+        Gauge.builder("chat.messages.history.bytes", totalBytes, AtomicLong::get)
+                .description("Estimated memory of the recent history of all the rooms")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Appends a broadcast message to the recent history of the room.
+     *
+     * @param room    title of the chat room
+     * @param message broadcast message
+     */
+    public void add(String room, MessageDto message) {
+        while (true) {
+            RoomHistory history = histories.computeIfAbsent(room, this::newRoomHistory);
+            synchronized (history) {
+                // Retries when the history has just been evicted or removed, its weight is no longer counted
+                if (!history.removed) {
+                    history.lastActivity = System.nanoTime();
+                    totalBytes.addAndGet(history.messages.add(message));
+                    break;
+                }
+            }
+        }
+
+        if (totalBytes.get() > maxBytes) {
+            evictLeastRecentlyActive(room);
+        }
+    }
+
+    /**
+     * @param room title of the chat room
+     * @return the recent messages of the room, ordered from the oldest to the newest. Empty if the room has no
+     * history in memory.
+     */
+    public List<MessageDto> findRecent(String room) {
+        RoomHistory history = histories.get(room);
+        return history != null
+                ? history.messages.snapshot()
+                : List.of();
+    }
+
+    /**
+     * Drops the recent history of the room, for example when the room is deleted.
+     *
+     * @param room title of the chat room
+     */
+    public void remove(String room) {
+        RoomHistory history = histories.get(room);
+        if (history != null) {
+            discard(history);
+        }
+    }
+
+    private RoomHistory newRoomHistory(String room) {
+        String prefix = "chat.message.history.rooms." + room;
+        int capacity = environment.getProperty(prefix + ".capacity", Integer.class, defaultCapacity);
+        long maxBytesPerRoom = environment.getProperty(prefix + ".max-bytes", Long.class, defaultMaxBytesPerRoom);
+
+        return new RoomHistory(room, new RingBuffer<>(capacity, maxBytesPerRoom, MessageHistoryService::estimateBytes));
+    }
+
+    /**
+     * Evicts whole room histories, the least recently active first, until the memory is under the target. Only one
+     * thread evicts at a time, the others keep adding. The thread that evicts checks the limit again once it has
+     * released the lock, so the adds of the other threads while it was evicting are not left over the limit.
+     *
+     * @param current title of the room being added to, evicted last.
+     */
+    private void evictLeastRecentlyActive(String current) {
+        while (totalBytes.get() > maxBytes && evictionLock.tryLock()) {
+            try {
+                long target = maxBytes / 100 * EVICTION_TARGET_PERCENT;
+                // Sorted by a snapshot of the activity, which changes while sorting
+                List<Candidate> candidates = new ArrayList<>(histories.size());
+                histories.values().forEach(history -> candidates.add(new Candidate(history.lastActivity, history)));
+                candidates.sort(Comparator.comparingLong(Candidate::lastActivity));
+
+                for (Candidate candidate : candidates) {
+                    if (totalBytes.get() <= target) {
+                        break;
+                    }
+                    if (!candidate.history().room.equals(current)) {
+                        discard(candidate.history());
+                    }
+                }
+                // The room by itself over the limit
+                RoomHistory history = histories.get(current);
+                if (totalBytes.get() > maxBytes && history != null) {
+                    discard(history);
+                }
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Removes the history and its weight, atomically with the adds to the history.
+     */
+    private void discard(RoomHistory history) {
+        synchronized (history) {
+            if (!history.removed) {
+                history.removed = true;
+                histories.remove(history.room, history);
+                totalBytes.addAndGet(-history.messages.weight());
+            }
+        }
+    }
+
+    private static int estimateBytes(MessageDto message) {
+        String content = message.content();
+        return MESSAGE_OVERHEAD_BYTES + (content != null ? content.length() * 2 : 0);
+    }
+
+    private record Candidate(long lastActivity, RoomHistory history) {
+    }
+
+    /**
+     * Recent history of a room. The adds and the removal are guarded by the lock of the history.
+     */
+    private static class RoomHistory {
+
+        final String room;
+
+        final RingBuffer<MessageDto> messages;
+
+        volatile long lastActivity;
+
+        boolean removed;
+
+        RoomHistory(String room, RingBuffer<MessageDto> messages) {
+            this.room = room;
+            this.messages = messages;
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package com.example.chat.service;
+
+import com.example.chat.dto.MessageDto;
+import com.example.chat.dto.MessagePage;
+import com.example.chat.dto.MessageText;
+import com.example.chat.model.Message;
+import com.example.chat.repository.MessageRepository;
+import com.example.chat.repository.RoomRepository;
+import com.example.chat.util.InvertedIndex;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.util.HtmlUtils;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Full-text search of the messages of a chat room, on an in-process {@link InvertedIndex} per room.
+ * <p>
+ * The indexes are rebuilt from the DB at startup, the rooms in parallel on <code>chat.search.rebuild.parallelism</code>
+ * threads, each room read from a DB cursor in the order of its history index. The search of a room is unavailable until
+ * its index is rebuilt. From then on the indexes are updated incrementally by the <code>MessageService</code> with the
+ * messages it persists, the messages persisted while the index of their room is being rebuilt are added at its end.
+ * <p>
+ * A query matches the messages with all its words, a word ending with <code>*</code> is a prefix, and returns them from
+ * the newest to the oldest. The index only finds the ids of the messages, which are read from the DB by primary key.
+ * The messages are indexed by their text, HTML unescaped.
+ * <p>
+ * The estimated memory of all the indexes is kept within <code>chat.search.memory-budget</code>: when it is exceeded,
+ * the segments of all the rooms are evicted in the order they were sealed, tracked by a single queue, so the search
+ * covers the most recent history that fits in the budget. When no sealed segment is left, the newest segment of the
+ * room being indexed is sealed and evicted. Deleted rooms are removed from the index, deleted messages are skipped
+ * when the hits are read.
+ * <p>
+ * In a cluster, a node indexes the messages it persists, the messages persisted by the other nodes are indexed when it
+ * is restarted.
+ * <p>
+ * Metrics:
+ * <li><code>chat.search.memory</code>: estimated memory of the indexes.
+ * <li><code>chat.search.indexed</code>: messages indexed.
+ * <li><code>chat.search.evicted</code>: segments evicted to keep the memory budget.
+ * <li><code>chat.search.query</code>: time to search and read a page of results.
+ */
+@Service
+public class MessageSearchService {
+
+    private static final Logger logger = LoggerFactory.getLogger(MessageSearchService.class);
+
+    /**
+     * Maximum words of a query.
+     */
+    private static final int MAX_TERMS = 8;
+
+    @Autowired
+    MessageRepository messageRepository;
+
+    @Autowired
+    RoomRepository roomRepository;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    /**
+     * Maximum estimated memory of the indexes of all the rooms.
+     */
+    @Value("${chat.search.memory-budget:256MB}")
+    DataSize memoryBudget;
+
+    /**
+     * Threads that rebuild the indexes at startup, 0 to use one per processor.
+     */
+    @Value("${chat.search.rebuild.parallelism:0}")
+    int rebuildParallelism;
+
+    // Index of every room by id
+    private final Map<Long, RoomIndex> rooms = new ConcurrentHashMap<>();
+
+    private final AtomicLong memory = new AtomicLong();
+
+    // Room of every sealed segment, in the order they were sealed: the head is the oldest segment of its room
+    private final Queue<RoomIndex> sealed = new ConcurrentLinkedQueue<>();
+
+    // Serializes the evictions, so a segment is evicted once
+    private final Object evictionLock = new Object();
+
+    private TransactionTemplate transactionTemplate;
+
+    private ExecutorService rebuilder;
+
+    private Counter indexedCounter;
+
+    private Counter evictedCounter;
+
+    private Timer queryTimer;
+
+
+    @PostConstruct
+    void start() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setReadOnly(true);
+
+        Gauge.builder("chat.search.memory", memory, AtomicLong::get)
+                .description("Estimated memory of the search indexes")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        indexedCounter = meterRegistry.counter("chat.search.indexed");
+        evictedCounter = meterRegistry.counter("chat.search.evicted");
+        queryTimer = Timer.builder("chat.search.query")
+                .description("Time to search the messages of a room")
+                .register(meterRegistry);
+
+        rebuild();
+    }
+
+    @PreDestroy
+    void stop() {
+        if (rebuilder != null) {
+            rebuilder.shutdownNow();
+        }
+    }
+
+    /**
+     * Finds the messages of the room that match the query, from the newest to the oldest.
+     *
+     * @param roomId id of the chat room.
+     * @param query  words of the messages, a word ending with <code>*</code> is a prefix.
+     * @param before cursor of the <code>next</code> field of the previous page, null for the first page.
+     * @param limit  maximum messages of the page.
+     * @return the page of messages found.
+     * @throws IllegalArgumentException if the query has no words or too many, or the cursor is invalid.
+     * @throws IllegalStateException    if the index of the room is being rebuilt.
+     */
+    public MessagePage search(Long roomId, String query, String before, int limit) {
+        List<InvertedIndex.Term> terms = InvertedIndex.parse(query);
+        if (terms.isEmpty() || terms.size() > MAX_TERMS) {
+            throw new IllegalArgumentException("Invalid query: " + query);
+        }
+        long sequence = Long.MAX_VALUE;
+        if (before != null) {
+            try {
+                sequence = Long.parseLong(before);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cursor: " + before);
+            }
+        }
+
+        RoomIndex room = rooms.get(roomId);
+        if (room == null) {
+            return new MessagePage(List.of(), null);
+        }
+        if (!room.ready) {
+            throw new IllegalStateException("Search index of the room " + roomId + " is being rebuilt");
+        }
+
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try {
+            List<InvertedIndex.Hit> hits = room.index.search(terms, sequence, limit);
+            List<MessageDto> messages = new ArrayList<>(hits.size());
+            if (!hits.isEmpty()) {
+                Map<Long, MessageDto> found = messageRepository.findByIds(
+                                hits.stream().map(InvertedIndex.Hit::id).toList()).stream()
+                        .collect(Collectors.toMap(MessageDto::id, Function.identity()));
+                // In the order of the hits, without the messages deleted since they were indexed
+                for (InvertedIndex.Hit hit : hits) {
+                    MessageDto message = found.get(hit.id());
+                    if (message != null) {
+                        messages.add(message);
+                    }
+                }
+            }
+            String next = hits.size() == limit
+                    ? String.valueOf(hits.get(hits.size() - 1).sequence())
+                    : null;
+            return new MessagePage(messages, next);
+        } finally {
+            sample.stop(queryTimer);
+        }
+    }
+
+    /**
+     * Indexes the persisted messages, from the <code>MessageService</code> write-behind.
+     *
+     * @param messages persisted messages, with their id and room, in order.
+     */
+    public void index(List<Message> messages) {
+        for (Message message : messages) {
+            if (message.getId() == null || message.getRoom() == null || message.getRoom().getId() == null) {
+                continue;
+            }
+            MessageText text = new MessageText(message.getId(), message.getContent(), message.getCreatedAt());
+            // Rooms created after the rebuild are indexed from their first message
+            RoomIndex room = rooms.computeIfAbsent(message.getRoom().getId(), id -> new RoomIndex(true));
+            synchronized (room) {
+                if (room.removed) {
+                    continue;
+                }
+                if (room.ready) {
+                    add(room, text);
+                } else {
+                    room.pending.add(text);
+                }
+            }
+            evictIfNeeded(room);
+        }
+    }
+
+    /**
+     * Removes the index of a deleted room.
+     *
+     * @param roomId id of the deleted chat room.
+     */
+    public void remove(Long roomId) {
+        RoomIndex room = rooms.remove(roomId);
+        if (room != null) {
+            synchronized (room) {
+                room.removed = true;
+                memory.addAndGet(-room.index.memory());
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the indexes of all the rooms in parallel, the search of every room is available as soon as its index
+     * is rebuilt.
+     */
+    private void rebuild() {
+        List<Long> roomIds = roomRepository.findAllIds();
+        for (Long roomId : roomIds) {
+            rooms.put(roomId, new RoomIndex(false));
+        }
+
+        int parallelism = rebuildParallelism > 0 ? rebuildParallelism : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threads = new AtomicInteger();
+        rebuilder = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "search-rebuild-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long start = System.nanoTime();
+        CompletableFuture.allOf(roomIds.stream()
+                        .map(roomId -> CompletableFuture.runAsync(() -> rebuild(roomId), rebuilder))
+                        .toArray(CompletableFuture[]::new))
+                .whenComplete((result, e) -> {
+                    rebuilder.shutdown();
+                    logger.info("Search index rebuilt for {} rooms in {} ms, {} messages indexed, {} bytes",
+                            roomIds.size(), (System.nanoTime() - start) / 1_000_000,
+                            (long) indexedCounter.count(), memory.get());
+                });
+    }
+
+    private void rebuild(Long roomId) {
+        RoomIndex room = rooms.get(roomId);
+        if (room == null) {
+            return;
+        }
+        // Last message read from the DB, the pending messages after it are added once the room is rebuilt
+        MessageText[] last = new MessageText[1];
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                try (Stream<MessageText> texts = messageRepository.streamTextsByRoom(roomId)) {
+                    Iterator<MessageText> iterator = texts.iterator();
+                    while (iterator.hasNext() && !room.removed) {
+                        MessageText text = iterator.next();
+                        synchronized (room) {
+                            if (!room.removed) {
+                                add(room, text);
+                            }
+                        }
+                        last[0] = text;
+                        evictIfNeeded(room);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            logger.error("Search index of the room {} could not be rebuilt, it is incomplete", roomId, e);
+        }
+
+        synchronized (room) {
+            for (MessageText text : room.pending) {
+                if (!room.removed && (last[0] == null || isAfter(text, last[0]))) {
+                    add(room, text);
+                }
+            }
+            room.pending = null;
+            room.ready = true;
+        }
+        evictIfNeeded(room);
+    }
+
+    /**
+     * Adds a message to the index of the room, holding the lock of the room.
+     */
+    private void add(RoomIndex room, MessageText text) {
+        if (text.content() == null) {
+            return;
+        }
+        long sealCount = room.index.sealCount();
+        memory.addAndGet(room.index.add(text.id(), HtmlUtils.htmlUnescape(text.content())));
+        if (room.index.sealCount() != sealCount) {
+            sealed.add(room);
+        }
+        indexedCounter.increment();
+    }
+
+    /**
+     * Evicts the segments in the order they were sealed while the memory budget is exceeded. When there is no sealed
+     * segment left, seals the newest segment of the room being indexed, once, so a single room can not keep the
+     * memory over the budget.
+     *
+     * @param current room being indexed.
+     */
+    private void evictIfNeeded(RoomIndex current) {
+        if (memory.get() <= memoryBudget.toBytes()) {
+            return;
+        }
+        synchronized (evictionLock) {
+            boolean sealedCurrent = false;
+            while (memory.get() > memoryBudget.toBytes()) {
+                RoomIndex room = sealed.poll();
+                if (room == null) {
+                    if (sealedCurrent) {
+                        return;
+                    }
+                    sealedCurrent = true;
+                    synchronized (current) {
+                        long sealCount = current.index.sealCount();
+                        if (current.removed) {
+                            return;
+                        }
+                        memory.addAndGet(current.index.seal());
+                        if (current.index.sealCount() == sealCount) {
+                            return;
+                        }
+                        sealed.add(current);
+                    }
+                    continue;
+                }
+                synchronized (room) {
+                    // The segments of a removed room are no longer counted
+                    if (!room.removed) {
+                        memory.addAndGet(-room.index.evictOldest());
+                        evictedCounter.increment();
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean isAfter(MessageText text, MessageText last) {
+        Instant createdAt = text.createdAt() != null ? text.createdAt() : Instant.EPOCH;
+        Instant lastCreatedAt = last.createdAt() != null ? last.createdAt() : Instant.EPOCH;
+        int order = createdAt.compareTo(lastCreatedAt);
+        return order > 0 || (order == 0 && text.id() > last.id());
+    }
+
+    /**
+     * Index of a room, with the messages persisted while it is being rebuilt. Guarded by the lock of the room.
+     */
+    private static class RoomIndex {
+
+        final InvertedIndex index = new InvertedIndex();
+
+        volatile boolean ready;
+
+        volatile boolean removed;
+
+        List<MessageText> pending = new ArrayList<>();
+
+        RoomIndex(boolean ready) {
+            this.ready = ready;
+        }
+    }
+}
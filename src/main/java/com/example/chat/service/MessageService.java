@@ -1,12 +1,335 @@
 package com.example.chat.service;
 
+import com.example.chat.dto.MessageDto;
+import com.example.chat.dto.MessagePage;
+import com.example.chat.model.Message;
+import com.example.chat.model.Room;
+import com.example.chat.model.User;
 import com.example.chat.repository.MessageRepository;
+import com.example.chat.repository.RoomRepository;
+import com.example.chat.repository.UserRepository;
+import com.example.chat.util.MessageCursor;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Service for the chat messages.
+ * <p>
+ * Messages sent through the WebSocket are persisted by a write-behind: <code>saveAsync()</code> only places the
+ * message in a bounded queue and returns, so the broadcast path never waits for a JPA <code>save()</code> and its
+ * transaction. A single writer thread drains the queue and persists the messages in JDBC batches, a batch is flushed
+ * when it reaches <code>chat.message.write-behind.batch-size</code> messages or when
+ * <code>chat.message.write-behind.flush-interval</code> has elapsed since its first message, whichever comes first.
+ * <p>
+ * The user and the room of every message are looked up again when its batch is flushed, the messages whose user or
+ * room has been deleted meanwhile are skipped. A batch is saved in a single transaction, if it fails the messages are
+ * saved again one by one, so a message that can not be persisted, like one whose room is deleted while the batch is
+ * saved, does not make the rest of the batch fail with it.
+ * <p>
+ * When the application shuts down the pending messages are flushed before the service is destroyed.
+ * <p>
+ * The persisted messages are added to the search index of their room by the <code>MessageSearchService</code>.
+ * <p>
+ * Metrics:
+ * <li><code>chat.messages.write-behind.queue</code>: messages waiting to be persisted.
+ * <li><code>chat.messages.write-behind.flush</code>: time to persist a batch.
+ * <li><code>chat.messages.write-behind.persisted</code>, <code>.dropped</code>, <code>.skipped</code> and
+ * <code>.failed</code>: counters of messages by outcome.
+ * <p>
+ * The message history is read with keyset pagination, see <code>findPage()</code>.
+ */
 @Service
 public class MessageService {
 
+    private static final Logger logger = LoggerFactory.getLogger(MessageService.class);
+
     @Autowired
     MessageRepository messageRepository;
+
+    @Autowired
+    UserRepository userRepository;
+
+    @Autowired
+    RoomRepository roomRepository;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    MessageSearchService messageSearchService;
+
+    /**
+     * Maximum number of messages waiting to be persisted.
+     */
+    @Value("${chat.message.write-behind.queue-capacity:10000}")
+    int queueCapacity;
+
+    /**
+     * Maximum number of messages persisted in a single JDBC batch. Keep it aligned with
+     * <code>hibernate.jdbc.batch_size</code>.
+     */
+    @Value("${chat.message.write-behind.batch-size:50}")
+    int batchSize;
+
+    /**
+     * Maximum time a message waits in a not full batch before it is flushed.
+     */
+    @Value("${chat.message.write-behind.flush-interval:200ms}")
+    Duration flushInterval;
+
+    /**
+     * Maximum time the caller waits for room in the queue when it is full. After that the message is dropped.
+     */
+    @Value("${chat.message.write-behind.offer-timeout:50ms}")
+    Duration offerTimeout;
+
+    /**
+     * Maximum time to wait for the pending messages to be flushed when the application shuts down.
+     */
+    @Value("${chat.message.write-behind.shutdown-timeout:10s}")
+    Duration shutdownTimeout;
+
+    private BlockingQueue<Message> queue;
+
+    private TransactionTemplate transactionTemplate;
+
+    private Thread writer;
+
+    private volatile boolean running;
+
+    private Timer flushTimer;
+
+    private Counter persistedCounter;
+
+    private Counter droppedCounter;
+
+    private Counter skippedCounter;
+
+    private Counter failedCounter;
+
+
+    @PostConstruct
+    void start() {
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        transactionTemplate = new TransactionTemplate(transactionManager);
+
+        Gauge.builder("chat.messages.write-behind.queue", queue, Collection::size)
+                .description("Messages waiting to be persisted")
+                .register(meterRegistry);
+        flushTimer = Timer.builder("chat.messages.write-behind.flush")
+                .description("Time to persist a batch of messages")
+                .register(meterRegistry);
+        persistedCounter = meterRegistry.counter("chat.messages.write-behind.persisted");
+        droppedCounter = meterRegistry.counter("chat.messages.write-behind.dropped");
+        skippedCounter = meterRegistry.counter("chat.messages.write-behind.skipped");
+        failedCounter = meterRegistry.counter("chat.messages.write-behind.failed");
+
+        running = true;
+        writer = new Thread(this::writeBehind, "message-write-behind");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Flush on shutdown. Stops accepting messages and waits for the writer to persist the pending ones.
+     */
+    @PreDestroy
+    void stop() throws InterruptedException {
+        running = false;
+        writer.join(shutdownTimeout.toMillis());
+        if (writer.isAlive() || !queue.isEmpty()) {
+            logger.warn("Write-behind stopped with {} messages not persisted", queue.size());
+        }
+    }
+
+    /**
+     * Schedules the message to be persisted by the write-behind. Does not block unless the queue is full.
+     *
+     * @param message message to persist, with a registered room and the id of its user, which is resolved at flush
+     *                time by id, so it is still the sender if its nickname is changed meanwhile.
+     * @return true if the message has been queued, false if it has been dropped because the queue is full or the
+     * service is stopping.
+     */
+    public boolean saveAsync(Message message) {
+        boolean queued = false;
+        try {
+            queued = running && queue.offer(message, offerTimeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (!queued) {
+            droppedCounter.increment();
+        }
+
+        return queued;
+    }
+
+    /**
+     * Gets a page of the message history of a room, from the newest to the oldest message.
+     * <p>
+     * Uses keyset (seek) pagination: the page starts right before the position of the cursor, so the cost of a page
+     * is the same at any depth of the history. Messages are read as <code>MessageDto</code>, no entities are loaded.
+     *
+     * @param roomId id of the chat room
+     * @param before cursor given by the previous page, or null to get the newest messages
+     * @param limit  maximum number of messages of the page
+     * @return the page with the cursor of the next one
+     * @throws IllegalArgumentException if the cursor is not valid
+     */
+    public MessagePage findPage(Long roomId, String before, int limit) {
+        PageRequest pageRequest = PageRequest.ofSize(limit);
+
+        List<MessageDto> messages;
+        if (before == null || before.isEmpty()) {
+            messages = messageRepository.findLatestByRoom(roomId, pageRequest);
+        } else {
+            MessageCursor cursor = MessageCursor.decode(before);
+            messages = messageRepository.findByRoomBefore(roomId, cursor.createdAt(), cursor.id(), pageRequest);
+        }
+
+        String next = null;
+        if (messages.size() == limit) {
+            MessageDto last = messages.get(messages.size() - 1);
+            next = new MessageCursor(last.createdAt(), last.id()).encode();
+        }
+
+        return new MessagePage(messages, next);
+    }
+
+    private void writeBehind() {
+        List<Message> batch = new ArrayList<>(batchSize);
+        try {
+            while (running) {
+                Message first = queue.poll(flushInterval.toNanos(), TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                // Fills the batch until it is full or the flush interval of its first message elapses
+                batch.add(first);
+                long deadline = System.nanoTime() + flushInterval.toNanos();
+                while (batch.size() < batchSize && running) {
+                    if (queue.drainTo(batch, batchSize - batch.size()) == 0) {
+                        Message next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                }
+
+                flush(batch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Shutdown: flushes what is left
+        do {
+            flush(batch);
+        } while (queue.drainTo(batch, batchSize) > 0);
+    }
+
+    private void flush(List<Message> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try {
+            List<Message> entities = toEntities(batch);
+            List<Message> persisted = entities;
+            try {
+                transactionTemplate.executeWithoutResult(status -> messageRepository.saveAll(entities));
+            } catch (RuntimeException e) {
+                logger.warn("Write-behind could not persist a batch of {} messages, saving them one by one",
+                        entities.size(), e);
+                persisted = saveOneByOne(entities);
+            }
+            persistedCounter.increment(persisted.size());
+            messageSearchService.index(persisted);
+        } catch (RuntimeException e) {
+            failedCounter.increment(batch.size());
+            logger.error("Write-behind could not persist a batch of {} messages", batch.size(), e);
+        } finally {
+            sample.stop(flushTimer);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Saves the messages of a failed batch, each one in its own transaction.
+     *
+     * @return the messages persisted, the others are counted as failed.
+     */
+    private List<Message> saveOneByOne(List<Message> entities) {
+        List<Message> persisted = new ArrayList<>(entities.size());
+        for (Message entity : entities) {
+            // The ids given by the failed batch have been rolled back with it
+            Message message = new Message(null, entity.getUuid(), entity.getUser(), entity.getRoom(),
+                    entity.getContent(), entity.getCreatedAt());
+            try {
+                transactionTemplate.executeWithoutResult(status -> messageRepository.save(message));
+                persisted.add(message);
+            } catch (RuntimeException e) {
+                failedCounter.increment();
+                logger.error("Write-behind could not persist message {} of room {}", message.getUuid(),
+                        message.getRoom().getId(), e);
+            }
+        }
+        return persisted;
+    }
+
+    /**
+     * Builds the entities to persist, resolving the user and the room by id, from the second level cache. Lookups are
+     * shared by all the messages of the batch. Messages whose user or room no longer exists, like a room deleted since
+     * the message was sent, are skipped.
+     */
+    private List<Message> toEntities(List<Message> batch) {
+        Map<Long, Optional<User>> users = new HashMap<>();
+        Map<Long, Optional<Room>> rooms = new HashMap<>();
+        List<Message> entities = new ArrayList<>(batch.size());
+
+        for (Message message : batch) {
+            Long userId = message.getUser() != null ? message.getUser().getId() : null;
+            Optional<User> user = userId != null
+                    ? users.computeIfAbsent(userId, userRepository::findById)
+                    : Optional.empty();
+            Long roomId = message.getRoom() != null ? message.getRoom().getId() : null;
+            Optional<Room> room = roomId != null
+                    ? rooms.computeIfAbsent(roomId, roomRepository::findById)
+                    : Optional.empty();
+
+            if (user.isPresent() && room.isPresent()) {
+                entities.add(new Message(null, message.getUuid(), user.get(), room.get(), message.getContent(),
+                        message.getCreatedAt()));
+            } else {
+                skippedCounter.increment();
+            }
+        }
+
+        return entities;
+    }
 }
@@ -0,0 +1,341 @@
+package com.example.chat.service;
+
+import com.example.chat.dto.PresenceDto;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Service;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.socket.messaging.AbstractSubProtocolEvent;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+import org.springframework.web.socket.messaging.SessionUnsubscribeEvent;
+
+import java.security.Principal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the users online in every chat room, from the subscriptions of the WebSocket sessions.
+ * <p>
+ * A user is online in a room while one of its sessions is subscribed to <code>/topic/{room}</code> or
+ * <code>/topic/batch/{room}</code>. The service follows the <code>SessionSubscribeEvent</code>,
+ * <code>SessionUnsubscribeEvent</code> and <code>SessionDisconnectEvent</code> of the sessions, and keeps for every
+ * room its members with their number of subscriptions, so a user with several sessions or subscriptions joins the room
+ * once and leaves it with the last one. The changes of a room are serialized by the lock of the room, there is no
+ * global lock, and the members are readable without locking: the number of users online in a room is the size of its
+ * members map, read in O(1).
+ * <p>
+ * The joins and leaves of a room are coalesced for <code>chat.presence.delta-window</code> and broadcast as a
+ * {@link PresenceDto} to <code>/topic/presence/{room}</code>, so a burst of subscriptions produces one frame per window.
+ * Beyond <code>chat.presence.max-delta-names</code> changes the delta only carries the count, and the clients read
+ * the members again.
+ * <p>
+ * The presence is tracked per node: in a cluster every node reports the users connected to it.
+ * <p>
+ * Metrics:
+ * <li><code>chat.presence.rooms</code>: rooms with users online.
+ * <li><code>chat.presence.sessions</code>: sessions subscribed to a room.
+ * <li><code>chat.presence.deltas</code>: presence changes broadcast.
+ */
+@Service
+public class PresenceService implements ApplicationListener<AbstractSubProtocolEvent> {
+
+    public static final String PRESENCE_PREFIX = "/topic/presence/";
+
+    private static final Logger logger = LoggerFactory.getLogger(PresenceService.class);
+
+    private static final String TOPIC_PREFIX = "/topic/";
+
+    private static final String BATCH_PREFIX = "/topic/batch/";
+
+    @Autowired
+    RoomRegistry roomRegistry;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    // Lazy, the channel is created by the WebSocket configuration
+    @Lazy
+    @Autowired
+    @Qualifier("brokerChannel")
+    MessageChannel brokerChannel;
+
+    /**
+     * Time the changes of a room are coalesced before they are broadcast, and maximum changes listed in a delta.
+     */
+    @Value("${chat.presence.delta-window:1s}")
+    Duration deltaWindow;
+
+    @Value("${chat.presence.max-delta-names:100}")
+    int maxDeltaNames;
+
+    private final Map<String, RoomPresence> rooms = new ConcurrentHashMap<>();
+
+    private final Map<String, SessionPresence> sessions = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    private Counter deltas;
+
+
+    @PostConstruct
+    void start() {
+        Gauge.builder("chat.presence.rooms", rooms, Map::size)
+                .description("Chat rooms with users online")
+                .register(meterRegistry);
+        Gauge.builder("chat.presence.sessions", sessions, Map::size)
+                .description("Sessions subscribed to a chat room")
+                .register(meterRegistry);
+        deltas = Counter.builder("chat.presence.deltas")
+                .description("Presence changes broadcast")
+                .register(meterRegistry);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "presence");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @param room title of the chat room.
+     * @return the number of users online in the room.
+     */
+    public int countOnline(String room) {
+        RoomPresence presence = rooms.get(room);
+        return presence != null ? presence.members.size() : 0;
+    }
+
+    /**
+     * @param room  title of the chat room.
+     * @param limit maximum nicknames returned.
+     * @return the nicknames of the users online in the room, in no particular order.
+     */
+    public List<String> findMembers(String room, int limit) {
+        RoomPresence presence = rooms.get(room);
+        List<String> members = new ArrayList<>();
+        if (presence != null) {
+            for (String nickname : presence.members.keySet()) {
+                if (members.size() >= limit) {
+                    break;
+                }
+                members.add(nickname);
+            }
+        }
+        return members;
+    }
+
+    /**
+     * Drops the presence of a room, when the room is renamed or deleted. The sessions subscribed to its destination
+     * are no longer members of any room, they join the room again by subscribing to the destination of its new title.
+     *
+     * @param room title of the chat room.
+     */
+    public void remove(String room) {
+        sessions.values().forEach(session -> session.subscriptions.values().removeIf(room::equals));
+        RoomPresence presence = rooms.remove(room);
+        if (presence != null) {
+            synchronized (presence) {
+                presence.discarded = true;
+                presence.members.clear();
+                presence.pending.clear();
+            }
+        }
+    }
+
+    @Override
+    public void onApplicationEvent(AbstractSubProtocolEvent event) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(event.getMessage());
+        String sessionId = accessor.getSessionId();
+        if (sessionId == null) {
+            return;
+        }
+
+        if (event instanceof SessionSubscribeEvent) {
+            Principal user = event.getUser();
+            String room = room(accessor.getDestination());
+            if (user != null && room != null && accessor.getSubscriptionId() != null) {
+                SessionPresence session = sessions.computeIfAbsent(sessionId,
+                        key -> new SessionPresence(user.getName()));
+                String previous = session.subscriptions.put(accessor.getSubscriptionId(), room);
+                join(room, session.nickname);
+                if (previous != null) {
+                    leave(previous, session.nickname);
+                }
+            }
+        } else if (event instanceof SessionUnsubscribeEvent) {
+            SessionPresence session = sessions.get(sessionId);
+            String room = session != null && accessor.getSubscriptionId() != null
+                    ? session.subscriptions.remove(accessor.getSubscriptionId())
+                    : null;
+            if (room != null) {
+                leave(room, session.nickname);
+            }
+        } else if (event instanceof SessionDisconnectEvent) {
+            SessionPresence session = sessions.remove(sessionId);
+            if (session != null) {
+                session.subscriptions.values().forEach(room -> leave(room, session.nickname));
+            }
+        }
+    }
+
+    private void join(String room, String nickname) {
+        while (true) {
+            RoomPresence presence = rooms.computeIfAbsent(room, RoomPresence::new);
+            synchronized (presence) {
+                // Retries when the presence has just been discarded, empty, by a flush
+                if (!presence.discarded) {
+                    if (presence.members.merge(nickname, 1, Integer::sum) == 1) {
+                        presence.change(nickname, 1);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    private void leave(String room, String nickname) {
+        RoomPresence presence = rooms.get(room);
+        if (presence == null) {
+            return;
+        }
+        synchronized (presence) {
+            Integer subscriptions = presence.members.get(nickname);
+            if (subscriptions == null) {
+                return;
+            }
+            if (subscriptions > 1) {
+                presence.members.put(nickname, subscriptions - 1);
+            } else {
+                presence.members.remove(nickname);
+                presence.change(nickname, -1);
+            }
+        }
+    }
+
+    /**
+     * Title of the room of a subscription to the room or to its batches, when the room is registered.
+     */
+    private String room(String destination) {
+        if (destination == null || !destination.startsWith(TOPIC_PREFIX)) {
+            return null;
+        }
+        String room = destination.startsWith(BATCH_PREFIX)
+                ? destination.substring(BATCH_PREFIX.length())
+                : destination.substring(TOPIC_PREFIX.length());
+        return room.indexOf('/') < 0 && roomRegistry.contains(room) ? room : null;
+    }
+
+    /**
+     * Subscriptions of a session to the rooms, by subscription id.
+     */
+    private static class SessionPresence {
+
+        final String nickname;
+
+        final Map<String, String> subscriptions = new ConcurrentHashMap<>();
+
+        SessionPresence(String nickname) {
+            this.nickname = nickname;
+        }
+    }
+
+    /**
+     * Members of a room and their changes since the last delta, guarded by the lock of the room. The members are also
+     * read without the lock.
+     */
+    private class RoomPresence {
+
+        final String room;
+
+        // Subscriptions of every member
+        final Map<String, Integer> members = new ConcurrentHashMap<>();
+
+        // Net change of every member in the window, 1 joined and -1 left
+        Map<String, Integer> pending = new HashMap<>();
+
+        boolean scheduled;
+
+        boolean discarded;
+
+        RoomPresence(String room) {
+            this.room = room;
+        }
+
+        void change(String nickname, int change) {
+            pending.merge(nickname, change, (a, b) -> a + b == 0 ? null : a + b);
+            if (!scheduled) {
+                scheduled = true;
+                scheduler.schedule(this::flush, deltaWindow.toNanos(), TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /**
+         * Broadcasts the changes of the window. The room is discarded when it has no members left.
+         */
+        void flush() {
+            PresenceDto delta;
+            synchronized (this) {
+                scheduled = false;
+                if (members.isEmpty()) {
+                    discarded = true;
+                    rooms.remove(room, this);
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                List<String> joined = new ArrayList<>();
+                List<String> left = new ArrayList<>();
+                boolean truncated = pending.size() > maxDeltaNames;
+                if (!truncated) {
+                    pending.forEach((nickname, change) -> (change > 0 ? joined : left).add(nickname));
+                }
+                delta = new PresenceDto(room, members.size(), joined, left, truncated);
+                pending = new HashMap<>();
+            }
+
+            // Sent out of the lock, in order as the flushes run on a single thread
+            try {
+                SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+                accessor.setDestination(PRESENCE_PREFIX + room);
+                accessor.setContentType(MimeTypeUtils.APPLICATION_JSON);
+                brokerChannel.send(MessageBuilder.createMessage(objectMapper.writeValueAsBytes(delta),
+                        accessor.getMessageHeaders()));
+                deltas.increment();
+            } catch (JsonProcessingException | RuntimeException e) {
+                logger.warn("Failed to broadcast the presence of " + room, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.chat.service;
+
+import com.example.chat.model.Room;
+import com.example.chat.repository.RoomRepository;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Authoritative in memory registry of the chat rooms, indexed by title and by uuid.
+ * <p>
+ * The WebSocket path resolves the rooms of the messages through the registry, without any round trip to the DB. The
+ * registry is loaded from the DB at startup and is kept coherent by the <code>RoomService</code>, which registers or
+ * unregisters the rooms it creates, updates or deletes. Rooms must not be modified in the DB by other means.
+ * <p>
+ * The versions of a room are registered one at a time, in the entry of the room in the map by id, so a concurrent
+ * update can not leave the title of an older version behind. A renamed room is indexed by its new title before its
+ * previous title is removed: a lookup during the rename finds the room by either title, never by neither.
+ *
+ * @see com.example.chat.service.RoomService
+ */
+@Service
+public class RoomRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(RoomRegistry.class);
+
+    @Autowired
+    RoomRepository roomRepository;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    private final Map<String, Room> roomsByTitle = new ConcurrentHashMap<>();
+
+    private final Map<UUID, Room> roomsByUuid = new ConcurrentHashMap<>();
+
+    // Last registered version of every room, to unregister the previous title and uuid when a room is updated. The
+    // entry of a room is locked while its titles and uuids are updated.
+    private final Map<Long, Room> roomsById = new ConcurrentHashMap<>();
+
+
+    @PostConstruct
+    void load() {
+        roomRepository.findAllWithOwner().forEach(this::register);
+        logger.info("Room registry loaded with {} rooms", roomsById.size());
+
+        Gauge.builder("chat.rooms.registry.size", roomsById, Map::size)
+                .description("Chat rooms in the registry")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @param title title of the chat room
+     * @return the room with the title, empty if the room does not exist.
+     */
+    public Optional<Room> findByTitle(String title) {
+        return Optional.ofNullable(roomsByTitle.get(title));
+    }
+
+    /**
+     * @param uuid uuid of the chat room
+     * @return the room with the uuid, empty if the room does not exist.
+     */
+    public Optional<Room> findByUuid(UUID uuid) {
+        return Optional.ofNullable(roomsByUuid.get(uuid));
+    }
+
+    /**
+     * @param title title of the chat room
+     * @return true if a room with the title exists.
+     */
+    public boolean contains(String title) {
+        return roomsByTitle.containsKey(title);
+    }
+
+    /**
+     * Registers a persisted room, replacing its previous version if it was already registered.
+     *
+     * @param room persisted room
+     */
+    public void register(Room room) {
+        if (room == null || room.getId() == null) {
+            return;
+        }
+
+        roomsById.compute(room.getId(), (id, previous) -> {
+            if (room.getTitle() != null) {
+                roomsByTitle.put(room.getTitle(), room);
+            }
+            if (room.getUuid() != null) {
+                roomsByUuid.put(room.getUuid(), room);
+            }
+            if (previous != null && previous != room) {
+                unindex(previous);
+            }
+            return room;
+        });
+    }
+
+    /**
+     * Unregisters a deleted room.
+     *
+     * @param room deleted room
+     */
+    public void unregister(Room room) {
+        if (room == null || room.getId() == null) {
+            return;
+        }
+
+        roomsById.computeIfPresent(room.getId(), (id, previous) -> {
+            unindex(previous);
+            return null;
+        });
+    }
+
+    private void unindex(Room room) {
+        if (room.getTitle() != null) {
+            roomsByTitle.remove(room.getTitle(), room);
+        }
+        if (room.getUuid() != null) {
+            roomsByUuid.remove(room.getUuid(), room);
+        }
+    }
+}
@@ -1,15 +1,26 @@
 package com.example.chat.service;
 
 
+import com.example.chat.dto.RoomDto;
 import com.example.chat.model.Room;
 import com.example.chat.repository.RoomRepository;
+import com.example.chat.util.Common;
+import com.example.chat.util.NdjsonWriter;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.example.chat.util.Dummy;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.io.OutputStream;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Stream;
 
 @Service
 public class RoomService {
@@ -20,17 +31,55 @@ public class RoomService {
     @Autowired
     RoomRepository roomRepository;
 
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Autowired
+    RoomRegistry roomRegistry;
+
+    @Autowired
+    IdleReaper idleReaper;
+
+    @Autowired
+    MessageHistoryService messageHistoryService;
+
+    @Autowired
+    MessageSearchService messageSearchService;
+
+    @Autowired
+    PresenceService presenceService;
+
 
     public Iterable<Room> findAll() {
         return roomRepository.findAll();
     }
 
+    public Page<RoomDto> findAll(Pageable pageable) {
+        return roomRepository.findPage(pageable);
+    }
+
+    /**
+     * Writes all the rooms as NDJSON, read from a DB cursor so the memory used does not depend on the number of rooms.
+     *
+     * @param output output where the rooms are written.
+     * @return the number of rooms written.
+     */
+    @Transactional(readOnly = true)
+    public long export(OutputStream output) {
+        try (Stream<RoomDto> rooms = roomRepository.streamAll()) {
+            return NdjsonWriter.write(objectMapper, output, rooms);
+        }
+    }
+
     public Optional<Room> findById(Long id) {
         return roomRepository.findById(id);
     }
 
     public Optional<Room> findByUuid(String uuid) {
-        return roomRepository.findByUuid(uuid);
+        UUID value = Common.tryParseUuid(uuid);
+        return value != null
+                ? roomRepository.findByUuid(value)
+                : Optional.empty();
     }
 
     public Optional<Room> findByTitle(String title) {
@@ -38,21 +87,42 @@ public class RoomService {
     }
 
     public Room create(Room room) {
-        return roomRepository.save(room);
+        Room roomCreated = roomRepository.save(room);
+        roomRegistry.register(roomCreated);
+        idleReaper.track(roomCreated);
+        return roomCreated;
     }
 
     public Room update(Long id, Room room) {
         Optional<Room> roomFound = findById(id);
-        return roomFound.isPresent()
+        Room roomUpdated = roomFound.isPresent()
                 ? roomRepository.save(room)
                 : null;
+        roomRegistry.register(roomUpdated);
+        roomFound.ifPresent(previous -> renamed(previous, roomUpdated));
+        return roomUpdated;
     }
 
     public Room update(String uuid, Room room) {
         Optional<Room> roomFound = findByUuid(uuid);
-        return roomFound.isPresent()
+        Room roomUpdated = roomFound.isPresent()
                 ? roomRepository.save(room)
                 : null;
+        roomRegistry.register(roomUpdated);
+        roomFound.ifPresent(previous -> renamed(previous, roomUpdated));
+        return roomUpdated;
+    }
+
+    /**
+     * Drops the state kept in memory by the previous title of a renamed room. The recent messages carry the title of
+     * the room, the history starts again under the new title. The members join the room again when they subscribe to
+     * its new destination.
+     */
+    private void renamed(Room previous, Room updated) {
+        if (updated != null && !Objects.equals(previous.getTitle(), updated.getTitle())) {
+            messageHistoryService.remove(previous.getTitle());
+            presenceService.remove(previous.getTitle());
+        }
     }
 
     public Room delete(Long id) {
@@ -62,6 +132,11 @@ public class RoomService {
         if (roomFound.isPresent()) {
             roomDeleted = roomFound.get();
             roomRepository.delete(roomDeleted);
+            roomRegistry.unregister(roomDeleted);
+            idleReaper.untrack(roomDeleted);
+            messageHistoryService.remove(roomDeleted.getTitle());
+            presenceService.remove(roomDeleted.getTitle());
+            messageSearchService.remove(roomDeleted.getId());
         }
 
         return roomDeleted;
@@ -74,6 +149,11 @@ public class RoomService {
         if (roomFound.isPresent()) {
             roomDeleted = roomFound.get();
             roomRepository.delete(roomDeleted);
+            roomRegistry.unregister(roomDeleted);
+            idleReaper.untrack(roomDeleted);
+            messageHistoryService.remove(roomDeleted.getTitle());
+            presenceService.remove(roomDeleted.getTitle());
+            messageSearchService.remove(roomDeleted.getId());
         }
 
         return roomDeleted;
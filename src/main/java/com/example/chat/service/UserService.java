@@ -1,12 +1,24 @@
 package com.example.chat.service;
 
 
+import com.example.chat.dto.UserDto;
 import com.example.chat.model.User;
 import com.example.chat.repository.UserRepository;
+import com.example.chat.security.CachingAuthenticationProvider;
+import com.example.chat.util.Common;
+import com.example.chat.util.NdjsonWriter;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.io.OutputStream;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Stream;
 
 @Service
 public class UserService {
@@ -14,37 +26,97 @@ public class UserService {
     @Autowired
     UserRepository userRepository;
 
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Autowired
+    PasswordEncoder passwordEncoder;
+
+    @Autowired
+    CachingAuthenticationProvider authenticationProvider;
+
+    @Autowired
+    IdleReaper idleReaper;
+
 
     public Iterable<User> findAll() {
         return userRepository.findAll();
     }
 
+    public Page<UserDto> findAll(Pageable pageable) {
+        return userRepository.findPage(pageable);
+    }
+
+    /**
+     * Writes all the users as NDJSON, read from a DB cursor so the memory used does not depend on the number of users.
+     *
+     * @param output output where the users are written.
+     * @return the number of users written.
+     */
+    @Transactional(readOnly = true)
+    public long export(OutputStream output) {
+        try (Stream<UserDto> users = userRepository.streamAll()) {
+            return NdjsonWriter.write(objectMapper, output, users);
+        }
+    }
+
     public Optional<User> findById(Long id) {
         return userRepository.findById(id);
     }
 
     public Optional<User> findByUuid(String uuid) {
-        return userRepository.findByUuid(uuid);
+        UUID value = Common.tryParseUuid(uuid);
+        return value != null
+                ? userRepository.findByUuid(value)
+                : Optional.empty();
+    }
+
+    public boolean existsByNickname(String nickname) {
+        return userRepository.existsByNickname(nickname);
     }
 
+    /**
+     * Creates a user, its password is provided in clear and stored encoded.
+     */
     public User create(User user) {
-        return userRepository.save(user);
+        if (user.getPassword() != null) {
+            user.setPassword(passwordEncoder.encode(user.getPassword()));
+        }
+        User userCreated = userRepository.save(user);
+        idleReaper.track(userCreated);
+        return userCreated;
     }
 
     public User update(Long id, User user) {
         Optional<User> userFound = findById(id);
         return userFound.isPresent()
-                ? userRepository.save(user)
+                ? save(userFound.get(), user)
                 : null;
     }
 
     public User update(String uuid, User user) {
         Optional<User> userFound = findByUuid(uuid);
         return userFound.isPresent()
-                ? userRepository.save(user)
+                ? save(userFound.get(), user)
                 : null;
     }
 
+    // The password is provided in clear and stored encoded, the current one is kept if none or the current hash is
+    // provided. The cached authentications of the user are invalidated by its previous and its new names.
+    private User save(User userFound, User user) {
+        user.setPassword(user.getPassword() != null && !user.getPassword().equals(userFound.getPassword())
+                ? passwordEncoder.encode(user.getPassword())
+                : userFound.getPassword());
+        User userSaved = userRepository.save(user);
+        invalidateAuthentications(userFound);
+        invalidateAuthentications(userSaved);
+        return userSaved;
+    }
+
+    private void invalidateAuthentications(User user) {
+        authenticationProvider.invalidate(user.getNickname(), user.getEmail());
+    }
+
     public User delete(Long id) {
         Optional<User> userFound = findById(id);
         User userDeleted = null;
@@ -52,6 +124,8 @@ public class UserService {
         if (userFound.isPresent()) {
             userDeleted = userFound.get();
             userRepository.delete(userDeleted);
+            invalidateAuthentications(userDeleted);
+            idleReaper.untrack(userDeleted);
         }
 
         return userDeleted;
@@ -64,6 +138,8 @@ public class UserService {
         if (userFound.isPresent()) {
             userDeleted = userFound.get();
             userRepository.delete(userDeleted);
+            invalidateAuthentications(userDeleted);
+            idleReaper.untrack(userDeleted);
         }
 
         return userDeleted;
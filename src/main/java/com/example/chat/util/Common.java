@@ -1,5 +1,9 @@
 package com.example.chat.util;
 
+import org.springframework.http.HttpHeaders;
+
+import java.time.Instant;
+import java.util.UUID;
 
 /**
  * Utility Class to facilitate common operations
@@ -17,5 +21,32 @@ public final class Common {
         return result;
     }
 
+    public static UUID tryParseUuid(String value) {
+        UUID result;
+        try {
+            result = value != null ? UUID.fromString(value) : null;
+        } catch (IllegalArgumentException e) {
+            result = null;
+        }
+
+        return result;
+    }
+
+    /**
+     * Builds the info headers of a REST response, the <code>status</code> header is added once the outcome is known.
+     *
+     * @param verb     HTTP method of the request.
+     * @param endpoint path of the request, without the leading slash.
+     * @return the headers with the verb, the endpoint and the timestamp of the response.
+     */
+    public static HttpHeaders infoHeaders(String verb, String endpoint) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("verb", verb);
+        headers.add("endpoint", endpoint);
+        headers.add("timestamp", Instant.now().toString());
+
+        return headers;
+    }
+
 
 }
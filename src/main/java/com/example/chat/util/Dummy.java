@@ -128,7 +128,7 @@ public final class Dummy {
         Instant createdAt = randomTimestampBetween(timestampNow.minus(60, ChronoUnit.DAYS), timestampNow.plus(60, ChronoUnit.DAYS));
 
         return new Room(null,
-                UUID.randomUUID().toString(),
+                TimeOrderedUuid.generate(),
                 dummy.job().field(),
                 dummy.lorem().sentence(10, 4),
                 null, //TODO set a random owner. Currently basic version only system rooms are allowed
@@ -241,7 +241,7 @@ public final class Dummy {
 
         return role.equals(User.Role.USER)
                 ? new User(null,
-                UUID.randomUUID().toString(),
+                TimeOrderedUuid.generate(),
                 role,
                 name,
                 dummy.name().lastName(),
@@ -251,7 +251,7 @@ public final class Dummy {
                 createdAt,
                 randomTimestampAfter(createdAt, 60))
                 : new User(null,
-                UUID.randomUUID().toString(),
+                TimeOrderedUuid.generate(),
                 role,
                 null,
                 null,
@@ -0,0 +1,459 @@
+package com.example.chat.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Inverted index of the texts of the documents of a single collection, like the messages of a chat room, for term and
+ * prefix queries that return the documents from the newest to the oldest.
+ * <p>
+ * The documents are added in order, the newest last, and they are numbered by a sequence. The index is divided in
+ * segments of up to {@value #SEGMENT_SIZE} documents: the newest segment takes the documents being added and, when it
+ * is full or on {@link #seal()}, it is sealed into an immutable segment with a sorted term dictionary and the postings
+ * of every term as 16 bit document numbers. A query is evaluated per segment, from the newest to the oldest,
+ * intersecting the bitsets of the documents of its terms, and stops as soon as it has the documents requested. The
+ * prefix of a term is looked up with a binary search in the dictionary of a sealed segment.
+ * <p>
+ * The terms are shared by all the segments of the index through its vocabulary, which counts the segments of every
+ * term: a term is dropped from the vocabulary with the last segment that has it, so a stream of distinct terms, like
+ * numbers, links or typos, does not grow the vocabulary beyond the segments kept. The memory of the index is estimated
+ * as the documents are added. The oldest sealed segments can be evicted to keep the memory of
+ * a set of indexes within a budget, their documents are no longer found. The number of segments sealed so far tells
+ * the owner of the index when there is a new segment to evict.
+ * <p>
+ * The index is thread safe. The documents are added and the segments evicted holding the lock of the index, the sealed
+ * segments are searched without it.
+ */
+public class InvertedIndex {
+
+    /**
+     * Documents per segment, the document numbers of a segment fit in 16 bits.
+     */
+    public static final int SEGMENT_SIZE = 4096;
+
+    /**
+     * Maximum length of a term, longer words are indexed and searched by their prefix.
+     */
+    public static final int MAX_TERM_LENGTH = 32;
+
+    // Estimated bytes of a term in the vocabulary, besides its characters, in the dictionary of a segment, besides its
+    // postings, and in the newest segment, with its entry in the tree and its growable postings
+    private static final int VOCABULARY_TERM_BYTES = 96;
+
+    private static final int TERM_BYTES = 32;
+
+    private static final int ACTIVE_TERM_BYTES = 96;
+
+    private static final int SEGMENT_BYTES = 64;
+
+    // Sealed segments from the oldest to the newest, replaced when a segment is sealed or evicted
+    private volatile Sealed[] sealed = new Sealed[0];
+
+    private Active active = new Active(0);
+
+    // Single instance of every term, shared by the segments, with the number of segments that have it
+    private final Map<String, SharedTerm> vocabulary = new HashMap<>();
+
+    // Sequence of the next document
+    private long sequence;
+
+    // Segments sealed since the index was created
+    private long sealCount;
+
+    private long memory = SEGMENT_BYTES + active.memory;
+
+
+    /**
+     * Term of a query.
+     *
+     * @param text   term, as tokenized.
+     * @param prefix true if the term matches all the terms that start with it.
+     */
+    public record Term(String text, boolean prefix) {
+    }
+
+    /**
+     * Document found by a query.
+     *
+     * @param id       id of the document.
+     * @param sequence sequence of the document in the index, to continue the query after it.
+     */
+    public record Hit(long id, long sequence) {
+    }
+
+    /**
+     * Splits a text in the distinct terms indexed: the words of letters and digits, in lower case, truncated to
+     * {@value #MAX_TERM_LENGTH} characters.
+     *
+     * @param text text of a document.
+     * @return the terms of the text, in order of appearance.
+     */
+    public static List<String> tokenize(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        int length = text.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean word = i < length && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                terms.add(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return new ArrayList<>(terms);
+    }
+
+    /**
+     * Parses a query: all its words must match, a word ending with <code>*</code> is a prefix.
+     *
+     * @param query query text, like <code>hello wor*</code>.
+     * @return the terms of the query, empty if it has no words.
+     */
+    public static List<Term> parse(String query) {
+        List<Term> terms = new ArrayList<>();
+        for (String word : query.trim().split("\\s+")) {
+            List<String> tokens = tokenize(word);
+            for (int i = 0; i < tokens.size(); i++) {
+                // The prefix applies to the last token of the word, a truncated token is matched as a prefix too
+                String token = tokens.get(i);
+                boolean prefix = (i == tokens.size() - 1 && word.endsWith("*")) || token.length() == MAX_TERM_LENGTH;
+                terms.add(new Term(token, prefix));
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Adds a document as the newest one.
+     *
+     * @param id   id of the document.
+     * @param text text of the document.
+     * @return the change of the estimated memory of the index, in bytes.
+     */
+    public synchronized long add(long id, String text) {
+        long before = memory;
+        if (active.count == SEGMENT_SIZE) {
+            sealActive();
+        }
+        List<String> terms = tokenize(text);
+        for (int i = 0; i < terms.size(); i++) {
+            SharedTerm term = vocabulary.get(terms.get(i));
+            if (term == null) {
+                term = new SharedTerm(terms.get(i));
+                vocabulary.put(term.text, term);
+                memory += VOCABULARY_TERM_BYTES + term.text.length();
+            }
+            if (!active.terms.containsKey(term.text)) {
+                term.segments++;
+            }
+            terms.set(i, term.text);
+        }
+        memory += active.add(id, terms);
+        sequence++;
+        return memory - before;
+    }
+
+    /**
+     * Finds the newest documents that match all the terms.
+     *
+     * @param terms  terms of the query.
+     * @param before sequence of the document to continue the query after, <code>Long.MAX_VALUE</code> to start with
+     *               the newest one.
+     * @param limit  maximum documents to find.
+     * @return the documents found, from the newest to the oldest.
+     */
+    public List<Hit> search(List<Term> terms, long before, int limit) {
+        List<Hit> hits = new ArrayList<>();
+        if (terms.isEmpty() || limit <= 0) {
+            return hits;
+        }
+        Sealed[] segments;
+        synchronized (this) {
+            segments = sealed;
+            active.search(terms, before, limit, hits);
+        }
+        for (int i = segments.length - 1; i >= 0 && hits.size() < limit; i--) {
+            segments[i].search(terms, before, limit, hits);
+        }
+        return hits;
+    }
+
+    /**
+     * Seals the newest segment before it is full, so it can be evicted.
+     *
+     * @return the change of the estimated memory of the index, in bytes, zero if the newest segment has no documents.
+     */
+    public synchronized long seal() {
+        if (active.count == 0) {
+            return 0;
+        }
+        long before = memory;
+        sealActive();
+        return memory - before;
+    }
+
+    /**
+     * @return the number of segments sealed since the index was created, full or by {@link #seal()}.
+     */
+    public synchronized long sealCount() {
+        return sealCount;
+    }
+
+    /**
+     * Evicts the oldest sealed segment, and the terms of the vocabulary that no other segment has.
+     *
+     * @return the estimated memory freed, in bytes, zero if there was no sealed segment.
+     */
+    public synchronized long evictOldest() {
+        if (sealed.length == 0) {
+            return 0;
+        }
+        Sealed segment = sealed[0];
+        sealed = Arrays.copyOfRange(sealed, 1, sealed.length);
+        long freed = segment.memory;
+        for (String text : segment.terms) {
+            SharedTerm term = vocabulary.get(text);
+            if (--term.segments == 0) {
+                vocabulary.remove(text);
+                freed += VOCABULARY_TERM_BYTES + text.length();
+            }
+        }
+        memory -= freed;
+        return freed;
+    }
+
+    /**
+     * @return the estimated memory of the index, in bytes.
+     */
+    public synchronized long memory() {
+        return memory;
+    }
+
+    /**
+     * @return the number of documents of the index, not counting the evicted ones.
+     */
+    public synchronized int size() {
+        int size = active.count;
+        for (Sealed segment : sealed) {
+            size += segment.count;
+        }
+        return size;
+    }
+
+    private void sealActive() {
+        Sealed segment = active.seal();
+        Sealed[] segments = Arrays.copyOf(sealed, sealed.length + 1);
+        segments[segments.length - 1] = segment;
+        sealed = segments;
+        memory += segment.memory - active.memory;
+        active = new Active(sequence);
+        memory += active.memory;
+        sealCount++;
+    }
+
+    private abstract static class Segment {
+
+        // Sequence of the first document
+        final long base;
+
+        long[] ids;
+
+        int count;
+
+        long memory;
+
+        Segment(long base, long[] ids) {
+            this.base = base;
+            this.ids = ids;
+        }
+
+        /**
+         * Sets the bits of the documents of the segment with the term.
+         */
+        abstract void match(Term term, long[] documents);
+
+        void search(List<Term> terms, long before, int limit, List<Hit> hits) {
+            if (count == 0 || base >= before) {
+                return;
+            }
+            long[] documents = null;
+            for (Term term : terms) {
+                long[] matches = new long[(count + 63) >>> 6];
+                match(term, matches);
+                if (documents == null) {
+                    documents = matches;
+                } else {
+                    for (int i = 0; i < documents.length; i++) {
+                        documents[i] &= matches[i];
+                    }
+                }
+            }
+
+            // From the newest document to the oldest one
+            int last = (int) Math.min(count, before - base) - 1;
+            for (int word = last >>> 6; word >= 0 && hits.size() < limit; word--) {
+                long bits = documents[word];
+                if (word == last >>> 6 && (last & 63) < 63) {
+                    bits &= (1L << ((last & 63) + 1)) - 1;
+                }
+                while (bits != 0 && hits.size() < limit) {
+                    int document = (word << 6) + 63 - Long.numberOfLeadingZeros(bits);
+                    hits.add(new Hit(ids[document], base + document));
+                    bits &= ~(1L << (document & 63));
+                }
+            }
+        }
+    }
+
+    /**
+     * Newest segment, taking the documents being added.
+     */
+    private static class Active extends Segment {
+
+        final TreeMap<String, Postings> terms = new TreeMap<>();
+
+        Active(long base) {
+            super(base, new long[64]);
+            this.memory = SEGMENT_BYTES + 16 + 8L * ids.length;
+        }
+
+        long add(long id, List<String> documentTerms) {
+            long before = memory;
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, Math.min(ids.length * 2, SEGMENT_SIZE));
+                memory += 8L * (ids.length - count);
+            }
+            ids[count] = id;
+            for (String term : documentTerms) {
+                Postings postings = terms.get(term);
+                if (postings == null) {
+                    postings = new Postings();
+                    terms.put(term, postings);
+                    memory += ACTIVE_TERM_BYTES;
+                }
+                memory += postings.add((short) count);
+            }
+            count++;
+            return memory - before;
+        }
+
+        @Override
+        void match(Term term, long[] documents) {
+            if (term.prefix()) {
+                for (Map.Entry<String, Postings> entry : terms.tailMap(term.text()).entrySet()) {
+                    if (!entry.getKey().startsWith(term.text())) {
+                        break;
+                    }
+                    entry.getValue().match(documents);
+                }
+            } else {
+                Postings postings = terms.get(term.text());
+                if (postings != null) {
+                    postings.match(documents);
+                }
+            }
+        }
+
+        Sealed seal() {
+            String[] dictionary = new String[terms.size()];
+            short[][] postings = new short[terms.size()][];
+            int i = 0;
+            for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+                dictionary[i] = entry.getKey();
+                postings[i] = Arrays.copyOf(entry.getValue().documents, entry.getValue().size);
+                i++;
+            }
+            return new Sealed(base, Arrays.copyOf(ids, count), dictionary, postings);
+        }
+    }
+
+    /**
+     * Immutable segment, with a sorted dictionary of terms.
+     */
+    private static class Sealed extends Segment {
+
+        final String[] terms;
+
+        final short[][] postings;
+
+        Sealed(long base, long[] ids, String[] terms, short[][] postings) {
+            super(base, ids);
+            this.count = ids.length;
+            this.terms = terms;
+            this.postings = postings;
+            long bytes = SEGMENT_BYTES + 16 + 8L * ids.length;
+            for (int i = 0; i < terms.length; i++) {
+                bytes += TERM_BYTES + 2L * postings[i].length;
+            }
+            this.memory = bytes;
+        }
+
+        @Override
+        void match(Term term, long[] documents) {
+            int index = Arrays.binarySearch(terms, term.text());
+            if (!term.prefix()) {
+                if (index >= 0) {
+                    set(postings[index], postings[index].length, documents);
+                }
+                return;
+            }
+            for (int i = index >= 0 ? index : -index - 1; i < terms.length && terms[i].startsWith(term.text()); i++) {
+                set(postings[i], postings[i].length, documents);
+            }
+        }
+    }
+
+    /**
+     * Term of the vocabulary.
+     */
+    private static class SharedTerm {
+
+        final String text;
+
+        // Segments with the term, the newest one included
+        int segments;
+
+        SharedTerm(String text) {
+            this.text = text;
+        }
+    }
+
+    /**
+     * Growable postings of a term in the newest segment.
+     */
+    private static class Postings {
+
+        short[] documents = new short[2];
+
+        int size;
+
+        long add(short document) {
+            long grown = 0;
+            if (size == documents.length) {
+                documents = Arrays.copyOf(documents, documents.length * 2);
+                grown = 2L * size;
+            }
+            documents[size++] = document;
+            return grown;
+        }
+
+        void match(long[] bits) {
+            set(documents, size, bits);
+        }
+    }
+
+    private static void set(short[] documents, int size, long[] bits) {
+        for (int i = 0; i < size; i++) {
+            int document = documents[i] & 0xFFFF;
+            bits[document >>> 6] |= 1L << (document & 63);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.chat.util;
+
+import java.nio.ByteBuffer;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.util.Base64;
+
+/**
+ * Position in the message history of a chat room used for keyset (seek) pagination: the creation timestamp and the id
+ * of the last message of a page. The next page starts just before that position.
+ * <p>
+ * It is exchanged with the clients as an opaque URL safe string, clients must not build or parse it.
+ *
+ * @param createdAt timestamp of the message
+ * @param id        id of the message, breaks the ties between messages with the same timestamp
+ */
+public record MessageCursor(Instant createdAt, Long id) {
+
+    private static final int ENCODED_LENGTH = Long.BYTES + Integer.BYTES + Long.BYTES;
+
+    public String encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(ENCODED_LENGTH)
+                .putLong(createdAt.getEpochSecond())
+                .putInt(createdAt.getNano())
+                .putLong(id);
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+    }
+
+    /**
+     * @param value cursor previously given by <code>encode()</code>
+     * @return the decoded cursor
+     * @throws IllegalArgumentException if the value is not a valid cursor
+     */
+    public static MessageCursor decode(String value) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Base64.getUrlDecoder().decode(value));
+            if (buffer.remaining() != ENCODED_LENGTH) {
+                throw new IllegalArgumentException("Invalid cursor: " + value);
+            }
+            Instant createdAt = Instant.ofEpochSecond(buffer.getLong(), buffer.getInt());
+            return new MessageCursor(createdAt, buffer.getLong());
+        } catch (DateTimeException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + value, e);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.chat.util;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+/**
+ * Writes streams of objects as newline delimited JSON (NDJSON), one JSON document per line.
+ * <p>
+ * The objects are serialized one at a time to the output as they are consumed from the stream, so the memory used does
+ * not depend on the number of objects written.
+ */
+public final class NdjsonWriter {
+
+    public static final String MEDIA_TYPE = "application/x-ndjson";
+
+    private NdjsonWriter() {}
+
+    /**
+     * @param objectMapper mapper used to serialize the objects.
+     * @param output       output where the lines are written. It is flushed at the end but not closed.
+     * @param objects      objects to write, consumed but not closed.
+     * @return the number of lines written.
+     */
+    public static long write(ObjectMapper objectMapper, OutputStream output, Stream<?> objects) {
+        // The output is flushed by the generator when its buffer is full, not after every line
+        ObjectWriter writer = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        long lines = 0;
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(output)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.setRootValueSeparator(null);
+
+            Iterator<?> iterator = objects.iterator();
+            while (iterator.hasNext()) {
+                writer.writeValue(generator, iterator.next());
+                generator.writeRaw('\n');
+                lines++;
+            }
+            generator.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return lines;
+    }
+}
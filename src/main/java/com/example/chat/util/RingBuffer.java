@@ -0,0 +1,110 @@
+package com.example.chat.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Fixed capacity circular buffer that keeps the last added elements.
+ * <p>
+ * Besides the capacity in number of elements, the buffer can be limited by a total weight, for example the estimated
+ * memory size of the elements given by the <code>weigher</code>. When adding an element exceeds any of the limits, the
+ * oldest elements are overwritten or discarded.
+ * <p>
+ * The buffer is thread safe. The operations lock only the buffer instance, so different buffers never contend.
+ *
+ * @param <E> type of the elements
+ */
+public class RingBuffer<E> {
+
+    private final Object[] elements;
+
+    private final int[] weights;
+
+    private final long maxWeight;
+
+    private final ToIntFunction<? super E> weigher;
+
+    // index of the oldest element
+    private int head;
+
+    private int size;
+
+    private long weight;
+
+
+    /**
+     * @param capacity  maximum number of elements.
+     * @param maxWeight maximum total weight of the elements.
+     * @param weigher   gives the weight of an element.
+     */
+    public RingBuffer(int capacity, long maxWeight, ToIntFunction<? super E> weigher) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be greater than zero: " + capacity);
+        }
+        this.elements = new Object[capacity];
+        this.weights = new int[capacity];
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Adds the element as the newest one, discarding the oldest ones when the capacity or the maximum weight are
+     * exceeded.
+     *
+     * @param element element to add
+     * @return the change of the total weight of the buffer.
+     */
+    public synchronized long add(E element) {
+        long weightBefore = weight;
+        int elementWeight = weigher.applyAsInt(element);
+
+        if (size == elements.length) {
+            removeOldest();
+        }
+        int tail = (head + size) % elements.length;
+        elements[tail] = element;
+        weights[tail] = elementWeight;
+        size++;
+        weight += elementWeight;
+
+        // Always keeps the newest element even if it exceeds the maximum weight by itself
+        while (weight > maxWeight && size > 1) {
+            removeOldest();
+        }
+
+        return weight - weightBefore;
+    }
+
+    /**
+     * @return a copy of the elements ordered from the oldest to the newest.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<E> snapshot() {
+        List<E> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add((E) elements[(head + i) % elements.length]);
+        }
+        return result;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long weight() {
+        return weight;
+    }
+
+    public int capacity() {
+        return elements.length;
+    }
+
+    private void removeOldest() {
+        weight -= weights[head];
+        elements[head] = null;
+        weights[head] = 0;
+        head = (head + 1) % elements.length;
+        size--;
+    }
+}
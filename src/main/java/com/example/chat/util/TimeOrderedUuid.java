@@ -0,0 +1,36 @@
+package com.example.chat.util;
+
+import java.security.SecureRandom;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generator of time ordered UUIDs, version 7 as defined by RFC 9562.
+ * <p>
+ * The 48 most significant bits are the Unix timestamp in milliseconds, followed by a 12 bits counter that orders the
+ * UUIDs generated in the same millisecond, and 62 random bits. The UUIDs generated by the application are strictly
+ * increasing, so the inserts in the unique indexes are appended at the end of the index instead of spread over it.
+ */
+public final class TimeOrderedUuid {
+
+    private static final ThreadLocal<SecureRandom> random = ThreadLocal.withInitial(SecureRandom::new);
+
+    // Timestamp in milliseconds shifted 12 bits plus the counter of the last generated UUID
+    private static final AtomicLong last = new AtomicLong();
+
+    private TimeOrderedUuid() {}
+
+    /**
+     * @return a new version 7 UUID, greater than any UUID generated before by this application.
+     */
+    public static UUID generate() {
+        long timestamp = System.currentTimeMillis() << 12;
+        // When the counter of the millisecond overflows it moves to the next millisecond
+        long sequence = last.updateAndGet(previous -> Math.max(timestamp, previous + 1));
+
+        long mostSigBits = ((sequence >>> 12) << 16) | 0x7000L | (sequence & 0xFFFL);
+        long leastSigBits = (random.get().nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+
+        return new UUID(mostSigBits, leastSigBits);
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.chat.util;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel, that schedules elements to expire at a deadline with O(1) scheduling and an expiration
+ * cost proportional to the expired elements, never to all the scheduled ones.
+ * <p>
+ * The time is divided in ticks. Every level of the wheel has 64 buckets, a bucket of the first level spans one tick
+ * and a bucket of the next level spans all the buckets of the previous one. An element is placed in the lowest level
+ * whose buckets reach its deadline. When the time enters a bucket of a higher level, the elements of that bucket are
+ * cascaded to the lower levels, so they expire on the tick of their deadline. The deadlines beyond the highest level
+ * are kept in its farthest bucket and rescheduled when it is cascaded.
+ * <p>
+ * Elements are not cancelled: the owner of an element checks, when it expires, whether it is still due, and schedules
+ * it again otherwise.
+ * <p>
+ * The wheel is thread safe. The operations lock only the wheel instance.
+ *
+ * @param <E> type of the elements
+ */
+public class TimingWheel<E> {
+
+    private static final int BITS = 6;
+
+    private static final int BUCKETS = 1 << BITS;
+
+    private static final int MASK = BUCKETS - 1;
+
+    private final long tickMillis;
+
+    private final int levels;
+
+    private final ArrayDeque<Timer<E>>[][] buckets;
+
+    // Current time, in ticks
+    private long time;
+
+    private int size;
+
+
+    /**
+     * @param tick      duration of a tick, the precision of the deadlines.
+     * @param levels    levels of the wheel, the deadlines up to <code>tick * 64^levels</code> are scheduled precisely.
+     * @param nowMillis current time in milliseconds, in the same timeline as the deadlines.
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(Duration tick, int levels, long nowMillis) {
+        if (tick.toMillis() <= 0 || levels <= 0 || BITS * levels >= Long.SIZE - 1) {
+            throw new IllegalArgumentException("Invalid tick or levels: " + tick + ", " + levels);
+        }
+        this.tickMillis = tick.toMillis();
+        this.levels = levels;
+        this.buckets = new ArrayDeque[levels][BUCKETS];
+        for (ArrayDeque<Timer<E>>[] level : buckets) {
+            for (int i = 0; i < BUCKETS; i++) {
+                level[i] = new ArrayDeque<>();
+            }
+        }
+        this.time = nowMillis / tickMillis;
+    }
+
+    /**
+     * Schedules the element to expire at the deadline, or at the next tick if the deadline has passed.
+     *
+     * @param element        element to schedule.
+     * @param deadlineMillis deadline in milliseconds.
+     */
+    public synchronized void schedule(E element, long deadlineMillis) {
+        long deadline = Math.max(Math.floorDiv(deadlineMillis + tickMillis - 1, tickMillis), time + 1);
+        insert(new Timer<>(element, deadline));
+        size++;
+    }
+
+    /**
+     * Advances the time of the wheel.
+     *
+     * @param nowMillis current time in milliseconds.
+     * @return the elements whose deadline is at or before the current time, in the order of their deadlines.
+     */
+    public synchronized List<E> advance(long nowMillis) {
+        List<E> expired = new ArrayList<>();
+        long target = nowMillis / tickMillis;
+        while (time < target) {
+            time++;
+            // Cascades the buckets of the higher levels that start on this tick
+            for (int level = 1; level < levels && (time & ((1L << (BITS * level)) - 1)) == 0; level++) {
+                cascade(buckets[level][(int) ((time >>> (BITS * level)) & MASK)], expired);
+            }
+            cascade(buckets[0][(int) (time & MASK)], expired);
+        }
+        return expired;
+    }
+
+    /**
+     * @return the number of scheduled elements.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private void insert(Timer<E> timer) {
+        long delta = timer.deadline - time;
+        int level = 0;
+        while (level < levels - 1 && delta >= 1L << (BITS * (level + 1))) {
+            level++;
+        }
+        // Beyond the highest level, in its farthest bucket
+        long deadline = Math.min(timer.deadline, time + (1L << (BITS * levels)) - 1);
+        buckets[level][(int) ((deadline >>> (BITS * level)) & MASK)].add(timer);
+    }
+
+    /**
+     * Expires the due elements of the bucket and moves the rest to the buckets of their deadline.
+     */
+    private void cascade(ArrayDeque<Timer<E>> bucket, List<E> expired) {
+        int count = bucket.size();
+        for (int i = 0; i < count; i++) {
+            Timer<E> timer = bucket.poll();
+            if (timer.deadline <= time) {
+                expired.add(timer.element);
+                size--;
+            } else {
+                insert(timer);
+            }
+        }
+    }
+
+    private record Timer<E>(E element, long deadline) {
+    }
+}
@@ -1,14 +1,25 @@
 package com.example.chat.webSocketController;
 
+import com.example.chat.dto.MessageDto;
 import com.example.chat.model.Message;
 import com.example.chat.model.Room;
 import com.example.chat.model.User;
+import com.example.chat.security.ChatPrincipal;
+import com.example.chat.service.MessageHistoryService;
+import com.example.chat.service.MessageService;
+import com.example.chat.service.RoomRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.messaging.handler.annotation.DestinationVariable;
+import org.springframework.messaging.handler.annotation.MessageExceptionHandler;
 import org.springframework.messaging.handler.annotation.MessageMapping;
 import org.springframework.messaging.handler.annotation.SendTo;
+import org.springframework.messaging.simp.annotation.SendToUser;
+import org.springframework.messaging.simp.annotation.SubscribeMapping;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.util.HtmlUtils;
 
+import java.util.List;
+
 
 /**
  * Controller Class to WebSocket message handling.
@@ -20,27 +31,87 @@ import org.springframework.web.util.HtmlUtils;
 @Controller
 public class RoomWebSocketController {
 
+    @Autowired
+    MessageService messageService;
+
+    @Autowired
+    MessageHistoryService messageHistoryService;
+
+    @Autowired
+    RoomRegistry roomRegistry;
+
     /**
-     * Handles the incoming message sent from the chat room, formats it including the sender and broadcasts the
-     * message to the subscribers of the corresponding chat room.
+     * Handles the incoming message sent from the chat room, escapes its content and broadcasts the message to the
+     * subscribers of the corresponding chat room.
+     * <p>
+     * The broadcast message is a compact <code>MessageDto</code>, with the room and the sender flattened to their title
+     * and nickname, instead of the <code>Message</code> entity with its <code>User</code> and <code>Room</code>
+     * graphs, so the frames sent to every subscriber stay small.
+     * <p>
+     * The room is resolved from the in memory <code>RoomRegistry</code>, without querying the DB. Messages to unknown
+     * rooms are rejected.
+     * <p>
+     * The message is handed to the <code>MessageService</code> write-behind to be persisted, the broadcast does not
+     * wait for the DB. And it is appended to the recent history of the room. When the write-behind is full or stopping
+     * the message is rejected, it is neither broadcast nor kept in the history, and the sender is told to retry.
+     * <p>
+     * The sender is the user authenticated when the session was connected, the user of the incoming message is
+     * ignored so a client can not send messages on behalf of another user.
      *
-     * @param room    chat room where the message belongs. Is part of the endpoint path.
-     * @param message incoming message from client sender
-     * @return the message to broadcast formatted with including the sender
-     * @throws Exception TODO ...
+     * @param room      chat room where the message belongs. Is part of the endpoint path.
+     * @param message   incoming message from client sender
+     * @param principal user of the session, resolved on the STOMP CONNECT frame
+     * @return the message to broadcast including the sender
+     * @throws IllegalArgumentException if the chat room does not exist
+     * @throws IllegalStateException    if the message can not be persisted
      */
     @MessageMapping("/chat/{room}")
     @SendTo("/topic/{room}")
-    public Message inboundMessage(@DestinationVariable String room, Message message) throws Exception {
+    public MessageDto inboundMessage(@DestinationVariable String room, Message message, ChatPrincipal principal)
+            throws Exception {
 
-        // NOTE: In this version all users are GUEST. Sets as sender and broadcast the message.
-        //       Following versions will add logic to users, chat rooms and persistence for the messages.
-        User user = message.getUser();
+        User user = new User(principal.id(), principal.uuid(), principal.role(), null, null, principal.nickname(),
+                null, true, null, null);
+        Room chatRoom = roomRegistry.findByTitle(room)
+                .orElseThrow(() -> new IllegalArgumentException("Unknown chat room: " + room));
+        Message inbound = new Message(HtmlUtils.htmlEscape(message.getContent()), user, chatRoom);
+        if (!messageService.saveAsync(inbound)) {
+            throw new IllegalStateException("Message not sent, the chat room is busy. Try again later");
+        }
 
-        return new Message(String.format("[%s] %s", user.getNickname(), HtmlUtils.htmlEscape(message.getContent())),
-                user,
-                new Room(room, user));
+        MessageDto outbound = new MessageDto(null, inbound.getUuid(), room, user.getNickname(), inbound.getContent(),
+                inbound.getCreatedAt());
+        messageHistoryService.add(room, outbound);
 
+        return outbound;
+
+    }
+
+    /**
+     * Backfills the recent history of the chat room when a client joins it. The client subscribes to
+     * <pre>{@code /app/history/{room} }</pre>
+     * and receives once, directly and not through the broker, the last broadcast messages of the room from memory.
+     *
+     * @param room chat room to get the history. Is part of the endpoint path.
+     * @return the recent messages of the room, ordered from the oldest to the newest.
+     */
+    @SubscribeMapping("/history/{room}")
+    public List<MessageDto> history(@DestinationVariable String room) {
+        return messageHistoryService.findRecent(room);
+    }
+
+    /**
+     * Reports to the sender the messages that have been rejected, for example because the chat room does not exist
+     * or the message could not be queued to be persisted. The client receives the errors subscribing to
+     * <pre>{@code /user/queue/errors }</pre>
+     *
+     * @param exception reason of the rejection
+     * @return the error description
+     */
+    @MessageExceptionHandler({IllegalArgumentException.class, IllegalStateException.class})
+    @SendToUser(destinations = "/queue/errors", broadcast = false)
+    public String handleRejected(RuntimeException exception) {
+        return exception.getMessage();
     }
 
 }
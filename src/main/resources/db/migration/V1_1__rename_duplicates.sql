@@ -0,0 +1,13 @@
+-- Duplicates of the columns given a unique index by V2 and V3, kept by the oldest row (lowest ID). The other accounts and
+-- rooms are renamed with their ID appended ("jane#51") and can be renamed by hand afterwards, their duplicate emails are
+-- removed, as the email is optional and only signs in one account. Databases already migrated past V3 have no
+-- duplicates left, there this migration changes nothing.
+
+update ACCOUNT A set NICKNAME = left(A.NICKNAME, 235) || '#' || A.ID
+    where exists (select 1 from ACCOUNT B where B.NICKNAME = A.NICKNAME and B.ID < A.ID);
+
+update ROOM A set TITLE = left(A.TITLE, 235) || '#' || A.ID
+    where exists (select 1 from ROOM B where B.TITLE = A.TITLE and B.ID < A.ID);
+
+update ACCOUNT A set EMAIL = null
+    where exists (select 1 from ACCOUNT B where B.EMAIL = A.EMAIL and B.ID < A.ID);
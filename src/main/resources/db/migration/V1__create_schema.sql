@@ -0,0 +1,51 @@
+-- Chat schema as previously created by Hibernate (ddl-auto=update).
+-- Every statement is conditional, so databases created by Hibernate are migrated without changes.
+
+create sequence if not exists ACCOUNT_SEQ start with 1 increment by 50;
+create sequence if not exists ROOM_SEQ start with 1 increment by 50;
+create sequence if not exists MESSAGE_SEQ start with 1 increment by 50;
+
+create table if not exists ACCOUNT (
+    ID         bigint not null,
+    UUID       varchar(255),
+    ROLE       varchar(255) check (ROLE in ('SYSTEM', 'ADMIN', 'USER', 'GUEST')),
+    NAME       varchar(255),
+    SURNAME    varchar(255),
+    NICKNAME   varchar(255),
+    EMAIL      varchar(255),
+    ACTIVE     boolean,
+    CREATED_AT timestamp(6) with time zone,
+    UPDATED_AT timestamp(6) with time zone,
+    primary key (ID)
+);
+
+create table if not exists ROOM (
+    ID          bigint not null,
+    UUID        varchar(255),
+    TITLE       varchar(255),
+    DESCRIPTION varchar(255),
+    ACCOUNT_ID  bigint,
+    CREATED_AT  timestamp(6) with time zone,
+    UPDATED_AT  timestamp(6) with time zone,
+    primary key (ID)
+);
+
+create table if not exists MESSAGE (
+    ID         bigint not null,
+    UUID       varchar(255),
+    ACCOUNT_ID bigint,
+    ROOM_ID    bigint,
+    CONTENT    varchar(255),
+    CREATED_AT timestamp(6) with time zone,
+    primary key (ID)
+);
+
+create index if not exists IDX_MESSAGE_ROOM_CREATED_AT_ID on MESSAGE (ROOM_ID, CREATED_AT, ID);
+
+-- Foreign key names generated by Hibernate
+alter table ROOM add constraint if not exists FK7FUEV6U40HPGTQ0FNBILJ21N2
+    foreign key (ACCOUNT_ID) references ACCOUNT (ID);
+alter table MESSAGE add constraint if not exists FKL1KG5A2471CV6PKEW0GDGJRMO
+    foreign key (ROOM_ID) references ROOM (ID);
+alter table MESSAGE add constraint if not exists FK4HBJ90CTOPCCUPTMPIUU65CD9
+    foreign key (ACCOUNT_ID) references ACCOUNT (ID);
@@ -0,0 +1,20 @@
+-- UUIDs stored in the native UUID type (16 bytes) and unique indexes for the lookups by uuid, room title and user
+-- nickname. Rows created before the UUIDs were assigned get a random one.
+
+update ACCOUNT set UUID = random_uuid() where UUID is null;
+update ROOM set UUID = random_uuid() where UUID is null;
+update MESSAGE set UUID = random_uuid() where UUID is null;
+
+alter table ACCOUNT alter column UUID set data type uuid;
+alter table ROOM alter column UUID set data type uuid;
+alter table MESSAGE alter column UUID set data type uuid;
+
+alter table ACCOUNT alter column UUID set not null;
+alter table ROOM alter column UUID set not null;
+alter table MESSAGE alter column UUID set not null;
+
+create unique index UK_ACCOUNT_UUID on ACCOUNT (UUID);
+create unique index UK_ACCOUNT_NICKNAME on ACCOUNT (NICKNAME);
+create unique index UK_ROOM_UUID on ROOM (UUID);
+create unique index UK_ROOM_TITLE on ROOM (TITLE);
+create unique index UK_MESSAGE_UUID on MESSAGE (UUID);
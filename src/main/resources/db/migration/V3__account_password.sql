@@ -0,0 +1,6 @@
+-- Password hash of the accounts that sign in, in the format of the Spring Security delegating password encoder
+-- ("{bcrypt}..."). Guests have no password. Unique email index for the sign in by email.
+
+alter table ACCOUNT add column if not exists PASSWORD varchar(255);
+
+create unique index UK_ACCOUNT_EMAIL on ACCOUNT (EMAIL);
@@ -0,0 +1,6 @@
+-- Indexes for the idle reaper: the guests loaded by role at startup, and the rooms and messages of the expired guests
+-- deleted by owner and author.
+
+create index if not exists IDX_ACCOUNT_ROLE on ACCOUNT (ROLE);
+create index if not exists IDX_ROOM_ACCOUNT_ID on ROOM (ACCOUNT_ID);
+create index if not exists IDX_MESSAGE_ACCOUNT_ID on MESSAGE (ACCOUNT_ID);
@@ -0,0 +1,105 @@
+package com.example.chat.benchmark;
+
+import com.example.chat.dto.MessageDto;
+import com.example.chat.messaging.SharedFrameStompEncoder;
+import com.example.chat.util.TimeOrderedUuid;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompDecoder;
+import org.springframework.messaging.simp.stomp.StompEncoder;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.util.MimeTypeUtils;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the STOMP encoding of the MESSAGE frames of one broadcast to all the subscribers of a room, with the
+ * default <code>StompEncoder</code> (one full encoding per subscriber) and with the
+ * <code>SharedFrameStompEncoder</code> (one shared encoding per broadcast plus the per-subscription headers).
+ * <p>
+ * Each invocation is a new broadcast, a new payload instance, so the shared encoding cost is included. See the README
+ * to run the benchmarks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanOutEncodingBenchmark {
+
+    @Param({"1", "100", "10000"})
+    int subscribers;
+
+    @Param({"default", "shared"})
+    String encoder;
+
+    private StompEncoder stompEncoder;
+
+    private byte[] payload;
+
+    private List<Map<String, Object>> subscriberHeaders;
+
+
+    @Setup
+    public void setup() throws JsonProcessingException {
+        stompEncoder = "shared".equals(encoder) ? new SharedFrameStompEncoder() : new StompEncoder();
+        payload = Jackson2ObjectMapperBuilder.json().build().writeValueAsBytes(new MessageDto(null,
+                TimeOrderedUuid.generate(), "lobby", "jane", "Hello everybody, how are you?", Instant.now()));
+
+        subscriberHeaders = new ArrayList<>(subscribers);
+        for (int i = 0; i < subscribers; i++) {
+            StompHeaderAccessor accessor = StompHeaderAccessor.create(StompCommand.MESSAGE);
+            accessor.setDestination("/topic/lobby");
+            accessor.setContentType(MimeTypeUtils.APPLICATION_JSON);
+            accessor.setSubscriptionId("sub-0");
+            accessor.setMessageId("session" + i + "-" + i);
+            subscriberHeaders.add(accessor.getMessageHeaders());
+        }
+
+        verifyFramesEquivalent();
+    }
+
+    @Benchmark
+    public void broadcast(Blackhole blackhole) {
+        byte[] broadcastPayload = payload.clone();
+        for (Map<String, Object> headers : subscriberHeaders) {
+            blackhole.consume(stompEncoder.encode(headers, broadcastPayload));
+        }
+    }
+
+    /**
+     * Fails the setup if the frame decoded from the shared encoding differs from the default one.
+     */
+    private void verifyFramesEquivalent() {
+        StompDecoder decoder = new StompDecoder();
+        Map<String, Object> headers = subscriberHeaders.get(subscriberHeaders.size() - 1);
+        Message<byte[]> expected = decoder.decode(ByteBuffer.wrap(new StompEncoder().encode(headers, payload))).get(0);
+        Message<byte[]> actual = decoder.decode(ByteBuffer.wrap(stompEncoder.encode(headers, payload))).get(0);
+
+        if (!Arrays.equals(expected.getPayload(), actual.getPayload())
+                || !StompHeaderAccessor.wrap(expected).toNativeHeaderMap()
+                        .equals(StompHeaderAccessor.wrap(actual).toNativeHeaderMap())) {
+            throw new IllegalStateException("Frames are not equivalent");
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(FanOutEncodingBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.chat.benchmark;
+
+import com.example.chat.security.CachingJwtDecoder;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.source.ImmutableJWKSet;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.security.oauth2.jwt.*;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the decoding of RS256 bearer tokens by the <code>NimbusJwtDecoder</code>, which verifies the signature of
+ * every token, and by the <code>CachingJwtDecoder</code>, which verifies a token only the first time.
+ * <p>
+ * The tokens are decoded round robin from a set of distinct tokens, like the requests of that many clients. See the
+ * README to run the benchmarks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JwtDecodingBenchmark {
+
+    @Param({"1", "1000"})
+    int clients;
+
+    private String[] tokens;
+
+    private JwtDecoder uncached;
+
+    private JwtDecoder cached;
+
+    private int next;
+
+
+    @Setup
+    public void setup() throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        RSAPublicKey publicKey = (RSAPublicKey) keyPair.getPublic();
+
+        JwtEncoder encoder = new NimbusJwtEncoder(new ImmutableJWKSet<>(new JWKSet(
+                new RSAKey.Builder(publicKey).privateKey((RSAPrivateKey) keyPair.getPrivate()).build())));
+        Instant issuedAt = Instant.now();
+        tokens = new String[clients];
+        for (int i = 0; i < clients; i++) {
+            JwtClaimsSet claims = JwtClaimsSet.builder()
+                    .issuer("self")
+                    .issuedAt(issuedAt)
+                    .expiresAt(issuedAt.plus(Duration.ofHours(1)))
+                    .subject("user" + i)
+                    .claim("scope", "app")
+                    .build();
+            tokens[i] = encoder.encode(JwtEncoderParameters.from(claims)).getTokenValue();
+        }
+
+        uncached = NimbusJwtDecoder.withPublicKey(publicKey).build();
+        cached = new CachingJwtDecoder(NimbusJwtDecoder.withPublicKey(publicKey).build(), 100_000,
+                Duration.ofHours(1), 100_000, new SimpleMeterRegistry());
+    }
+
+    @Benchmark
+    public Jwt uncached() {
+        return uncached.decode(nextToken());
+    }
+
+    @Benchmark
+    public Jwt cached() {
+        return cached.decode(nextToken());
+    }
+
+    private String nextToken() {
+        String token = tokens[next];
+        next = next + 1 < tokens.length ? next + 1 : 0;
+        return token;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(JwtDecodingBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.chat.benchmark;
+
+import com.example.chat.security.JwkSourceJwtDecoders;
+import com.example.chat.security.JwsAlgorithms;
+import com.example.chat.security.RotatingJwkSource;
+import com.example.chat.security.RotatingJwtEncoder;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.jwk.JWKSet;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.security.oauth2.jwt.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the signature of the login tokens and of their verification, for every supported JWS algorithm.
+ * <p>
+ * The signature is the cost of a login, the verification the cost of a request whose token is not in the
+ * <code>CachingJwtDecoder</code> yet. See the README to run the benchmarks.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JwtSigningBenchmark {
+
+    @Param({"RS256", "ES256", "EdDSA", "HS256"})
+    String algorithm;
+
+    private JwtEncoder encoder;
+
+    private JwtDecoder decoder;
+
+    private JwtEncoderParameters parameters;
+
+    private String token;
+
+
+    @Setup
+    public void setup() throws JOSEException {
+        JWSAlgorithm jwsAlgorithm = JwsAlgorithms.parse(algorithm);
+        RotatingJwkSource jwkSource = new RotatingJwkSource(
+                new JWKSet(JwsAlgorithms.generate(jwsAlgorithm, "benchmark")), jwsAlgorithm);
+        encoder = new RotatingJwtEncoder(jwkSource);
+        decoder = JwkSourceJwtDecoders.create(jwkSource);
+
+        Instant issuedAt = Instant.now();
+        JwtClaimsSet claims = JwtClaimsSet.builder()
+                .issuer("self")
+                .issuedAt(issuedAt)
+                .expiresAt(issuedAt.plus(Duration.ofHours(1)))
+                .subject("user")
+                .claim("scope", "app")
+                .build();
+        parameters = JwtEncoderParameters.from(claims);
+        token = encoder.encode(parameters).getTokenValue();
+    }
+
+    @Benchmark
+    public Jwt sign() {
+        return encoder.encode(parameters);
+    }
+
+    @Benchmark
+    public Jwt verify() {
+        return decoder.decode(token);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(JwtSigningBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.chat.benchmark;
+
+import com.example.chat.dto.MessageDto;
+import com.example.chat.model.Message;
+import com.example.chat.model.Room;
+import com.example.chat.model.User;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the serialization of a broadcast chat message as the <code>Message</code> entity, with its
+ * <code>User</code> and <code>Room</code> graphs, and as the compact <code>MessageDto</code>.
+ * <p>
+ * The bytes per frame of each representation are printed at setup. See the README to run the benchmarks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageSerializationBenchmark {
+
+    /**
+     * Previous messages and rooms of the sender loaded in its entity graph. The collections of the entities are ignored
+     * by Jackson, so they do not change the size of the entity frame anymore.
+     */
+    @Param({"0", "10", "100"})
+    int userGraphSize;
+
+    private ObjectMapper objectMapper;
+
+    private Message entity;
+
+    private MessageDto dto;
+
+
+    @Setup
+    public void setup() throws JsonProcessingException {
+        objectMapper = Jackson2ObjectMapperBuilder.json().build();
+
+        User system = new User(User.Role.SYSTEM, "System", "System", "system", "system@example.com");
+        User sender = new User(User.Role.USER, "Jane", "Doe", "jane", "jane@example.com");
+        Room room = new Room("lobby", "Chat room for everybody", system);
+
+        // Related entities are not linked back to the sender to avoid cycles
+        List<Room> rooms = new ArrayList<>();
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < userGraphSize; i++) {
+            rooms.add(new Room("room-" + i, "Room of Jane number " + i, system));
+            messages.add(new Message("Previous message number " + i, null, room));
+        }
+        sender.setRooms(rooms);
+        sender.setMessages(messages);
+
+        entity = new Message("Hello everybody, how are you?", sender, room);
+        dto = new MessageDto(null, entity.getUuid(), room.getTitle(), sender.getNickname(), entity.getContent(),
+                entity.getCreatedAt());
+
+        System.out.printf("%nBytes per frame (user graph %d): entity=%d, dto=%d%n", userGraphSize,
+                objectMapper.writeValueAsBytes(entity).length, objectMapper.writeValueAsBytes(dto).length);
+    }
+
+    @Benchmark
+    public byte[] entity() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(entity);
+    }
+
+    @Benchmark
+    public byte[] dto() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(dto);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(MessageSerializationBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
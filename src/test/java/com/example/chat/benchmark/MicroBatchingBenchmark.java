@@ -0,0 +1,147 @@
+package com.example.chat.benchmark;
+
+import com.example.chat.dto.MessageDto;
+import com.example.chat.messaging.AdaptiveBatch;
+import com.example.chat.messaging.SharedFrameStompEncoder;
+import com.example.chat.util.TimeOrderedUuid;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.util.MimeTypeUtils;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the outbound frames of a busy room, 1000 messages per second to 5000 subscribers, sent one frame per
+ * message and micro-batched by an <code>AdaptiveBatch</code> as the <code>RoomBatcher</code> does.
+ * <p>
+ * An invocation is one second of the room in simulated time, one message every millisecond: the frames of the second
+ * are encoded by the <code>SharedFrameStompEncoder</code> for every subscriber. Each frame sent to a subscriber is a
+ * WebSocket write, a syscall, the frames and bytes written per second are printed at the end of the trial. See the
+ * README to run the benchmarks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MicroBatchingBenchmark {
+
+    private static final int MESSAGES_PER_SECOND = 1000;
+
+    private static final int SUBSCRIBERS = 5000;
+
+    private static final long MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Minimum window of the batches in milliseconds, 0 to send a frame per message.
+     */
+    @Param({"0", "5"})
+    int minWindow;
+
+    @Param({"20"})
+    int maxWindow;
+
+    private byte[][] payloads;
+
+    private List<Map<String, Object>> subscriberHeaders;
+
+    private SharedFrameStompEncoder encoder;
+
+    private long seconds;
+
+    private long frames;
+
+    private long bytes;
+
+
+    @Setup
+    public void setup() throws JsonProcessingException {
+        ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        payloads = new byte[MESSAGES_PER_SECOND][];
+        for (int i = 0; i < payloads.length; i++) {
+            payloads[i] = objectMapper.writeValueAsBytes(new MessageDto(null, TimeOrderedUuid.generate(), "lobby",
+                    "jane", "Hello everybody, this is the message " + i, Instant.now()));
+        }
+
+        subscriberHeaders = new ArrayList<>(SUBSCRIBERS);
+        for (int i = 0; i < SUBSCRIBERS; i++) {
+            StompHeaderAccessor accessor = StompHeaderAccessor.create(StompCommand.MESSAGE);
+            accessor.setDestination(minWindow > 0 ? "/topic/batch/lobby" : "/topic/lobby");
+            accessor.setContentType(MimeTypeUtils.APPLICATION_JSON);
+            accessor.setSubscriptionId("sub-0");
+            accessor.setMessageId("session" + i + "-" + i);
+            subscriberHeaders.add(accessor.getMessageHeaders());
+        }
+        encoder = new SharedFrameStompEncoder();
+    }
+
+    @TearDown
+    public void report() {
+        System.out.printf("%nminWindow=%d ms: %d frames and %d bytes written per second%n", minWindow,
+                frames / seconds, bytes / seconds);
+    }
+
+    @Benchmark
+    public void second(Blackhole blackhole) {
+        if (minWindow == 0) {
+            for (byte[] payload : payloads) {
+                fanOut(payload.clone(), blackhole);
+            }
+        } else {
+            batched(blackhole);
+        }
+        seconds++;
+    }
+
+    private void batched(Blackhole blackhole) {
+        AdaptiveBatch batch = new AdaptiveBatch(minWindow * MILLISECOND, maxWindow * MILLISECOND, 16 * 1024, 0);
+        long deadline = -1;
+        for (int i = 0; i < payloads.length; i++) {
+            long now = i * MILLISECOND;
+            if (deadline >= 0 && deadline <= now) {
+                fanOut(batch.flush(deadline), blackhole);
+                deadline = -1;
+            }
+            switch (batch.offer(payloads[i], now)) {
+                case FLUSH -> {
+                    fanOut(batch.flush(now), blackhole);
+                    deadline = -1;
+                }
+                case SCHEDULE -> deadline = batch.deadline();
+                case WAIT -> {
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            fanOut(batch.flush(deadline), blackhole);
+        }
+    }
+
+    private void fanOut(byte[] payload, Blackhole blackhole) {
+        for (Map<String, Object> headers : subscriberHeaders) {
+            byte[] frame = encoder.encode(headers, payload);
+            bytes += frame.length;
+            blackhole.consume(frame);
+        }
+        frames += subscriberHeaders.size();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(MicroBatchingBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.chat.benchmark;
+
+import com.example.chat.util.InvertedIndex;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the message search of a chat room: the cost to index a message, and to find the newest page of a term, a
+ * prefix and a two terms query in a room with the given number of messages.
+ * <p>
+ * The messages are random sentences of a vocabulary of a few thousand words with a skewed frequency, so some words are
+ * in most of the messages and others in a few. The estimated memory of the index is printed at setup. See the README to
+ * run the benchmarks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchIndexBenchmark {
+
+    private static final int WORDS = 5000;
+
+    private static final int PAGE = 50;
+
+    /**
+     * Messages of the room.
+     */
+    @Param({"10000", "1000000"})
+    int messages;
+
+    private InvertedIndex index;
+
+    private String[] texts;
+
+    private int next;
+
+    private List<InvertedIndex.Term> rareTerm;
+
+    private List<InvertedIndex.Term> prefix;
+
+    private List<InvertedIndex.Term> twoTerms;
+
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        texts = new String[1024];
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = sentence(random);
+        }
+        index = new InvertedIndex();
+        for (int i = 0; i < messages; i++) {
+            index.add(i, texts[i % texts.length]);
+        }
+        next = messages;
+
+        // w0 is in most of the messages, w2000 in a few
+        rareTerm = InvertedIndex.parse("w2000");
+        prefix = InvertedIndex.parse("w12*");
+        twoTerms = InvertedIndex.parse("w0 w20");
+
+        System.out.printf("%nIndex of %d messages: %d MB%n", messages, index.memory() >> 20);
+    }
+
+    @Benchmark
+    public long add() {
+        // Grows the index, the measure is of the append path rather than of a fixed size
+        int i = next++;
+        return index.add(i, texts[i % texts.length]);
+    }
+
+    @Benchmark
+    public List<InvertedIndex.Hit> rareTerm() {
+        return index.search(rareTerm, Long.MAX_VALUE, PAGE);
+    }
+
+    @Benchmark
+    public List<InvertedIndex.Hit> prefix() {
+        return index.search(prefix, Long.MAX_VALUE, PAGE);
+    }
+
+    @Benchmark
+    public List<InvertedIndex.Hit> twoTerms() {
+        return index.search(twoTerms, Long.MAX_VALUE, PAGE);
+    }
+
+    private static String sentence(Random random) {
+        StringBuilder sentence = new StringBuilder();
+        int length = 5 + random.nextInt(15);
+        for (int i = 0; i < length; i++) {
+            // Zipf like: the low numbers are much more frequent
+            int word = (int) (WORDS * Math.pow(random.nextDouble(), 3));
+            sentence.append('w').append(word).append(' ');
+        }
+        return sentence.toString();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SearchIndexBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
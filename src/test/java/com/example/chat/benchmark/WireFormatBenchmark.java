@@ -0,0 +1,102 @@
+package com.example.chat.benchmark;
+
+import com.example.chat.dto.MessageDto;
+import com.example.chat.messaging.CborWireFormat;
+import com.example.chat.util.TimeOrderedUuid;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the JSON and the CBOR wire formats of a broadcast chat message: the cost to encode and decode a
+ * <code>MessageDto</code> in each format, and to transcode the JSON broadcast to CBOR as the server does once per
+ * broadcast for the CBOR subscribers.
+ * <p>
+ * The bytes per message of each format are printed at setup. See the README to run the benchmarks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WireFormatBenchmark {
+
+    /**
+     * Characters of the content of the message.
+     */
+    @Param({"30", "300"})
+    int contentLength;
+
+    private ObjectMapper jsonMapper;
+
+    private ObjectMapper cborMapper;
+
+    private CborWireFormat wireFormat;
+
+    private MessageDto message;
+
+    private byte[] json;
+
+    private byte[] cbor;
+
+
+    @Setup
+    public void setup() throws IOException {
+        // Same JSON as the broadcasts, with ISO timestamps
+        jsonMapper = Jackson2ObjectMapperBuilder.json()
+                .featuresToDisable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+                .build();
+        wireFormat = new CborWireFormat(jsonMapper, new SimpleMeterRegistry());
+        cborMapper = wireFormat.getObjectMapper();
+
+        message = new MessageDto(null, TimeOrderedUuid.generate(), "lobby", "jane",
+                "Hello everybody, how are you? ".repeat(contentLength / 30 + 1).substring(0, contentLength),
+                Instant.now());
+        json = jsonMapper.writeValueAsBytes(message);
+        cbor = cborMapper.writeValueAsBytes(message);
+
+        System.out.printf("%nBytes per message (content %d): json=%d, cbor=%d%n", contentLength, json.length,
+                cbor.length);
+    }
+
+    @Benchmark
+    public byte[] jsonEncode() throws IOException {
+        return jsonMapper.writeValueAsBytes(message);
+    }
+
+    @Benchmark
+    public byte[] cborEncode() throws IOException {
+        return cborMapper.writeValueAsBytes(message);
+    }
+
+    @Benchmark
+    public MessageDto jsonDecode() throws IOException {
+        return jsonMapper.readValue(json, MessageDto.class);
+    }
+
+    @Benchmark
+    public MessageDto cborDecode() throws IOException {
+        return cborMapper.readValue(cbor, MessageDto.class);
+    }
+
+    @Benchmark
+    public byte[] transcode() throws IOException {
+        return wireFormat.toCbor(json);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(WireFormatBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
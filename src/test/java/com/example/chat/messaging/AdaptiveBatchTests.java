@@ -0,0 +1,105 @@
+package com.example.chat.messaging;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Adaptive window of a batch: an idle payload is flushed at once, a burst waits for the window, the size threshold
+ * flushes early and the window doubles with the bursts and halves with the single payloads.
+ */
+class AdaptiveBatchTests {
+
+    private static final long MS = 1_000_000;
+
+    private static final long START = 1_000 * MS;
+
+
+    @Test
+    void idlePayloadIsFlushedAtOnce() {
+        AdaptiveBatch batch = new AdaptiveBatch(10 * MS, 80 * MS, 1024, START);
+
+        assertEquals(AdaptiveBatch.Decision.FLUSH, batch.offer(json(1), START));
+        assertEquals("[{\"n\":1}]", flush(batch, START));
+    }
+
+    @Test
+    void burstWaitsForTheWindow() {
+        AdaptiveBatch batch = new AdaptiveBatch(10 * MS, 80 * MS, 1024, START);
+        batch.offer(json(0), START);
+        flush(batch, START);
+
+        // Within the window of the previous flush
+        assertEquals(AdaptiveBatch.Decision.SCHEDULE, batch.offer(json(1), START + 2 * MS));
+        assertEquals(START + 10 * MS, batch.deadline());
+        assertEquals(AdaptiveBatch.Decision.WAIT, batch.offer(json(2), START + 3 * MS));
+        assertEquals(2, batch.size());
+        assertEquals("[{\"n\":1},{\"n\":2}]", flush(batch, START + 10 * MS));
+        assertTrue(batch.isEmpty());
+    }
+
+    @Test
+    void sizeThresholdFlushesBeforeTheWindow() {
+        // Payloads of 7 bytes, the third one reaches the threshold
+        AdaptiveBatch batch = new AdaptiveBatch(10 * MS, 80 * MS, 20, START);
+        batch.offer(json(0), START);
+        flush(batch, START);
+
+        assertEquals(AdaptiveBatch.Decision.SCHEDULE, batch.offer(json(1), START + MS));
+        assertEquals(AdaptiveBatch.Decision.WAIT, batch.offer(json(2), START + MS));
+        assertEquals(AdaptiveBatch.Decision.FLUSH, batch.offer(json(3), START + MS));
+
+        // A single payload over the threshold is flushed at once too
+        flush(batch, START + MS);
+        assertEquals(AdaptiveBatch.Decision.FLUSH, batch.offer(new byte[32], START + 2 * MS));
+    }
+
+    @Test
+    void windowAdaptsWithinItsBounds() {
+        AdaptiveBatch batch = new AdaptiveBatch(10 * MS, 80 * MS, 1024, START);
+        long now = START;
+
+        // Bursts double the window up to the maximum
+        for (int i = 0; i < 5; i++) {
+            batch.offer(json(1), now);
+            batch.offer(json(2), now);
+            flush(batch, now);
+        }
+        assertEquals(80 * MS, batch.getWindowNanos());
+
+        // Single payloads halve it down to the minimum
+        for (int i = 0; i < 5; i++) {
+            now += 100 * MS;
+            batch.offer(json(1), now);
+            flush(batch, now);
+        }
+        assertEquals(10 * MS, batch.getWindowNanos());
+    }
+
+    @Test
+    void emptyFlushIsAnEmptyArray() {
+        AdaptiveBatch batch = new AdaptiveBatch(10 * MS, 80 * MS, 1024, START);
+
+        assertArrayEquals("[]".getBytes(StandardCharsets.UTF_8), batch.flush(START));
+        assertEquals(10 * MS, batch.getWindowNanos());
+    }
+
+    @Test
+    void invalidWindowsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new AdaptiveBatch(0, 80 * MS, 1024, START));
+        assertThrows(IllegalArgumentException.class, () -> new AdaptiveBatch(80 * MS, 10 * MS, 1024, START));
+    }
+
+    private static byte[] json(int n) {
+        return ("{\"n\":" + n + "}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String flush(AdaptiveBatch batch, long nowNanos) {
+        return new String(batch.flush(nowNanos), StandardCharsets.UTF_8);
+    }
+}
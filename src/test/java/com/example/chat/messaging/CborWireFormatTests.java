@@ -0,0 +1,231 @@
+package com.example.chat.messaging;
+
+import com.example.chat.dto.MessageDto;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * CBOR wire format: the transcoded messages read back as the JSON ones, the format is negotiated per session and per
+ * subscription, and everything else stays in JSON.
+ */
+class CborWireFormatTests {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final ObjectMapper jsonMapper = Jackson2ObjectMapperBuilder.json().build();
+
+    private final MessageDto message = new MessageDto(null, UUID.randomUUID(), "lobby", "jane", "hello",
+            Instant.ofEpochMilli(1_700_000_000_123L));
+
+    private CborWireFormat wireFormat;
+
+    private ChannelInterceptor outbound;
+
+
+    @BeforeEach
+    void createWireFormat() {
+        wireFormat = new CborWireFormat(jsonMapper, 4, meterRegistry);
+        outbound = wireFormat.outboundInterceptor();
+    }
+
+    @Test
+    void messagesReadBackFromCbor() throws IOException {
+        byte[] json = jsonMapper.writeValueAsBytes(message);
+        byte[] cbor = wireFormat.toCbor(json);
+
+        assertEquals(message, wireFormat.getObjectMapper().readValue(cbor, MessageDto.class));
+
+        MessageDto[] batch = {message, message};
+        byte[] cborBatch = wireFormat.toCbor(jsonMapper.writeValueAsBytes(batch));
+        assertArrayEquals(batch, wireFormat.getObjectMapper().readValue(cborBatch, MessageDto[].class));
+    }
+
+    @Test
+    void otherJsonIsCopiedAsItIs() throws IOException {
+        byte[] json = " {\"room\":\"lobby\",\"online\":3,\"joined\":[\"jane\"],\"truncated\":false}"
+                .getBytes(StandardCharsets.UTF_8);
+
+        byte[] cbor = wireFormat.toCbor(json);
+
+        assertEquals(jsonMapper.readValue(json, Map.class), wireFormat.getObjectMapper().readValue(cbor, Map.class));
+        assertThrows(IOException.class, () -> wireFormat.toCbor("{\"room\":".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void connectInCborAppliesToAllTheSubscriptionsAndMessages() throws IOException {
+        wireFormat.preSend(frame(SimpMessageType.CONNECT, "s1", null, CborWireFormat.APPLICATION_CBOR), null);
+        wireFormat.preSend(frame(SimpMessageType.SUBSCRIBE, "s1", "sub-1", null), null);
+
+        // A message sent without content type is read as CBOR
+        Message<?> sent = wireFormat.preSend(frame(SimpMessageType.MESSAGE, "s1", null, null), null);
+        assertEquals(CborWireFormat.APPLICATION_CBOR, contentType(sent));
+
+        Message<?> broadcast = outbound.preSend(broadcast("s1", "sub-1", jsonMapper.writeValueAsBytes(message)),
+                null);
+        assertEquals(CborWireFormat.APPLICATION_CBOR, contentType(broadcast));
+        assertEquals(message, wireFormat.getObjectMapper().readValue((byte[]) broadcast.getPayload(),
+                MessageDto.class));
+    }
+
+    @Test
+    void subscriptionsAreNegotiatedOneByOne() throws IOException {
+        byte[] json = jsonMapper.writeValueAsBytes(message);
+        wireFormat.preSend(frame(SimpMessageType.CONNECT, "s1", null, null), null);
+        wireFormat.preSend(frame(SimpMessageType.SUBSCRIBE, "s1", "sub-1", CborWireFormat.APPLICATION_CBOR), null);
+        wireFormat.preSend(frame(SimpMessageType.SUBSCRIBE, "s1", "sub-2", null), null);
+
+        assertEquals(CborWireFormat.APPLICATION_CBOR, contentType(outbound.preSend(broadcast("s1", "sub-1", json),
+                null)));
+        assertSame(json, outbound.preSend(broadcast("s1", "sub-2", json), null).getPayload());
+        // The messages of the session stay in JSON
+        assertNull(contentType(wireFormat.preSend(frame(SimpMessageType.MESSAGE, "s1", null, null), null)));
+
+        wireFormat.preSend(frame(SimpMessageType.UNSUBSCRIBE, "s1", "sub-1", null), null);
+        assertSame(json, outbound.preSend(broadcast("s1", "sub-1", json), null).getPayload());
+    }
+
+    @Test
+    void subscriptionInJsonOverridesTheConnect() throws IOException {
+        byte[] json = jsonMapper.writeValueAsBytes(message);
+        wireFormat.preSend(frame(SimpMessageType.CONNECT, "s1", null, CborWireFormat.APPLICATION_CBOR), null);
+        wireFormat.preSend(frame(SimpMessageType.SUBSCRIBE, "s1", "sub-1", MimeTypeUtils.APPLICATION_JSON), null);
+
+        assertSame(json, outbound.preSend(broadcast("s1", "sub-1", json), null).getPayload());
+    }
+
+    @Test
+    void whatCanNotBeTranscodedIsSentAsItIs() {
+        wireFormat.preSend(frame(SimpMessageType.CONNECT, "s1", null, CborWireFormat.APPLICATION_CBOR), null);
+        wireFormat.preSend(frame(SimpMessageType.SUBSCRIBE, "s1", "sub-1", null), null);
+
+        // Invalid JSON, and plain text like the errors
+        byte[] invalid = "{\"room\":".getBytes(StandardCharsets.UTF_8);
+        Message<?> fallback = outbound.preSend(broadcast("s1", "sub-1", invalid), null);
+        assertSame(invalid, fallback.getPayload());
+        assertEquals(MimeTypeUtils.APPLICATION_JSON, contentType(fallback));
+
+        byte[] text = "Unknown chat room".getBytes(StandardCharsets.UTF_8);
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setSessionId("s1");
+        accessor.setSubscriptionId("sub-1");
+        accessor.setContentType(MimeTypeUtils.TEXT_PLAIN);
+        Message<byte[]> error = MessageBuilder.createMessage(text, accessor.getMessageHeaders());
+        assertSame(error, outbound.preSend(error, null));
+    }
+
+    @Test
+    void broadcastIsTranscodedOnceForAllTheSubscribers() throws IOException {
+        byte[] json = jsonMapper.writeValueAsBytes(message);
+        for (String session : List.of("s1", "s2", "s3")) {
+            wireFormat.preSend(frame(SimpMessageType.SUBSCRIBE, session, "sub-1", CborWireFormat.APPLICATION_CBOR),
+                    null);
+        }
+
+        Object first = outbound.preSend(broadcast("s1", "sub-1", json), null).getPayload();
+        assertSame(first, outbound.preSend(broadcast("s2", "sub-1", json), null).getPayload());
+        assertSame(first, outbound.preSend(broadcast("s3", "sub-1", json), null).getPayload());
+
+        assertEquals(1, meterRegistry.get("chat.websocket.cbor.transcoded").counter().count());
+        assertEquals(3, meterRegistry.get("chat.websocket.cbor.messages").counter().count());
+    }
+
+    @Test
+    void converterOnlyReadsCbor() throws IOException {
+        MessageConverter converter = wireFormat.messageConverter();
+        byte[] cbor = wireFormat.getObjectMapper().writeValueAsBytes(Map.of("content", "hello"));
+
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setContentType(CborWireFormat.APPLICATION_CBOR);
+        assertEquals(Map.of("content", "hello"),
+                converter.fromMessage(MessageBuilder.createMessage(cbor, accessor.getMessageHeaders()), Map.class));
+
+        // Without content type the message is left to the JSON converter
+        Message<byte[]> json = MessageBuilder.withPayload("{\"content\":\"hello\"}".getBytes(StandardCharsets.UTF_8))
+                .build();
+        assertNull(converter.fromMessage(json, Map.class));
+    }
+
+    @Test
+    void framesWithACborBodyAreSentAsBinary() throws Exception {
+        WebSocketHandler handler = mock(WebSocketHandler.class);
+        WebSocketSession session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn("s1");
+        wireFormat.decorate(handler).afterConnectionEstablished(session);
+        ArgumentCaptor<WebSocketSession> decorated = ArgumentCaptor.forClass(WebSocketSession.class);
+        verify(handler).afterConnectionEstablished(decorated.capture());
+        wireFormat.preSend(frame(SimpMessageType.SUBSCRIBE, "s1", "sub-1", CborWireFormat.APPLICATION_CBOR), null);
+
+        decorated.getValue().sendMessage(new TextMessage("MESSAGE\ndestination:/topic/lobby\n"
+                + "content-type:application/cbor\n\n\u0000"));
+        decorated.getValue().sendMessage(new TextMessage("MESSAGE\ndestination:/topic/lobby\n"
+                + "content-type:application/json\n\n{}\u0000"));
+
+        ArgumentCaptor<WebSocketMessage<?>> sent = ArgumentCaptor.forClass(WebSocketMessage.class);
+        verify(session, times(2)).sendMessage(sent.capture());
+        assertInstanceOf(BinaryMessage.class, sent.getAllValues().get(0));
+        assertInstanceOf(TextMessage.class, sent.getAllValues().get(1));
+    }
+
+    private static Message<byte[]> frame(SimpMessageType type, String sessionId, String subscriptionId,
+                                         MimeType contentType) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(type);
+        accessor.setSessionId(sessionId);
+        accessor.setSubscriptionId(subscriptionId);
+        if (contentType != null) {
+            accessor.setContentType(contentType);
+        }
+        return MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+    }
+
+    /**
+     * Broadcast of the broker to a subscription, with the JSON payload shared by all the subscribers.
+     */
+    private static Message<byte[]> broadcast(String sessionId, String subscriptionId, byte[] json) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setSessionId(sessionId);
+        accessor.setSubscriptionId(subscriptionId);
+        accessor.setDestination("/topic/lobby");
+        accessor.setContentType(MimeTypeUtils.APPLICATION_JSON);
+        return MessageBuilder.createMessage(json, accessor.getMessageHeaders());
+    }
+
+    private static MimeType contentType(Message<?> message) {
+        return (MimeType) message.getHeaders().get(MessageHeaders.CONTENT_TYPE);
+    }
+}
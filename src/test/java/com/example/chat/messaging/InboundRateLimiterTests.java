@@ -0,0 +1,114 @@
+package com.example.chat.messaging;
+
+import com.example.chat.model.User;
+import com.example.chat.security.ChatPrincipal;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageDeliveryException;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.MessageBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Rate limits of the inbound chat messages: per session, per user across its sessions, by role, and only for the
+ * messages sent to the chat rooms.
+ */
+class InboundRateLimiterTests {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final ChatPrincipal jane = new ChatPrincipal(1L, UUID.randomUUID(), "jane", User.Role.USER);
+
+    private InboundRateLimiter limiter;
+
+
+    @BeforeEach
+    void createLimiter() {
+        // Slow rates, no token is refilled during a test
+        limiter = new InboundRateLimiter(Map.of(
+                User.Role.GUEST, new TokenBucket.Limit(1, 2),
+                User.Role.USER, new TokenBucket.Limit(1, 3)), 2, meterRegistry);
+    }
+
+    @AfterEach
+    void close() {
+        limiter.close();
+    }
+
+    @Test
+    void sessionIsLimitedToItsBurst() {
+        Map<String, Object> session = new HashMap<>();
+        for (int i = 0; i < 3; i++) {
+            Message<?> message = send("/app/chat/lobby", session, jane);
+            assertSame(message, limiter.preSend(message, null));
+        }
+
+        assertThrows(MessageDeliveryException.class,
+                () -> limiter.preSend(send("/app/chat/lobby", session, jane), null));
+        assertEquals(1, rejections("USER", "session"));
+    }
+
+    @Test
+    void userIsLimitedAcrossItsSessions() {
+        // The user limit is two sessions at full rate, the third session is over it
+        for (int session = 0; session < 2; session++) {
+            Map<String, Object> attributes = new HashMap<>();
+            for (int i = 0; i < 3; i++) {
+                limiter.preSend(send("/app/chat/lobby", attributes, jane), null);
+            }
+        }
+
+        assertThrows(MessageDeliveryException.class,
+                () -> limiter.preSend(send("/app/chat/lobby", new HashMap<>(), jane), null));
+        assertEquals(1, rejections("USER", "user"));
+        assertEquals(0, rejections("USER", "session"));
+    }
+
+    @Test
+    void sessionWithoutPrincipalIsLimitedAsAGuest() {
+        Map<String, Object> session = new HashMap<>();
+        limiter.preSend(send("/app/chat/lobby", session, null), null);
+        limiter.preSend(send("/app/chat/lobby", session, null), null);
+
+        assertThrows(MessageDeliveryException.class,
+                () -> limiter.preSend(send("/app/chat/lobby", session, null), null));
+        assertEquals(1, rejections("GUEST", "session"));
+    }
+
+    @Test
+    void roleWithoutLimitAndOtherDestinationsAreNotLimited() {
+        ChatPrincipal system = new ChatPrincipal(2L, UUID.randomUUID(), "system", User.Role.SYSTEM);
+        Map<String, Object> session = new HashMap<>();
+        for (int i = 0; i < 10; i++) {
+            limiter.preSend(send("/app/chat/lobby", session, system), null);
+            limiter.preSend(send("/app/history/lobby", session, jane), null);
+        }
+
+        assertEquals(0, rejections("SYSTEM", "session") + rejections("USER", "session"));
+    }
+
+    private double rejections(String role, String scope) {
+        return meterRegistry.get("chat.websocket.inbound.rate.limited").tag("role", role).tag("scope", scope)
+                .counter().count();
+    }
+
+    private static Message<byte[]> send(String destination, Map<String, Object> session, ChatPrincipal principal) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setDestination(destination);
+        accessor.setSessionId("s" + System.identityHashCode(session));
+        accessor.setSessionAttributes(session);
+        accessor.setUser(principal);
+        return MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+    }
+}
@@ -0,0 +1,274 @@
+package com.example.chat.messaging;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.websocket.RemoteEndpoint;
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.SendResult;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.ExecutorChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Outbound buffer of a session: one frame is written at a time, and the overflow policy drops the waiting MESSAGE
+ * frames or closes the session when the buffer exceeds its limit.
+ */
+class OutboundBufferPolicyTests {
+
+    // Frames of 40 bytes, the limit holds two of them
+    private static final int FRAME = 40;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final WebSocketSession delegate = mock(WebSocketSession.class);
+
+    // Payloads written to the socket and the completions of their writes, in order
+    private final List<String> written = new ArrayList<>();
+
+    private final List<SendHandler> writes = new ArrayList<>();
+
+    private RemoteEndpoint.Async remote;
+
+
+    @BeforeEach
+    void createRemote() {
+        remote = mock(RemoteEndpoint.Async.class);
+        doAnswer(invocation -> {
+            written.add(invocation.getArgument(0));
+            writes.add(invocation.getArgument(1));
+            return null;
+        }).when(remote).sendText(anyString(), any(SendHandler.class));
+    }
+
+    @Test
+    void framesAreWrittenOneAtATime() throws IOException {
+        OutboundBufferPolicy policy = policy(OutboundBufferPolicy.Overflow.DROP_OLDEST, 1000);
+        BufferedWebSocketSession session = session(policy);
+
+        send(policy, session, "/topic/lobby", "a");
+        send(policy, session, "/topic/lobby", "b");
+        send(policy, session, "/topic/lobby", "c");
+        assertEquals(List.of("a"), contents());
+        assertEquals(3 * FRAME, buffered());
+
+        complete(0);
+        complete(1);
+        assertEquals(List.of("a", "b", "c"), contents());
+        assertEquals(FRAME, buffered());
+        complete(2);
+        assertEquals(0, buffered());
+    }
+
+    @Test
+    void oldestWaitingFramesAreDropped() throws IOException {
+        OutboundBufferPolicy policy = policy(OutboundBufferPolicy.Overflow.DROP_OLDEST, 2 * FRAME);
+        BufferedWebSocketSession session = session(policy);
+
+        // The frame being written is not dropped, the oldest waiting one is
+        send(policy, session, "/topic/lobby", "a");
+        send(policy, session, "/topic/lobby", "b");
+        send(policy, session, "/topic/other", "c");
+        assertEquals(1, dropped());
+        assertEquals(2 * FRAME, buffered());
+
+        complete(0);
+        assertEquals(List.of("a", "c"), contents());
+    }
+
+    @Test
+    void olderFramesOfTheDestinationAreCoalesced() throws IOException {
+        OutboundBufferPolicy policy = policy(OutboundBufferPolicy.Overflow.COALESCE, 3 * FRAME);
+        BufferedWebSocketSession session = session(policy);
+
+        send(policy, session, "/topic/lobby", "a");
+        send(policy, session, "/topic/other", "b");
+        send(policy, session, "/topic/lobby", "c");
+        send(policy, session, "/topic/lobby", "d");
+        assertEquals(1, dropped());
+
+        complete(0);
+        complete(1);
+        // The older frame of the lobby is dropped rather than the oldest waiting frame
+        assertEquals(List.of("a", "b", "d"), contents());
+    }
+
+    @Test
+    void framesWithoutDestinationAreNeverDropped() throws IOException {
+        OutboundBufferPolicy policy = policy(OutboundBufferPolicy.Overflow.DROP_OLDEST, 2 * FRAME);
+        BufferedWebSocketSession session = session(policy);
+
+        // CONNECTED, RECEIPT and heart-beat frames are not handled with a destination
+        send(policy, session, null, "a");
+        send(policy, session, null, "b");
+        send(policy, session, "/topic/lobby", "c");
+        send(policy, session, null, "d");
+
+        complete(0);
+        complete(1);
+        complete(2);
+        assertEquals(List.of("a", "b", "d"), contents());
+        assertEquals(1, dropped());
+    }
+
+    @Test
+    void roomMetricsAreBoundedByTheMaximumRooms() throws IOException {
+        OutboundBufferPolicy policy = new OutboundBufferPolicy(Duration.ofSeconds(10), DataSize.ofBytes(2 * FRAME),
+                OutboundBufferPolicy.Overflow.DROP_OLDEST, 2, meterRegistry);
+        BufferedWebSocketSession session = session(policy);
+
+        send(policy, session, "/topic/lobby", "a");
+        send(policy, session, "/topic/batch/lobby", "b");
+        send(policy, session, "/topic/first", "c");
+        send(policy, session, "/topic/second", "d");
+        send(policy, session, "/topic/third", "e");
+
+        assertEquals(1, roomDropped("lobby"));
+        assertEquals(1, roomDropped("first"));
+        // The rooms past the maximum are tagged together
+        assertEquals(FRAME, roomBuffered("other"));
+        assertEquals(3, meterRegistry.find("chat.websocket.outbound.room.buffered").gauges().size());
+        assertEquals(0, meterRegistry.find("chat.websocket.outbound.room.buffered").tag("room", "second").gauges()
+                .size());
+    }
+
+    @Test
+    void roomMetricsAreDisabledByDefault() throws IOException {
+        OutboundBufferPolicy policy = policy(OutboundBufferPolicy.Overflow.DROP_OLDEST, 2 * FRAME);
+        BufferedWebSocketSession session = session(policy);
+
+        send(policy, session, "/topic/lobby", "a");
+        send(policy, session, "/topic/lobby", "b");
+        send(policy, session, "/topic/lobby", "c");
+
+        assertEquals(1, dropped());
+        assertEquals(0, meterRegistry.find("chat.websocket.outbound.room.buffered").gauges().size());
+        assertEquals(0, meterRegistry.find("chat.websocket.outbound.room.dropped").counters().size());
+    }
+
+    @Test
+    void sessionOverTheLimitIsDisconnected() throws IOException {
+        OutboundBufferPolicy policy = policy(OutboundBufferPolicy.Overflow.DISCONNECT, 2 * FRAME);
+        BufferedWebSocketSession session = session(policy);
+
+        send(policy, session, "/topic/lobby", "a");
+        send(policy, session, "/topic/lobby", "b");
+        send(policy, session, "/topic/lobby", "c");
+
+        verify(delegate).close(CloseStatus.SESSION_NOT_RELIABLE);
+        assertEquals(1, disconnections("buffer"));
+        assertEquals(0, buffered());
+
+        // Nothing else is written or buffered once disconnected
+        complete(0);
+        send(policy, session, "/topic/lobby", "d");
+        assertEquals(List.of("a"), contents());
+        assertEquals(0, buffered());
+    }
+
+    @Test
+    void writeTimeoutDisconnectsTheSession() throws IOException {
+        OutboundBufferPolicy policy = policy(OutboundBufferPolicy.Overflow.DROP_OLDEST, 1000);
+        BufferedWebSocketSession session = session(policy);
+
+        send(policy, session, "/topic/lobby", "a");
+        send(policy, session, "/topic/lobby", "b");
+        writes.get(0).onResult(new SendResult(new SocketTimeoutException()));
+
+        verify(delegate).close(CloseStatus.SESSION_NOT_RELIABLE);
+        assertEquals(1, disconnections("timeout"));
+        assertEquals(List.of("a"), contents());
+        assertEquals(0, buffered());
+    }
+
+    @Test
+    void closeWaitsForTheBufferToBeWritten() throws IOException {
+        OutboundBufferPolicy policy = policy(OutboundBufferPolicy.Overflow.DROP_OLDEST, 1000);
+        BufferedWebSocketSession session = session(policy);
+
+        send(policy, session, "/topic/lobby", "a");
+        send(policy, session, null, "ERROR");
+        session.close(CloseStatus.POLICY_VIOLATION);
+        verify(delegate, never()).close(any());
+
+        complete(0);
+        verify(delegate, never()).close(any());
+        complete(1);
+        verify(delegate).close(CloseStatus.POLICY_VIOLATION);
+        assertEquals(List.of("a", "ERROR"), contents());
+    }
+
+    private OutboundBufferPolicy policy(OutboundBufferPolicy.Overflow overflow, int limit) {
+        return new OutboundBufferPolicy(Duration.ofSeconds(10), DataSize.ofBytes(limit), overflow, meterRegistry);
+    }
+
+    private BufferedWebSocketSession session(OutboundBufferPolicy policy) {
+        return new BufferedWebSocketSession(delegate, remote, policy);
+    }
+
+    /**
+     * Sends a frame of {@value #FRAME} bytes as the outbound channel does, while handling a message to the destination.
+     */
+    private static void send(OutboundBufferPolicy policy, BufferedWebSocketSession session, String destination,
+                             String content) throws IOException {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setDestination(destination);
+        Message<byte[]> message = MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+        ExecutorChannelInterceptor interceptor = policy.interceptor();
+        interceptor.beforeHandle(message, null, null);
+        try {
+            session.sendMessage(new TextMessage(String.format("%-" + FRAME + "s", content)));
+        } finally {
+            interceptor.afterMessageHandled(message, null, null, null);
+        }
+    }
+
+    private void complete(int write) {
+        writes.get(write).onResult(new SendResult());
+    }
+
+    private List<String> contents() {
+        return written.stream().map(String::trim).toList();
+    }
+
+    private long buffered() {
+        return (long) meterRegistry.get("chat.websocket.outbound.buffered").gauge().value();
+    }
+
+    private long dropped() {
+        return (long) meterRegistry.get("chat.websocket.outbound.dropped").counter().count();
+    }
+
+    private long roomBuffered(String room) {
+        return (long) meterRegistry.get("chat.websocket.outbound.room.buffered").tag("room", room).gauge().value();
+    }
+
+    private long roomDropped(String room) {
+        return (long) meterRegistry.get("chat.websocket.outbound.room.dropped").tag("room", room).counter().count();
+    }
+
+    private long disconnections(String reason) {
+        return (long) meterRegistry.get("chat.websocket.outbound.disconnected").tag("reason", reason).counter()
+                .count();
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.chat.messaging;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+import org.springframework.web.socket.messaging.SessionUnsubscribeEvent;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Batches of the room broadcasts: only the rooms with batch subscribers are batched, and the state of a room is dropped
+ * with its last subscriber.
+ */
+class RoomBatcherTests {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    // Batches broadcast by the batcher
+    private final BlockingQueue<Message<?>> batches = new LinkedBlockingQueue<>();
+
+    private final MessageChannel brokerChannel = (message, timeout) -> batches.add(message);
+
+    private RoomBatcher batcher;
+
+
+    @BeforeEach
+    void createBatcher() {
+        batcher = new RoomBatcher(Duration.ofMillis(50), Duration.ofMillis(200), DataSize.ofKilobytes(16),
+                meterRegistry);
+    }
+
+    @AfterEach
+    void close() {
+        batcher.close();
+    }
+
+    @Test
+    void roomWithoutBatchSubscribersIsNotBatched() throws InterruptedException {
+        batcher.preSend(broadcast("/topic/lobby", "{}"), brokerChannel);
+
+        assertNull(batches.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, rooms());
+    }
+
+    @Test
+    void messagesOfABurstAreBatched() throws InterruptedException {
+        batcher.onApplicationEvent(subscribe("s1", "sub-1", "/topic/batch/lobby"));
+        assertEquals(1, rooms());
+
+        // The first message is flushed at once, the burst waits for the window
+        batcher.preSend(broadcast("/topic/lobby", "{\"n\":0}"), brokerChannel);
+        Message<?> first = batches.poll(1, TimeUnit.SECONDS);
+        assertNotNull(first);
+        assertEquals("[{\"n\":0}]", payload(first));
+
+        for (int i = 1; i <= 3; i++) {
+            batcher.preSend(broadcast("/topic/lobby", "{\"n\":" + i + "}"), brokerChannel);
+        }
+        Message<?> batch = batches.poll(1, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals("[{\"n\":1},{\"n\":2},{\"n\":3}]", payload(batch));
+        assertEquals("/topic/batch/lobby", SimpMessageHeaderAccessor.getDestination(batch.getHeaders()));
+        assertEquals("3", SimpMessageHeaderAccessor.wrap(batch).getFirstNativeHeader(RoomBatcher.BATCH_SIZE_HEADER));
+    }
+
+    @Test
+    void roomIsDroppedWithItsLastSubscriber() throws InterruptedException {
+        batcher.onApplicationEvent(subscribe("s1", "sub-1", "/topic/batch/lobby"));
+        batcher.onApplicationEvent(subscribe("s2", "sub-1", "/topic/batch/lobby"));
+        batcher.onApplicationEvent(subscribe("s2", "sub-2", "/topic/batch/other"));
+        assertEquals(2, rooms());
+
+        batcher.onApplicationEvent(unsubscribe("s1", "sub-1"));
+        assertEquals(2, rooms());
+        batcher.onApplicationEvent(disconnect("s2"));
+        assertEquals(0, rooms());
+
+        batcher.preSend(broadcast("/topic/lobby", "{}"), brokerChannel);
+        assertNull(batches.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void batchOverTheSizeIsFlushedBeforeItsWindow() throws InterruptedException {
+        batcher.close();
+        batcher = new RoomBatcher(Duration.ofSeconds(5), Duration.ofSeconds(10), DataSize.ofBytes(20), meterRegistry);
+        batcher.onApplicationEvent(subscribe("s1", "sub-1", "/topic/batch/lobby"));
+        batcher.preSend(broadcast("/topic/lobby", "{\"n\":0}"), brokerChannel);
+        assertNotNull(batches.poll(1, TimeUnit.SECONDS));
+
+        // Payloads of 7 bytes, the third one reaches the size long before the window
+        for (int i = 1; i <= 3; i++) {
+            batcher.preSend(broadcast("/topic/lobby", "{\"n\":" + i + "}"), brokerChannel);
+        }
+        Message<?> batch = batches.poll(1, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals("[{\"n\":1},{\"n\":2},{\"n\":3}]", payload(batch));
+    }
+
+    @Test
+    void pendingMessagesAreDroppedWithTheLastSubscriber() throws InterruptedException {
+        batcher.onApplicationEvent(subscribe("s1", "sub-1", "/topic/batch/lobby"));
+        batcher.preSend(broadcast("/topic/lobby", "{\"n\":0}"), brokerChannel);
+        assertNotNull(batches.poll(1, TimeUnit.SECONDS));
+
+        // Waits for the window, by then the room has no batch subscribers
+        batcher.preSend(broadcast("/topic/lobby", "{\"n\":1}"), brokerChannel);
+        batcher.onApplicationEvent(disconnect("s1"));
+
+        assertNull(batches.poll(300, TimeUnit.MILLISECONDS));
+        assertEquals(0, rooms());
+    }
+
+    @Test
+    void nestedAndRoomDestinationsAreNotTracked() {
+        batcher.onApplicationEvent(subscribe("s1", "sub-1", "/topic/lobby"));
+        batcher.onApplicationEvent(subscribe("s1", "sub-2", "/topic/batch/lobby/x"));
+
+        assertEquals(0, rooms());
+    }
+
+    private int rooms() {
+        return (int) meterRegistry.get("chat.websocket.outbound.batch.rooms").gauge().value();
+    }
+
+    private static Message<byte[]> broadcast(String destination, String json) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setDestination(destination);
+        return MessageBuilder.createMessage(json.getBytes(StandardCharsets.UTF_8), accessor.getMessageHeaders());
+    }
+
+    private static String payload(Message<?> message) {
+        return new String((byte[]) message.getPayload(), StandardCharsets.UTF_8);
+    }
+
+    private static Message<byte[]> frame(SimpMessageType type, String sessionId, String subscriptionId,
+                                         String destination) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(type);
+        accessor.setSessionId(sessionId);
+        accessor.setSubscriptionId(subscriptionId);
+        accessor.setDestination(destination);
+        return MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+    }
+
+    private SessionSubscribeEvent subscribe(String sessionId, String subscriptionId, String destination) {
+        return new SessionSubscribeEvent(this, frame(SimpMessageType.SUBSCRIBE, sessionId, subscriptionId,
+                destination));
+    }
+
+    private SessionUnsubscribeEvent unsubscribe(String sessionId, String subscriptionId) {
+        return new SessionUnsubscribeEvent(this, frame(SimpMessageType.UNSUBSCRIBE, sessionId, subscriptionId, null));
+    }
+
+    private SessionDisconnectEvent disconnect(String sessionId) {
+        return new SessionDisconnectEvent(this, frame(SimpMessageType.DISCONNECT, sessionId, null, null), sessionId,
+                CloseStatus.NORMAL);
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.chat.messaging;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.MessageHandlingRunnable;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Lanes of the inbound channel: the frames of a session keep their order and a full lane drops the SEND frames without
+ * failing the session.
+ */
+class RoomLaneTaskExecutorTests {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private RoomLaneTaskExecutor executor;
+
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    @Test
+    void framesOfASessionRunInOrderOnOneLane() throws InterruptedException {
+        executor = start(16, 100);
+        List<String> handled = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(4);
+
+        // The SUBSCRIBE and the DISCONNECT of a session go to the same lane whatever their destination
+        executor.execute(task(SimpMessageType.CONNECT, null, "s1", () -> handled.add("connect"), done));
+        executor.execute(task(SimpMessageType.SUBSCRIBE, "/topic/lobby", "s1", () -> handled.add("subscribe"), done));
+        executor.execute(task(SimpMessageType.SUBSCRIBE, "/topic/other", "s1", () -> handled.add("subscribe"), done));
+        executor.execute(task(SimpMessageType.DISCONNECT, null, "s1", () -> handled.add("disconnect"), done));
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("connect", "subscribe", "subscribe", "disconnect"), handled);
+    }
+
+    @Test
+    void sendFramesOfARoomRunInOrder() throws InterruptedException {
+        executor = start(16, 1000);
+        List<Integer> handled = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(200);
+
+        // Different sessions, same room
+        for (int i = 0; i < 200; i++) {
+            int sequence = i;
+            executor.execute(task(SimpMessageType.MESSAGE, "/app/chat/lobby", "s" + (i % 7),
+                    () -> handled.add(sequence), done));
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i, handled.get(i));
+        }
+    }
+
+    @Test
+    void fullLaneDropsSendFramesAndWaitsForTheOthers() throws InterruptedException {
+        executor = start(1, 2);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(4);
+
+        // Blocks the lane, then fills its queue
+        executor.execute(task(SimpMessageType.MESSAGE, "/app/chat/lobby", "s1", () -> {
+            blocked.countDown();
+            await(release);
+        }, done));
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        executor.execute(task(SimpMessageType.MESSAGE, "/app/chat/lobby", "s1", () -> {
+        }, done));
+        executor.execute(task(SimpMessageType.MESSAGE, "/app/chat/lobby", "s1", () -> {
+        }, done));
+
+        // Dropped without an exception
+        AtomicBoolean droppedRan = new AtomicBoolean();
+        executor.execute(task(SimpMessageType.MESSAGE, "/app/chat/lobby", "s1", () -> droppedRan.set(true), null));
+        assertEquals(1, meterRegistry.get("chat.websocket.inbound.lane.dropped").counter().count());
+
+        // Waits until the lane has room
+        AtomicBoolean disconnected = new AtomicBoolean();
+        Thread sender = new Thread(() -> executor.execute(
+                task(SimpMessageType.DISCONNECT, null, "s1", () -> disconnected.set(true), done)));
+        sender.start();
+        sender.join(200);
+        assertTrue(sender.isAlive());
+
+        release.countDown();
+        sender.join(5000);
+        assertFalse(sender.isAlive());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(disconnected.get());
+        assertFalse(droppedRan.get());
+        assertEquals(1, meterRegistry.get("chat.websocket.inbound.lane.dropped").counter().count());
+    }
+
+    private RoomLaneTaskExecutor start(int lanes, int capacity) {
+        RoomLaneTaskExecutor executor = new RoomLaneTaskExecutor(lanes, capacity, meterRegistry);
+        executor.initialize();
+        return executor;
+    }
+
+    private static MessageHandlingRunnable task(SimpMessageType type, String destination, String sessionId,
+                                                Runnable action, CountDownLatch done) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(type);
+        accessor.setDestination(destination);
+        accessor.setSessionId(sessionId);
+        Message<byte[]> message = MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+        return new MessageHandlingRunnable() {
+
+            @Override
+            public Message<?> getMessage() {
+                return message;
+            }
+
+            @Override
+            public MessageHandler getMessageHandler() {
+                return m -> action.run();
+            }
+
+            @Override
+            public void run() {
+                action.run();
+                if (done != null) {
+                    done.countDown();
+                }
+            }
+        };
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
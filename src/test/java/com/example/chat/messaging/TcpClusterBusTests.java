@@ -0,0 +1,166 @@
+package com.example.chat.messaging;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Authentication of the nodes of the cluster bus: the nodes with the same secret relay the messages, the secret is
+ * never sent and a node with another secret is not connected.
+ */
+class TcpClusterBusTests {
+
+    private static final String SECRET = "s3cr3t-of-the-cluster";
+
+    private final List<TcpClusterBus> buses = new ArrayList<>();
+
+
+    @AfterEach
+    void close() {
+        buses.forEach(TcpClusterBus::close);
+    }
+
+    @Test
+    void nodesWithTheSameSecretRelayMessages() throws Exception {
+        int[] ports = freePorts(2);
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        TcpClusterBus first = bus(ports[0], ports, SECRET, received);
+        TcpClusterBus second = bus(ports[1], ports, SECRET, new LinkedBlockingQueue<>());
+
+        // Subscribed once connected, the subscriptions are sent again on every connection
+        first.subscribe("lobby");
+        UUID uuid = UUID.randomUUID();
+        long deadline = System.currentTimeMillis() + 10_000;
+        String message = null;
+        while (message == null && System.currentTimeMillis() < deadline) {
+            second.publish("lobby", uuid, "hello".getBytes(StandardCharsets.UTF_8));
+            message = received.poll(100, TimeUnit.MILLISECONDS);
+        }
+        assertEquals("lobby " + uuid + " hello", message);
+    }
+
+    @Test
+    void nodesWithAnotherSecretAreNotConnected() throws Exception {
+        int[] ports = freePorts(2);
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        TcpClusterBus first = bus(ports[0], ports, SECRET, received);
+        TcpClusterBus second = bus(ports[1], ports, "another secret", new LinkedBlockingQueue<>());
+
+        first.subscribe("lobby");
+        for (int i = 0; i < 10; i++) {
+            second.publish("lobby", UUID.randomUUID(), "hello".getBytes(StandardCharsets.UTF_8));
+            Thread.sleep(100);
+        }
+        assertNull(received.poll());
+    }
+
+    @Test
+    void secretIsNotSentToAnUnauthenticatedPeer() throws Exception {
+        int[] ports = freePorts(2);
+        bus(ports[0], ports, SECRET, new LinkedBlockingQueue<>());
+
+        try (Socket socket = connect(ports[0])) {
+            socket.setSoTimeout(2000);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+            // Greets as a connector, answers garbage and reads all the node sends until it closes the connection
+            out.writeByte(1);
+            out.writeUTF("localhost:1");
+            out.write(new byte[32]);
+            out.writeInt(32);
+            out.write(new byte[32]);
+            out.flush();
+            byte[] sent = readAll(in);
+
+            assertFalse(new String(sent, StandardCharsets.ISO_8859_1).contains(SECRET));
+            // Greeting with the address and the challenge, no answer
+            assertEquals(1 + 2 + ("localhost:" + ports[0]).length() + 32, sent.length);
+        }
+    }
+
+    @Test
+    void secretIsRequired() {
+        assertThrows(IllegalArgumentException.class, () -> new TcpClusterBus("localhost:1", null, 1, List.of(), " ",
+                10, 10, Duration.ofSeconds(1), new SimpleMeterRegistry()));
+    }
+
+    private TcpClusterBus bus(int port, int[] ports, String secret, BlockingQueue<String> received) {
+        List<String> peers = new ArrayList<>();
+        for (int peer : ports) {
+            peers.add("localhost:" + peer);
+        }
+        TcpClusterBus bus = new TcpClusterBus("localhost:" + port, "localhost", port, peers, secret, 100, 10,
+                Duration.ofMillis(100), new SimpleMeterRegistry());
+        buses.add(bus);
+        bus.start((room, uuid, payload) -> received.add(room + " " + uuid + " "
+                + new String(payload, StandardCharsets.UTF_8)));
+        return bus;
+    }
+
+    private static Socket connect(int port) throws IOException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                return new Socket("localhost", port);
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        try {
+            for (int read; (read = in.read(buffer)) >= 0; ) {
+                bytes.write(buffer, 0, read);
+            }
+        } catch (SocketTimeoutException | SocketException e) {
+            // Closed or silent, all has been read
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int[] freePorts(int count) throws IOException {
+        int[] ports = new int[count];
+        List<ServerSocket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                ServerSocket socket = new ServerSocket(0);
+                sockets.add(socket);
+                ports[i] = socket.getLocalPort();
+            }
+        } finally {
+            for (ServerSocket socket : sockets) {
+                socket.close();
+            }
+        }
+        return ports;
+    }
+}
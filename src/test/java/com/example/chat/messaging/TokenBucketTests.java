@@ -0,0 +1,137 @@
+package com.example.chat.messaging;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Token bucket: the burst is available at once, the tokens are refilled at the rate up to the burst, and the concurrent
+ * consumers never take more tokens than there are.
+ */
+class TokenBucketTests {
+
+    private static final TokenBucket.Limit LIMIT = new TokenBucket.Limit(2, 5);
+
+
+    @Test
+    void burstIsAvailableAtOnce() {
+        TokenBucket bucket = new TokenBucket(1000, LIMIT);
+
+        assertEquals(5, consume(bucket, 1000, 10));
+    }
+
+    @Test
+    void tokensAreRefilledAtTheRate() {
+        TokenBucket bucket = new TokenBucket(1000, LIMIT);
+        consume(bucket, 1000, 5);
+
+        // Two tokens per second, one every 500 ms
+        assertFalse(bucket.tryConsume(1499, LIMIT));
+        assertTrue(bucket.tryConsume(1500, LIMIT));
+        assertFalse(bucket.tryConsume(1500, LIMIT));
+        assertEquals(2, consume(bucket, 2500, 10));
+    }
+
+    @Test
+    void fractionsOfATokenAreKept() {
+        TokenBucket.Limit limit = new TokenBucket.Limit(3, 1);
+        TokenBucket bucket = new TokenBucket(0, limit);
+        assertTrue(bucket.tryConsume(0, limit));
+
+        // 333 ms are 999 thousandths of a token, the next ms completes it
+        assertFalse(bucket.tryConsume(333, limit));
+        assertTrue(bucket.tryConsume(334, limit));
+    }
+
+    @Test
+    void refillStopsAtTheBurst() {
+        TokenBucket bucket = new TokenBucket(1000, LIMIT);
+        consume(bucket, 1000, 5);
+
+        // Exactly the refill time, and much longer
+        assertEquals(2500, LIMIT.refillMillis());
+        assertEquals(5, consume(bucket, 1000 + LIMIT.refillMillis(), 10));
+        assertEquals(5, consume(bucket, 1_000_000_000L, 10));
+        // One ms short of the refill time
+        assertEquals(4, consume(bucket, 1_000_000_000L + LIMIT.refillMillis() - 1, 10));
+    }
+
+    @Test
+    void clockGoingBackIsNotARefill() {
+        TokenBucket bucket = new TokenBucket(1000, LIMIT);
+        consume(bucket, 1000, 5);
+
+        assertFalse(bucket.tryConsume(0, LIMIT));
+        assertFalse(bucket.tryConsume(1499, LIMIT));
+        assertTrue(bucket.tryConsume(1500, LIMIT));
+    }
+
+    @Test
+    void idleTimeIsSinceTheLastToken() {
+        TokenBucket bucket = new TokenBucket(1000, LIMIT);
+        bucket.tryConsume(1200, LIMIT);
+
+        assertEquals(300, bucket.idleMillis(1500));
+        assertEquals(0, bucket.idleMillis(1100));
+    }
+
+    @Test
+    void concurrentConsumersTakeTheBurstOnce() throws Exception {
+        TokenBucket.Limit limit = new TokenBucket.Limit(1, 1000);
+        TokenBucket bucket = new TokenBucket(0, limit);
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> tasks = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                tasks.add(executor.submit(() -> {
+                    start.await();
+                    // The clock does not move, no token is refilled
+                    return consume(bucket, limit, 0, 1000);
+                }));
+            }
+            start.countDown();
+            int taken = 0;
+            for (Future<Integer> task : tasks) {
+                taken += task.get();
+            }
+            assertEquals(1000, taken);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void invalidLimitsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket.Limit(0, 5));
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket.Limit(2, 0));
+        // The tokens, in thousandths, must fit in 24 bits
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket.Limit(2, 20_000));
+        assertEquals(new TokenBucket.Limit(6, 15), LIMIT.times(3));
+    }
+
+    private static int consume(TokenBucket bucket, long nowMillis, int attempts) {
+        return consume(bucket, LIMIT, nowMillis, attempts);
+    }
+
+    private static int consume(TokenBucket bucket, TokenBucket.Limit limit, long nowMillis, int attempts) {
+        int taken = 0;
+        for (int i = 0; i < attempts; i++) {
+            if (bucket.tryConsume(nowMillis, limit)) {
+                taken++;
+            }
+        }
+        return taken;
+    }
+}
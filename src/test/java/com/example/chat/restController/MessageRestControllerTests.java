@@ -0,0 +1,79 @@
+package com.example.chat.restController;
+
+import com.example.chat.dto.MessageDto;
+import com.example.chat.model.Room;
+import com.example.chat.service.MessageHistoryService;
+import com.example.chat.service.RoomService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Recent messages of a room: the room is looked up by id or uuid like in the paginated history, an unknown room is not
+ * found.
+ */
+class MessageRestControllerTests {
+
+    private final Room lobby = new Room(1L, UUID.randomUUID(), "lobby", null, null, Instant.now(), Instant.now());
+
+    private final List<MessageDto> recent = List.of(
+            new MessageDto(null, UUID.randomUUID(), "lobby", "jane", "hello", Instant.now()));
+
+    private MessageRestController controller;
+
+    private MessageHistoryService messageHistoryService;
+
+
+    @BeforeEach
+    void createController() {
+        RoomService roomService = mock(RoomService.class);
+        when(roomService.findById(any())).thenReturn(Optional.empty());
+        when(roomService.findByUuid(any())).thenReturn(Optional.empty());
+        when(roomService.findById(1L)).thenReturn(Optional.of(lobby));
+        when(roomService.findByUuid(lobby.getUuid().toString())).thenReturn(Optional.of(lobby));
+
+        messageHistoryService = mock(MessageHistoryService.class);
+        when(messageHistoryService.findRecent("lobby")).thenReturn(recent);
+
+        controller = new MessageRestController();
+        controller.roomService = roomService;
+        controller.messageHistoryService = messageHistoryService;
+    }
+
+    @Test
+    void recentMessagesOfARoomByIdAndUuid() {
+        for (String id : List.of("1", lobby.getUuid().toString())) {
+            ResponseEntity<List<MessageDto>> response = controller.recent(null, id);
+
+            assertEquals(HttpStatus.ACCEPTED, response.getStatusCode());
+            assertEquals(recent, response.getBody());
+            assertEquals("success", response.getHeaders().getFirst("status"));
+        }
+    }
+
+    @Test
+    void recentMessagesOfAnUnknownRoomAreNotFound() {
+        for (String id : List.of("42", UUID.randomUUID().toString(), "lobby")) {
+            ResponseEntity<List<MessageDto>> response = controller.recent(null, id);
+
+            assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+            assertEquals("fail", response.getHeaders().getFirst("status"));
+            assertNull(response.getBody());
+        }
+        verify(messageHistoryService, never()).findRecent(any());
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.chat.restController;
+
+import com.example.chat.model.Message;
+import com.example.chat.model.Room;
+import com.example.chat.model.User;
+import com.example.chat.repository.MessageRepository;
+import com.example.chat.repository.RoomRepository;
+import com.example.chat.repository.UserRepository;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Regression test of the SQL statements executed per REST endpoint. The statements must be bounded, they must not
+ * depend on the number of rooms, users or messages, nor on their associations.
+ * <p>
+ * The second level cache is cleared before every request, so the counts are the ones of a cold cache.
+ */
+@SpringBootTest(properties = "spring.datasource.url=jdbc:h2:mem:query-count")
+@AutoConfigureMockMvc
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class QueryCountTests {
+
+    private static final int ROOMS = 20;
+
+    private static final int MESSAGES_PER_ROOM = 10;
+
+    private static final String AUTHORIZATION =
+            "Basic " + Base64.getEncoder().encodeToString("user:password".getBytes(StandardCharsets.UTF_8));
+
+    @Autowired
+    MockMvc mockMvc;
+
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    UserRepository userRepository;
+
+    @Autowired
+    RoomRepository roomRepository;
+
+    @Autowired
+    MessageRepository messageRepository;
+
+    private Statistics statistics;
+
+    private User owner;
+
+    private Room room;
+
+
+    @BeforeAll
+    void createData() {
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+
+        // One owner of all the rooms, which have messages of several users
+        owner = userRepository.save(new User(User.Role.USER, "Jane", "Doe", "jane", "jane@example.com"));
+        List<User> senders = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            senders.add(userRepository.save(new User("guest" + i)));
+        }
+
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < ROOMS; i++) {
+            Room created = roomRepository.save(new Room("room-" + i, "Room number " + i, owner));
+            for (int j = 0; j < MESSAGES_PER_ROOM; j++) {
+                messages.add(new Message("Message " + j, senders.get(j % senders.size()), created));
+            }
+            room = created;
+        }
+        messageRepository.saveAll(messages);
+    }
+
+    @BeforeEach
+    void clearCache() {
+        entityManagerFactory.getCache().evictAll();
+        statistics.clear();
+    }
+
+    @Test
+    void roomsIndex() throws Exception {
+        assertStatements("/api/v1/rooms?size=" + ROOMS, 2);
+    }
+
+    @Test
+    void roomShow() throws Exception {
+        assertStatements("/api/v1/rooms/" + room.getId(), 2);
+        assertStatements("/api/v1/rooms/" + room.getUuid(), 3);
+    }
+
+    @Test
+    void usersIndex() throws Exception {
+        assertStatements("/api/v1/users", 2);
+    }
+
+    @Test
+    void userShow() throws Exception {
+        assertStatements("/api/v1/users/" + owner.getId(), 1);
+        assertStatements("/api/v1/users/" + owner.getUuid(), 2);
+    }
+
+    @Test
+    void roomMessages() throws Exception {
+        assertStatements("/api/v1/rooms/" + room.getId() + "/messages?limit=" + MESSAGES_PER_ROOM, 2);
+    }
+
+    private void assertStatements(String uri, long maximum) throws Exception {
+        entityManagerFactory.getCache().evictAll();
+        statistics.clear();
+
+        mockMvc.perform(get(uri).header(HttpHeaders.AUTHORIZATION, AUTHORIZATION))
+                .andExpect(status().is2xxSuccessful());
+
+        long statements = statistics.getPrepareStatementCount();
+        assertTrue(statements <= maximum,
+                "GET " + uri + " executed " + statements + " SQL statements, maximum " + maximum);
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.chat.restController;
+
+import com.example.chat.model.Room;
+import com.example.chat.service.PresenceService;
+import com.example.chat.service.RoomService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Members of a room: the room is looked up by id or uuid like in the other endpoints, an unknown room is not found.
+ */
+class RoomRestControllerTests {
+
+    private final Room lobby = new Room(1L, UUID.randomUUID(), "lobby", null, null, Instant.now(), Instant.now());
+
+    private RoomRestController controller;
+
+    private PresenceService presenceService;
+
+
+    @BeforeEach
+    void createController() {
+        RoomService roomService = mock(RoomService.class);
+        when(roomService.findById(any())).thenReturn(Optional.empty());
+        when(roomService.findByUuid(any())).thenReturn(Optional.empty());
+        when(roomService.findById(1L)).thenReturn(Optional.of(lobby));
+        when(roomService.findByUuid(lobby.getUuid().toString())).thenReturn(Optional.of(lobby));
+
+        presenceService = mock(PresenceService.class);
+        when(presenceService.countOnline("lobby")).thenReturn(2);
+        when(presenceService.findMembers("lobby", 10)).thenReturn(List.of("jane", "john"));
+
+        controller = new RoomRestController();
+        controller.roomService = roomService;
+        controller.presenceService = presenceService;
+        controller.maxMembersLimit = 1000;
+    }
+
+    @Test
+    void membersOfARoomByIdAndUuid() {
+        for (String id : List.of("1", lobby.getUuid().toString())) {
+            ResponseEntity<List<String>> response = controller.members(null, id, 10);
+
+            assertEquals(HttpStatus.ACCEPTED, response.getStatusCode());
+            assertEquals(List.of("jane", "john"), response.getBody());
+            assertEquals("2", response.getHeaders().getFirst("total-elements"));
+        }
+    }
+
+    @Test
+    void membersOfAnUnknownRoomAreNotFound() {
+        for (String id : List.of("42", UUID.randomUUID().toString(), "lobby")) {
+            ResponseEntity<List<String>> response = controller.members(null, id, 10);
+
+            assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+            assertEquals("fail", response.getHeaders().getFirst("status"));
+            assertNull(response.getBody());
+        }
+        verify(presenceService, never()).findMembers(any(), anyInt());
+    }
+
+    @Test
+    void invalidLimitIsABadRequest() {
+        ResponseEntity<List<String>> response = controller.members(null, "1", 0);
+
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+    }
+}
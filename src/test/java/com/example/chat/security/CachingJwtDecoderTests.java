@@ -0,0 +1,93 @@
+package com.example.chat.security;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.oauth2.jwt.BadJwtException;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Revocations of the JWT decoder: a revoked token is rejected until it expires whatever the size of the cache, and new
+ * revocations are refused rather than forgetting older ones.
+ */
+class CachingJwtDecoderTests {
+
+    // Expiration of the tokens decoded by the delegate, one hour by default
+    private final Map<String, Instant> expirations = new ConcurrentHashMap<>();
+
+    private final JwtDecoder delegate = token -> {
+        if (token.startsWith("invalid")) {
+            throw new BadJwtException("Invalid token");
+        }
+        Instant now = Instant.now();
+        return Jwt.withTokenValue(token)
+                .header("alg", "RS256")
+                .subject("jane")
+                .issuedAt(now.minusSeconds(1))
+                .expiresAt(expirations.getOrDefault(token, now.plus(Duration.ofHours(1))))
+                .build();
+    };
+
+
+    @Test
+    void revocationsAreNotEvictedBySize() {
+        CachingJwtDecoder decoder = decoder(2, 1000);
+        for (int i = 0; i < 100; i++) {
+            decoder.decode("token-" + i);
+            assertTrue(decoder.revoke("token-" + i));
+        }
+
+        for (int i = 0; i < 100; i++) {
+            String token = "token-" + i;
+            assertThrows(BadJwtException.class, () -> decoder.decode(token));
+        }
+    }
+
+    @Test
+    void revocationsOverTheMaximumAreRefused() {
+        CachingJwtDecoder decoder = decoder(100, 2);
+        assertTrue(decoder.revoke("token-1"));
+        assertTrue(decoder.revoke("token-2"));
+
+        assertFalse(decoder.revoke("token-3"));
+        assertEquals("token-3", decoder.decode("token-3").getTokenValue());
+        // The revoked tokens stay revoked
+        assertTrue(decoder.revoke("token-1"));
+        assertThrows(BadJwtException.class, () -> decoder.decode("token-1"));
+        assertThrows(BadJwtException.class, () -> decoder.decode("token-2"));
+    }
+
+    @Test
+    void expiredRevocationsMakeRoom() throws InterruptedException {
+        CachingJwtDecoder decoder = decoder(100, 1);
+        expirations.put("short", Instant.now().plusMillis(100));
+        assertTrue(decoder.revoke("short"));
+        assertFalse(decoder.revoke("token-1"));
+
+        Thread.sleep(300);
+        assertTrue(decoder.revoke("token-1"));
+        assertThrows(BadJwtException.class, () -> decoder.decode("token-1"));
+    }
+
+    @Test
+    void invalidTokensAreAlreadyRevoked() {
+        CachingJwtDecoder decoder = decoder(100, 0);
+
+        assertTrue(decoder.revoke("invalid"));
+    }
+
+    private CachingJwtDecoder decoder(long maximumSize, long maximumRevoked) {
+        return new CachingJwtDecoder(delegate, maximumSize, Duration.ofHours(1), maximumRevoked,
+                new SimpleMeterRegistry());
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.chat.service;
+
+import com.example.chat.model.Room;
+import com.example.chat.model.User;
+import com.example.chat.repository.MessageRepository;
+import com.example.chat.repository.RoomRepository;
+import com.example.chat.repository.UserRepository;
+import com.example.chat.security.ChatPrincipal;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Idle reaper: the guests and the temporary rooms are deleted once idle or disconnected for their timeout, with their
+ * messages and the rooms of the guests, and never while they are active.
+ */
+class IdleReaperTests {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final User guest = new User(1L, UUID.randomUUID(), User.Role.GUEST, null, null, "guest", null, true, null,
+            null);
+
+    private IdleReaper reaper;
+
+
+    @BeforeEach
+    void startReaper() {
+        reaper = new IdleReaper();
+        reaper.userRepository = mock(UserRepository.class);
+        reaper.roomRepository = mock(RoomRepository.class);
+        reaper.messageRepository = mock(MessageRepository.class);
+        reaper.roomRegistry = mock(RoomRegistry.class);
+        reaper.messageHistoryService = mock(MessageHistoryService.class);
+        reaper.messageSearchService = mock(MessageSearchService.class);
+        reaper.transactionManager = mock(PlatformTransactionManager.class);
+        reaper.meterRegistry = meterRegistry;
+        reaper.clientOutboundChannel = mock(MessageChannel.class);
+        when(reaper.clientOutboundChannel.send(any())).thenReturn(true);
+        reaper.enabled = true;
+        reaper.tick = Duration.ofMillis(10);
+        reaper.guestIdleTimeout = Duration.ofMillis(300);
+        reaper.guestDisconnectTimeout = Duration.ofMillis(100);
+        reaper.roomIdleTimeout = Duration.ofMillis(200);
+        reaper.batchSize = 100;
+        reaper.start();
+    }
+
+    @AfterEach
+    void stopReaper() {
+        reaper.stop();
+    }
+
+    @Test
+    void guestWithoutSessionsExpiresWithItsRooms() throws InterruptedException {
+        when(reaper.roomRepository.findByOwnerIdIn(List.of(1L)))
+                .thenReturn(List.of(new Room(10L, UUID.randomUUID(), "guest-room", null, guest, null, null)));
+        reaper.track(guest);
+
+        awaitExpired("guest", 1);
+        verify(reaper.messageRepository).deleteByUserIds(List.of(1L));
+        verify(reaper.messageRepository).deleteByRoomIds(List.of(10L));
+        verify(reaper.roomRepository).deleteByIds(List.of(10L));
+        verify(reaper.userRepository).deleteByIdsAndRole(List.of(1L), User.Role.GUEST);
+        verify(reaper.messageHistoryService).remove("guest-room");
+        verify(reaper.messageSearchService).remove(10L);
+        assertEquals(0, live("guest"));
+    }
+
+    @Test
+    void connectedGuestIsKeptWhileActiveAndClosedOnceIdle() throws InterruptedException {
+        reaper.preSend(frame(SimpMessageType.CONNECT, "s1", null), null);
+
+        // Active for longer than the idle timeout
+        for (int i = 0; i < 10; i++) {
+            Thread.sleep(50);
+            reaper.preSend(frame(SimpMessageType.MESSAGE, "s1", "/app/chat/lobby"), null);
+        }
+        assertEquals(0, expired("guest"));
+
+        awaitExpired("guest", 1);
+        ArgumentCaptor<Message<?>> closed = ArgumentCaptor.forClass(Message.class);
+        verify(reaper.clientOutboundChannel).send(closed.capture());
+        StompHeaderAccessor accessor = StompHeaderAccessor.wrap(closed.getValue());
+        assertEquals(StompCommand.ERROR, accessor.getCommand());
+        assertEquals("s1", accessor.getSessionId());
+    }
+
+    @Test
+    void guestThatReconnectsIsKept() throws InterruptedException {
+        reaper.preSend(frame(SimpMessageType.CONNECT, "s1", null), null);
+        reaper.preSend(frame(SimpMessageType.DISCONNECT, "s1", null), null);
+        reaper.preSend(frame(SimpMessageType.CONNECT, "s2", null), null);
+
+        // Past the disconnect timeout, within the idle timeout
+        Thread.sleep(200);
+        assertEquals(0, expired("guest"));
+
+        reaper.preSend(frame(SimpMessageType.DISCONNECT, "s2", null), null);
+        awaitExpired("guest", 1);
+        verify(reaper.clientOutboundChannel, never()).send(any());
+    }
+
+    @Test
+    void temporaryRoomIsKeptWhileActive() throws InterruptedException {
+        reaper.track(new Room(10L, UUID.randomUUID(), "temporary", null, guest, null, null));
+        assertEquals(1, live("room"));
+
+        // Messages to the room for longer than its idle timeout
+        for (int i = 0; i < 8; i++) {
+            Thread.sleep(50);
+            reaper.preSend(frame(SimpMessageType.MESSAGE, "s1", "/app/chat/temporary"), null);
+        }
+        assertEquals(0, expired("room"));
+
+        awaitExpired("room", 1);
+        verify(reaper.messageRepository).deleteByRoomIds(List.of(10L));
+        verify(reaper.roomRepository).deleteByIds(List.of(10L));
+        verify(reaper.roomRegistry).findByTitle("temporary");
+        verify(reaper.messageHistoryService).remove("temporary");
+        verify(reaper.messageSearchService).remove(10L);
+        verify(reaper.userRepository, never()).deleteByIdsAndRole(anyList(), any());
+    }
+
+    @Test
+    void usersAndRoomsThatAreNotTemporaryAreIgnored() throws InterruptedException {
+        User user = new User(2L, UUID.randomUUID(), User.Role.USER, null, null, "user", null, true, null, null);
+        reaper.track(user);
+        reaper.track(new Room(20L, UUID.randomUUID(), "lobby", null, user, null, null));
+        assertEquals(0, live("guest"));
+        assertEquals(0, live("room"));
+
+        // Deleted guests are no longer tracked
+        reaper.track(guest);
+        reaper.untrack(guest);
+
+        Thread.sleep(400);
+        assertEquals(0, expired("guest"));
+        assertEquals(0, expired("room"));
+        verify(reaper.userRepository, never()).deleteByIdsAndRole(anyList(), any());
+    }
+
+    private void awaitExpired(String kind, int count) throws InterruptedException {
+        for (int i = 0; i < 200 && expired(kind) < count; i++) {
+            Thread.sleep(10);
+        }
+        if (expired(kind) != count) {
+            fail("Expected " + count + " expired " + kind + ", got " + expired(kind));
+        }
+    }
+
+    private long expired(String kind) {
+        return (long) meterRegistry.get("chat.expiry.expired").tag("kind", kind).counter().count();
+    }
+
+    private long live(String kind) {
+        return (long) meterRegistry.get("chat.expiry.live").tag("kind", kind).gauge().value();
+    }
+
+    private Message<byte[]> frame(SimpMessageType type, String sessionId, String destination) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(type);
+        accessor.setSessionId(sessionId);
+        accessor.setDestination(destination);
+        accessor.setUser(ChatPrincipal.of(guest));
+        return MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+    }
+}
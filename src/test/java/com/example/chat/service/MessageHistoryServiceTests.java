@@ -0,0 +1,164 @@
+package com.example.chat.service;
+
+import com.example.chat.dto.MessageDto;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Limits of the recent history: per room, by messages and by memory, and of all the rooms, evicting the least recently
+ * active rooms first.
+ */
+class MessageHistoryServiceTests {
+
+    // Estimated bytes of a message with a content of 50 characters
+    private static final int MESSAGE_BYTES = 300;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final MockEnvironment environment = new MockEnvironment();
+
+    private MessageHistoryService service;
+
+
+    @BeforeEach
+    void createService() {
+        service = new MessageHistoryService();
+        service.environment = environment;
+        service.meterRegistry = meterRegistry;
+        service.defaultCapacity = 10;
+        service.defaultMaxBytesPerRoom = 10 * MESSAGE_BYTES;
+        service.maxBytes = 100 * MESSAGE_BYTES;
+        service.registerMetrics();
+    }
+
+    @Test
+    void roomKeepsItsLastMessages() {
+        for (int i = 0; i < 15; i++) {
+            service.add("lobby", message("lobby", i));
+        }
+
+        assertEquals(List.of("5", "6", "7", "8", "9", "10", "11", "12", "13", "14"), contents("lobby"));
+        assertEquals(10 * MESSAGE_BYTES, totalBytes());
+    }
+
+    @Test
+    void roomLimitsAreOverriddenByRoom() {
+        environment.setProperty("chat.message.history.rooms.big.capacity", "20");
+        environment.setProperty("chat.message.history.rooms.big.max-bytes", String.valueOf(20 * MESSAGE_BYTES));
+        environment.setProperty("chat.message.history.rooms.small.max-bytes", String.valueOf(3 * MESSAGE_BYTES));
+        for (int i = 0; i < 20; i++) {
+            service.add("big", message("big", i));
+            service.add("small", message("small", i));
+        }
+
+        assertEquals(20, contents("big").size());
+        assertEquals(List.of("17", "18", "19"), contents("small"));
+        assertEquals(23 * MESSAGE_BYTES, totalBytes());
+    }
+
+    @Test
+    void leastRecentlyActiveRoomsAreEvictedFirst() {
+        // 10 rooms of 10 messages fill the memory, the first rooms are the least recently active
+        for (int room = 0; room < 10; room++) {
+            for (int i = 0; i < 10; i++) {
+                service.add("room" + room, message("room" + room, i));
+            }
+        }
+        service.add("room0", message("room0", 10));
+        assertEquals(100 * MESSAGE_BYTES, totalBytes());
+
+        // A new room exceeds the limit, evicted down to 90% from the least recently active: room1 and room2
+        service.add("new", message("new", 0));
+
+        assertTrue(contents("room1").isEmpty());
+        assertTrue(contents("room2").isEmpty());
+        assertEquals(10, contents("room0").size());
+        assertEquals(10, contents("room3").size());
+        assertEquals(1, contents("new").size());
+        assertEquals(81 * MESSAGE_BYTES, totalBytes());
+    }
+
+    @Test
+    void roomOverTheLimitByItselfIsEvicted() {
+        service.maxBytes = 5 * MESSAGE_BYTES;
+        service.add("other", message("other", 0));
+        for (int i = 0; i < 6; i++) {
+            service.add("hot", message("hot", i));
+        }
+
+        assertTrue(contents("other").isEmpty());
+        assertTrue(totalBytes() <= service.maxBytes);
+    }
+
+    @Test
+    void removedRoomIsNotCounted() {
+        for (int i = 0; i < 5; i++) {
+            service.add("lobby", message("lobby", i));
+        }
+        service.remove("lobby");
+
+        assertTrue(contents("lobby").isEmpty());
+        assertEquals(0, totalBytes());
+    }
+
+    @Test
+    void concurrentAddsStayWithinTheLimit() throws Exception {
+        service.maxBytes = 50 * MESSAGE_BYTES;
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int thread = 0; thread < 8; thread++) {
+                int first = thread;
+                tasks.add(executor.submit(() -> {
+                    for (int i = 0; i < 5000; i++) {
+                        String room = "room" + ((first + i) % 40);
+                        service.add(room, message(room, i));
+                        if (i % 100 == 0) {
+                            service.remove(room);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // The counted memory is the memory of the histories left
+        long left = 0;
+        for (int room = 0; room < 40; room++) {
+            left += (long) contents("room" + room).size() * MESSAGE_BYTES;
+        }
+        assertEquals(left, totalBytes());
+        assertTrue(totalBytes() <= service.maxBytes);
+    }
+
+    private List<String> contents(String room) {
+        return service.findRecent(room).stream().map(MessageDto::content).map(String::trim).toList();
+    }
+
+    private long totalBytes() {
+        return (long) meterRegistry.get("chat.messages.history.bytes").gauge().value();
+    }
+
+    private static MessageDto message(String room, int sequence) {
+        // 50 characters
+        String content = String.format("%-50s", sequence);
+        return new MessageDto(null, UUID.randomUUID(), room, "jane", content, Instant.now());
+    }
+}
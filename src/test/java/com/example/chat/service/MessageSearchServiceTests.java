@@ -0,0 +1,185 @@
+package com.example.chat.service;
+
+import com.example.chat.dto.MessageDto;
+import com.example.chat.model.Message;
+import com.example.chat.model.Room;
+import com.example.chat.repository.MessageRepository;
+import com.example.chat.repository.RoomRepository;
+import com.example.chat.util.InvertedIndex;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Memory budget of the search indexes: the segments are evicted in the order they were sealed, and the newest segment
+ * of a room is sealed and evicted when it is all that is left.
+ */
+class MessageSearchServiceTests {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private MessageSearchService service;
+
+    private long nextId = 1;
+
+
+    @BeforeEach
+    void createService() {
+        MessageRepository messageRepository = mock(MessageRepository.class);
+        // The hits are read back as they were indexed
+        when(messageRepository.findByIds(anyList())).thenAnswer(invocation -> {
+            List<Long> ids = invocation.getArgument(0);
+            return ids.stream()
+                    .map(id -> new MessageDto(id, UUID.randomUUID(), "room", "jane", "", Instant.now()))
+                    .toList();
+        });
+        service = new MessageSearchService();
+        service.messageRepository = messageRepository;
+        service.roomRepository = mock(RoomRepository.class);
+        service.transactionManager = mock(PlatformTransactionManager.class);
+        service.meterRegistry = meterRegistry;
+        service.memoryBudget = DataSize.ofMegabytes(256);
+        service.rebuildParallelism = 1;
+        service.start();
+    }
+
+    @AfterEach
+    void stop() {
+        service.stop();
+    }
+
+    @Test
+    void newestSegmentOverTheBudgetIsSealedAndEvicted() {
+        // Budget of a thousand messages, in a room that never fills a segment
+        InvertedIndex sample = new InvertedIndex();
+        for (int i = 0; i < 1000; i++) {
+            sample.add(i, content(i));
+        }
+        service.memoryBudget = DataSize.ofBytes(sample.memory());
+
+        List<Long> ids = index(1L, 3000);
+
+        assertTrue(memory() <= service.memoryBudget.toBytes());
+        assertTrue(evicted() > 0);
+        List<Long> found = search(1L, "hello");
+        assertTrue(found.size() < 3000);
+        // The newest messages are kept
+        assertEquals(ids.get(ids.size() - 1), found.get(0));
+        assertFalse(found.contains(ids.get(0)));
+    }
+
+    @Test
+    void segmentsAreEvictedInTheOrderTheyWereSealed() {
+        List<Long> first = index(1L, InvertedIndex.SEGMENT_SIZE + 1);
+        List<Long> second = index(2L, InvertedIndex.SEGMENT_SIZE + 1);
+        index(1L, InvertedIndex.SEGMENT_SIZE);
+        assertEquals(0, evicted());
+
+        // One segment over the budget: the first one sealed, of the room 1
+        service.memoryBudget = DataSize.ofBytes(memory() - 1);
+        index(2L, 1);
+
+        assertEquals(1, evicted());
+        assertTrue(memory() <= service.memoryBudget.toBytes());
+        assertFalse(search(1L, "hello").contains(first.get(0)));
+        assertTrue(search(1L, "hello").contains(first.get(first.size() - 1)));
+        assertTrue(search(2L, "hello").contains(second.get(0)));
+    }
+
+    @Test
+    void segmentsOfARemovedRoomAreNotEvicted() {
+        index(1L, InvertedIndex.SEGMENT_SIZE + 1);
+        List<Long> second = index(2L, InvertedIndex.SEGMENT_SIZE + 1);
+        service.remove(1L);
+        assertEquals(0, evicted());
+
+        service.memoryBudget = DataSize.ofBytes(memory() - 1);
+        index(2L, 1);
+
+        assertEquals(1, evicted());
+        assertTrue(memory() <= service.memoryBudget.toBytes());
+        assertFalse(search(2L, "hello").contains(second.get(0)));
+    }
+
+    @Test
+    void distinctTermsKeepTheIndexWithinTheBudget() {
+        service.memoryBudget = DataSize.ofMegabytes(1);
+        Room room = new Room(1L, UUID.randomUUID(), "room1", null, null, Instant.now(), Instant.now());
+        // Every message with a term of its own, like numbers or links
+        for (int batch = 0; batch < 100; batch++) {
+            List<Message> messages = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                long id = nextId++;
+                messages.add(new Message(id, UUID.randomUUID(), null, room, "hello term" + id, Instant.now()));
+            }
+            service.index(messages);
+            assertTrue(memory() <= service.memoryBudget.toBytes());
+        }
+
+        // The terms of the evicted segments are dropped, the segments kept still cover thousands of messages
+        assertTrue(evicted() < 100);
+        List<Long> found = search(1L, "hello");
+        assertTrue(found.size() > 2000);
+        assertEquals(nextId - 1, found.get(0));
+        assertEquals(List.of(nextId - 1), search(1L, "term" + (nextId - 1)));
+    }
+
+    @Test
+    void invalidQueriesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> service.search(1L, " * ", null, 10));
+        assertThrows(IllegalArgumentException.class, () -> service.search(1L, "a b c d e f g h i", null, 10));
+        assertThrows(IllegalArgumentException.class, () -> service.search(1L, "hello", "next", 10));
+        assertTrue(service.search(42L, "hello", null, 10).messages().isEmpty());
+    }
+
+    /**
+     * Indexes messages in a room, as persisted by the <code>MessageService</code>.
+     *
+     * @return the ids of the messages indexed.
+     */
+    private List<Long> index(Long roomId, int count) {
+        Room room = new Room(roomId, UUID.randomUUID(), "room" + roomId, null, null, Instant.now(), Instant.now());
+        List<Message> messages = new ArrayList<>();
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            long id = nextId++;
+            messages.add(new Message(id, UUID.randomUUID(), null, room, content((int) id), Instant.now()));
+            ids.add(id);
+        }
+        service.index(messages);
+        return ids;
+    }
+
+    private List<Long> search(Long roomId, String query) {
+        return service.search(roomId, query, null, 10_000).messages().stream().map(MessageDto::id).toList();
+    }
+
+    private long memory() {
+        return (long) meterRegistry.get("chat.search.memory").gauge().value();
+    }
+
+    private long evicted() {
+        return (long) meterRegistry.get("chat.search.evicted").counter().count();
+    }
+
+    private static String content(int sequence) {
+        // A small vocabulary, the memory grows with the messages rather than with the terms
+        return "hello world w" + (sequence % 100);
+    }
+}
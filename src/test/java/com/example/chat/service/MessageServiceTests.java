@@ -0,0 +1,175 @@
+package com.example.chat.service;
+
+import com.example.chat.model.Message;
+import com.example.chat.model.Room;
+import com.example.chat.model.User;
+import com.example.chat.repository.MessageRepository;
+import com.example.chat.repository.RoomRepository;
+import com.example.chat.repository.UserRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Write-behind of the messages: the messages are saved in batches with their user and room looked up again, the
+ * messages of deleted rooms are skipped, and a failed batch is saved again one message at a time.
+ */
+class MessageServiceTests {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final User user = new User(7L, UUID.randomUUID(), User.Role.USER, null, null, "jane", null, true, null,
+            null);
+
+    private final Room lobby = room(1L, "lobby");
+
+    private final Room deleted = room(2L, "deleted");
+
+    private MessageService service;
+
+
+    @BeforeEach
+    void createService() {
+        service = new MessageService();
+        service.messageRepository = mock(MessageRepository.class);
+        service.userRepository = mock(UserRepository.class);
+        service.roomRepository = mock(RoomRepository.class);
+        service.transactionManager = mock(PlatformTransactionManager.class);
+        service.messageSearchService = mock(MessageSearchService.class);
+        service.meterRegistry = meterRegistry;
+        service.queueCapacity = 100;
+        service.batchSize = 3;
+        service.flushInterval = Duration.ofMillis(100);
+        service.offerTimeout = Duration.ofMillis(10);
+        service.shutdownTimeout = Duration.ofSeconds(5);
+
+        when(service.userRepository.findById(any())).thenReturn(Optional.empty());
+        when(service.userRepository.findById(7L)).thenReturn(Optional.of(user));
+        when(service.roomRepository.findById(any())).thenReturn(Optional.empty());
+        when(service.roomRepository.findById(1L)).thenReturn(Optional.of(lobby));
+    }
+
+    @Test
+    void messagesAreSavedInABatch() throws InterruptedException {
+        service.start();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(service.saveAsync(message("hello " + i, lobby)));
+        }
+        service.stop();
+
+        List<Message> saved = saved();
+        assertEquals(List.of("hello 0", "hello 1", "hello 2"), contents(saved));
+        assertEquals(user, saved.get(0).getUser());
+        assertEquals(lobby, saved.get(0).getRoom());
+        assertEquals(saved, indexed());
+        assertEquals(3, count("persisted"));
+    }
+
+    @Test
+    void messagesOfADeletedRoomAreSkipped() throws InterruptedException {
+        service.start();
+        service.saveAsync(message("hello", lobby));
+        service.saveAsync(message("lost", deleted));
+        service.saveAsync(message("again", lobby));
+        service.stop();
+
+        assertEquals(List.of("hello", "again"), contents(saved()));
+        assertEquals(2, count("persisted"));
+        assertEquals(1, count("skipped"));
+    }
+
+    @Test
+    void failedBatchIsSavedOneByOne() throws InterruptedException {
+        // The room is deleted after the lookup, while the batch is saved
+        when(service.roomRepository.findById(2L)).thenReturn(Optional.of(deleted));
+        when(service.messageRepository.saveAll(anyList())).thenThrow(new DataIntegrityViolationException("ROOM_ID"));
+        when(service.messageRepository.save(argThat(message -> message != null && message.getRoom() == deleted)))
+                .thenThrow(new DataIntegrityViolationException("ROOM_ID"));
+
+        service.start();
+        service.saveAsync(message("hello", lobby));
+        service.saveAsync(message("lost", deleted));
+        service.saveAsync(message("again", lobby));
+        service.stop();
+
+        ArgumentCaptor<Message> saved = ArgumentCaptor.forClass(Message.class);
+        verify(service.messageRepository, times(3)).save(saved.capture());
+        saved.getAllValues().forEach(message -> assertNull(message.getId()));
+        assertEquals(List.of("hello", "again"), contents(indexed()));
+        assertEquals(2, count("persisted"));
+        assertEquals(1, count("failed"));
+    }
+
+    @Test
+    void messagesAreDroppedOnceStopped() throws InterruptedException {
+        service.start();
+        service.stop();
+
+        assertFalse(service.saveAsync(message("late", lobby)));
+        assertEquals(1, count("dropped"));
+        verify(service.messageRepository, never()).saveAll(anyList());
+    }
+
+    /**
+     * Messages saved in batches, the writer may have split them in more than one batch.
+     */
+    private List<Message> saved() {
+        ArgumentCaptor<List<Message>> batches = listCaptor();
+        verify(service.messageRepository, atLeastOnce()).saveAll(batches.capture());
+        return batches.getAllValues().stream().flatMap(List::stream).toList();
+    }
+
+    private List<Message> indexed() {
+        ArgumentCaptor<List<Message>> batches = listCaptor();
+        verify(service.messageSearchService, atLeastOnce()).index(batches.capture());
+        return batches.getAllValues().stream().flatMap(List::stream).toList();
+    }
+
+    private static List<String> contents(List<Message> messages) {
+        return messages.stream().map(Message::getContent).toList();
+    }
+
+    private long count(String outcome) {
+        return (long) meterRegistry.get("chat.messages.write-behind." + outcome).counter().count();
+    }
+
+    /**
+     * Message as queued by the WebSocket controller, with the user of the session and the registered room.
+     */
+    private Message message(String content, Room room) {
+        return new Message(content, new User(user.getId(), user.getUuid(), user.getRole(), null, null,
+                user.getNickname(), null, true, null, null), room);
+    }
+
+    private static Room room(Long id, String title) {
+        return new Room(id, UUID.randomUUID(), title, null, null, Instant.now(), Instant.now());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArgumentCaptor<List<Message>> listCaptor() {
+        return ArgumentCaptor.forClass(List.class);
+    }
+}
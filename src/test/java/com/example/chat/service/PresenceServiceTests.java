@@ -0,0 +1,107 @@
+package com.example.chat.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+
+import java.security.Principal;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Users online in the rooms: a user joins a room once whatever its subscriptions, and the presence of a renamed or
+ * deleted room is dropped, also from the subscriptions of the sessions.
+ */
+class PresenceServiceTests {
+
+    private PresenceService service;
+
+
+    @BeforeEach
+    void createService() {
+        service = new PresenceService();
+        service.roomRegistry = mock(RoomRegistry.class);
+        service.objectMapper = new ObjectMapper();
+        service.meterRegistry = new SimpleMeterRegistry();
+        service.brokerChannel = mock(MessageChannel.class);
+        service.deltaWindow = Duration.ofSeconds(10);
+        service.maxDeltaNames = 100;
+        service.start();
+
+        when(service.roomRegistry.contains(anyString())).thenReturn(true);
+    }
+
+    @AfterEach
+    void stopService() {
+        service.stop();
+    }
+
+    @Test
+    void userJoinsARoomOnce() {
+        subscribe("s1", "jane", "/topic/lobby");
+        subscribe("s2", "jane", "/topic/batch/lobby");
+        subscribe("s3", "john", "/topic/lobby");
+
+        assertEquals(2, service.countOnline("lobby"));
+        disconnect("s1", "jane");
+        assertEquals(2, service.countOnline("lobby"));
+        disconnect("s2", "jane");
+        assertEquals(List.of("john"), service.findMembers("lobby", 10));
+    }
+
+    @Test
+    void removedRoomHasNoMembers() {
+        subscribe("s1", "jane", "/topic/lobby");
+        subscribe("s1", "jane", "/topic/other");
+
+        service.remove("lobby");
+        assertEquals(0, service.countOnline("lobby"));
+        assertEquals(1, service.countOnline("other"));
+
+        // The subscription of the session to the removed room does not count in a new room with the title
+        subscribe("s2", "jane", "/topic/lobby");
+        disconnect("s1", "jane");
+        assertEquals(List.of("jane"), service.findMembers("lobby", 10));
+        assertEquals(0, service.countOnline("other"));
+    }
+
+    private void subscribe(String sessionId, String nickname, String destination) {
+        SimpMessageHeaderAccessor accessor = accessor(SimpMessageType.SUBSCRIBE, sessionId);
+        accessor.setSubscriptionId(destination);
+        accessor.setDestination(destination);
+        service.onApplicationEvent(new SessionSubscribeEvent(this, message(accessor), user(nickname)));
+    }
+
+    private void disconnect(String sessionId, String nickname) {
+        Message<byte[]> message = message(accessor(SimpMessageType.DISCONNECT, sessionId));
+        service.onApplicationEvent(new SessionDisconnectEvent(this, message, sessionId, null, user(nickname)));
+    }
+
+    private static SimpMessageHeaderAccessor accessor(SimpMessageType type, String sessionId) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(type);
+        accessor.setSessionId(sessionId);
+        return accessor;
+    }
+
+    private static Message<byte[]> message(SimpMessageHeaderAccessor accessor) {
+        return MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+    }
+
+    private static Principal user(String nickname) {
+        return () -> nickname;
+    }
+}
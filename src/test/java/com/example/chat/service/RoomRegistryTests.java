@@ -0,0 +1,98 @@
+package com.example.chat.service;
+
+import com.example.chat.model.Room;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Registry of the rooms: a renamed room is only found by its new title, also when its versions are registered
+ * concurrently, and a deleted room is no longer found.
+ */
+class RoomRegistryTests {
+
+    private static final UUID UUID_LOBBY = UUID.randomUUID();
+
+    private final RoomRegistry registry = new RoomRegistry();
+
+
+    @Test
+    void renamedRoomIsFoundByItsNewTitle() {
+        registry.register(room("lobby"));
+        registry.register(room("hall"));
+
+        assertFalse(registry.contains("lobby"));
+        assertEquals(Optional.of("hall"), registry.findByTitle("hall").map(Room::getTitle));
+        assertEquals(Optional.of("hall"), registry.findByUuid(UUID_LOBBY).map(Room::getTitle));
+    }
+
+    @Test
+    void titleOfAnotherRoomIsKept() {
+        registry.register(room("lobby"));
+        Room other = new Room(2L, UUID.randomUUID(), "lobby", null, null, Instant.now(), Instant.now());
+        registry.register(other);
+        // The previous title is now the one of another room
+        registry.register(room("hall"));
+
+        assertEquals(Optional.of(other), registry.findByTitle("lobby"));
+    }
+
+    @Test
+    void concurrentUpdatesLeaveOnlyTheLastTitle() throws Exception {
+        int versions = 10_000;
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<?>> updates = new ArrayList<>();
+            for (String writer : List.of("a", "b")) {
+                updates.add(executor.submit(() -> {
+                    for (int i = 0; i < versions; i++) {
+                        registry.register(room(writer + i));
+                    }
+                }));
+            }
+            for (Future<?> update : updates) {
+                update.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        String title = registry.findByUuid(UUID_LOBBY).orElseThrow().getTitle();
+        long registered = IntStream.range(0, versions)
+                .mapToObj(i -> List.of("a" + i, "b" + i))
+                .flatMap(List::stream)
+                .filter(registry::contains)
+                .count();
+        assertEquals(1, registered);
+        assertTrue(registry.contains(title));
+    }
+
+    @Test
+    void deletedRoomIsNoLongerFound() {
+        Room lobby = room("lobby");
+        registry.register(lobby);
+        registry.unregister(lobby);
+
+        assertFalse(registry.contains("lobby"));
+        assertEquals(Optional.empty(), registry.findByUuid(UUID_LOBBY));
+    }
+
+    /**
+     * Version of the lobby with the title, as saved by the <code>RoomService</code>.
+     */
+    private static Room room(String title) {
+        return new Room(1L, UUID_LOBBY, title, null, null, Instant.now(), Instant.now());
+    }
+}
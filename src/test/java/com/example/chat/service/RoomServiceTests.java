@@ -0,0 +1,80 @@
+package com.example.chat.service;
+
+import com.example.chat.model.Room;
+import com.example.chat.repository.RoomRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Updates of the rooms: the state kept in memory by title is dropped when a room is renamed or deleted.
+ */
+class RoomServiceTests {
+
+    private static final UUID UUID_LOBBY = UUID.randomUUID();
+
+    private RoomService service;
+
+
+    @BeforeEach
+    void createService() {
+        service = new RoomService();
+        service.roomRepository = mock(RoomRepository.class);
+        service.roomRegistry = mock(RoomRegistry.class);
+        service.messageHistoryService = mock(MessageHistoryService.class);
+        service.messageSearchService = mock(MessageSearchService.class);
+        service.presenceService = mock(PresenceService.class);
+        service.idleReaper = mock(IdleReaper.class);
+
+        when(service.roomRepository.findById(1L)).thenReturn(Optional.of(room("lobby")));
+        when(service.roomRepository.findByUuid(UUID_LOBBY)).thenReturn(Optional.of(room("lobby")));
+        when(service.roomRepository.save(any())).thenAnswer(invocation -> invocation.getArgument(0));
+    }
+
+    @Test
+    void historyIsDroppedWhenTheRoomIsRenamed() {
+        Room renamed = room("hall");
+        service.update(1L, renamed);
+
+        verify(service.roomRegistry).register(renamed);
+        verify(service.messageHistoryService).remove("lobby");
+        verify(service.presenceService).remove("lobby");
+    }
+
+    @Test
+    void historyIsDroppedWhenTheRoomIsRenamedByUuid() {
+        service.update(UUID_LOBBY.toString(), room("hall"));
+
+        verify(service.messageHistoryService).remove("lobby");
+    }
+
+    @Test
+    void historyIsKeptWhenTheTitleIsUnchanged() {
+        service.update(1L, room("lobby"));
+
+        verify(service.messageHistoryService, never()).remove(anyString());
+        verify(service.presenceService, never()).remove(anyString());
+    }
+
+    @Test
+    void presenceIsDroppedWhenTheRoomIsDeleted() {
+        service.delete(1L);
+
+        verify(service.messageHistoryService).remove("lobby");
+        verify(service.presenceService).remove("lobby");
+    }
+
+    private static Room room(String title) {
+        return new Room(1L, UUID_LOBBY, title, null, null, Instant.now(), Instant.now());
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.chat.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Inverted index: tokenization of the texts and the queries, term and prefix queries from the newest document to the
+ * oldest, in the newest segment and in the sealed ones, and eviction of the oldest segments.
+ */
+class InvertedIndexTests {
+
+    private static final String LONG_WORD = "abcdefghijklmnopqrstuvwxyz0123456789";
+
+
+    @Test
+    void textsAreSplitInDistinctLowerCaseWords() {
+        assertEquals(List.of("hello", "world", "42x", "élan"),
+                InvertedIndex.tokenize("Hello, WORLD! hello... 42x-Élan"));
+        assertEquals(List.of(LONG_WORD.substring(0, InvertedIndex.MAX_TERM_LENGTH)), InvertedIndex.tokenize(LONG_WORD));
+        assertEquals(List.of(), InvertedIndex.tokenize(" ?! "));
+    }
+
+    @Test
+    void queriesMatchPrefixesWithAStar() {
+        assertEquals(List.of(new InvertedIndex.Term("hello", false), new InvertedIndex.Term("wor", true)),
+                InvertedIndex.parse(" Hello  wor* "));
+        // The star applies to the last token of the word
+        assertEquals(List.of(new InvertedIndex.Term("it", false), new InvertedIndex.Term("s", true)),
+                InvertedIndex.parse("it's*"));
+        // A truncated word matches the longer words indexed by the same prefix
+        assertEquals(List.of(new InvertedIndex.Term(LONG_WORD.substring(0, InvertedIndex.MAX_TERM_LENGTH), true)),
+                InvertedIndex.parse(LONG_WORD));
+        assertEquals(List.of(), InvertedIndex.parse("  "));
+    }
+
+    @Test
+    void documentsAreFoundFromTheNewest() {
+        InvertedIndex index = new InvertedIndex();
+        index.add(10, "hello world");
+        index.add(11, "hello there");
+        index.add(12, "goodbye world");
+        index.add(13, "Hello World again");
+
+        assertEquals(List.of(new InvertedIndex.Hit(13, 3), new InvertedIndex.Hit(10, 0)),
+                index.search(InvertedIndex.parse("world hello"), Long.MAX_VALUE, 10));
+        assertEquals(List.of(new InvertedIndex.Hit(13, 3), new InvertedIndex.Hit(11, 1)),
+                index.search(InvertedIndex.parse("hello"), Long.MAX_VALUE, 2));
+        // Continues after the last document found
+        assertEquals(List.of(new InvertedIndex.Hit(10, 0)), index.search(InvertedIndex.parse("hello"), 1, 2));
+        assertEquals(List.of(), index.search(InvertedIndex.parse("missing"), Long.MAX_VALUE, 10));
+        assertEquals(List.of(), index.search(List.of(), Long.MAX_VALUE, 10));
+    }
+
+    @Test
+    void prefixesMatchInTheNewestAndTheSealedSegments() {
+        InvertedIndex index = new InvertedIndex();
+        index.add(1, "world");
+        index.add(2, "wordy");
+        index.add(3, "sword");
+        index.add(4, "wo");
+        List<InvertedIndex.Term> query = InvertedIndex.parse("wor*");
+
+        assertEquals(List.of(2L, 1L), ids(index.search(query, Long.MAX_VALUE, 10)));
+        long memory = index.memory();
+        long sealed = index.seal();
+        assertEquals(memory + sealed, index.memory());
+        assertEquals(1, index.sealCount());
+        assertEquals(List.of(2L, 1L), ids(index.search(query, Long.MAX_VALUE, 10)));
+        assertEquals(List.of(1L), ids(index.search(InvertedIndex.parse("world"), Long.MAX_VALUE, 10)));
+    }
+
+    @Test
+    void queriesGoAcrossTheSegments() {
+        InvertedIndex index = new InvertedIndex();
+        int documents = 2 * InvertedIndex.SEGMENT_SIZE + 10;
+        for (int i = 0; i < documents; i++) {
+            index.add(i, "message " + i + (i % 3 == 0 ? " fizz" : ""));
+        }
+        assertEquals(2, index.sealCount());
+        assertEquals(documents, index.size());
+
+        assertEquals(List.of(8199L, 8196L, 8193L, 8190L),
+                ids(index.search(InvertedIndex.parse("fizz"), Long.MAX_VALUE, 4)));
+        // From the first document of the newest segment back into the sealed ones
+        assertEquals(List.of(8190L, 8187L), ids(index.search(InvertedIndex.parse("fizz"), 8192, 2)));
+        assertEquals(List.of(5L), ids(index.search(InvertedIndex.parse("5"), Long.MAX_VALUE, 10)));
+        assertEquals((documents - 1) / 3 + 1,
+                index.search(InvertedIndex.parse("fizz"), Long.MAX_VALUE, documents).size());
+    }
+
+    @Test
+    void evictedDocumentsAreNoLongerFound() {
+        InvertedIndex index = new InvertedIndex();
+        for (int i = 0; i < InvertedIndex.SEGMENT_SIZE + 1; i++) {
+            index.add(i, "message " + i);
+        }
+        long memory = index.memory();
+
+        long freed = index.evictOldest();
+        assertTrue(freed > 0);
+        assertEquals(memory - freed, index.memory());
+        assertEquals(1, index.size());
+        assertEquals(List.of(4096L), ids(index.search(InvertedIndex.parse("message"), Long.MAX_VALUE, 10)));
+        assertEquals(List.of(), index.search(InvertedIndex.parse("0"), Long.MAX_VALUE, 10));
+
+        // Only the sealed segments are evicted
+        assertEquals(0, index.evictOldest());
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void termsAreDroppedWithTheirLastSegment() {
+        InvertedIndex index = new InvertedIndex();
+        for (int i = 0; i < 2 * InvertedIndex.SEGMENT_SIZE; i++) {
+            index.add(i, "shared unique" + i);
+        }
+        index.add(-1, "shared last");
+        while (index.evictOldest() > 0) {
+            // Evicts all the sealed segments
+        }
+
+        // Only the terms of the newest segment are left
+        InvertedIndex fresh = new InvertedIndex();
+        fresh.add(-1, "shared last");
+        assertEquals(fresh.memory(), index.memory());
+        assertEquals(List.of(-1L), ids(index.search(InvertedIndex.parse("shared"), Long.MAX_VALUE, 10)));
+        assertEquals(List.of(), index.search(InvertedIndex.parse("unique*"), Long.MAX_VALUE, 10));
+
+        // A dropped term is indexed again from scratch
+        index.add(-2, "unique0");
+        assertEquals(List.of(-2L), ids(index.search(InvertedIndex.parse("unique0"), Long.MAX_VALUE, 10)));
+    }
+
+    @Test
+    void emptySegmentIsNotSealed() {
+        InvertedIndex index = new InvertedIndex();
+        long memory = index.memory();
+
+        assertEquals(0, index.seal());
+        assertEquals(0, index.sealCount());
+        assertEquals(memory, index.memory());
+
+        assertEquals(index.add(1, "hello"), index.memory() - memory);
+        index.seal();
+        assertEquals(0, index.seal());
+        assertEquals(1, index.sealCount());
+    }
+
+    private static List<Long> ids(List<InvertedIndex.Hit> hits) {
+        return hits.stream().map(InvertedIndex.Hit::id).toList();
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.chat.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Timing wheel: the elements expire on the tick of their deadline, on any level and after any number of rounds of the
+ * wheel, and never before.
+ */
+class TimingWheelTests {
+
+    @Test
+    void elementsExpireOnTheTickOfTheirDeadline() {
+        TimingWheel<String> wheel = new TimingWheel<>(Duration.ofMillis(10), 2, 0);
+        wheel.schedule("a", 25);
+        wheel.schedule("b", 30);
+        wheel.schedule("c", 31);
+
+        // Deadlines are rounded up to the tick
+        assertEquals(List.of(), wheel.advance(29));
+        assertEquals(List.of("a", "b"), wheel.advance(30));
+        assertEquals(List.of(), wheel.advance(39));
+        assertEquals(List.of("c"), wheel.advance(40));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void pastDeadlineExpiresOnTheNextTick() {
+        TimingWheel<String> wheel = new TimingWheel<>(Duration.ofMillis(10), 2, 1000);
+        wheel.schedule("late", 500);
+
+        assertEquals(List.of(), wheel.advance(1009));
+        assertEquals(List.of("late"), wheel.advance(1010));
+    }
+
+    @Test
+    void elementsCascadeFromTheHigherLevels() {
+        // 64 ticks on the first level, 4096 on the second
+        TimingWheel<Integer> wheel = new TimingWheel<>(Duration.ofMillis(1), 2, 0);
+        int[] deadlines = {63, 64, 65, 127, 128, 4095};
+        for (int deadline : deadlines) {
+            wheel.schedule(deadline, deadline);
+        }
+
+        for (int deadline : deadlines) {
+            assertEquals(List.of(), wheel.advance(deadline - 1));
+            assertEquals(List.of(deadline), wheel.advance(deadline));
+        }
+    }
+
+    @Test
+    void deadlinesBeyondTheWheelExpireAfterSeveralRounds() {
+        // The wheel spans 4096 ticks, the deadlines are several rounds ahead
+        TimingWheel<Long> wheel = new TimingWheel<>(Duration.ofMillis(1), 2, 100);
+        long[] deadlines = {4196, 4197, 10_000, 50_123};
+        for (long deadline : deadlines) {
+            wheel.schedule(deadline, deadline);
+        }
+
+        for (long deadline : deadlines) {
+            assertEquals(List.of(), wheel.advance(deadline - 1));
+            assertEquals(List.of(deadline), wheel.advance(deadline));
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void randomDeadlinesExpireInOrderAndOnTime() {
+        Random random = new Random(42);
+        TimingWheel<Integer> wheel = new TimingWheel<>(Duration.ofMillis(1), 3, 0);
+        Map<Integer, Long> deadlines = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            long deadline = 1 + random.nextInt(600_000);
+            deadlines.put(i, deadline);
+            wheel.schedule(i, deadline);
+        }
+
+        // Advances by random steps, across the rounds of every level
+        long now = 0;
+        int expired = 0;
+        while (now < 600_000) {
+            long previous = now;
+            now += 1 + random.nextInt(700);
+            List<Integer> due = wheel.advance(now);
+            long last = 0;
+            for (int element : due) {
+                long deadline = deadlines.get(element);
+                assertTrue(deadline > previous && deadline <= now,
+                        "Element due at " + deadline + " expired between " + previous + " and " + now);
+                assertTrue(deadline >= last);
+                last = deadline;
+            }
+            expired += due.size();
+        }
+        assertEquals(5000, expired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void elementsScheduledWhileAdvancingExpireOnTime() {
+        TimingWheel<String> wheel = new TimingWheel<>(Duration.ofMillis(1), 2, 0);
+        List<String> expired = new ArrayList<>();
+        for (long now = 1; now <= 20_000; now++) {
+            if (now % 1000 == 0) {
+                // Always 5000 ticks ahead, beyond the span of the wheel
+                wheel.schedule("at " + (now + 5000), now + 5000);
+            }
+            for (String element : wheel.advance(now)) {
+                assertEquals("at " + now, element);
+                expired.add(element);
+            }
+        }
+        assertEquals(15, expired.size());
+    }
+
+    @Test
+    void invalidTickOrLevelsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new TimingWheel<>(Duration.ZERO, 2, 0));
+        assertThrows(IllegalArgumentException.class, () -> new TimingWheel<>(Duration.ofMillis(1), 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> new TimingWheel<>(Duration.ofMillis(1), 11, 0));
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.chat.webSocketController;
+
+import com.example.chat.dto.MessageDto;
+import com.example.chat.model.Message;
+import com.example.chat.model.Room;
+import com.example.chat.model.User;
+import com.example.chat.security.ChatPrincipal;
+import com.example.chat.service.MessageHistoryService;
+import com.example.chat.service.MessageService;
+import com.example.chat.service.RoomRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.Instant;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Inbound messages of a room: the message is queued with the id of the sender, and a message that can not be queued is
+ * rejected to the sender instead of broadcast.
+ */
+class RoomWebSocketControllerTests {
+
+    private final ChatPrincipal principal = new ChatPrincipal(7L, UUID.randomUUID(), "jane", User.Role.USER);
+
+    private RoomWebSocketController controller;
+
+    private MessageService messageService;
+
+    private MessageHistoryService messageHistoryService;
+
+
+    @BeforeEach
+    void createController() {
+        RoomRegistry roomRegistry = mock(RoomRegistry.class);
+        when(roomRegistry.findByTitle(any())).thenReturn(Optional.empty());
+        when(roomRegistry.findByTitle("lobby")).thenReturn(Optional.of(
+                new Room(1L, UUID.randomUUID(), "lobby", null, null, Instant.now(), Instant.now())));
+
+        messageService = mock(MessageService.class);
+        messageHistoryService = mock(MessageHistoryService.class);
+
+        controller = new RoomWebSocketController();
+        controller.roomRegistry = roomRegistry;
+        controller.messageService = messageService;
+        controller.messageHistoryService = messageHistoryService;
+    }
+
+    @Test
+    void messageIsQueuedWithItsSenderAndBroadcast() throws Exception {
+        when(messageService.saveAsync(any())).thenReturn(true);
+
+        MessageDto outbound = controller.inboundMessage("lobby", new Message("<b>hi</b>", null), principal);
+
+        ArgumentCaptor<Message> queued = ArgumentCaptor.forClass(Message.class);
+        verify(messageService).saveAsync(queued.capture());
+        assertEquals(7L, queued.getValue().getUser().getId());
+        assertEquals("&lt;b&gt;hi&lt;/b&gt;", outbound.content());
+        assertEquals("jane", outbound.sender());
+        verify(messageHistoryService).add("lobby", outbound);
+    }
+
+    @Test
+    void messageNotQueuedIsRejected() {
+        when(messageService.saveAsync(any())).thenReturn(false);
+
+        assertThrows(IllegalStateException.class,
+                () -> controller.inboundMessage("lobby", new Message("hi", null), principal));
+        verify(messageHistoryService, never()).add(any(), any());
+    }
+
+    @Test
+    void messageToAnUnknownRoomIsRejected() {
+        assertThrows(IllegalArgumentException.class,
+                () -> controller.inboundMessage("unknown", new Message("hi", null), principal));
+        verify(messageService, never()).saveAsync(any());
+    }
+}